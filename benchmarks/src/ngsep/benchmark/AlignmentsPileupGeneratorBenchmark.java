@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ngsep.alignments.ReadAlignment;
+import ngsep.discovery.AlignmentsPileupGenerator;
+import ngsep.discovery.PileupListener;
+import ngsep.discovery.PileupRecord;
+import ngsep.sequences.QualifiedSequence;
+import ngsep.sequences.QualifiedSequenceList;
+
+/**
+ * Pileup of sorted short read alignments over a synthetic chromosome.
+ * The listener retrieves the allele calls of each position as done by the variants detector
+ * @author Jorge Duitama
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AlignmentsPileupGeneratorBenchmark {
+	
+	@Param({"30"})
+	private int depth;
+	
+	private static final int READ_LENGTH = 150;
+	private static final int CHROMOSOME_LENGTH = 200000;
+	
+	private QualifiedSequenceList sequences;
+	private List<ReadAlignment> alignments;
+	
+	@Setup
+	public void setup() {
+		sequences = BenchmarkFixtures.buildGenome(1, CHROMOSOME_LENGTH);
+		QualifiedSequence chr = sequences.get(0);
+		CharSequence chrSeq = chr.getCharacters();
+		Random random = new Random(BenchmarkFixtures.SEED);
+		int numReads = depth*CHROMOSOME_LENGTH/READ_LENGTH;
+		int [] starts = new int [numReads];
+		for(int i=0;i<numReads;i++) starts[i] = 1+random.nextInt(CHROMOSOME_LENGTH-READ_LENGTH);
+		Arrays.sort(starts);
+		alignments = new ArrayList<>(numReads);
+		char [] qs = new char [READ_LENGTH];
+		List<Integer> alignment = new ArrayList<>(1);
+		alignment.add(ReadAlignment.getAlnValue(READ_LENGTH, ReadAlignment.ALIGNMENT_MATCH));
+		for(int i=0;i<numReads;i++) {
+			int first = starts[i];
+			String read = BenchmarkFixtures.mutate(random, chrSeq.subSequence(first-1, first-1+READ_LENGTH), 0.01, 0);
+			ReadAlignment aln = new ReadAlignment(chr.getName(), first, first+READ_LENGTH-1, READ_LENGTH, random.nextBoolean()?ReadAlignment.FLAG_READ_REVERSE_STRAND:0);
+			aln.setReadName("read_"+i);
+			aln.setReadCharacters(read);
+			aln.setAlignment(alignment);
+			for(int j=0;j<READ_LENGTH;j++) qs[j] = (char)(33+20+random.nextInt(20));
+			aln.setQualityScores(new String(qs));
+			aln.setAlignmentQuality((byte)60);
+			alignments.add(aln);
+		}
+	}
+	
+	@Benchmark
+	public void pileup(Blackhole bh) {
+		AlignmentsPileupGenerator generator = new AlignmentsPileupGenerator();
+		generator.setLog(createSilentLogger());
+		generator.setSequencesMetadata(sequences);
+		generator.setMaxAlnsPerStartPos(-1);
+		generator.addListener(new PileupListener() {
+			@Override
+			public void onPileup(PileupRecord pileup) {
+				bh.consume(pileup.getAlleleCalls(1));
+			}
+			@Override
+			public void onSequenceStart(QualifiedSequence sequence) {
+			}
+			@Override
+			public void onSequenceEnd(QualifiedSequence sequence) {
+			}
+		});
+		generator.processAlignments(alignments);
+	}
+	
+	private static Logger createSilentLogger() {
+		Logger log = Logger.getAnonymousLogger();
+		log.setLevel(Level.WARNING);
+		return log;
+	}
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.DNASequence;
+import ngsep.sequences.QualifiedSequence;
+import ngsep.sequences.QualifiedSequenceList;
+
+/**
+ * Synthetic data shared by the performance benchmarks. Every fixture is generated from a fixed seed
+ * so that different runs and different versions of the code process the same data
+ * @author Jorge Duitama
+ */
+final class BenchmarkFixtures {
+	static final long SEED = 42;
+	
+	private BenchmarkFixtures() {
+	}
+	
+	/**
+	 * Creates a random DNA sequence
+	 * @param random Source of random numbers
+	 * @param length of the sequence
+	 * @return String random sequence
+	 */
+	static String randomSequence(Random random, int length) {
+		char [] answer = new char[length];
+		for(int i=0;i<length;i++) answer[i] = DNASequence.BASES_STRING.charAt(random.nextInt(4));
+		return new String(answer);
+	}
+	
+	/**
+	 * Copies a sequence introducing substitutions and single base indels
+	 * @param random Source of random numbers
+	 * @param sequence to copy
+	 * @param substitutionRate Probability of a substitution at each position
+	 * @param indelRate Probability of an insertion or deletion at each position
+	 * @return String mutated copy of the sequence
+	 */
+	static String mutate(Random random, CharSequence sequence, double substitutionRate, double indelRate) {
+		StringBuilder answer = new StringBuilder(sequence.length()+10);
+		for(int i=0;i<sequence.length();i++) {
+			char c = sequence.charAt(i);
+			double r = random.nextDouble();
+			if(r<indelRate/2) continue;
+			if(r<indelRate) answer.append(DNASequence.BASES_STRING.charAt(random.nextInt(4)));
+			else if (r<indelRate+substitutionRate) c = DNASequence.BASES_STRING.charAt((DNASequence.BASES_STRING.indexOf(c)+1+random.nextInt(3))%4);
+			answer.append(c);
+		}
+		return answer.toString();
+	}
+	
+	/**
+	 * Creates a random genome
+	 * @param numSequences Number of sequences
+	 * @param sequenceLength Length of each sequence
+	 * @return QualifiedSequenceList Sequences of the genome named chr1, chr2, ...
+	 */
+	static QualifiedSequenceList buildGenome(int numSequences, int sequenceLength) {
+		Random random = new Random(SEED);
+		QualifiedSequenceList answer = new QualifiedSequenceList();
+		for(int i=0;i<numSequences;i++) {
+			answer.add(new QualifiedSequence("chr"+(i+1), new DNAMaskedSequence(randomSequence(random, sequenceLength))));
+		}
+		return answer;
+	}
+	
+	/**
+	 * Samples reads from the forward strand of the given genome
+	 * @param genome to sample reads
+	 * @param numReads Number of reads
+	 * @param readLength Length of each read
+	 * @param errorRate Substitution error rate. Indels are simulated at one tenth of this rate
+	 * @return List<String> Simulated reads
+	 */
+	static List<String> sampleReads(QualifiedSequenceList genome, int numReads, int readLength, double errorRate) {
+		Random random = new Random(SEED+1);
+		List<String> answer = new ArrayList<>(numReads);
+		for(int i=0;i<numReads;i++) {
+			CharSequence seq = genome.get(random.nextInt(genome.size())).getCharacters();
+			int start = random.nextInt(seq.length()-readLength);
+			CharSequence read = seq.subSequence(start, start+readLength).toString();
+			if(errorRate>0) read = mutate(random, read, errorRate, errorRate/10);
+			answer.add(read.toString());
+		}
+		return answer;
+	}
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ngsep.discovery.CountsHelper;
+import ngsep.discovery.PileupAlleleCall;
+import ngsep.sequences.DNASequence;
+
+/**
+ * Calculation of allele counts and genotype posterior probabilities for SNV pileups.
+ * One tenth of the simulated sites are heterozygous
+ * @author Jorge Duitama
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CountsHelperBenchmark {
+	
+	@Param({"30"})
+	private int depth;
+	
+	private static final int NUM_SITES = 10000;
+	
+	private List<List<PileupAlleleCall>> sites;
+	
+	@Setup
+	public void setup() {
+		Random random = new Random(BenchmarkFixtures.SEED);
+		sites = new ArrayList<>(NUM_SITES);
+		for(int i=0;i<NUM_SITES;i++) {
+			int allele1 = random.nextInt(4);
+			int allele2 = (i%10==0)?(allele1+1)%4:allele1;
+			List<PileupAlleleCall> calls = new ArrayList<>(depth);
+			for(int j=0;j<depth;j++) {
+				int allele = random.nextBoolean()?allele1:allele2;
+				// Sequencing errors
+				if(random.nextDouble()<0.01) allele = random.nextInt(4);
+				String qs = ""+(char)(33+10+random.nextInt(30));
+				PileupAlleleCall call = new PileupAlleleCall(DNASequence.BASES_ARRAY[allele], qs);
+				call.setNegativeStrand(random.nextBoolean());
+				calls.add(call);
+			}
+			sites.add(calls);
+		}
+	}
+	
+	@Benchmark
+	public void genotypeLikelihoods(Blackhole bh) {
+		for(List<PileupAlleleCall> calls:sites) {
+			CountsHelper helper = CountsHelper.calculateCountsSNV(calls, CountsHelper.DEF_MAX_BASE_QS, 0.5);
+			bh.consume(helper.getPosteriorProbabilities(CountsHelper.DEF_HETEROZYGOSITY_RATE_DIPLOID));
+		}
+	}
+}
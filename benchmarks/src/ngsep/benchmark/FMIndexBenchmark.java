@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ngsep.sequences.FMIndex;
+import ngsep.sequences.QualifiedSequenceList;
+import ngsep.sequences.UngappedSearchHitsBuffer;
+
+/**
+ * Exact search of k-mers sampled from the indexed genome.
+ * Each invocation searches the complete set of queries
+ * @author Jorge Duitama
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FMIndexBenchmark {
+	
+	@Param({"15", "25"})
+	private int queryLength;
+	
+	@Param({"10000"})
+	private int numQueries;
+	
+	private FMIndex index;
+	private List<String> queries;
+	private UngappedSearchHitsBuffer hits;
+	
+	@Setup
+	public void setup() {
+		QualifiedSequenceList genome = BenchmarkFixtures.buildGenome(4, 1000000);
+		index = new FMIndex();
+		index.loadQualifiedSequences(genome, Logger.getLogger(FMIndexBenchmark.class.getName()));
+		queries = BenchmarkFixtures.sampleReads(genome, numQueries, queryLength, 0);
+		hits = new UngappedSearchHitsBuffer();
+	}
+	
+	@Benchmark
+	public void exactSearch(Blackhole bh) {
+		for(String query:queries) bh.consume(index.exactSearch(query));
+	}
+	
+	@Benchmark
+	public int exactSearchBatch() {
+		index.exactSearch(queries, hits);
+		return hits.size();
+	}
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ngsep.hmm.ConstantTransitionHMM;
+import ngsep.hmm.HMMState;
+import ngsep.sequences.DNASequence;
+
+/**
+ * Forward algorithm of an HMM with constant transitions over a simulated DNA sequence.
+ * Each state emits bases with a different composition
+ * @author Jorge Duitama
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class HMMBenchmark {
+	
+	@Param({"4", "16"})
+	private int numStates;
+	
+	@Param({"10000"})
+	private int numObservations;
+	
+	private ConstantTransitionHMM hmm;
+	private List<Character> observations;
+	private Double [][] forwardLogs;
+	
+	@Setup
+	public void setup() {
+		Random random = new Random(BenchmarkFixtures.SEED);
+		List<BaseCompositionState> states = new ArrayList<>();
+		for(int i=0;i<numStates;i++) states.add(new BaseCompositionState("S"+i, random, numStates));
+		hmm = new ConstantTransitionHMM(states);
+		hmm.calculateUniformChangeTransitions(0.01);
+		String sequence = BenchmarkFixtures.randomSequence(random, numObservations);
+		observations = new ArrayList<>(numObservations);
+		for(int i=0;i<numObservations;i++) observations.add(sequence.charAt(i));
+		forwardLogs = new Double[numObservations][numStates];
+	}
+	
+	@Benchmark
+	public Double calculateForward() {
+		return hmm.calculateForward(observations, forwardLogs);
+	}
+	
+	private static class BaseCompositionState implements HMMState {
+		private final String id;
+		private final double [] logEmissions = new double [4];
+		private Double logStart;
+		
+		public BaseCompositionState(String id, Random random, int numStates) {
+			this.id = id;
+			double total = 0;
+			double [] weights = new double [4];
+			for(int i=0;i<4;i++) {
+				weights[i] = 1+random.nextDouble();
+				total+=weights[i];
+			}
+			for(int i=0;i<4;i++) logEmissions[i] = Math.log10(weights[i]/total);
+			logStart = Math.log10(1.0/numStates);
+		}
+		@Override
+		public Double getEmission(Object value, int step) {
+			int idx = DNASequence.BASES_STRING.indexOf((Character)value);
+			if(idx<0) return null;
+			return logEmissions[idx];
+		}
+		@Override
+		public Double getLogStart() {
+			return logStart;
+		}
+		@Override
+		public void setLogStart(Double logStart) {
+			this.logStart = logStart;
+		}
+		@Override
+		public String getId() {
+			return id;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ngsep.sequences.QualifiedSequenceList;
+import ngsep.sequences.ShortKmerCodesTable;
+
+/**
+ * Search of minimizers of simulated long reads in a table built from a synthetic genome.
+ * Each invocation searches the complete set of reads
+ * @author Jorge Duitama
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ShortKmerCodesTableBenchmark {
+	
+	private ShortKmerCodesTable table;
+	private List<String> reads;
+	
+	@Setup
+	public void setup() {
+		QualifiedSequenceList genome = BenchmarkFixtures.buildGenome(4, 1000000);
+		table = new ShortKmerCodesTable(15, 20);
+		table.setMaxHitsKmerCode(1000);
+		table.setLimitHitsPerSequence(1000);
+		for(int i=0;i<genome.size();i++) table.addSequence(i, genome.get(i).getCharacters());
+		reads = BenchmarkFixtures.sampleReads(genome, 100, 5000, 0.01);
+	}
+	
+	@Benchmark
+	public void matchCompressed(Blackhole bh) {
+		for(int i=0;i<reads.size();i++) bh.consume(table.matchCompressed(i, reads.get(i), -1));
+	}
+}
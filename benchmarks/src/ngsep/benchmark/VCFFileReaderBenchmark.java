@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ngsep.sequences.DNASequence;
+import ngsep.vcf.VCFFileReader;
+import ngsep.vcf.VCFRecord;
+
+/**
+ * Parsing of a synthetic population VCF file held in memory.
+ * Genotype calls include the fields produced by the NGSEP variants detector
+ * @author Jorge Duitama
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class VCFFileReaderBenchmark {
+	
+	@Param({"100"})
+	private int numSamples;
+	
+	@Param({"10000"})
+	private int numVariants;
+	
+	@Param({"0", "3"})
+	private int loadMode;
+	
+	private byte [] vcfContent;
+	
+	@Setup
+	public void setup() {
+		Random random = new Random(BenchmarkFixtures.SEED);
+		StringBuilder vcf = new StringBuilder();
+		vcf.append("##fileformat=VCFv4.2\n");
+		vcf.append("##contig=<ID=chr1,length=100000000>\n");
+		vcf.append("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">\n");
+		vcf.append("##FORMAT=<ID=PL,Number=G,Type=Integer,Description=\"Genotype likelihoods\">\n");
+		vcf.append("##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype quality\">\n");
+		vcf.append("##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Read depth\">\n");
+		vcf.append("##FORMAT=<ID=ADP,Number=R,Type=Integer,Description=\"Allele depths\">\n");
+		vcf.append("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+		for(int j=0;j<numSamples;j++) vcf.append("\tS").append(j+1);
+		vcf.append("\n");
+		int pos = 0;
+		for(int i=0;i<numVariants;i++) {
+			pos+=1+random.nextInt(1000);
+			int ref = random.nextInt(4);
+			int alt = (ref+1+random.nextInt(3))%4;
+			vcf.append("chr1\t").append(pos).append("\t.\t").append(DNASequence.BASES_STRING.charAt(ref)).append("\t").append(DNASequence.BASES_STRING.charAt(alt));
+			vcf.append("\t").append(20+random.nextInt(80)).append("\t.\tTYPE=SNV;NS=").append(numSamples).append("\tGT:PL:GQ:DP:ADP");
+			for(int j=0;j<numSamples;j++) {
+				int dp = random.nextInt(40);
+				if(dp==0) {
+					vcf.append("\t./.:.:0:0:0,0");
+					continue;
+				}
+				int genotype = random.nextInt(3);
+				int refDepth = (genotype==0)?dp:((genotype==2)?0:dp/2);
+				vcf.append("\t").append(genotype==0?"0/0":(genotype==1?"0/1":"1/1"));
+				vcf.append(":").append(genotype==0?0:10*dp).append(",").append(genotype==1?0:5*dp).append(",").append(genotype==2?0:10*dp);
+				vcf.append(":").append(Math.min(99, 3*dp)).append(":").append(dp).append(":").append(refDepth).append(",").append(dp-refDepth);
+			}
+			vcf.append("\n");
+		}
+		vcfContent = vcf.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	@Benchmark
+	public void parse(Blackhole bh) throws IOException {
+		try (VCFFileReader reader = new VCFFileReader(new ByteArrayInputStream(vcfContent))) {
+			reader.setLoadMode(loadMode);
+			for(VCFRecord record:reader) bh.consume(record);
+		}
+	}
+}
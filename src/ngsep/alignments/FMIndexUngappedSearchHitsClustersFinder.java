@@ -30,6 +30,7 @@ import java.util.Set;
 import ngsep.genome.ReferenceGenomeFMIndex;
 import ngsep.sequences.KmersExtractor;
 import ngsep.sequences.UngappedSearchHit;
+import ngsep.sequences.UngappedSearchHitsBuffer;
 
 /**
  *
@@ -44,6 +45,8 @@ public class FMIndexUngappedSearchHitsClustersFinder implements UngappedSearchHi
 	
 	private Set<CharSequence> repetitiveKmers = new HashSet<CharSequence>();
 	
+	private UngappedSearchHitsBuffer kmerHitsBuffer = new UngappedSearchHitsBuffer();
+	
 
 	public FMIndexUngappedSearchHitsClustersFinder(ReferenceGenomeFMIndex fMIndex, int kmerLength) {
 		this.fMIndex = fMIndex;
@@ -72,18 +75,30 @@ public class FMIndexUngappedSearchHitsClustersFinder implements UngappedSearchHi
 	 */
 	private List<UngappedSearchHit> searchKmers(Map<Integer,String> kmersMap) {
 		List<UngappedSearchHit> answer = new ArrayList<>();
+		List<Integer> starts = new ArrayList<>(kmersMap.size());
+		List<String> kmers = new ArrayList<>(kmersMap.size());
+		List<CharSequence> packedKmers = new ArrayList<>(kmersMap.size());
 		for (int start:kmersMap.keySet()) {
 			String kmer = kmersMap.get(start);
 			CharSequence kmerP = KmersExtractor.pack(kmer);
 			if(repetitiveKmers.contains(kmerP)) continue;
-			List<UngappedSearchHit> kmerHits=fMIndex.exactSearch(kmer);
-			//System.out.println("Kmer: "+kmer+" hits: "+kmerHits.size());
-			if(kmerHits.size()>=ReferenceGenomeFMIndex.MAX_HITS_QUERY) {
-				repetitiveKmers.add(kmerP);
+			starts.add(start);
+			kmers.add(kmer);
+			packedKmers.add(kmerP);
+		}
+		fMIndex.exactSearch(kmers, kmerHitsBuffer);
+		for (int q=0;q<kmers.size();q++) {
+			//System.out.println("Kmer: "+kmers.get(q)+" hits: "+kmerHitsBuffer.getQueryHitCount(q));
+			if(kmerHitsBuffer.getQueryHitCount(q)>=ReferenceGenomeFMIndex.MAX_HITS_QUERY) {
+				repetitiveKmers.add(packedKmers.get(q));
 				continue;
 			}
-			for(UngappedSearchHit hit:kmerHits) {
-				//System.out.println("Next hit: "+hit.getSequenceName()+" "+hit.getStart());
+			int start = starts.get(q);
+			short hitLength = (short)kmers.get(q).length();
+			int end = kmerHitsBuffer.getQueryEndHit(q);
+			for(int j=kmerHitsBuffer.getQueryFirstHit(q);j<end;j++) {
+				UngappedSearchHit hit = new UngappedSearchHit(kmerHitsBuffer.getSubjectIdx(j), kmerHitsBuffer.getSubjectStart(j));
+				hit.setHitLength(hitLength);
 				hit.setQueryStart(start);
 				answer.add(hit);
 			}
@@ -19,6 +19,8 @@
  *******************************************************************************/
 package ngsep.alignments;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -26,7 +28,6 @@ import java.util.Map;
 import java.util.logging.Logger;
 
 import ngsep.genome.ReferenceGenome;
-import ngsep.main.ThreadPoolManager;
 import ngsep.sequences.UngappedSearchHit;
 import ngsep.sequences.KmerSearchResultsCompressedTable;
 import ngsep.sequences.KmersExtractor;
@@ -74,7 +75,6 @@ public class MinimizersUngappedSearchHitsClustersFinder implements UngappedSearc
 	public void loadGenome(ReferenceGenome genome, int kmerLength, int windowLength, int numThreads, boolean buildKmersTable) {
 		this.genome = genome;
 		int n = genome.getNumSequences();
-		int longestSequenceLengthMbp = 1+genome.getLongestSequenceLength()/1000000;
 		//KmersMapAnalyzer analyzer = new KmersMapAnalyzer(extractor.getKmersMap(), true);
 		log.info("Creating kmer codes table for genome with "+n+" sequences loaded from file: "+genome.getFilename());
 		kmerCodesTable = new ShortKmerCodesTable(kmerLength, windowLength);
@@ -95,27 +95,73 @@ public class MinimizersUngappedSearchHitsClustersFinder implements UngappedSearc
 		kmerCodesTable.setLimitHitsPerSequence(1000);
 		log.info("Filling kmer codes");
 		
-		//TODO: Improve parallelization
-		//ThreadPoolManager poolTable = new ThreadPoolManager(numThreads, n);
-		ThreadPoolManager poolTable = new ThreadPoolManager(1, n);
-		poolTable.setSecondsPerTask(longestSequenceLengthMbp);
-		for (int i=0;i<n;i++) {
-			final int seqId = i;
+		//Codes are selected in parallel but added in the order of the sequences to keep the same entries of repetitive codes
+		List<CharSequence> sequences = new ArrayList<>(n);
+		for (int i=0;i<n;i++) sequences.add(genome.getSequenceCharacters(i));
+		kmerCodesTable.addSequences(sequences, numThreads);
+		kmerCodesTable.buildCodesIndex();
+		//minimizersTable.calculateDistributionHits().printDistribution(System.err);
+		log.info("Calculated kmer codes. Total: "+kmerCodesTable.size());
+	}
+	
+	/**
+	 * Loads the kmer codes table of the given genome from a file saved with saveKmerCodesTable. If the file does not exist
+	 * or if it was built from a different genome or with different parameters, the table is built from the genome
+	 * @param genome Reference genome to load
+	 * @param tableFile File with the table of the genome. It can be null
+	 * @param kmerLength Length of the kmers
+	 * @param windowLength Length of the windows to select codes
+	 * @param numThreads Number of threads to build the table if it can not be loaded
+	 */
+	public void loadGenome(ReferenceGenome genome, String tableFile, int kmerLength, int windowLength, int numThreads) {
+		if(tableFile!=null) {
 			try {
-				poolTable.queueTask(()->kmerCodesTable.addSequence(seqId, genome.getSequenceCharacters(seqId)));
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-				throw new RuntimeException("Concurrence error creating minimizers table",e);
+				if(loadKmerCodesTable(genome, tableFile, kmerLength, windowLength)) return;
+			} catch (IOException e) {
+				log.warning("Error loading kmer codes table from file: "+tableFile+". "+e.getMessage());
 			}
+			log.info("Building kmer codes table from genome sequences");
+		}
+		loadGenome(genome, kmerLength, windowLength, numThreads);
+	}
+	/**
+	 * Loads the kmer codes table of the given genome from a file saved with saveKmerCodesTable
+	 * @param genome Reference genome used to build the table
+	 * @param tableFile File with the saved table
+	 * @param kmerLength Expected length of the kmers
+	 * @param windowLength Expected length of the windows to select codes
+	 * @return boolean true if the table was loaded. False if the table does not exist or if it does not match the genome or the parameters
+	 * @throws IOException If the file can not be read
+	 */
+	public boolean loadKmerCodesTable(ReferenceGenome genome, String tableFile, int kmerLength, int windowLength) throws IOException {
+		if(!new File(tableFile).exists()) {
+			log.warning("Kmer codes table file "+tableFile+" does not exist");
+			return false;
 		}
-		try {
-			poolTable.terminatePool();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-			throw new RuntimeException("Concurrence error creating codes table",e);
+		log.info("Loading kmer codes table from file: "+tableFile);
+		ShortKmerCodesTable table = ShortKmerCodesTable.loadBinary(tableFile);
+		if(table.getKmerLength()!=kmerLength || table.getWindowLength()!=windowLength) {
+			log.warning("Kmer codes table in file "+tableFile+" was built with kmer length "+table.getKmerLength()+" and window length "+table.getWindowLength()+". Expected: "+kmerLength+" and "+windowLength);
+			return false;
 		}
-		//minimizersTable.calculateDistributionHits().printDistribution(System.err);
-		log.info("Calculated kmer codes. Total: "+kmerCodesTable.size());
+		long checksum = genome.calculateChecksum();
+		if(table.getSourceChecksum()!=checksum) {
+			log.warning("Kmer codes table in file "+tableFile+" was not built from genome: "+genome.getFilename());
+			return false;
+		}
+		table.setLog(log);
+		setKmerCodesTable(genome, table);
+		log.info("Loaded kmer codes table. Total: "+table.size());
+		return true;
+	}
+	/**
+	 * Saves the kmer codes table of the loaded genome in binary format, including a checksum of the genome
+	 * @param tableFile File to save the table
+	 * @throws IOException If the file can not be written
+	 */
+	public void saveKmerCodesTable(String tableFile) throws IOException {
+		kmerCodesTable.setSourceChecksum(genome.calculateChecksum());
+		kmerCodesTable.saveBinary(tableFile);
 	}
 	
 	public ShortKmerCodesTable getKmerCodesTable() {
@@ -14,6 +14,7 @@ public class PairedReadsAligner {
 	private ReferenceGenome genome;
 	private UngappedSearchHitsClustersFinder clustersFinder;
 	private UngappedSearchHitsClusterAligner aligner;
+	private SingleReadsAligner singleReadsAligner;
 	private int minInsertLength=0;
 	private int maxInsertLength=1000;
 	private int maxAlnsPerRead=1;
@@ -29,6 +30,7 @@ public class PairedReadsAligner {
 		this.genome = genome;
 		this.clustersFinder = clustersFinder;
 		this.aligner = aligner;
+		this.singleReadsAligner = new SingleReadsAligner(genome, clustersFinder, aligner);
 	}
 	
 	
@@ -80,7 +82,17 @@ public class PairedReadsAligner {
 	}
 	
 	
+	/**
+	 * Aligns a pair of reads. Statistics of the previous pair are reset, which allows to reuse this object within one thread
+	 * @param read1 First read of the pair
+	 * @param read2 Second read of the pair
+	 * @return List<ReadAlignment> Alignments of the two reads
+	 */
 	public List<ReadAlignment> alignReads(RawRead read1, RawRead read2) {
+		numReadsAligned = 0;
+		properPair = false;
+		pair = false;
+		numUniqueAlignments = 0;
 		CharSequence query1F = read1.getCharacters();
 		CharSequence query1R = DNAMaskedSequence.getReverseComplement(query1F);
 		CharSequence query2F = read2.getCharacters();
@@ -436,7 +448,6 @@ public class PairedReadsAligner {
 	}
 	
 	private List<ReadAlignment> alignAsSingle(CharSequence query, boolean r1, List<UngappedSearchHitsCluster> clusters) {
-		SingleReadsAligner singleReadsAligner = new SingleReadsAligner(genome, clustersFinder, aligner);
 		singleReadsAligner.setMaxAlnsPerRead(maxAlnsPerRead);
 		List<ReadAlignment> answer = singleReadsAligner.buildAlignments(query, clusters);
 		for(ReadAlignment aln:answer) {
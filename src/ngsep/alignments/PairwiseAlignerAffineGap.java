@@ -130,14 +130,15 @@ public class PairwiseAlignerAffineGap implements PairwiseAligner {
 		}
 		
 		matchScores[0][0] = 0;
-		for (int i = 1; i < insertionScores.length; i++) 
+		// Only the rows and columns used by the given sequences are initialized
+		for (int i = 1; i <= s1.length(); i++) 
 		{
 			if (forceStart1) insertionScores[i][0] = - openGap - extGap * (i - 1);
 			else insertionScores[i][0] = 0;
 	    	deletionScores[i][0] = s1.length() * -openGap * 1000;
 	    	matchScores[i][0] = deletionScores[i][0];
 	    }
-	    for (int i = 1; i < insertionScores[0].length; i++) 
+	    for (int i = 1; i <= s2.length(); i++) 
 	    {
 	    	if (forceStart2) deletionScores[0][i] = - openGap - extGap * (i - 1);
 	    	else deletionScores[0][i] = 0;
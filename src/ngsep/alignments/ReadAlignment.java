@@ -998,6 +998,20 @@ public class ReadAlignment implements GenomicRegion {
 		//if(referencePos==-1) System.out.println("ReadAlignment. Read id: "+getReadName()+". Sequence: "+readCharacters.toString()+". readpos: "+readPos+". end: "+(readPos+length)+" subseq: "+readCharacters.subSequence(readPos, readPos+length)+". length subseq: "+readCharacters.subSequence(readPos, readPos+length).length());
 		return readCharacters.subSequence(readPos, readPos+length);
 	}
+	/**
+	 * Provides the base call at the given reference position if the allele call at that position is a single base.
+	 * This is equivalent to getAlleleCall(referencePos) for calls of length one but it does not create objects
+	 * @param referencePos Position to consider in the reference sequence to which this read aligned
+	 * @return char Base aligned to the given position. Zero if there is no allele call or if the call has more than one base
+	 */
+	public char getAlleleCallBase (int referencePos) {
+		if(readCharacters ==null) return 0;
+		int readPos = getAlignedReadPosition(referencePos);
+		if(readPos<0) return 0;
+		updateAlleleCallsInfo();
+		if(alleleCallLength[readPos] != 1) return 0;
+		return readCharacters.charAt(readPos);
+	}
 	/**
 	 * Provides the allele call (if any) at the given reference coordinates taking into account possible
 	 * base pairs to ignore
@@ -37,6 +37,7 @@ public class ReadAlignmentObjectsFactory {
 	private int alignmentAlgorithm=UngappedSearchHitsClusterAligner.ALIGNMENT_ALGORITHM_DYNAMIC_KMERS;
 	private ReferenceGenome genome;
 	private ReferenceGenomeFMIndex fmIndex;
+	private String kmerCodesTableFile;
 
 	
 	public ReadAlignmentObjectsFactory(ReferenceGenome genome) {
@@ -93,6 +94,12 @@ public class ReadAlignmentObjectsFactory {
 	public void setFmIndex(ReferenceGenomeFMIndex fmIndex) {
 		this.fmIndex = fmIndex;
 	}
+	public String getKmerCodesTableFile() {
+		return kmerCodesTableFile;
+	}
+	public void setKmerCodesTableFile(String kmerCodesTableFile) {
+		this.kmerCodesTableFile = kmerCodesTableFile;
+	}
 
 
 	UngappedSearchHitsClustersFinder first=null;
@@ -120,7 +127,7 @@ public class ReadAlignmentObjectsFactory {
 			MinimizersUngappedSearchHitsClustersFinder finder = new MinimizersUngappedSearchHitsClustersFinder();
 			finder.setLog(log);
 			//if(!platform.isLongReads()) first.setMinRawHits(1);
-			finder.loadGenome (genome, kmerLength, windowLength, numThreads,false);
+			finder.loadGenome (genome, kmerCodesTableFile, kmerLength, windowLength, numThreads);
 			first = finder; 
 		} else {
 			if (fmIndex!=null) {
@@ -24,11 +24,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Logger;
 
 import ngsep.alignments.ReadAlignment.Platform;
+import ngsep.alignments.io.OrderedReadAlignmentFileWriter;
 import ngsep.alignments.io.ReadAlignmentFileWriter;
 import ngsep.genome.ReferenceGenome;
 import ngsep.genome.ReferenceGenomeFMIndex;
@@ -77,6 +79,7 @@ public class ReadsAligner {
 	private String inputFile2 = null;
 	private String outputFile = null;
 	private String fmIndexFile = null;
+	private String kmerCodesTableFile = null;
 	private String knownSTRsFile = null;
 	private String sampleId = DEF_SAMPLE_ID;
 	private ReadAlignment.Platform platform = DEF_PLATFORM;
@@ -94,6 +97,8 @@ public class ReadsAligner {
 	private ReferenceGenome genome;
 	private ReferenceGenomeFMIndex fMIndex=null;
 	private ReadAlignmentObjectsFactory factory;
+	// Aligners reused by each thread to avoid requesting objects from the factory for each read
+	private final ThreadLocal<AlignerContext> alignerContexts = ThreadLocal.withInitial(AlignerContext::new);
 	
 	
 	private ThreadPoolManager pool;
@@ -156,6 +161,12 @@ public class ReadsAligner {
 	public void setFmIndexFile(String fmIndexFile) {
 		this.fmIndexFile = fmIndexFile;
 	}
+	public String getKmerCodesTableFile() {
+		return kmerCodesTableFile;
+	}
+	public void setKmerCodesTableFile(String kmerCodesTableFile) {
+		this.kmerCodesTableFile = kmerCodesTableFile;
+	}
 
 	public String getOutputFile() {
 		return outputFile;
@@ -281,11 +292,14 @@ public class ReadsAligner {
 		QualifiedSequenceList sequences = genome.getSequencesMetadata();
 		
 		pool = new ThreadPoolManager(numThreads, platform.isLongReads()?100:10000);
+		//Queued reads are discarded if the process is cancelled
+		pool.setProgressNotifier(progressNotifier);
 		boolean paired = false;
 		PrintStream out = System.out;
 		if(outputFile!=null) out = new PrintStream(outputFile); 
-		try (ReadAlignmentFileWriter writer = new ReadAlignmentFileWriter(sequences, out)){
-			writer.setSampleInfo(sampleId, platform);
+		try (ReadAlignmentFileWriter bamWriter = new ReadAlignmentFileWriter(sequences, out);
+			 OrderedReadAlignmentFileWriter writer = new OrderedReadAlignmentFileWriter(bamWriter, 1, platform.isLongReads()?1000:100000)){
+			bamWriter.setSampleInfo(sampleId, platform);
 			if(inputFile!=null && inputFile2!=null) {
 				log.info("Aligning paired end reads from files: "+inputFile + " and "+inputFile2);
 				paired = true;
@@ -302,6 +316,7 @@ public class ReadsAligner {
 			}
 			pool.terminatePool();
 		} catch (InterruptedException e) {
+			if(pool.isCancelled()) log.info("Process cancelled by user");
 			throw new RuntimeException(e);
 		}
 		double seconds = (System.currentTimeMillis()-time);
@@ -334,6 +349,7 @@ public class ReadsAligner {
 		factory.setNumThreads(numThreads);
 		factory.setPlatform(platform);
 		factory.setFmIndex(fMIndex);
+		factory.setKmerCodesTableFile(kmerCodesTableFile);
 		if(platform.isLongReads()) factory.setAlignmentAlgorithm(UngappedSearchHitsClusterAligner.ALIGNMENT_ALGORITHM_DYNAMIC_KMERS);
 		else factory.setAlignmentAlgorithm(UngappedSearchHitsClusterAligner.ALIGNMENT_ALGORITHM_SHORT_READS);
 		factory.requestClustersFinder();
@@ -350,6 +366,7 @@ public class ReadsAligner {
 		out.println("Output file:"+ outputFile);
 		if (genome!=null) out.println("Reference genome loaded from file: "+genome.getFilename());
 		if (fmIndexFile!=null) out.println("FM index file "+fmIndexFile);
+		if (kmerCodesTableFile!=null) out.println("Kmer codes table file "+kmerCodesTableFile);
 		out.println("Sample id: "+ sampleId);
 		out.println("Platform: "+ platform);
 		out.println("K-mer length: "+ kmerLength);
@@ -368,11 +385,11 @@ public class ReadsAligner {
 	/**
 	 * Aligns readsFile to the reference genome
 	 * @param readsFile Fastq file with the reads to align
-	 * @param writer
+	 * @param writer Writer receiving the alignments of each read in the order of the input file
 	 * @throws IOException
 	 * @throws InterruptedException 
 	 */
-	public void alignReads( String readsFile, ReadAlignmentFileWriter writer) throws IOException, InterruptedException {
+	public void alignReads( String readsFile, OrderedReadAlignmentFileWriter writer) throws IOException, InterruptedException {
 		if(inputFormat == INPUT_FORMAT_FASTQ) {
 			try (FastqFileReader reader = new FastqFileReader(readsFile)) {
 				reader.setSequenceType(DNAMaskedSequence.class);
@@ -396,7 +413,7 @@ public class ReadsAligner {
 			}
 		}
 	}
-	private void alignReads(InputStream in, ReadAlignmentFileWriter writer) throws IOException, InterruptedException {
+	private void alignReads(InputStream in, OrderedReadAlignmentFileWriter writer) throws IOException, InterruptedException {
 		if(inputFormat == INPUT_FORMAT_FASTQ) {
 			try (FastqFileReader reader = new FastqFileReader(in)) {
 				reader.setSequenceType(DNAMaskedSequence.class);
@@ -427,11 +444,11 @@ public class ReadsAligner {
 	 * @param fMIndexFile Binary file with the serialization of an FMIndex
 	 * @param readsFile1 Fastq file with the reads to align
 	 * @param readsFile2 Fastq file with the reads to align
-	 * @param out
+	 * @param writer Writer receiving the alignments of each pair in the order of the input files
 	 * @throws IOException
 	 * @throws InterruptedException 
 	 */
-	public void alignReads( String readsFile1, String readsFile2, ReadAlignmentFileWriter writer) throws IOException, InterruptedException {
+	public void alignReads( String readsFile1, String readsFile2, OrderedReadAlignmentFileWriter writer) throws IOException, InterruptedException {
 		try (FastqFileReader reader1 = new FastqFileReader(readsFile1);
 			 FastqFileReader reader2 = new FastqFileReader(readsFile2)) {
 			reader1.setSequenceType(DNAMaskedSequence.class);
@@ -447,37 +464,52 @@ public class ReadsAligner {
 		}
 	}
 	
-	private void processSingleRead(int readNumber, RawRead read, ReadAlignmentFileWriter writer) {
-		List<ReadAlignment> alns = alignRead(read);
-		//System.out.println("Alignments for: "+read.getName()+" "+alns.size());
-		int numAlns = alns.size();
-		if (alns.size()==0) {
-			alns.add(ReadAlignment.createMockAlignmentUnmappedRead(read, false, false));
-		}
-		synchronized (writer) {
-			for(ReadAlignment aln:alns) writer.write(aln);
-			totalReads++;
-			if(numAlns>0) readsAligned++;
-			if(numAlns==1 && alns.get(0).getAlignmentQuality()>20) uniqueAlignments++;
+	private void processSingleRead(int readNumber, RawRead read, OrderedReadAlignmentFileWriter writer) {
+		List<ReadAlignment> alns = new ArrayList<>();
+		try {
+			alns = alignRead(read);
+			//System.out.println("Alignments for: "+read.getName()+" "+alns.size());
+			int numAlns = alns.size();
+			if (alns.size()==0) {
+				alns.add(ReadAlignment.createMockAlignmentUnmappedRead(read, false, false));
+			}
+			synchronized (this) {
+				totalReads++;
+				if(numAlns>0) readsAligned++;
+				if(numAlns==1 && alns.get(0).getAlignmentQuality()>20) uniqueAlignments++;
+			}
+		} finally {
+			submitAlignments(readNumber, alns, writer);
 		}
 		checkProgress(readNumber);
 	}
+	/**
+	 * Submits the alignments of a read to the ordered writer. Reads failing alignment must
+	 * still be submitted to allow the writer to continue with the next reads
+	 */
+	private void submitAlignments(int readNumber, List<ReadAlignment> alns, OrderedReadAlignmentFileWriter writer) {
+		try {
+			writer.submit(readNumber, alns);
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted submitting alignments of read number "+readNumber,e);
+		}
+	}
 	public List<ReadAlignment> alignRead (QualifiedSequence read) {
-		initializeFactory();
-		SingleReadsAligner aligner = new SingleReadsAligner(genome, factory.requestClustersFinder(), factory.requestAligner());
+		SingleReadsAligner aligner = getAlignerContext().singleReadsAligner;
 		return aligner.alignRead(read);
 	}
 	
-	private void processPairedEndRead (int readNumber, RawRead read1, RawRead read2, ReadAlignmentFileWriter writer) {
-		List<ReadAlignment> alns = alignPairedEndReads(read1, read2,true);
-		synchronized (writer) {
-			for(ReadAlignment aln:alns) writer.write(aln);
+	private void processPairedEndRead (int readNumber, RawRead read1, RawRead read2, OrderedReadAlignmentFileWriter writer) {
+		List<ReadAlignment> alns = new ArrayList<>();
+		try {
+			alns = alignPairedEndReads(read1, read2,true);
+		} finally {
+			submitAlignments(readNumber, alns, writer);
 		}
 		checkProgress(readNumber);
 	}
 	public List<ReadAlignment> alignPairedEndReads(RawRead read1, RawRead read2, boolean createUnmappedReadRecords) {
-		initializeFactory();
-		PairedReadsAligner aligner = new PairedReadsAligner(genome, factory.requestClustersFinder(), factory.requestAligner());
+		PairedReadsAligner aligner = getAlignerContext().pairedReadsAligner;
 		aligner.setCreateUnmappedReadRecords(createUnmappedReadRecords);
 		aligner.setMaxAlnsPerRead(maxAlnsPerRead);
 		aligner.setMinInsertLength(minInsertLength);
@@ -494,20 +526,15 @@ public class ReadsAligner {
 		return alns;
 	}
 	
+	private AlignerContext getAlignerContext() {
+		initializeFactory();
+		return alignerContexts.get();
+	}
+	
 	private void checkProgress (int readNumber) {
 		if(readNumber%1000>0) return;
 		if(!platform.isLongReads() && readNumber%100000>0) return;
-		
-		int progress = readNumber/100000;
-		if(platform.isLongReads() ) {
-			progress = readNumber/1000;
-		}
-		
 		log.info("Processed "+readNumber+" fragments. Aligned "+readsAligned+" reads");
-		if (progressNotifier!=null && !progressNotifier.keepRunning(progress)) {
-			log.info("Process cancelled by user");
-			pool.setCancelled(true);
-		}
 	}
 	
 	private void printStatistics(boolean paired) {
@@ -532,4 +559,19 @@ public class ReadsAligner {
 		log.info(os.toString());
 	}
 	
-}
\ No newline at end of file
+	/**
+	 * Objects used by one thread to align reads. The clusters finder and the pairwise aligners
+	 * keep buffers and matrices that are reused from one read to the next
+	 */
+	private class AlignerContext {
+		private final SingleReadsAligner singleReadsAligner;
+		private final PairedReadsAligner pairedReadsAligner;
+		
+		private AlignerContext() {
+			UngappedSearchHitsClustersFinder clustersFinder = factory.requestClustersFinder();
+			UngappedSearchHitsClusterAligner aligner = factory.requestAligner();
+			singleReadsAligner = new SingleReadsAligner(genome, clustersFinder, aligner);
+			pairedReadsAligner = new PairedReadsAligner(genome, clustersFinder, aligner);
+		}
+	}
+}
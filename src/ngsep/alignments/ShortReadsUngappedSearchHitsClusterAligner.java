@@ -33,6 +33,8 @@ import ngsep.genome.io.SimpleGenomicRegionFileHandler;
 import ngsep.sequences.LimitedSequence;
 
 /**
+ * Aligner of short reads from clusters of ungapped hits.
+ * Instances reuse dynamic programming matrices and should not be shared between threads
  * @author German Andrade
  * @author Jorge Duitama
  *
@@ -42,6 +44,10 @@ public class ShortReadsUngappedSearchHitsClusterAligner  implements UngappedSear
 	// Statistics
 	private int fewMismatchesAlns = 0;
 	private int completeAlns = 0;
+	// Pairwise aligners reused across calls. Matrices grow as needed
+	private PairwiseAlignerAffineGap alignerFullRead;
+	private PairwiseAlignerAffineGap alignerSTRsLeft;
+	private PairwiseAlignerAffineGap alignerSTRsRight;
 	
 	private Map<String, List<GenomicRegion>> knownSTRs;
 	public Map<String, List<GenomicRegion>> getKnownSTRs() {
@@ -105,7 +111,7 @@ public class ShortReadsUngappedSearchHitsClusterAligner  implements UngappedSear
 		
 		//System.out.println("Aligning reference from "+first+" to "+last+ " to query. length: "+refSeq.length());
 		completeAlns++;
-		PairwiseAlignerAffineGap alignerFullRead = createAlignerFullRead(Math.max(query.length(), refSeq.length()));
+		if(alignerFullRead==null) alignerFullRead = createAlignerFullRead(Math.max(query.length(), refSeq.length()));
 		String [] rawAln = alignerFullRead.calculateAlignment(query, refSeq.toString());
 		int mismatches = countMismatches(rawAln);
 		if(mismatches>0.1*query.length()) return null;
@@ -132,10 +138,10 @@ public class ShortReadsUngappedSearchHitsClusterAligner  implements UngappedSear
 		return answer;
 	}
 	private PairwiseAlignerAffineGap createAlignerFullRead(int capacity) {
-		PairwiseAlignerAffineGap alignerFullRead = new PairwiseAlignerAffineGap(capacity);
-		alignerFullRead.setForceStart2(false);
-		alignerFullRead.setForceEnd2(false);
-		return alignerFullRead;
+		PairwiseAlignerAffineGap aligner = new PairwiseAlignerAffineGap(capacity);
+		aligner.setForceStart2(false);
+		aligner.setForceEnd2(false);
+		return aligner;
 	}
 	public int countMismatches(String[] alignedSequences) {
 		int answer = 0;
@@ -238,7 +244,7 @@ public class ShortReadsUngappedSearchHitsClusterAligner  implements UngappedSear
 				String readSegment = read.toString().substring(0,endReadSegment);
 				//System.out.println(refSeq);
 				//System.out.println(readSegment);
-				PairwiseAlignerAffineGap alignerSTRsLeft = createAlignerLeftTR(Math.max(readSegment.length(), refSeq.length()));
+				if(alignerSTRsLeft==null) alignerSTRsLeft = createAlignerLeftTR(Math.max(readSegment.length(), refSeq.length()));
 				String [] alignmentLeft = alignerSTRsLeft.calculateAlignment(readSegment, refSeq.toString());
 				leftMismatches = countMismatches(alignmentLeft);
 				encodedLeftAln = ReadAlignment.encodePairwiseAlignment(alignmentLeft);
@@ -259,7 +265,7 @@ public class ShortReadsUngappedSearchHitsClusterAligner  implements UngappedSear
 				String readSegment = read.toString().substring(startReadSegment);
 				//System.out.println(refSeq);
 				//System.out.println(readSegment);
-				PairwiseAlignerAffineGap alignerSTRsRight = createAlignerRightTR(Math.max(readSegment.length(), refSeq.length()));
+				if(alignerSTRsRight==null) alignerSTRsRight = createAlignerRightTR(Math.max(readSegment.length(), refSeq.length()));
 				String [] alignmentRight = alignerSTRsRight.calculateAlignment(readSegment, refSeq.toString());
 				rightMismatches = countMismatches(alignmentRight);
 				encodedRightAln = ReadAlignment.encodePairwiseAlignment(alignmentRight);
@@ -332,15 +338,15 @@ public class ShortReadsUngappedSearchHitsClusterAligner  implements UngappedSear
 		return aln;
 	}
 	public PairwiseAlignerAffineGap createAlignerLeftTR (int capacity) {
-		PairwiseAlignerAffineGap alignerSTRsLeft = new PairwiseAlignerAffineGap(capacity);
-		alignerSTRsLeft.setForceEnd1(false);
-		return alignerSTRsLeft;
+		PairwiseAlignerAffineGap aligner = new PairwiseAlignerAffineGap(capacity);
+		aligner.setForceEnd1(false);
+		return aligner;
 	}
 	
 	public PairwiseAlignerAffineGap createAlignerRightTR (int capacity) {
-		PairwiseAlignerAffineGap alignerSTRsRight = new PairwiseAlignerAffineGap(capacity);
-		alignerSTRsRight.setForceStart1(false);
-		return alignerSTRsRight;
+		PairwiseAlignerAffineGap aligner = new PairwiseAlignerAffineGap(capacity);
+		aligner.setForceStart1(false);
+		return aligner;
 	}
 	
 	
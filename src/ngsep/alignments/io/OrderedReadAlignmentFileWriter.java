@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.alignments.io;
+
+import java.io.IOException;
+import java.util.List;
+
+import ngsep.alignments.ReadAlignment;
+
+/**
+ * Output stage for multithreaded alignment. Worker threads submit the alignments of each read
+ * together with the number of the read in the input. A single writer thread writes the alignments
+ * in the order of the input, regardless of the order in which the workers finish.
+ * Conversion to SAM records and BAM compression run on the writer thread.
+ * Submissions block when a read is too far ahead of the next read to write, which bounds the memory
+ * used by alignments waiting to be written
+ * @author Jorge Duitama
+ */
+public class OrderedReadAlignmentFileWriter implements AutoCloseable {
+
+	private final ReadAlignmentFileWriter writer;
+	// Circular buffer of pending alignments indexed by read number
+	private final Object [] pending;
+	private final Thread writerThread;
+	// Number of the next read to write
+	private long nextReadNumber;
+	private boolean closed = false;
+	private Throwable error = null;
+
+	/**
+	 * Creates a new ordered writer and starts the writer thread
+	 * @param writer Writer for the alignments. After this call it should only be used by this object until close is called
+	 * @param firstReadNumber Number of the first read to be submitted
+	 * @param capacity Maximum number of reads waiting to be written.
+	 * It should be larger than the number of threads submitting alignments
+	 */
+	public OrderedReadAlignmentFileWriter (ReadAlignmentFileWriter writer, long firstReadNumber, int capacity) {
+		this.writer = writer;
+		this.pending = new Object[capacity];
+		this.nextReadNumber = firstReadNumber;
+		writerThread = new Thread(this::writeAlignments, "ReadAlignmentsWriter");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Submits the alignments of a read. Blocks while the read is too far ahead of the next read to write
+	 * @param readNumber Number of the read in the input. Every read number must be submitted exactly once
+	 * @param alns Alignments of the read. It can be empty if the read does not produce records
+	 * @throws InterruptedException If the thread is interrupted waiting for space in the buffer
+	 */
+	public synchronized void submit (long readNumber, List<ReadAlignment> alns) throws InterruptedException {
+		if(readNumber<nextReadNumber) throw new IllegalArgumentException("Alignments for read number "+readNumber+" were already written");
+		while (readNumber>=nextReadNumber+pending.length && error==null && !closed) wait();
+		if(error!=null) throw new RuntimeException("Error writing alignments", error);
+		if(closed) throw new IllegalStateException("Alignments submitted after closing the writer");
+		int slot = (int)(readNumber % pending.length);
+		if(pending[slot]!=null) throw new IllegalArgumentException("Alignments for read number "+readNumber+" were already submitted");
+		pending[slot] = alns;
+		notifyAll();
+	}
+
+	private void writeAlignments () {
+		try {
+			while (true) {
+				List<ReadAlignment> alns = takeNext();
+				if(alns==null) break;
+				for(ReadAlignment aln:alns) writer.write(aln);
+			}
+		} catch (Throwable e) {
+			synchronized (this) {
+				error = e;
+				notifyAll();
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized List<ReadAlignment> takeNext() throws InterruptedException {
+		int slot = (int)(nextReadNumber % pending.length);
+		while (pending[slot]==null) {
+			if(closed) return null;
+			wait();
+		}
+		List<ReadAlignment> alns = (List<ReadAlignment>) pending[slot];
+		pending[slot] = null;
+		nextReadNumber++;
+		notifyAll();
+		return alns;
+	}
+
+	/**
+	 * Waits until all submitted alignments are written and stops the writer thread.
+	 * The underlying writer is not closed
+	 * @throws IOException If the writer thread failed
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted waiting for alignments to be written",e);
+		}
+		if(error!=null) throw new IOException("Error writing alignments", error);
+		for(Object alns:pending) {
+			if(alns!=null) throw new IOException("Alignments not written because some reads before read "+nextReadNumber+" were never submitted");
+		}
+	}
+}
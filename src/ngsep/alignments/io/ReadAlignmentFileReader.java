@@ -21,9 +21,10 @@ package ngsep.alignments.io;
 
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -32,6 +33,7 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
+import htsjdk.samtools.QueryInterval;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
@@ -39,10 +41,12 @@ import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SAMTag;
+import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import ngsep.alignments.ReadAlignment;
 import ngsep.alignments.ReadAlignment.Platform;
+import ngsep.genome.GenomicRegion;
 import ngsep.genome.ReferenceGenome;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
@@ -60,9 +64,9 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 	
 	private Logger log = Logger.getLogger(ReadAlignmentFileReader.class.getName());
 	
+	private SamReader reader;
 	private SAMRecordIterator it; 
 	
-	private ReadAlignmentFileIterator currentIterator = null;
 	private QualifiedSequenceList sequences = new QualifiedSequenceList();
 	//Memory saver to avoid loading the read group for each alignment
 	private QualifiedSequenceList readGroupIds = new QualifiedSequenceList();
@@ -77,21 +81,32 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 	private int minMQ = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
 	
 	public ReadAlignmentFileReader (String filename) throws IOException {
-		init(null,new File(filename),null);
+		init(null,new File(filename),null,null);
 	}
 	public ReadAlignmentFileReader (String filename, ReferenceGenome genome) throws IOException {
 		if(genome!=null) sequences = genome.getSequencesMetadata();
-		init(null,new File(filename),genome);
+		init(null,new File(filename),null,genome);
 	}
 	public ReadAlignmentFileReader (String filename, ReferenceGenome genome, boolean validateHeader) throws IOException {
 		if(genome!=null) sequences = genome.getSequencesMetadata();
 		this.validateHeader = validateHeader;
-		init(null,new File(filename),genome);
+		init(null,new File(filename),null,genome);
 	}
 	public ReadAlignmentFileReader (String filename, QualifiedSequenceList sequences, boolean validateHeader) throws IOException {
 		this.sequences = sequences;
 		this.validateHeader = validateHeader;
-		init(null,new File(filename),null);
+		init(null,new File(filename),null,null);
+	}
+	/**
+	 * Creates a reader for a file with an index stored in a non default location
+	 * @param filename Alignments file in SAM, BAM or CRAM format
+	 * @param indexFilename Index of the alignments file (.bai, .csi or .crai)
+	 * @param genome Reference genome. It is required to read CRAM files and it can be null for other formats
+	 * @throws IOException If the files can not be read
+	 */
+	public ReadAlignmentFileReader (String filename, String indexFilename, ReferenceGenome genome) throws IOException {
+		if(genome!=null) sequences = genome.getSequencesMetadata();
+		init(null,new File(filename),new File(indexFilename),genome);
 	}
 	//TODO: Make more constructors
 	public Logger getLog() {
@@ -151,35 +166,103 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 	public void setMinMQ(int minMQ) {
 		this.minMQ = minMQ;
 	}
+	/**
+	 * @return boolean true if the file has an index that allows to query regions
+	 */
+	public boolean hasIndex() {
+		return reader!=null && reader.hasIndex();
+	}
 	@Override
 	public void close() throws IOException {
-		it.close();
+		closeCurrentIteration();
+		if(reader!=null) reader.close();
+		reader = null;
 	}
 
+	/**
+	 * Iterates over all the alignments of the file. Starting a new iteration closes the iterator of the previous one
+	 */
 	@Override
 	public Iterator<ReadAlignment> iterator() {
-		if (it == null) {
-            throw new IllegalStateException("File reader is closed");
-        }
-        if (currentIterator != null) {
-            throw new IllegalStateException("Iteration in progress");
-        }
-        currentIterator = new ReadAlignmentFileIterator(); 
-		return currentIterator;
+		startNewIteration();
+		it = reader.iterator();
+		return new ReadAlignmentFileIterator(it);
 	}
 	
-	private void init (InputStream stream, File file, ReferenceGenome genome) throws IOException {
-		if (stream != null && file != null) throw new IllegalArgumentException("Stream and file are mutually exclusive");
-		if(file!=null) {
-			stream = new FileInputStream(file);
+	/**
+	 * Iterates over the alignments overlapping the given region using the index of the file.
+	 * Starting a new iteration closes the iterator of the previous one
+	 * PRE: The file has an index
+	 * @param sequenceName Name of the sequence to query
+	 * @param first First position of the region (1-based)
+	 * @param last Last position of the region (1-based). Zero or negative to query until the end of the sequence
+	 * @return Iterator<ReadAlignment> Alignments overlapping the region sorted by position
+	 */
+	public Iterator<ReadAlignment> query(String sequenceName, int first, int last) {
+		startNewIteration();
+		checkIndex();
+		it = reader.queryOverlapping(sequenceName, Math.max(first, 1), Math.max(last, 0));
+		return new ReadAlignmentFileIterator(it);
+	}
+	
+	/**
+	 * Iterates over the alignments overlapping the given region using the index of the file
+	 * @param region to query
+	 * @return Iterator<ReadAlignment> Alignments overlapping the region sorted by position
+	 * @see #query(String, int, int)
+	 */
+	public Iterator<ReadAlignment> query(GenomicRegion region) {
+		return query(region.getSequenceName(), region.getFirst(), region.getLast());
+	}
+	
+	/**
+	 * Iterates over the alignments overlapping at least one of the given regions using the index of the file.
+	 * Overlapping or adjacent regions are merged and each alignment is retrieved only once.
+	 * Regions on sequences not present in the file header are ignored.
+	 * Starting a new iteration closes the iterator of the previous one
+	 * PRE: The file has an index
+	 * @param regions to query. They can be given in any order
+	 * @return Iterator<ReadAlignment> Alignments overlapping the regions sorted by position
+	 */
+	public Iterator<ReadAlignment> query(Collection<? extends GenomicRegion> regions) {
+		startNewIteration();
+		checkIndex();
+		SAMSequenceDictionary dict = reader.getFileHeader().getSequenceDictionary();
+		List<QueryInterval> intervals = new ArrayList<>(regions.size());
+		for(GenomicRegion region:regions) {
+			int sequenceIdx = dict.getSequenceIndex(region.getSequenceName());
+			if(sequenceIdx<0) continue;
+			intervals.add(new QueryInterval(sequenceIdx, Math.max(region.getFirst(), 1), region.getLast()));
 		}
-		//TODO: Use stream
+		QueryInterval [] queryIntervals = QueryInterval.optimizeIntervals(intervals.toArray(new QueryInterval[intervals.size()]));
+		it = reader.queryOverlapping(queryIntervals);
+		return new ReadAlignmentFileIterator(it);
+	}
+	
+	private void startNewIteration() {
+		if (reader == null) {
+			throw new IllegalStateException("File reader is closed");
+		}
+		closeCurrentIteration();
+	}
+	private void closeCurrentIteration() {
+		if(it!=null) it.close();
+		it = null;
+	}
+	private void checkIndex() {
+		if(!reader.hasIndex()) throw new IllegalStateException("Alignments file does not have an index");
+	}
+	
+	private void init (InputStream stream, File file, File indexFile, ReferenceGenome genome) throws IOException {
+		if (stream != null && file != null) throw new IllegalArgumentException("Stream and file are mutually exclusive");
 		SamReaderFactory factory = SamReaderFactory.makeDefault();
 		if(genome!=null) factory.referenceSequence(new File(genome.getFilename()));
-		SamReader reader = factory.open(file);
+		//Files are opened directly to allow random access through the index
+		SamInputResource resource = (file!=null)?SamInputResource.of(file):SamInputResource.of(stream);
+		if(indexFile!=null) resource.index(indexFile);
+		reader = factory.open(resource);
 		SAMFileHeader header = reader.getFileHeader();
 		if(header != null) loadHeader(header);
-		it = reader.iterator();
 	}
 	private void loadHeader(SAMFileHeader header) throws IOException {
 		for(SAMReadGroupRecord rgRecord:header.getReadGroups()) {
@@ -306,8 +389,10 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 	}
 	
 	private class ReadAlignmentFileIterator implements Iterator<ReadAlignment> {
+		private final SAMRecordIterator records;
 		private ReadAlignment nextAln;
-		public ReadAlignmentFileIterator() {
+		public ReadAlignmentFileIterator(SAMRecordIterator records) {
+			this.records = records;
 			nextAln = loadAln();
 		}
 		@Override
@@ -326,9 +411,9 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 		private ReadAlignment loadAln() {
 			SAMRecord alnRecord;
 			while(true) {
-				if(!it.hasNext()) return null;
+				if(!records.hasNext()) return null;
 				try {
-					alnRecord = it.next();
+					alnRecord = records.next();
 				} catch (Exception e) {
 					//e.printStackTrace();
 					log.warning(e.getMessage());
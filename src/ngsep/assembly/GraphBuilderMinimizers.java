@@ -146,6 +146,7 @@ public class GraphBuilderMinimizers implements GraphBuilder {
 			seqIdMinimizers++;
 		}
 		waitToFinish(n, poolMinimizers1);
+		table.buildCodesIndex();
 		long usedMemory = runtime.totalMemory()-runtime.freeMemory();
 		usedMemory/=1000000000;
 		long time2 = System.currentTimeMillis();
@@ -215,6 +216,7 @@ public class GraphBuilderMinimizers implements GraphBuilder {
 			}
 		}
 		waitToFinish(sequences.size(), poolMinimizers2);
+		table.buildCodesIndex();
 		usedMemory = runtime.totalMemory()-runtime.freeMemory();
 		usedMemory/=1000000000;
 		long time4 = System.currentTimeMillis();
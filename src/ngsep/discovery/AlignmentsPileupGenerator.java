@@ -66,6 +66,10 @@ public class AlignmentsPileupGenerator {
 	private List<ReadAlignment> sameStartPrimaryAlignments = new ArrayList<ReadAlignment>();
 	private List<ReadAlignment> sameStartSecondaryAlignments = new ArrayList<ReadAlignment>();
 	private int lastReadAlignmentStart = 0;
+	// Objects reused across positions to avoid allocations
+	private PileupRecord currentPileup = new PileupRecord(null, 0);
+	private Map<String,Integer> alnsPerReadGroup = new HashMap<>();
+	private List<ReadAlignment> allAlnsPos = new ArrayList<>();
 	
 
 	public void addListener(PileupListener listener) {
@@ -224,7 +228,7 @@ public class AlignmentsPileupGenerator {
 		try {
 			for(int i=0;i<n;i++) {
 				readers[i] = createReader(alignmentFiles.get(i));
-				Iterator<ReadAlignment> it = readers[i].iterator();
+				Iterator<ReadAlignment> it = openIterator(readers[i]);
 				iterators.add(it);
 				if(it.hasNext()) {
 					currentAlignments[i] = it.next();
@@ -302,7 +306,7 @@ public class AlignmentsPileupGenerator {
 		try (ReadAlignmentFileReader reader = createReader(filename)) {
 			sequencesMetadata = reader.getSequences();
 			boolean querySeqFound = false;
-			Iterator<ReadAlignment> it = reader.iterator();
+			Iterator<ReadAlignment> it = openIterator(reader);
 			//Sequence under processing
 			while(it.hasNext() && keepRunning) {
 				ReadAlignment aln = it.next();
@@ -374,6 +378,17 @@ public class AlignmentsPileupGenerator {
 		return reader;
 	}
 	
+	/**
+	 * Opens an iterator over the alignments of the given reader. If a query sequence is set and the
+	 * file is indexed, only alignments overlapping the query region are retrieved
+	 * @param reader Alignments file reader
+	 * @return Iterator<ReadAlignment> iterator over the alignments to process
+	 */
+	private Iterator<ReadAlignment> openIterator(ReadAlignmentFileReader reader) {
+		if(querySeq!=null && reader.hasIndex()) return reader.query(querySeq, queryFirst, queryLast);
+		return reader.iterator();
+	}
+	
 	public void processAlignment(ReadAlignment aln) {
 		if(currentReferenceSequence!=null) {
 			boolean sameSequence = currentReferenceSequence.getName().equals(aln.getSequenceName());
@@ -412,8 +427,7 @@ public class AlignmentsPileupGenerator {
 			posStart = sameStartSecondaryAlignments.get(0).getFirst();
 		}
 		if(posStart == 0 ) return;
-		Map<String,Integer> alnsPerReadGroup = new HashMap<>();
-		List<ReadAlignment> allAlnsPos = new ArrayList<>();
+		alnsPerReadGroup.clear();
 		allAlnsPos.addAll(sameStartPrimaryAlignments);
 		allAlnsPos.addAll(sameStartSecondaryAlignments);
 		sameStartPrimaryAlignments.clear();
@@ -462,12 +476,17 @@ public class AlignmentsPileupGenerator {
 	}
 
 	private void updatePendingAlns() {
-		List<ReadAlignment> alnsToKeep = new ArrayList<ReadAlignment>();
-		for(ReadAlignment aln:pendingAlignments) {
-			if(aln.getLast()>=currentReferencePos) alnsToKeep.add(aln);
+		//Alignments to keep are compacted within the same list
+		int n = pendingAlignments.size();
+		int kept = 0;
+		for(int i=0;i<n;i++) {
+			ReadAlignment aln = pendingAlignments.get(i);
+			if(aln.getLast()>=currentReferencePos) {
+				if(kept<i) pendingAlignments.set(kept, aln);
+				kept++;
+			}
 		}
-		pendingAlignments.clear();
-		if(alnsToKeep.size()>0) pendingAlignments.addAll(alnsToKeep);
+		for(int i=n-1;i>=kept;i--) pendingAlignments.remove(i);
 	}
 
 	
@@ -485,7 +504,8 @@ public class AlignmentsPileupGenerator {
 		if(currentReferencePos%100000==0) log.info("Processing position: "+currentReferencePos+" pending alignments: "+pendingAlignments.size());
 		if(currentReferencePos==posPrint) System.out.println("Number of pending alignments: "+pendingAlignments.size());
 		
-		PileupRecord pileup = new PileupRecord(currentReferenceSequence.getName(), currentReferencePos);
+		PileupRecord pileup = currentPileup;
+		pileup.reset(currentReferenceSequence.getName(), currentReferencePos);
 		for(ReadAlignment aln:pendingAlignments) {
 			if(currentReferencePos==posPrint)System.out.println("Next pending: "+aln.getReadName()+" located at "+aln.getSequenceName()+":"+aln.getFirst()+"-"+aln.getLast()+". group: "+aln.getReadGroup()+" cigar: "+aln.getCigarString());
 			pileup.addAlignment(aln);
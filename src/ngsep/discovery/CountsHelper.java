@@ -22,6 +22,7 @@ package ngsep.discovery;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import JSci.maths.statistics.NormalDistribution;
 import ngsep.math.FisherExactTest;
@@ -59,7 +60,7 @@ public class CountsHelper {
 	private List<String> alleles;
 	private static double [][] alleleFreqCache;
 	private static double [][][] logProbCacheGT;
-	private static double [][] logProbCacheError;
+	private static volatile double [][] logProbCacheError;
 	private static double [] logProbSVNormDistCache;
 
 	private boolean verbose = false;
@@ -93,6 +94,50 @@ public class CountsHelper {
 		}
 		return helper;
 	}
+	/**
+	 * Calculates counts to call SNVs from the base calls of a pileup
+	 * @param calls Base calls of a pileup
+	 * @param maxBaseQS maximum base quality score. Larger quality scores are equalized to this value
+	 * @param heterozygousProportion Expected proportion of the alleles in heterozygous genotypes
+	 * @return CountsHelper object with counts and probabilities to call SNVs
+	 */
+	public static CountsHelper calculateCountsSNV (PileupBaseCalls calls, byte maxBaseQS, double heterozygousProportion) {
+		return calculateCountsGTSNV(DNASequence.BASES_ARRAY, calls, null, maxBaseQS, heterozygousProportion);
+	}
+	/**
+	 * Calculates counts to genotype SNVs with the given alleles from the base calls of a pileup
+	 * @param alleles Alleles of the variant. All of them should have length one
+	 * @param calls Base calls of a pileup
+	 * @param readGroups to select calls. If null, all calls are processed
+	 * @param maxBaseQS maximum base quality score. Larger quality scores are equalized to this value
+	 * @param heterozygousProportion Expected proportion of the alleles in heterozygous genotypes
+	 * @return CountsHelper object with counts and probabilities to genotype SNVs
+	 */
+	public static CountsHelper calculateCountsGTSNV(String [] alleles, PileupBaseCalls calls, Set<String> readGroups, byte maxBaseQS, double heterozygousProportion) {
+		CountsHelper helper = new CountsHelper(alleles);
+		if(maxBaseQS>0) helper.setMaxBaseQS(maxBaseQS);
+		helper.setHeterozygousProportion(heterozygousProportion);
+		if(readGroups==null) {
+			int n = calls.size();
+			for(int i=0;i<n;i++) helper.updateCounts(calls, i);
+		} else {
+			//Calls are processed grouped by read group in the order of the given set
+			for(String readGroup:readGroups) {
+				for(int i=calls.getFirstCall(readGroup);i>=0;i=calls.getNextCallSameReadGroup(i)) helper.updateCounts(calls, i);
+			}
+		}
+		return helper;
+	}
+	private void updateCounts(PileupBaseCalls calls, int i) {
+		byte q = (byte)(Math.min(DEF_MAX_BASE_QS, calls.getQualityScore(i)));
+		char base = calls.getBase(i);
+		int index = -1;
+		for(int j=0;j<alleles.size() && index<0;j++) {
+			String allele = alleles.get(j);
+			if(allele.length()==1 && allele.charAt(0)==base) index = j;
+		}
+		updateCounts(index, q, calls.isNegativeStrand(i));
+	}
 	public static CountsHelper calculateCountsIndel(String [] alleles, List<PileupAlleleCall> calls, byte maxBaseQS, double heterozygousProportion, boolean verbose) {
 		CountsHelper helper = new CountsHelper(alleles);
 		helper.setVerbose(verbose);
@@ -132,7 +177,13 @@ public class CountsHelper {
 		updateProbabilitiesCache(nAlleles);
 		startCounts();
 	}
-	private synchronized void updateProbabilitiesCache(int numAlleles) {
+	/**
+	 * Updates the shared caches of probabilities to support the given number of alleles.
+	 * New caches are built completely before they are published, so that threads reading the
+	 * caches never see partially calculated values
+	 * @param numAlleles Number of alleles to support
+	 */
+	private static synchronized void updateProbabilitiesCache(int numAlleles) {
 		int m = DEF_MAX_BASE_QS+1;
 		//Create the cache for at least 10 alleles
 		if(numAlleles<10) numAlleles=10;
@@ -142,38 +193,43 @@ public class CountsHelper {
 		else if(numAlleles<=GenomicVariant.MAX_NUM_ALLELES)numAlleles=GenomicVariant.MAX_NUM_ALLELES;
 		int n = numAlleles+1;
 		if(logProbCacheError!=null && logProbCacheError.length>=n) return;
-		logProbCacheError = new double [m][n];
+		double [][] newCacheError = new double [m][n];
 
-		for(byte i=DEF_MIN_BASE_QS;i<logProbCacheError.length;i++) {
+		for(byte i=DEF_MIN_BASE_QS;i<newCacheError.length;i++) {
 			//Log of error probability for quality score i
-			logProbCacheError[i][0] = -0.1*i;
-			for(int j=2;j<logProbCacheError[i].length;j++) {
+			newCacheError[i][0] = -0.1*i;
+			for(int j=2;j<newCacheError[i].length;j++) {
 				//Error probability divided by number of alleles minus 1
-				logProbCacheError[i][j]=logProbCacheError[i][0]-Math.log10(j-1);
+				newCacheError[i][j]=newCacheError[i][0]-Math.log10(j-1);
 			}
 		}
-		alleleFreqCache = new double [DEF_NUM_FREQUENCIES][2];
-		logProbCacheGT = new double [DEF_NUM_FREQUENCIES][m][n];
+		double [][] newAlleleFreqCache = new double [DEF_NUM_FREQUENCIES][2];
+		double [][][] newCacheGT = new double [DEF_NUM_FREQUENCIES][m][n];
 		for(int f=0;f<DEF_NUM_FREQUENCIES;f++) {
-			updateProbabilitiesCacheFrequency (f);
+			updateProbabilitiesCacheFrequency (f, newAlleleFreqCache, newCacheGT);
 		}
 		NormalDistribution nd = new NormalDistribution(0, 1);
-		logProbSVNormDistCache = new double[1001];
+		double [] newSVNormDistCache = new double[1001];
 		double zScore = 0.0000000000001;
-		for(int i = 0; i < logProbSVNormDistCache.length; i++){
-			logProbSVNormDistCache[i] = Math.log10(nd.probability(zScore));
+		for(int i = 0; i < newSVNormDistCache.length; i++){
+			newSVNormDistCache[i] = Math.log10(nd.probability(zScore));
 			zScore += LongReadStructuralVariantDetector.NORM_DIST_BIN_SIZE;
 		}
+		alleleFreqCache = newAlleleFreqCache;
+		logProbCacheGT = newCacheGT;
+		logProbSVNormDistCache = newSVNormDistCache;
+		//Published last. Volatile write makes the other caches visible to threads checking this one
+		logProbCacheError = newCacheError;
 	}
-	private void updateProbabilitiesCacheFrequency(int f) {
+	private static void updateProbabilitiesCacheFrequency(int f, double [][] alleleFreqCache, double [][][] logProbCacheGT) {
 		double alleleFrequency = (double)f/(DEF_NUM_FREQUENCIES-1);
 		alleleFreqCache[f][0] = Math.log10(alleleFrequency);
 		alleleFreqCache[f][1] = Math.log10(1-alleleFrequency);
-		for(byte i=DEF_MIN_BASE_QS;i<logProbCacheError.length;i++) {
+		for(byte i=DEF_MIN_BASE_QS;i<logProbCacheGT[f].length;i++) {
 			double errorProb = PhredScoreHelper.calculateProbability(i);
 			double successProb = 1-errorProb;
 			logProbCacheGT[f][i][0] = Math.log10(successProb);
-			for(int j=2;j<logProbCacheError[i].length;j++) {
+			for(int j=2;j<logProbCacheGT[f][i].length;j++) {
 				double hetProb = alleleFrequency*successProb+(1-alleleFrequency)*errorProb/(j-1);
 				logProbCacheGT[f][i][j] = Math.log10(hetProb);
 				/*
@@ -207,6 +263,9 @@ public class CountsHelper {
 	 * @param negativeStrand True if the allele comes from a read aligned to the negative strand
 	 */
 	public void updateCounts (String allele, byte qualScore, boolean negativeStrand) {
+		updateCounts(alleles.indexOf(allele), qualScore, negativeStrand);
+	}
+	private void updateCounts (int index, byte qualScore, boolean negativeStrand) {
 		totalCount++;
 		//TODO: Move to setter
 		int f = (int)Math.round(heterozygousProportion*(DEF_NUM_FREQUENCIES-1));
@@ -217,7 +276,6 @@ public class CountsHelper {
 		} else if (qualScore>maxBaseQS) {
 			qualScore = maxBaseQS;
 		}
-		int index = alleles.indexOf(allele);
 		if(index>=0) {
 			//Update raw count
 			counts[index]++;
@@ -20,8 +20,10 @@
 package ngsep.discovery;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -30,6 +32,10 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.alignments.ReadAlignment;
@@ -62,6 +68,7 @@ public class MultisampleVariantsDetector implements PileupListener {
 	public static final byte DEF_MAX_BASE_QS = CountsHelper.DEF_MAX_BASE_QS;
 	public static final byte DEF_PLOIDY = GenomicVariant.DEFAULT_PLOIDY;
 	public static final String DEF_OUTPUT_FILE = "variants.vcf";
+	public static final int DEF_NUM_THREADS = 1;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(MultisampleVariantsDetector.class.getName());
@@ -86,6 +93,7 @@ public class MultisampleVariantsDetector implements PileupListener {
 	private byte maxBaseQS = DEF_MAX_BASE_QS;
 	private short normalPloidy = DEF_PLOIDY;
 	private boolean printSamplePloidy = false;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	private String knownSTRsFile = null;
 	private String knownVariantsFile=null;
@@ -409,6 +417,16 @@ public class MultisampleVariantsDetector implements PileupListener {
 		this.samples = samples;
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public static void main(String[] args) throws Exception {
 		MultisampleVariantsDetector instance = new MultisampleVariantsDetector();
 		int i = CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -428,22 +446,26 @@ public class MultisampleVariantsDetector implements PileupListener {
 		generator.setSequencesMetadata(sequences);
 		//TODO: assign sample ids if not in aln files
 		if(samples == null) loadSamplesFromAlignmentHeaders();
-		
+		GenomicRegionSortedCollection<GenomicVariant> realignerVariants = null;
 		if(knownVariantsFile!=null) {
 			log.info("Loading input variants");
-			List<GenomicVariant> knownVariants = VCFFileReader.loadVariants(knownVariantsFile,true,true);
+			List<GenomicVariant> knownVariants;
+			//Only variants within the query region are needed. Indexed files are queried instead of read completely
+			if(getQuerySeq()!=null) knownVariants = VCFFileReader.loadVariants(knownVariantsFile, getQuerySeq(), getQueryFirst(), getQueryLast(), true, true);
+			else knownVariants = VCFFileReader.loadVariants(knownVariantsFile,true,true);
 			log.info("Loaded "+knownVariants.size()+" input variants");
 			inputVariants = new GenomicRegionSortedCollection<GenomicVariant>(sequences);
 			inputVariants.addAll(knownVariants);
-			indelRealigner.setInputVariants(inputVariants);
+			realignerVariants = inputVariants;
 		} else if(knownSTRsFile!=null) {
 			log.info("Loading input short tandem repeats from: "+knownSTRsFile);
 			//TODO: STRs loader
 			SimpleGenomicRegionFileHandler rfh = new SimpleGenomicRegionFileHandler();
 			List<GenomicRegion> strs = rfh.loadRegions(knownSTRsFile);
-			indelRealigner.setInputVariants(SingleSampleVariantsDetector.makeNonRedundantSTRs(genome,strs));
+			realignerVariants = SingleSampleVariantsDetector.makeNonRedundantSTRs(genome,strs);
 			log.info("Loaded "+strs.size()+" input short tandem repeats");
 		}
+		indelRealigner.setInputVariants(realignerVariants);
 		log.info("Finding variants");
 		
 		generator.addListener(indelRealigner);
@@ -453,7 +475,11 @@ public class MultisampleVariantsDetector implements PileupListener {
 			vcfFileHeader = VCFFileHeader.makeDefaultEmptyHeader();
 			for(Sample s:samples) vcfFileHeader.addSample(s, printSamplePloidy);
 			writer.printHeader(vcfFileHeader, outFile);
-			generator.processFiles(inputFiles);
+			if(numThreads>1 && generator.getQuerySeq()==null && areInputFilesIndexed()) {
+				findVariantsParallel(sequences, realignerVariants);
+			} else {
+				generator.processFiles(inputFiles);
+			}
 		} finally {
 			if(outFile!=null) outFile.close();
 			dispose();
@@ -485,6 +511,7 @@ public class MultisampleVariantsDetector implements PileupListener {
 		out.println("Call SNVs within STRs: " + isCallEmbeddedSNVs());
 		out.println("Normal ploidy: "+normalPloidy);
 		out.println("Print header with sample ploidy in the vcf file: "+printSamplePloidy);
+		out.println("Number of threads: "+numThreads);
 		log.info(os.toString());
 	}
 
@@ -514,13 +541,141 @@ public class MultisampleVariantsDetector implements PileupListener {
 		}
 		samples = new ArrayList<>(samplesMap.values()); 
 	}
+	private boolean areInputFilesIndexed() throws IOException {
+		for(String filename:inputFiles) {
+			try (ReadAlignmentFileReader reader = new ReadAlignmentFileReader(filename,genome)) {
+				if(!reader.hasIndex()) {
+					log.info("Alignments file "+filename+" is not indexed. Variants will be called using one thread");
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Calls variants processing each reference sequence in a separate thread. Indexes of the
+	 * alignment files are used to retrieve the alignments of each sequence. Records of each sequence
+	 * are written to a temporary file and then copied to the output in the order of the reference genome.
+	 * Because no state is kept from one sequence to the next, the output is the same produced
+	 * processing the alignments with one thread
+	 * @param sequences Reference sequences to process
+	 * @param realignerVariants Variants or STRs used by the indel realigner. It can be null
+	 * @throws IOException If the alignment files can not be read or the output can not be written
+	 */
+	private void findVariantsParallel(QualifiedSequenceList sequences, GenomicRegionSortedCollection<GenomicVariant> realignerVariants) throws IOException {
+		log.info("Calling variants on "+sequences.size()+" sequences using "+numThreads+" threads");
+		// Sorted before sharing to avoid concurrent lazy sorting
+		inputVariants.forceSort();
+		if(realignerVariants!=null) realignerVariants.forceSort();
+		File outDir = new File(outFilename).getAbsoluteFile().getParentFile();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<File>> results = new ArrayList<>();
+		long processedLength = 0;
+		try {
+			for(QualifiedSequence seq:sequences) {
+				MultisampleVariantsDetector seqDetector = createSequenceDetector(seq.getName(), realignerVariants);
+				results.add(pool.submit(()->seqDetector.findVariantsSequence(outDir)));
+			}
+			for(int i=0;i<results.size();i++) {
+				File chunk = results.get(i).get();
+				Files.copy(chunk.toPath(), outFile);
+				Files.delete(chunk.toPath());
+				processedLength+=sequences.get(i).getLength();
+				if(progressNotifier!=null && referenceGenomeSize>0) {
+					int progress = (int)Math.round(100.0*processedLength/referenceGenomeSize);
+					if(!progressNotifier.keepRunning(progress)) {
+						log.warning("Cancelled process");
+						break;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Variants calling interrupted",e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			throw new RuntimeException("Error calling variants",cause);
+		} finally {
+			pool.shutdownNow();
+			for(Future<File> result:results) {
+				if(!result.isDone() || result.isCancelled()) continue;
+				try {
+					Files.deleteIfExists(result.get().toPath());
+				} catch (InterruptedException|ExecutionException e) {
+					//Failed tasks do not leave chunks
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Creates a detector with the same parameters of this detector to call variants on a single reference sequence
+	 * @param sequenceName Name of the sequence to process
+	 * @param realignerVariants Variants or STRs used by the indel realigner. It can be null
+	 * @return MultisampleVariantsDetector ready to process the given sequence
+	 */
+	private MultisampleVariantsDetector createSequenceDetector(String sequenceName, GenomicRegionSortedCollection<GenomicVariant> realignerVariants) {
+		MultisampleVariantsDetector seqDetector = new MultisampleVariantsDetector();
+		seqDetector.setLog(log);
+		seqDetector.inputFiles = inputFiles;
+		seqDetector.genome = genome;
+		seqDetector.heterozygosityRate = heterozygosityRate;
+		seqDetector.ignoreLowerCaseRef = ignoreLowerCaseRef;
+		seqDetector.callEmbeddedSNVs = callEmbeddedSNVs;
+		seqDetector.minAlleleDepthFrequency = minAlleleDepthFrequency;
+		seqDetector.minQuality = minQuality;
+		seqDetector.maxBaseQS = maxBaseQS;
+		seqDetector.normalPloidy = normalPloidy;
+		seqDetector.samples = samples;
+		seqDetector.vcfFileHeader = vcfFileHeader;
+		seqDetector.inputVariants = inputVariants;
+		seqDetector.knownVariantsFile = knownVariantsFile;
+		seqDetector.referenceGenomeSize = referenceGenomeSize;
+		seqDetector.setMinMQ(getMinMQ());
+		seqDetector.setMaxAlnsPerStartPos(getMaxAlnsPerStartPos());
+		seqDetector.setProcessNonUniquePrimaryAlignments(isProcessNonUniquePrimaryAlignments());
+		seqDetector.setProcessSecondaryAlignments(isProcessSecondaryAlignments());
+		seqDetector.setBasesToIgnore5P(getBasesToIgnore5P());
+		seqDetector.setBasesToIgnore3P(getBasesToIgnore3P());
+		seqDetector.setQuerySeq(sequenceName);
+		AlignmentsPileupGenerator seqGenerator = seqDetector.generator;
+		seqGenerator.setGenome(genome);
+		seqGenerator.setSequencesMetadata(generator.getSequencesMetadata());
+		seqDetector.indelRealigner.setGenome(genome);
+		seqDetector.indelRealigner.setInputVariants(realignerVariants);
+		seqGenerator.addListener(seqDetector.indelRealigner);
+		seqGenerator.addListener(seqDetector);
+		return seqDetector;
+	}
+	
+	/**
+	 * Calls variants on the query sequence of this detector writing the records without header to a temporary file
+	 * @param outDir Directory to create the temporary file
+	 * @return File Temporary file with the VCF records of the sequence
+	 * @throws IOException If the alignment files can not be read or the temporary file can not be written
+	 */
+	private File findVariantsSequence(File outDir) throws IOException {
+		File chunk = File.createTempFile("ngsep_variants_", ".vcf.part", outDir);
+		//Removes chunks left by cancelled or failed executions
+		chunk.deleteOnExit();
+		try (PrintStream out = new PrintStream(chunk)) {
+			outFile = out;
+			generator.processFiles(inputFiles);
+		} catch (IOException|RuntimeException e) {
+			Files.deleteIfExists(chunk.toPath());
+			throw e;
+		}
+		return chunk;
+	}
+	
 	//Control attribute to avoid calling overlapping indels and to give an embedded status to SNVs within indels or STRs
 	private int lastIndelEnd = 0;
 	private int nextSIVIndex = 0;
 	private List<GenomicVariant> seqInputVariants;
 	@Override
 	public void onPileup(PileupRecord pileup) {
-		if(inputVariants.size()==0) {
+		if(knownVariantsFile==null) {
 			if(pileup.isInputSTR()) lastIndelEnd = pileup.getPosition()+pileup.getReferenceSpan()-1;
 			else if(pileup.getPosition()<=lastIndelEnd) pileup.setEmbedded(true);
 			String referenceAllele = SingleSampleVariantPileupListener.calculateReferenceAlleleDiscovery(pileup,genome,callEmbeddedSNVs,ignoreLowerCaseRef);
@@ -560,7 +715,7 @@ public class MultisampleVariantsDetector implements PileupListener {
 	
 	@Override
 	public void onSequenceStart(QualifiedSequence sequence) {
-		if(inputVariants.size()>0) seqInputVariants = inputVariants.getSequenceRegions(sequence.getName()).asList();
+		if(knownVariantsFile!=null) seqInputVariants = inputVariants.getSequenceRegions(sequence.getName()).asList();
 		nextSIVIndex = 0;
 		lastIndelEnd = 0;
 	}
@@ -583,8 +738,7 @@ public class MultisampleVariantsDetector implements PileupListener {
 		return variant;
 	}
 	public GenomicVariant discoverPopulationSNV(PileupRecord pileup, char reference) {
-		List<PileupAlleleCall> alleleCalls = pileup.getAlleleCalls(1,(String)null);
-		CountsHelper helperSNV = CountsHelper.calculateCountsSNV(alleleCalls, maxBaseQS, 0.5);
+		CountsHelper helperSNV = CountsHelper.calculateCountsSNV(pileup.getBaseCalls(), maxBaseQS, 0.5);
 		GenomicVariant variant = SingleSampleVariantPileupListener.createSNVVariantPool(pileup, helperSNV, reference, minAlleleDepthFrequency);
 		if(variant == null) return null;
 		while(variant.getAlleles().length > 2) {	
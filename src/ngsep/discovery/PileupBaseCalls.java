@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.discovery;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reusable view of the single base calls of a pileup position stored in primitive arrays.
+ * Calls keep the order of the alignments in the pileup. Calls of each read group are also linked in that order
+ * to visit the calls of one sample without scanning the whole pileup. The view is owned by a pileup record
+ * and its contents are only valid while the pileup is processed by the listeners
+ * @author Jorge Duitama
+ */
+public class PileupBaseCalls {
+	private int size = 0;
+	private char [] bases = new char [100];
+	private byte [] qualityScores = new byte [100];
+	private boolean [] negativeStrand = new boolean [100];
+	private String [] readGroups = new String [100];
+	//Index of the next call with the same read group or -1 for the last call
+	private int [] nextCallReadGroup = new int [100];
+	//Ids are kept for the next positions because read groups do not change within a file
+	private Map<String,Integer> readGroupIds = new HashMap<>();
+	private int [] firstCallReadGroup = new int [10];
+	private int [] lastCallReadGroup = new int [10];
+
+	void clear() {
+		Arrays.fill(readGroups, 0, size, null);
+		Arrays.fill(firstCallReadGroup, 0, readGroupIds.size(), -1);
+		size = 0;
+	}
+
+	void add(char base, byte qualityScore, boolean negative, String readGroup) {
+		if(size==bases.length) {
+			int newLength = 2*size;
+			bases = Arrays.copyOf(bases, newLength);
+			qualityScores = Arrays.copyOf(qualityScores, newLength);
+			negativeStrand = Arrays.copyOf(negativeStrand, newLength);
+			readGroups = Arrays.copyOf(readGroups, newLength);
+			nextCallReadGroup = Arrays.copyOf(nextCallReadGroup, newLength);
+		}
+		bases[size] = base;
+		qualityScores[size] = qualityScore;
+		negativeStrand[size] = negative;
+		readGroups[size] = readGroup;
+		nextCallReadGroup[size] = -1;
+		if(readGroup!=null) linkCall(getOrAddReadGroupId(readGroup), size);
+		size++;
+	}
+	private int getOrAddReadGroupId(String readGroup) {
+		Integer id = readGroupIds.get(readGroup);
+		if(id!=null) return id;
+		id = readGroupIds.size();
+		if(id==firstCallReadGroup.length) {
+			firstCallReadGroup = Arrays.copyOf(firstCallReadGroup, 2*id);
+			lastCallReadGroup = Arrays.copyOf(lastCallReadGroup, 2*id);
+		}
+		firstCallReadGroup[id] = -1;
+		readGroupIds.put(readGroup, id);
+		return id;
+	}
+	private void linkCall(int readGroupId, int i) {
+		if(firstCallReadGroup[readGroupId]<0) firstCallReadGroup[readGroupId] = i;
+		else nextCallReadGroup[lastCallReadGroup[readGroupId]] = i;
+		lastCallReadGroup[readGroupId] = i;
+	}
+
+	/**
+	 * @return int Number of base calls
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i Index of the call
+	 * @return char Upper case base called by the alignment
+	 */
+	public char getBase(int i) {
+		return bases[i];
+	}
+
+	/**
+	 * @param i Index of the call
+	 * @return byte PHRED base quality score of the call
+	 */
+	public byte getQualityScore(int i) {
+		return qualityScores[i];
+	}
+
+	/**
+	 * @param i Index of the call
+	 * @return boolean true if the read aligned to the negative strand
+	 */
+	public boolean isNegativeStrand(int i) {
+		return negativeStrand[i];
+	}
+
+	/**
+	 * @param i Index of the call
+	 * @return String Read group of the alignment. It can be null
+	 */
+	public String getReadGroup(int i) {
+		return readGroups[i];
+	}
+
+	/**
+	 * @param readGroup Read group to query
+	 * @return int Index of the first call of the given read group or -1 if the read group does not have calls
+	 */
+	public int getFirstCall(String readGroup) {
+		Integer id = readGroupIds.get(readGroup);
+		if(id==null) return -1;
+		return firstCallReadGroup[id];
+	}
+
+	/**
+	 * @param i Index of the call
+	 * @return int Index of the next call with the same read group or -1 if there are no more calls of the read group
+	 */
+	public int getNextCallSameReadGroup(int i) {
+		return nextCallReadGroup[i];
+	}
+}
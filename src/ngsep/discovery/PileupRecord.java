@@ -45,6 +45,9 @@ public class PileupRecord {
 	private boolean str = false;
 	private boolean newSTR = false;
 	private boolean embedded = false;
+	// Single base calls calculated the first time they are requested
+	private PileupBaseCalls baseCalls = null;
+	private boolean baseCallsLoaded = false;
 	
 	//DEBUG
 	private int posPrint = -1;
@@ -63,6 +66,26 @@ public class PileupRecord {
 		this.position = position;
 	}
 	
+	/**
+	 * Clears this record to reuse it for a new position. Lists of alignments and base calls are kept to avoid new allocations
+	 * @param sequenceName Name of the reference sequence
+	 * @param position New position in the reference sequence
+	 */
+	public void reset(String sequenceName, int position) {
+		this.sequenceName = sequenceName;
+		this.position = position;
+		alignmentsList.clear();
+		for(List<ReadAlignment> alnsRG:alignmentsMap.values()) alnsRG.clear();
+		referenceSpan = 1;
+		numAlignments = 0;
+		numUniqueAlns = 0;
+		numNegativeStrandAlns = 0;
+		str = false;
+		newSTR = false;
+		embedded = false;
+		baseCallsLoaded = false;
+	}
+	
 	public String getSequenceName() {
 		return sequenceName;
 	}
@@ -151,10 +174,32 @@ public class PileupRecord {
 		return alleleCalls;
 	}
 
+	/**
+	 * Calculates the single base calls of the alignments spanning this position. Calls are calculated the first
+	 * time this method is called for the current position, which should happen after alignments are realigned.
+	 * This is equivalent to getAlleleCalls(1) but information is stored in a reused view with primitive arrays
+	 * @return PileupBaseCalls Base calls of this pileup. The object is reused by this record for the next positions
+	 */
+	public PileupBaseCalls getBaseCalls() {
+		if(baseCalls==null) baseCalls = new PileupBaseCalls();
+		if(!baseCallsLoaded) {
+			baseCalls.clear();
+			for(ReadAlignment aln:alignmentsList) {
+				char base = aln.getAlleleCallBase(position);
+				if(base==0) continue;
+				byte qualityScore = (byte)(aln.getBaseQualityScore(position)-33);
+				baseCalls.add(Character.toUpperCase(base), qualityScore, aln.isNegativeStrand(), aln.getReadGroup());
+			}
+			baseCallsLoaded = true;
+		}
+		return baseCalls;
+	}
+
 	public void addAlignment(ReadAlignment aln) {
 		if(aln.getFirst()>position) return;
 		if(aln.getLast()<position) return;
 		alignmentsList.add(aln);
+		baseCallsLoaded = false;
 		List<ReadAlignment> alnsRG = alignmentsMap.get(aln.getReadGroup());
 		if(alnsRG==null) {
 			alnsRG = new ArrayList<>();
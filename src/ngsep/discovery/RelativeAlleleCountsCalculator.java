@@ -244,14 +244,8 @@ public class RelativeAlleleCountsCalculator implements PileupListener {
 
 	@Override
 	public void onPileup(PileupRecord pileup) {
-		if(regionsToFilter!=null) {
-			GenomicRegionSortedCollection<GenomicRegion> spanningFilterRegions = regionsToFilter.findSpanningRegions(pileup.getSequenceName(), pileup.getPosition());
-			if(spanningFilterRegions.size()>0) return;
-		}
-		if(regionsToSelect!=null) {
-			GenomicRegionSortedCollection<GenomicRegion> spanningRegions = regionsToSelect.findSpanningRegions(pileup.getSequenceName(), pileup.getPosition());
-			if(spanningRegions.size()==0) return;
-		}
+		if(regionsToFilter!=null && regionsToFilter.hasSpanningRegions(pileup.getSequenceName(), pileup.getPosition(), pileup.getPosition())) return;
+		if(regionsToSelect!=null && !regionsToSelect.hasSpanningRegions(pileup.getSequenceName(), pileup.getPosition(), pileup.getPosition())) return;
 		List<PileupAlleleCall> calls = pileup.getAlleleCalls(1);
 		if(calls.size()<minRD) return;
 		Map<String, Integer> alleleCounts = new TreeMap<String, Integer>();
@@ -232,12 +232,12 @@ public class SingleSampleVariantPileupListener implements PileupListener {
 	}
 	
 	public CalledGenomicVariant discoverSNV(PileupRecord pileup, char reference) {
-		List<PileupAlleleCall> calls = pileup.getAlleleCalls(1,(String)null);
-		CountsHelper helperSNV = CountsHelper.calculateCountsSNV(calls, maxBaseQS, 0.5);
+		CountsHelper helperSNV = CountsHelper.calculateCountsSNV(pileup.getBaseCalls(), maxBaseQS, 0.5);
 		short ploidy = sample.getNormalPloidy();
 		if(ploidy<DEF_MIN_PLOIDY_POOL_ALGORITHM) {
 			return  VariantDiscoverySNVQAlgorithm.discoverSNV(helperSNV, pileup.getSequenceName(), pileup.getPosition(), reference, heterozygosityRate, calcStrandBias);
 		} else {
+			List<PileupAlleleCall> calls = pileup.getAlleleCalls(1,(String)null);
 			GenomicVariant variant = createSNVVariantPool(pileup, helperSNV, reference, 0.5/(double)sample.getNormalPloidy());
 			if(variant == null) return null;
 			CalledGenomicVariant call = genotypeVariantPool(variant, ploidy, calls, heterozygosityRate);
@@ -362,20 +362,21 @@ public class SingleSampleVariantPileupListener implements PileupListener {
 		String referenceAllele = variant.getReference();
 		short ploidy = (sample!=null?sample.getNormalPloidy():this.sample.getNormalPloidy());
 		CalledGenomicVariant calledVar = null;
-		List<PileupAlleleCall> calls = pileup.getAlleleCalls(referenceAllele.length(),(sample!=null?sample.getReadGroups():null));
-		if(variant.isSNV()) {
-			CountsHelper helperSNV = CountsHelper.calculateCountsSNV(calls, maxBaseQS, 0.5);
-			if(ploidy>=DEF_MIN_PLOIDY_POOL_ALGORITHM) {
+		Set<String> readGroups = (sample!=null?sample.getReadGroups():null);
+		if(variant.isSNV() && ploidy<DEF_MIN_PLOIDY_POOL_ALGORITHM) {
+			//Most common case processed without creating allele call objects
+			CountsHelper helperSNV = CountsHelper.calculateCountsGTSNV(DNASequence.BASES_ARRAY, pileup.getBaseCalls(), readGroups, maxBaseQS, 0.5);
+			if(variant.getFirst()==posPrint) helperSNV.printProbs(helperSNV.getLogConditionalProbs(), false);
+			calledVar = VariantDiscoverySNVQAlgorithm.genotypeSNV(variant, helperSNV, h, false);
+			calledVar.updateAllelesCopyNumberFromCounts(ploidy);
+		} else {
+			List<PileupAlleleCall> calls = pileup.getAlleleCalls(referenceAllele.length(),readGroups);
+			if(variant.isSNV()) {
+				CountsHelper helperSNV = CountsHelper.calculateCountsSNV(calls, maxBaseQS, 0.5);
 				CalledGenomicVariantImpl calledVarI = genotypeVariantPool(variant, ploidy, calls, h);
 				calledVarI.setAllCounts(helperSNV.getCounts());
 				calledVar = calledVarI;
-			} else {
-				if(variant.getFirst()==posPrint) helperSNV.printProbs(helperSNV.getLogConditionalProbs(), false);
-				calledVar = VariantDiscoverySNVQAlgorithm.genotypeSNV(variant, helperSNV, h, false);
-				calledVar.updateAllelesCopyNumberFromCounts(ploidy);
-			}
-		} else {
-			if(ploidy>=DEF_MIN_PLOIDY_POOL_ALGORITHM) {
+			} else if(ploidy>=DEF_MIN_PLOIDY_POOL_ALGORITHM) {
 				calledVar = genotypeVariantPool(variant, ploidy, calls, h);
 			} else {
 				CountsHelper helperIndel = CountsHelper.calculateCountsIndel(variant.getAlleles(), calls, maxBaseQS, 0.5, variant.getFirst()==posPrint);
@@ -617,6 +617,7 @@ public class KmerPrefixReadsClusteringAlgorithm {
 		
 		//Create pool manager and statistics
 		ThreadPoolManager poolManager = new ThreadPoolManager(numThreads, MAX_TASK_COUNT);
+		poolManager.setProgressNotifier(progressNotifier);
 		boolean terminated = false;
 		//Timer for mem checks
 		Timer timer = new Timer();
@@ -718,6 +719,7 @@ public class KmerPrefixReadsClusteringAlgorithm {
 		
 		//Create pool manager and statistics
 		ThreadPoolManager poolManager = new ThreadPoolManager(numThreads, MAX_TASK_COUNT);
+		poolManager.setProgressNotifier(progressNotifier);
 		boolean terminated = false;
 		//Timer for mem checks
 		Timer timer = new Timer();
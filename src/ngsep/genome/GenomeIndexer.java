@@ -22,7 +22,10 @@ package ngsep.genome;
 import java.io.IOException;
 import java.util.logging.Logger;
 
+import ngsep.alignments.MinimizersUngappedSearchHitsClustersFinder;
+import ngsep.alignments.ReadsAligner;
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
 
 /**
@@ -32,7 +35,9 @@ import ngsep.main.ProgressNotifier;
  */
 public class GenomeIndexer {
 	// Constants for default values
-	
+	public static final int DEF_NUM_THREADS = 1;
+	public static final int DEF_KMER_LENGTH = ReadsAligner.DEF_KMER_LENGTH;
+	public static final int DEF_WINDOW_LENGTH = ReadsAligner.DEF_WINDOW_LENGTH;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(GenomeIndexer.class.getName());
@@ -41,6 +46,11 @@ public class GenomeIndexer {
 	// Parameters
 	private String inputFile = null;
 	private String outputFile = null;
+	private boolean binaryFormat = false;
+	private int numThreads = DEF_NUM_THREADS;
+	private String kmerCodesTableFile = null;
+	private int kmerLength = DEF_KMER_LENGTH;
+	private int windowLength = DEF_WINDOW_LENGTH;
 	
 	
 	// Get and set methods
@@ -73,6 +83,53 @@ public class GenomeIndexer {
 		this.outputFile = outputFile;
 	}
 
+	public boolean isBinaryFormat() {
+		return binaryFormat;
+	}
+	public void setBinaryFormat(boolean binaryFormat) {
+		this.binaryFormat = binaryFormat;
+	}
+	public void setBinaryFormat(Boolean binaryFormat) {
+		this.setBinaryFormat(binaryFormat.booleanValue());
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
+	public String getKmerCodesTableFile() {
+		return kmerCodesTableFile;
+	}
+	public void setKmerCodesTableFile(String kmerCodesTableFile) {
+		this.kmerCodesTableFile = kmerCodesTableFile;
+	}
+
+	public int getKmerLength() {
+		return kmerLength;
+	}
+	public void setKmerLength(int kmerLength) {
+		this.kmerLength = kmerLength;
+	}
+	public void setKmerLength(String value) {
+		setKmerLength((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
+	public int getWindowLength() {
+		return windowLength;
+	}
+	public void setWindowLength(int windowLength) {
+		this.windowLength = windowLength;
+	}
+	public void setWindowLength(String value) {
+		setWindowLength((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public static void main(String[] args) throws Exception  {
 		GenomeIndexer instance = new GenomeIndexer();
 		CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -81,20 +138,41 @@ public class GenomeIndexer {
 	
 	public void run () throws IOException {
 		if (inputFile==null) throw new IOException("The reference genome is a required parameter");
-		if (outputFile==null) throw new IOException("The path of the output file is a required parameter");
-		createIndex (inputFile,outputFile);
+		if (outputFile==null && kmerCodesTableFile==null) throw new IOException("The path of the output file is a required parameter");
+		log.info("Loading genome from file "+inputFile);
+		ReferenceGenome genome = new ReferenceGenome(inputFile);
+		if (outputFile!=null) createIndex (genome,outputFile);
+		if (kmerCodesTableFile!=null) createKmerCodesTable(genome, kmerCodesTableFile);
 	}
 
 	public void createIndex(String genomeFile, String outputFile) throws IOException {
 		log.info("Loading genome from file "+genomeFile);
 		ReferenceGenome genome = new ReferenceGenome(genomeFile);
-		log.info("Building index for genome in file "+genomeFile);
+		createIndex(genome, outputFile);
+	}
+	
+	public void createIndex(ReferenceGenome genome, String outputFile) throws IOException {
+		log.info("Building index for genome in file "+genome.getFilename());
 		long time = System.currentTimeMillis();
-		ReferenceGenomeFMIndex fMIndex= new ReferenceGenomeFMIndex(genome, log);
+		ReferenceGenomeFMIndex fMIndex= new ReferenceGenomeFMIndex(genome, log, numThreads);
 		double seconds = (System.currentTimeMillis()-time);
 		seconds /=1000;
 		log.info("Built index in "+seconds+" seconds. Saving in "+outputFile);
-		fMIndex.save(outputFile);
+		if(binaryFormat) fMIndex.saveBinary(outputFile);
+		else fMIndex.save(outputFile);
+		log.info("Process completed");
+	}
+	
+	public void createKmerCodesTable(ReferenceGenome genome, String outputFile) throws IOException {
+		log.info("Building kmer codes table for genome in file "+genome.getFilename()+" kmer length: "+kmerLength+" window length: "+windowLength);
+		long time = System.currentTimeMillis();
+		MinimizersUngappedSearchHitsClustersFinder finder = new MinimizersUngappedSearchHitsClustersFinder();
+		finder.setLog(log);
+		finder.loadGenome(genome, kmerLength, windowLength, numThreads);
+		double seconds = (System.currentTimeMillis()-time);
+		seconds /=1000;
+		log.info("Built kmer codes table in "+seconds+" seconds. Saving in "+outputFile);
+		finder.saveKmerCodesTable(outputFile);
 		log.info("Process completed");
 	}
 }
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.genome;
+
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Immutable index to find the regions of a sequence spanning a query interval.
+ * Regions are stored sorted by position and coordinates are copied to primitive arrays.
+ * The sorted array is interpreted as an implicit augmented binary search tree in which the node at
+ * position i has level equal to the number of trailing ones of i and stores the maximum last coordinate
+ * of its subtree. Queries take O(log(n) + k) where k is the number of spanning regions
+ * @author Jorge Duitama
+ *
+ * @param <T> Type of the indexed regions
+ */
+public class GenomicRegionIntervalIndex<T extends GenomicRegion> {
+	// Subtrees with at most this level are scanned linearly
+	private static final int MAX_LEVEL_LINEAR_SCAN = 3;
+	private final List<T> regions;
+	private final int [] firsts;
+	private final int [] lasts;
+	private final int [] maxLasts;
+	private final int rootLevel;
+
+	/**
+	 * Builds the index for the given regions
+	 * @param regions Regions of a single sequence sorted by first position.
+	 * The list should not be modified while the index is used
+	 */
+	public GenomicRegionIntervalIndex(List<T> regions) {
+		this.regions = regions;
+		int n = regions.size();
+		firsts = new int[n];
+		lasts = new int[n];
+		maxLasts = new int[n];
+		for(int i=0;i<n;i++) {
+			T r = regions.get(i);
+			firsts[i] = r.getFirst();
+			lasts[i] = r.getLast();
+			if(i>0 && firsts[i]<firsts[i-1]) throw new IllegalArgumentException("Regions are not sorted by position. Region at "+r.getSequenceName()+":"+r.getFirst()+"-"+r.getLast()+" appears after a region starting at "+firsts[i-1]);
+		}
+		int level = 0;
+		while ((1L<<(level+1))<=n) level++;
+		rootLevel = level;
+		if(n>0) calculateMaxLasts((1<<rootLevel)-1, rootLevel);
+	}
+
+	private int calculateMaxLasts(int node, int level) {
+		int n = firsts.length;
+		if(node-(1<<level)+1>=n) return Integer.MIN_VALUE;
+		int max = Integer.MIN_VALUE;
+		if(level>0) {
+			int half = 1<<(level-1);
+			max = Math.max(calculateMaxLasts(node-half, level-1), calculateMaxLasts(node+half, level-1));
+		}
+		if(node<n) {
+			max = Math.max(max, lasts[node]);
+			maxLasts[node] = max;
+		}
+		return max;
+	}
+
+	/**
+	 * @return int Number of indexed regions
+	 */
+	public int size() {
+		return firsts.length;
+	}
+
+	/**
+	 * @param i Index of the region in sorted order
+	 * @return T Region at the given index
+	 */
+	public T get(int i) {
+		return regions.get(i);
+	}
+
+	/**
+	 * @param i Index of the region in sorted order
+	 * @return int First position of the region at the given index
+	 */
+	public int getFirst(int i) {
+		return firsts[i];
+	}
+
+	/**
+	 * @param i Index of the region in sorted order
+	 * @return int Last position of the region at the given index
+	 */
+	public int getLast(int i) {
+		return lasts[i];
+	}
+
+	/**
+	 * Finds the index of the first region starting at or after the given position
+	 * @param position Genomic position
+	 * @return int Index of the first region with first position larger or equal than the given position.
+	 * size() if all regions start before the given position
+	 */
+	public int findFirstIndex(int position) {
+		int low = 0;
+		int high = firsts.length;
+		while(low<high) {
+			int mid = (low+high)>>>1;
+			if(firsts[mid]<position) low = mid+1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Adds to the given list the regions spanning the given coordinates in sorted order
+	 * @param first First position of the query
+	 * @param last Last position of the query
+	 * @param answer List to add the spanning regions
+	 */
+	public void findSpanningRegions(int first, int last, List<? super T> answer) {
+		visitSpanningRegions(first, last, (i)->answer.add(regions.get(i)));
+	}
+
+	/**
+	 * Checks if at least one region spans the given coordinates
+	 * @param first First position of the query
+	 * @param last Last position of the query
+	 * @return boolean true if at least one region spans the given coordinates
+	 */
+	public boolean hasSpanningRegions(int first, int last) {
+		return visitSpanningRegions(first, last, (i)->false) > 0;
+	}
+
+	/**
+	 * Visits in increasing order the indexes of the regions spanning the given coordinates
+	 * @param first First position of the query
+	 * @param last Last position of the query
+	 * @param visitor Receives the index of each spanning region. The traversal stops if the visitor returns false
+	 * @return int Number of visited regions
+	 */
+	int visitSpanningRegions(int first, int last, IntPredicate visitor) {
+		int n = firsts.length;
+		if(n==0) return 0;
+		int visited = 0;
+		// Each entry of the stack encodes the node, its level and whether the left subtree was already visited
+		long [] stack = new long[2*(rootLevel+2)];
+		int t = 0;
+		stack[t++] = encode((1<<rootLevel)-1, rootLevel, false);
+		while(t>0) {
+			long entry = stack[--t];
+			int node = (int)(entry>>>32);
+			int level = (int)(entry>>>1) & 0xFF;
+			boolean leftVisited = (entry & 1)!=0;
+			if(level<=MAX_LEVEL_LINEAR_SCAN) {
+				int start = node-(1<<level)+1;
+				int end = (int)Math.min(n, start+(2L<<level)-1);
+				for(int i=start;i<end && firsts[i]<=last;i++) {
+					if(lasts[i]>=first) {
+						visited++;
+						if(!visitor.test(i)) return visited;
+					}
+				}
+			} else if (!leftVisited) {
+				stack[t++] = encode(node, level, true);
+				int left = node-(1<<(level-1));
+				if(left>=n || maxLasts[left]>=first) stack[t++] = encode(left, level-1, false);
+			} else if (node<n && firsts[node]<=last) {
+				if(lasts[node]>=first) {
+					visited++;
+					if(!visitor.test(node)) return visited;
+				}
+				stack[t++] = encode(node+(1<<(level-1)), level-1, false);
+			}
+		}
+		return visited;
+	}
+
+	private static long encode(int node, int level, boolean leftVisited) {
+		return ((long)node<<32) | (level<<1) | (leftVisited?1:0);
+	}
+}
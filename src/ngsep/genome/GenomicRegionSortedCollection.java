@@ -33,9 +33,8 @@ import ngsep.sequences.QualifiedSequenceList;
 public class GenomicRegionSortedCollection<T extends GenomicRegion> implements Collection<T> {
 	private QualifiedSequenceList sequences = new QualifiedSequenceList();
 	private Map<Integer,List<T>> regionsMap = new HashMap<Integer, List<T>>();
-	private Map<Integer,List<T>> longRegionsMap = new HashMap<Integer, List<T>>();
+	private Map<Integer,GenomicRegionIntervalIndex<T>> indexesMap = new HashMap<Integer, GenomicRegionIntervalIndex<T>>();
 	private int size = 0;
-	private int numSpanningLong = 15;
 	private boolean sorted = true;
 	
 	
@@ -51,7 +50,6 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		this.sequences.addAll(sequences);
 		for(int i=0;i<this.sequences.size();i++) {	 
 			regionsMap.put(i, new ArrayList<T>());
-			longRegionsMap.put(i, new ArrayList<T>());
 		}
 	}
 	@Override
@@ -67,7 +65,6 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 			}
 			index = sequences.indexOf(seq.getName());
 			regionsMap.put(index, new ArrayList<T>());
-			longRegionsMap.put(index, new ArrayList<T>());
 		}
 		List<T> regions = regionsMap.get(index);
 		regions.add(e);
@@ -91,8 +88,8 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 	public void clear() {
 		for(int index:regionsMap.keySet()) {
 			regionsMap.get(index).clear();
-			longRegionsMap.get(index).clear();
 		}
+		indexesMap.clear();
 		size = 0;
 		sorted = true;
 	}
@@ -125,9 +122,8 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		if(index<0) return false;
 		regions.remove(index);
 		size--;
-		List<T> longRegions = longRegionsMap.get(sequenceIndex);
-		index = GenomicRegionSortedCollection.indexOf (longRegions,gr);
-		if(index>=0) longRegions.remove(index);
+		//The interval index of the sequence is rebuilt in the next query
+		indexesMap.remove(sequenceIndex);
 		return true;
 	}
 	@Override
@@ -151,11 +147,10 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		int remaining = n;
 		for(int i=0;i<sequences.size() && remaining > 0;i++) {
 			List<T> regions = regionsMap.get(i);
-			List<T> longRegions = longRegionsMap.get(i);
 			int nSeq = regions.size();
+			indexesMap.remove(i);
 			if(nSeq<=remaining) {
 				regions.clear();
-				longRegions.clear();
 				remaining -= nSeq;
 				size -= nSeq;
 			} else {
@@ -165,8 +160,6 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 				}
 				regions.clear();
 				regions.addAll(newRegions);
-				//Update long regions in the next sort
-				sorted = false;
 				size-=remaining;
 				remaining = 0;
 			}
@@ -190,33 +183,35 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 	}
 	private void sort() {
 		if(!sorted) {
-			//System.out.println("Sorting "+regionsForward.size()+" regions");
-			//if(regionsForward.size()>0) System.out.println("Type: "+regionsForward.get(0).getClass().getName());
+			indexesMap.clear();
 			for(int index:regionsMap.keySet()) {
 				List<T> regions = regionsMap.get(index);
 				Collections.sort(regions,GenomicRegionPositionComparator.getInstance());
-				List<T> longRegions = longRegionsMap.get(index);
-				longRegions.clear();
-				for(int i=0;i<regions.size();i++) {
-					T r = regions.get(i);
-		 			//if(i<50) System.out.println("Seqname: "+r.getSequenceName()+". Start: "+r.getStart()+" end:"+r.getEnd());
-					int j=i+1;
-					for(;j<regions.size() && j<=i+numSpanningLong;j++) {
-						GenomicRegion r2 = regions.get(j);
-						if(r2.getFirst() > r.getLast()) {
-							break;
-						}
-					}
-					if(j>i+numSpanningLong) {
-						longRegions.add(r);
-					}
-				}
-				
+				indexesMap.put(index, new GenomicRegionIntervalIndex<T>(regions));
 			}
-			//System.out.println("Found "+longRegions.size()+" long regions");
 		}
 		sorted = true;
 	}
+	private GenomicRegionIntervalIndex<T> getIntervalIndex(int sequenceIndex) {
+		sort();
+		GenomicRegionIntervalIndex<T> index = indexesMap.get(sequenceIndex);
+		if(index==null) {
+			index = new GenomicRegionIntervalIndex<T>(regionsMap.get(sequenceIndex));
+			indexesMap.put(sequenceIndex, index);
+		}
+		return index;
+	}
+	/**
+	 * Returns the interval index of the regions within the given sequence.
+	 * The index is invalidated if the collection is modified
+	 * @param sequenceName Name of the sequence
+	 * @return GenomicRegionIntervalIndex<T> Index of the regions in the given sequence. Null if the sequence is not in the collection
+	 */
+	public GenomicRegionIntervalIndex<T> getIntervalIndex(String sequenceName) {
+		int sequenceIndex = sequences.indexOf(sequenceName);
+		if(sequenceIndex<0) return null;
+		return getIntervalIndex(sequenceIndex);
+	}
 	
 	public QualifiedSequenceList getSequenceNames() {
 		return sequences;
@@ -242,40 +237,34 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 	}
 	public GenomicRegionSortedCollection<T> findSpanningRegions(int sequenceIndex, int first, int last) {
 		GenomicRegionSortedCollection<T> answer = new GenomicRegionSortedCollection<T>();
-		if(sequenceIndex <0 || sequenceIndex>sequences.size()) return answer;
-		sort();
-		GenomicRegionSpanComparator spanCmp = GenomicRegionSpanComparator.getInstance();
-		GenomicRegion dummyRegion = new GenomicRegionImpl(sequences.get(sequenceIndex).getName(), first, first);
-		List<T> regions = regionsMap.get(sequenceIndex);
-		int index = Collections.binarySearch(regions, dummyRegion,GenomicRegionPositionComparator.getInstance());
-		int indexStart = index;
-		if(index<0) {
-			index = -index-1;
-		}
-		indexStart = Math.max(0,index - numSpanningLong);
-		
-		for(int i=indexStart;i<regions.size();i++) {
-			T r = regions.get(i);
-			int cmp = spanCmp.compare(r,first, last);
-			if (cmp == 0) {
-				answer.add(r);
-			} else if (cmp > 0) {
-				break;
-			}
-		}
-		
-		//Look long regions
-		List<T> longRegions = longRegionsMap.get(sequenceIndex);
-		for(T r: longRegions) {
-			int cmp = spanCmp.compare(r,first, last);
-			if (cmp == 0 && !answer.contains(r)) {
-				answer.add(r);
-			} else if (cmp >0) {
-				break;
-			}
-		}
+		if(sequenceIndex <0 || sequenceIndex>=sequences.size()) return answer;
+		List<T> spanning = new ArrayList<T>();
+		getIntervalIndex(sequenceIndex).findSpanningRegions(first, last, spanning);
+		answer.addAll(spanning);
+		//Regions are retrieved in sorted order
+		answer.sorted = true;
 		return answer;
 	}
+	/**
+	 * Checks if at least one region in the collection spans the given coordinates
+	 * @param sequenceName Name of the sequence
+	 * @param first First position of the query
+	 * @param last Last position of the query
+	 * @return boolean true if at least one region spans the given coordinates
+	 */
+	public boolean hasSpanningRegions(String sequenceName, int first, int last) {
+		int sequenceIndex = sequences.indexOf(sequenceName);
+		if(sequenceIndex<0) return false;
+		return getIntervalIndex(sequenceIndex).hasSpanningRegions(first, last);
+	}
+	/**
+	 * Checks if at least one region in the collection spans the given region
+	 * @param region Query region
+	 * @return boolean true if at least one region spans the given region
+	 */
+	public boolean hasSpanningRegions(GenomicRegion region) {
+		return hasSpanningRegions(region.getSequenceName(), region.getFirst(), region.getLast());
+	}
 	
 	public List<T> asList() {
 		sort();
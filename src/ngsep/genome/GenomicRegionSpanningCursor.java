@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.genome;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the regions of a collection spanning a stream of queries sorted by position, for example
+ * the variants of a sorted VCF file. The cursor keeps the regions that can still span the next query,
+ * which makes the cost of each query proportional to the number of active regions.
+ * Queries that change sequence or move backwards restart the cursor using the interval index of the collection,
+ * so unsorted queries are still answered correctly.
+ * The cursor is not thread safe. Each thread should use its own cursor
+ * @author Jorge Duitama
+ *
+ * @param <T> Type of the regions in the collection
+ */
+public class GenomicRegionSpanningCursor<T extends GenomicRegion> {
+	private final GenomicRegionSortedCollection<T> collection;
+	private String sequenceName = null;
+	private GenomicRegionIntervalIndex<T> index = null;
+	private int lastQueryFirst = 0;
+	// Index of the next region to consider for the active list
+	private int nextIndex = 0;
+	// Indexes of regions starting before nextIndex that can span the next queries, in increasing order
+	private int [] active = new int [100];
+	private int activeSize = 0;
+	private final List<T> answer = new ArrayList<>();
+
+	/**
+	 * Creates a cursor over the given collection. The collection should not be modified while the cursor is used
+	 * @param collection Regions to query
+	 */
+	public GenomicRegionSpanningCursor(GenomicRegionSortedCollection<T> collection) {
+		this.collection = collection;
+	}
+
+	/**
+	 * Finds the regions spanning the given coordinates
+	 * @param sequenceName Name of the sequence of the query
+	 * @param first First position of the query
+	 * @param last Last position of the query
+	 * @return List<T> Spanning regions in sorted order. The list is reused by the next call to this method
+	 */
+	public List<T> findSpanningRegions(String sequenceName, int first, int last) {
+		answer.clear();
+		if(!sequenceName.equals(this.sequenceName) || first<lastQueryFirst) restart(sequenceName, first);
+		lastQueryFirst = first;
+		if(index==null) return answer;
+		// Remove regions ending before the query
+		int j=0;
+		for(int i=0;i<activeSize;i++) {
+			int k = active[i];
+			if(index.getLast(k)>=first) active[j++] = k;
+		}
+		activeSize = j;
+		// Add regions starting within the query
+		int n = index.size();
+		while (nextIndex<n && index.getFirst(nextIndex)<=last) {
+			if(index.getLast(nextIndex)>=first) addActive(nextIndex);
+			nextIndex++;
+		}
+		for(int i=0;i<activeSize;i++) {
+			int k = active[i];
+			if(index.getFirst(k)<=last) answer.add(index.get(k));
+		}
+		return answer;
+	}
+
+	/**
+	 * Finds the regions spanning the given region
+	 * @param region Query region
+	 * @return List<T> Spanning regions in sorted order. The list is reused by the next call to this method
+	 */
+	public List<T> findSpanningRegions(GenomicRegion region) {
+		return findSpanningRegions(region.getSequenceName(), region.getFirst(), region.getLast());
+	}
+
+	private void restart(String sequenceName, int first) {
+		this.sequenceName = sequenceName;
+		index = collection.getIntervalIndex(sequenceName);
+		activeSize = 0;
+		nextIndex = 0;
+		if(index==null) return;
+		// Regions starting before the query are activated only if they span its first position
+		int limit = index.findFirstIndex(first);
+		index.visitSpanningRegions(first, first, (i) -> {
+			if(i>=limit) return false;
+			addActive(i);
+			return true;
+		});
+		nextIndex = limit;
+	}
+
+	private void addActive(int i) {
+		if(activeSize==active.length) active = Arrays.copyOf(active, 2*activeSize);
+		active[activeSize++] = i;
+	}
+}
@@ -21,7 +21,9 @@ package ngsep.genome;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import ngsep.sequences.DNAMaskedSequence;
 import ngsep.sequences.LimitedSequence;
@@ -258,5 +260,27 @@ public class ReferenceGenome {
 		for(QualifiedSequence seq:sequences) max = Math.max(max, seq.getLength());
 		return max;
 	}
+	/**
+	 * Calculates a checksum of the names and the characters of the sequences of this genome.
+	 * Used to validate that indexes saved in files were built from this genome
+	 * @return long CRC32 checksum of the genome
+	 */
+	public long calculateChecksum() {
+		CRC32 crc = new CRC32();
+		byte [] buffer = new byte [1<<20];
+		for(QualifiedSequence seq:sequences) {
+			crc.update(seq.getName().getBytes(StandardCharsets.UTF_8));
+			crc.update('\n');
+			CharSequence characters = seq.getCharacters();
+			int n = characters.length();
+			for(int start=0;start<n;start+=buffer.length) {
+				int length = Math.min(buffer.length, n-start);
+				for(int i=0;i<length;i++) buffer[i] = (byte)characters.charAt(start+i);
+				crc.update(buffer, 0, length);
+			}
+			crc.update('\n');
+		}
+		return crc.getValue();
+	}
 
 }
@@ -25,6 +25,7 @@ import java.util.logging.Logger;
 
 import ngsep.sequences.FMIndex;
 import ngsep.sequences.UngappedSearchHit;
+import ngsep.sequences.UngappedSearchHitsBuffer;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 
@@ -44,17 +45,29 @@ public class ReferenceGenomeFMIndex {
 	}
 	
 	public ReferenceGenomeFMIndex (ReferenceGenome genome, Logger log) {
+		this(genome, log, 1);
+	}
+	
+	/**
+	 * Builds the FM-index of the given genome
+	 * @param genome to index
+	 * @param log to report progress
+	 * @param numThreads Number of threads to build internal indexes in parallel
+	 */
+	public ReferenceGenomeFMIndex (ReferenceGenome genome, Logger log, int numThreads) {
 		sequencesMetadata = genome.getSequencesMetadata();
 		internalIndex = new FMIndex();
 		internalIndex.setMaxHitsQuery(MAX_HITS_QUERY);
+		internalIndex.setNumThreads(numThreads);
 		QualifiedSequenceList sequences = genome.getSequencesList();
 		internalIndex.loadQualifiedSequences(sequences, log);
 	}
 
 	/**
-	 * Loads an instance of the FMIndex from a serialized binary file
+	 * Loads an instance of the FMIndex from a file saved with save or saveBinary.
+	 * Indexes saved in the binary format are memory mapped rather than copied to the heap
 	 * @param genome Indexed genome
-	 * @param filename Binary file with the serialization of an FMIndex
+	 * @param filename File with the serialization of an FMIndex
 	 * @return FMIndex serialized in the given file
 	 * @throws IOException If there were errors reading the file
 	 */
@@ -81,6 +94,15 @@ public class ReferenceGenomeFMIndex {
 	{
 		internalIndex.save(filename);
 	}
+	/**
+	 * Saves this FM-Index in a binary format that can be memory mapped when it is loaded
+	 * @param filename
+	 * @throws IOException
+	 */
+	public void saveBinary (String filename) throws IOException 
+	{
+		internalIndex.saveBinary(filename);
+	}
 	/**
 	 * @return The list of sequences and lengths related to the reference genome
 	 */
@@ -124,6 +146,15 @@ public class ReferenceGenomeFMIndex {
 	public List<UngappedSearchHit> exactSearch (String searchSequence) {
 		return internalIndex.exactSearch(searchSequence);
 	}
+	/**
+	 * Searches a batch of sequences in the index, interleaving their backward searches
+	 * This search is case sensitive
+	 * @param searchSequences sequences to search
+	 * @param hits Buffer to store the hits. After the search, hits are grouped by the index of the query
+	 */
+	public void exactSearch (List<? extends CharSequence> searchSequences, UngappedSearchHitsBuffer hits) {
+		internalIndex.exactSearch(searchSequences, hits);
+	}
 	/**
 	 * Return the sequence with the given name
 	 * @param sequenceName Name of the sequence to search
@@ -50,6 +50,9 @@ public class SingleIndividualHaplotyper {
 	private String algorithmName = DEF_ALGORITHM_NAME;
 	private SIHAlgorithm algorithm;
 	private int minMQ = DEF_MIN_MQ;
+	private String querySeq = null;
+	private int queryFirst = 0;
+	private int queryLast = Integer.MAX_VALUE;
 	
 	public Logger getLog() {
 		return log;
@@ -103,6 +106,30 @@ public class SingleIndividualHaplotyper {
 	public void setMinMQ(String value) {
 		this.setMinMQ((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
+	public String getQuerySeq() {
+		return querySeq;
+	}
+	public void setQuerySeq(String querySeq) {
+		this.querySeq = querySeq;
+	}
+	public int getQueryFirst() {
+		return queryFirst;
+	}
+	public void setQueryFirst(int queryFirst) {
+		this.queryFirst = queryFirst;
+	}
+	public void setQueryFirst(String value) {
+		this.setQueryFirst((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	public int getQueryLast() {
+		return queryLast;
+	}
+	public void setQueryLast(int queryLast) {
+		this.queryLast = queryLast;
+	}
+	public void setQueryLast(String value) {
+		this.setQueryLast((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
 	public ReferenceGenome getGenome() {
 		return genome;
 	}
@@ -141,6 +168,7 @@ public class SingleIndividualHaplotyper {
 		else out.println("VCF file written to standard output");
 		out.println("Minimum mapping quality: "+minMQ);
 		out.println("Algorithm: "+algorithmName);
+		if(querySeq!=null) out.println("Query region: "+querySeq+":"+queryFirst+"-"+queryLast);
 		log.info(""+os.toString());
 	}
 	
@@ -167,17 +195,27 @@ public class SingleIndividualHaplotyper {
 			int filterFlags = ReadAlignment.FLAG_READ_UNMAPPED;
 			filterFlags+=ReadAlignment.FLAG_MULTIPLE_ALN;
 			alnReader.setFilterFlags(filterFlags);
-			Iterator<ReadAlignment> alnIt = alnReader.iterator();
-			ReadAlignment nextAln = alnIt.next();
+			boolean indexed = alnReader.hasIndex();
+			//Indexed files are queried for each sequence. Otherwise, alignments are read sequentially
+			Iterator<ReadAlignment> alnIt = indexed?null:alnReader.iterator();
+			ReadAlignment nextAln = (alnIt!=null && alnIt.hasNext())?alnIt.next():null;
+			if(querySeq!=null) {
+				//Alignments of sequences before the query sequence are skipped
+				while(nextAln!=null && !querySeq.equals(nextAln.getSequenceName())) nextAln = alnIt.hasNext()?alnIt.next():null;
+			}
 			String lastSeqName = null;
-			Iterator<VCFRecord> iter = inputVCF.iterator();
+			//Indexed VCF files are queried for the records of the query region
+			boolean queryVCF = querySeq!=null && inputVCF.hasIndex();
+			Iterator<VCFRecord> iter = queryVCF?inputVCF.query(querySeq, queryFirst, queryLast):inputVCF.iterator();
 			while(iter.hasNext())
 			{
 				VCFRecord record = iter.next();
+				if(querySeq!=null && !queryVCF && !isInQueryRegion(record)) continue;
 				if(!record.getSequenceName().equals(lastSeqName)) {
 					if(records.size()>0) {
 						log.info("Phasing "+records.size()+" variants from VCF file for sequence "+lastSeqName+ " heterozygous calls: "+hetCalls.size());
-						nextAln = phaseSequenceVariants(lastSeqName, hetCalls, nextAln, alnIt);
+						if(indexed) phaseSequenceVariants(lastSeqName, hetCalls, alnReader);
+						else nextAln = phaseSequenceVariants(lastSeqName, hetCalls, nextAln, alnIt);
 						vcfWriter.printVCFRecords(records, out);
 					}
 					records.clear();
@@ -196,11 +234,15 @@ public class SingleIndividualHaplotyper {
 			}
 			if(records.size()>0) {
 				log.info("Phasing "+records.size()+" variants from VCF file for sequence "+lastSeqName);
-				phaseSequenceVariants(lastSeqName, hetCalls, nextAln, alnIt);
+				if(indexed) phaseSequenceVariants(lastSeqName, hetCalls, alnReader);
+				else phaseSequenceVariants(lastSeqName, hetCalls, nextAln, alnIt);
 				vcfWriter.printVCFRecords(records, out);
 			}
 		}
 	}
+	private boolean isInQueryRegion(VCFRecord record) {
+		return querySeq.equals(record.getSequenceName()) && record.getFirst()<=queryLast && record.getLast()>=queryFirst;
+	}
 	private void loadAlgorithm() throws IOException {
 		try {
 			String algorithmClassName = "ngsep.haplotyping."+algorithmName+"SIHAlgorithm";
@@ -227,6 +269,23 @@ public class SingleIndividualHaplotyper {
 		return nextAln;
 	}
 	
+	/**
+	 * Phases the given calls retrieving from the index of the alignments file only the alignments spanning heterozygous calls.
+	 * Alignments that do not span heterozygous calls do not contribute fragments to the haplotype blocks
+	 * @param seqName Name of the sequence
+	 * @param hetCalls Heterozygous calls to phase, sorted by position
+	 * @param alnReader Reader of an indexed alignments file
+	 * @throws IOException If the alignments can not be read
+	 */
+	private void phaseSequenceVariants(String seqName, List<CalledGenomicVariant> hetCalls, ReadAlignmentFileReader alnReader) throws IOException {
+		log.info("Sequence: "+seqName+" Phasing "+hetCalls.size()+" het calls");
+		if(hetCalls.size()==0) return;
+		List<ReadAlignment> sequenceAlignments = new ArrayList<ReadAlignment>();
+		Iterator<ReadAlignment> alnIt = alnReader.query(hetCalls);
+		while(alnIt.hasNext()) sequenceAlignments.add(alnIt.next());
+		phaseSequenceVariants(seqName, hetCalls, sequenceAlignments);
+	}
+	
 	public List<HaplotypeBlock> phaseSequenceVariants (String seqName, List<CalledGenomicVariant> hetCalls, List<ReadAlignment> alignments) throws IOException {
 		//HaplotypeBlock block = new HaplotypeBlock(hetCalls);
 		List<HaplotypeFragment> fragments = new ArrayList<>();
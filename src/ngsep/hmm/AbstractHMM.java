@@ -19,24 +19,30 @@
  *******************************************************************************/
 package ngsep.hmm;
 
-import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
 import ngsep.math.LogMath;
 
 
+/**
+ * Base implementation of the forward-backward and Viterbi algorithms. Calculations run over primitive
+ * logarithms stored in flat arrays indexed by step*numStates+state. Zero probabilities are represented
+ * as Double.NEGATIVE_INFINITY. Arrays are reused across calls and only grow when a longer sequence
+ * of observations is processed. Emission probabilities are calculated once per sequence of observations.
+ * Implementations can avoid boxing in the inner loops redefining the methods getLogTransition,
+ * getLogEmission and getLogStart. By default, these methods convert the values returned by the
+ * null aware methods of the HMM interface. Workspaces are kept per thread. Hence, the forward-backward
+ * and Viterbi algorithms can run for different sequences of observations in different threads,
+ * as long as the parameters of the HMM are not modified at the same time
+ */
 public abstract class AbstractHMM implements HMM {
 	
 	public static final int DEF_STARTS_BAUM_WELCH = 5;
 	public static final int DEF_ITER_BAUM_WELCH = 20;
 	
 	private Logger log = Logger.getLogger(AbstractHMM.class.getName());
-	private Double [][] forwardLogs=new Double[0][0];
-	private Double [][] backwardLogs=new Double[0][0];
-	private Double [][] posteriorLogs=new Double[0][0];
-	private Double [][] viterbiLogs = new Double [0][0];
-	private int [][] viterbiBacktrace = new int [0][0];
+	private final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(Workspace::new);
 	
 	public Logger getLog() {
 		return log;
@@ -55,49 +61,74 @@ public abstract class AbstractHMM implements HMM {
 	public Double getStart(int state) {
 		return getState(state).getLogStart();
 	}
+	
+	/**
+	 * Primitive version of getTransition used by the forward, backward and Viterbi algorithms
+	 * @param source First state
+	 * @param dest Second state
+	 * @param step Step at which the transition will happen
+	 * @return double log10 of the transition probability. Double.NEGATIVE_INFINITY if the probability is zero
+	 */
+	protected double getLogTransition(int source, int dest, int step) {
+		return LogMath.toPrimitive(getTransition(source, dest, step));
+	}
+	
+	/**
+	 * Primitive version of getEmission used by the forward, backward and Viterbi algorithms
+	 * @param state From which the value is emitted
+	 * @param value observed value
+	 * @param step At which the value is emitted
+	 * @return double log10 of the emission probability. Double.NEGATIVE_INFINITY if the probability is zero
+	 */
+	protected double getLogEmission(int state, Object value, int step) {
+		return LogMath.toPrimitive(getEmission(state, value, step));
+	}
+	
+	/**
+	 * Primitive version of getStart used by the forward, backward and Viterbi algorithms
+	 * @param state Potential initial state
+	 * @return double log10 of the probability of starting at the given state. Double.NEGATIVE_INFINITY if the probability is zero
+	 */
+	protected double getLogStart(int state) {
+		return LogMath.toPrimitive(getStart(state));
+	}
+	
 	@Override
 	public Double calculatePosteriorLogs(List<? extends Object> observations,Double[][] posteriorLogs) {
 		int m = observations.size();
-		int k = getNumStates();
-		initArrays(m,k,false);
+		int n = getNumStates();
 		if(posteriorLogs.length!=m) throw new IllegalArgumentException("Invalid rows of posterior logs. Expected: "+m+" Given: "+posteriorLogs.length);
-		if(m>0 && posteriorLogs[0].length!=k) throw new IllegalArgumentException("Invalid columns of posterior logs. Expected: "+k+" Given: "+posteriorLogs[0].length);
-		Double logProb = calculateForward(observations,forwardLogs);
-		calculateBackward(observations,backwardLogs);
-		for(int i=0;i<posteriorLogs.length;i++) {
-			for(int j=0;j<posteriorLogs[0].length;j++) {
-				Double f = forwardLogs[i][j];
-				Double b = backwardLogs[i][j];
-				Double e = getEmission(j, observations.get(i), i);
-				Double fTimesE = LogMath.logProduct(f,e);
-				posteriorLogs[i][j] = LogMath.logProduct(b, fTimesE);
-				if(i==posteriorLogs.length-1) logProb=LogMath.logSum(logProb, fTimesE);
+		if(m>0 && posteriorLogs[0].length!=n) throw new IllegalArgumentException("Invalid columns of posterior logs. Expected: "+n+" Given: "+posteriorLogs[0].length);
+		double logProb = runForwardBackward(observations);
+		Workspace ws = workspaces.get();
+		for(int i=0;i<m;i++) {
+			int row = i*n;
+			for(int j=0;j<n;j++) {
+				double fTimesE = ws.forwardLogs[row+j]+ws.emissionLogs[row+j];
+				posteriorLogs[i][j] = LogMath.toNullable(ws.backwardLogs[row+j]+fTimesE);
+				if(i==m-1) logProb=LogMath.logSumPrimitive(logProb, fTimesE);
 			}
 		}
-		return logProb;
+		return LogMath.toNullable(logProb);
 	}
-	protected Double [][] calculatePosteriorLogs (List<? extends Object> observations) {
-		//Init arrays if not previously created to avoid reassignment of posteriorLogs cache attribute
-		int m = observations.size();
-		int k = getNumStates();
-		initArrays(m,k,true);
-		calculatePosteriorLogs(observations,posteriorLogs);
-		return posteriorLogs;
-	}
-	
 
 	@Override
 	public void calculatePosteriors(List<? extends Object> observations, double[][] posteriors) {
 		int m = observations.size();
-		int k = getNumStates();
+		int n = getNumStates();
 		if(posteriors.length!=m) throw new IllegalArgumentException("Invalid rows of posterior logs. Expected: "+m+" Given: "+posteriors.length);
-		if(m>0 && posteriors[0].length!=k) throw new IllegalArgumentException("Invalid columns of posteriors. Expected: "+k+" Given: "+posteriors[0].length);
-		Double [][] posteriorLogs = calculatePosteriorLogs(observations);
-		for(int i=0;i<posteriorLogs.length;i++) {
-			//System.out.println("i: "+i+" observation: "+observations.get(i)+" posteriorLogs: "+posteriorLogs[i][0]+" "+posteriorLogs[i][1]);
-			LogMath.normalizeLogs(posteriorLogs[i]);
-			for(int j=0;j<posteriorLogs[i].length;j++) {
-				posteriors[i][j] = LogMath.power10(posteriorLogs[i][j]);
+		if(m>0 && posteriors[0].length!=n) throw new IllegalArgumentException("Invalid columns of posteriors. Expected: "+n+" Given: "+posteriors[0].length);
+		runForwardBackward(observations);
+		Workspace ws = workspaces.get();
+		for(int i=0;i<m;i++) {
+			int row = i*n;
+			double [] posteriorsRow = posteriors[i];
+			for(int j=0;j<n;j++) {
+				posteriorsRow[j] = ws.backwardLogs[row+j]+(ws.forwardLogs[row+j]+ws.emissionLogs[row+j]);
+			}
+			LogMath.normalizeLogs(posteriorsRow);
+			for(int j=0;j<n;j++) {
+				posteriorsRow[j] = LogMath.power10(posteriorsRow[j]);
 			}
 		}
 	}
@@ -108,172 +139,187 @@ public abstract class AbstractHMM implements HMM {
 		int n = getNumStates();
 		if(forwardLogs.length!=m) throw new IllegalArgumentException("Invalid rows of forward logs. Expected: "+m+" Given: "+forwardLogs.length);
 		if(m>0 && forwardLogs[0].length!=n) throw new IllegalArgumentException("Invalid columns of forwardLogs. Expected: "+n+" Given: "+forwardLogs.length);
-		
-		//Array to precalculate forward times emission
-		Double [] fTimesE = new Double[n]; 
-		for(int i=0;i<m;i++) {
-			Object lastO = null;
-			if(i>0) {
-				lastO = observations.get(i-1);
-				Arrays.fill(fTimesE, null);
-				for(int k=0;k<n;k++) {
-					Double e = getEmission(k, lastO, i-1);
-					fTimesE[k] = LogMath.logProduct(forwardLogs[i-1][k],e);
-				}
-			}
-			
-			for(int j=0;j<n;j++) {
-				if(lastO==null) forwardLogs[i][j] = getStart(j);
-				else {
-					//The sum of probabilities starts with zero which in logarithm is represented as null
-					forwardLogs[i][j] = null;
-					for(int k=0;k<n;k++) {
-						Double t = getTransition(k, j, i-1);
-						forwardLogs[i][j]=LogMath.logSum(forwardLogs[i][j],LogMath.logProduct(fTimesE[k],t));
-					}
-				}
-			}	
-		}
-		//Calculate final probability
-		return getSequenceLogProb(observations, forwardLogs);
+		Workspace ws = initWorkspace(m, n, false);
+		calculateEmissionLogs(observations, ws);
+		double logProb = runForward(m, n, ws);
+		copyToNullable(ws.forwardLogs, n, forwardLogs);
+		return LogMath.toNullable(logProb);
+	}
+
+	@Override
+	public void calculateBackward(List<? extends Object> observations, Double [][] backwardLogs) {
+		int m = observations.size();
+		int n = getNumStates();
+		if(backwardLogs.length!=m) throw new IllegalArgumentException("Invalid rows of backwardLogs. Expected: "+m+" Given: "+backwardLogs.length);
+		if(m>0 && backwardLogs[0].length!=n) throw new IllegalArgumentException("Invalid columns of backwardLogs. Expected: "+n+" Given: "+backwardLogs.length);
+		Workspace ws = initWorkspace(m, n, false);
+		calculateEmissionLogs(observations, ws);
+		runBackward(m, n, ws);
+		copyToNullable(ws.backwardLogs, n, backwardLogs);
 	}
 	
 	/**
-	 * Method that recalculates forward probabilities and returns the internal array where they get saved
-	 * @param observations
-	 * @return Double [][] array with forward probabilities with as many rows as observations and as many columns as states
+	 * Runs the forward and the backward algorithms over the workspaces of the current thread. After this call,
+	 * values can be retrieved from the same thread with the methods getLastForwardLog, getLastBackwardLog and getLastEmissionLog
+	 * @param observations Sequence of observations
+	 * @return double log10 of the probability of the observations given the HMM. Double.NEGATIVE_INFINITY if the probability is zero
 	 */
-	protected Double [][] calculateForward (List<? extends Object> observations) {
+	protected double runForwardBackward(List<? extends Object> observations) {
 		int m = observations.size();
-		int k = getNumStates();
-		initArrays(m, k, true);
-		calculateForward(observations,forwardLogs);
-		return forwardLogs;
+		int n = getNumStates();
+		Workspace ws = initWorkspace(m, n, false);
+		calculateEmissionLogs(observations, ws);
+		double logProb = runForward(m, n, ws);
+		runBackward(m, n, ws);
+		return logProb;
 	}
 	
 	/**
-	 * Calculates the total probability of the given observations
-	 * @param observations list of m observations
-	 * @param forwardLogs precalculated forward logs
-	 * @return Double log of the total probability of the sequence of observations
+	 * @param step Step of the last sequence of observations
+	 * @param state Index of the state
+	 * @return double forward log probability calculated in the last run of the current thread. It does not include the emission at the given step
 	 */
-	protected Double getSequenceLogProb(List<? extends Object> observations, Double [][] forwardLogs) {
-		Double logProb = null;
-		int m = observations.size();
-		for(int j=0;j<forwardLogs[m-1].length;j++) {
-			Double f = forwardLogs[m-1][j];
-			Double e = getEmission(j, observations.get(m-1), m-1);
-			logProb=LogMath.logSum(logProb, LogMath.logProduct(f,e));
-		}
-		return logProb;
+	protected double getLastForwardLog(int step, int state) {
+		Workspace ws = workspaces.get();
+		return ws.forwardLogs[step*ws.numStates+state];
 	}
-
-	@Override
-	public void calculateBackward(List<? extends Object> observations, Double [][] backwardLogs) {
+	
+	/**
+	 * @param step Step of the last sequence of observations
+	 * @param state Index of the state
+	 * @return double backward log probability calculated in the last run of the current thread
+	 */
+	protected double getLastBackwardLog(int step, int state) {
+		Workspace ws = workspaces.get();
+		return ws.backwardLogs[step*ws.numStates+state];
+	}
+	
+	/**
+	 * @param step Step of the last sequence of observations
+	 * @param state Index of the state
+	 * @return double log probability of the observation at the given step emitted by the given state
+	 */
+	protected double getLastEmissionLog(int step, int state) {
+		Workspace ws = workspaces.get();
+		return ws.emissionLogs[step*ws.numStates+state];
+	}
+	
+	private void calculateEmissionLogs(List<? extends Object> observations, Workspace ws) {
 		int m = observations.size();
 		int n = getNumStates();
-		
-		if(backwardLogs.length!=m) throw new IllegalArgumentException("Invalid rows of backwardLogs. Expected: "+m+" Given: "+backwardLogs.length);
-		if(m>0 && backwardLogs[0].length!=n) throw new IllegalArgumentException("Invalid columns of backwardLogs. Expected: "+n+" Given: "+backwardLogs.length);
-		
-		Double [] bTimesE = new Double[n]; 
-		for(int i=m-1;i>=0;i--) {
-			Object lastO = null;
-			if(i<m-1) {
-				lastO = observations.get(i+1);
+		for(int i=0;i<m;i++) {
+			Object o = observations.get(i);
+			int row = i*n;
+			for(int j=0;j<n;j++) ws.emissionLogs[row+j] = getLogEmission(j, o, i);
+		}
+	}
+	
+	/**
+	 * Calculates forward probabilities. Emissions must be already calculated
+	 * @return double log of the total probability of the sequence of observations
+	 */
+	private double runForward(int m, int n, Workspace ws) {
+		for(int j=0;j<n && m>0;j++) ws.forwardLogs[j] = getLogStart(j);
+		for(int i=1;i<m;i++) {
+			int lastRow = (i-1)*n;
+			int row = i*n;
+			for(int k=0;k<n;k++) ws.rowLogs[k] = ws.forwardLogs[lastRow+k]+ws.emissionLogs[lastRow+k];
+			for(int j=0;j<n;j++) {
+				//The sum of probabilities starts with zero
+				double sum = Double.NEGATIVE_INFINITY;
 				for(int k=0;k<n;k++) {
-					Double e = getEmission(k, lastO, i+1);
-					bTimesE[k] = LogMath.logProduct(backwardLogs[i+1][k],e);
+					sum = LogMath.logSumPrimitive(sum, ws.rowLogs[k]+getLogTransition(k, j, i-1));
 				}
+				ws.forwardLogs[row+j] = sum;
 			}
-			for(int j=0;j<n;j++) {
-				if(lastO==null) backwardLogs[i][j] = (double) 0;
-				else {
-					//The sum of probabilities starts with zero which in logarithm is represented as null
-					backwardLogs[i][j]=null;
-					for(int k=0;k<n;k++) {
-						Double t = getTransition(j, k, i);
-						backwardLogs[i][j]=LogMath.logSum(backwardLogs[i][j],LogMath.logProduct(bTimesE[k],t));
-					}
-				}
-			}	
 		}
+		//Calculate final probability
+		double logProb = Double.NEGATIVE_INFINITY;
+		int lastRow = (m-1)*n;
+		for(int j=0;j<n && m>0;j++) {
+			logProb = LogMath.logSumPrimitive(logProb, ws.forwardLogs[lastRow+j]+ws.emissionLogs[lastRow+j]);
+		}
+		return logProb;
 	}
 	
 	/**
-	 * Method that recalculates backward probabilities and returns the internal array where they get saved
-	 * @param observations
-	 * @return Double [][] array with backward probabilities with as many rows as observations and as many columns as states
+	 * Calculates backward probabilities. Emissions must be already calculated
 	 */
-	protected Double [][] calculateBackward (List<? extends Object> observations) {
-		int m = observations.size();
-		int k = getNumStates();
-		initArrays(m, k, true);
-		calculateBackward(observations, backwardLogs);
-		return backwardLogs;
+	private void runBackward(int m, int n, Workspace ws) {
+		int lastRow = (m-1)*n;
+		for(int j=0;j<n && m>0;j++) ws.backwardLogs[lastRow+j] = 0;
+		for(int i=m-2;i>=0;i--) {
+			int nextRow = (i+1)*n;
+			int row = i*n;
+			for(int k=0;k<n;k++) ws.rowLogs[k] = ws.backwardLogs[nextRow+k]+ws.emissionLogs[nextRow+k];
+			for(int j=0;j<n;j++) {
+				//The sum of probabilities starts with zero
+				double sum = Double.NEGATIVE_INFINITY;
+				for(int k=0;k<n;k++) {
+					sum = LogMath.logSumPrimitive(sum, ws.rowLogs[k]+getLogTransition(j, k, i));
+				}
+				ws.backwardLogs[row+j] = sum;
+			}
+		}
 	}
 
 	@Override
 	public Double getViterbiPath(List<? extends Object> observations, int [] path) {
 		int m = observations.size();
 		int n = getNumStates();
-		initArraysViterbi(m, n);
-		//Array to precalculate viterbi times emission
-		Double [] vTimesE = new Double[n];
-		for(int i=0;i<m;i++) {
-			Object lastO = null;
-			if(i>0) {
-				lastO = observations.get(i-1);
-				Arrays.fill(vTimesE, null);
-				for(int k=0;k<n;k++) {
-					Double e = getEmission(k, lastO, i-1);
-					vTimesE[k] = LogMath.logProduct(viterbiLogs[i-1][k],e);
-				}
-			}
-			
+		Workspace ws = initWorkspace(m, n, true);
+		calculateEmissionLogs(observations, ws);
+		for(int j=0;j<n && m>0;j++) {
+			ws.viterbiLogs[j] = getLogStart(j);
+			ws.viterbiBacktrace[j] = -1;
+		}
+		for(int i=1;i<m;i++) {
+			int lastRow = (i-1)*n;
+			int row = i*n;
+			for(int k=0;k<n;k++) ws.rowLogs[k] = ws.viterbiLogs[lastRow+k]+ws.emissionLogs[lastRow+k];
 			for(int j=0;j<n;j++) {
-				if(lastO==null) {
-					viterbiLogs[i][j] = getStart(j);
-					viterbiBacktrace[i][j] = -1;
-				}
-				else {
-					//The max probabilities starts with zero which in logarithm is represented as null
-					viterbiLogs[i][j] = null;
-					viterbiBacktrace[i][j] = -1;
-					for(int k=0;k<n;k++) {
-						Double t = getTransition(k, j, i-1);
-						Double prob = LogMath.logProduct(vTimesE[k],t);
-						if(prob != null && (viterbiLogs[i][j] == null || viterbiLogs[i][j] < prob) ) {
-							viterbiLogs[i][j] = prob;
-							viterbiBacktrace[i][j] = k;
-						}
+				//The max probabilities starts with zero
+				double best = Double.NEGATIVE_INFINITY;
+				int backtrace = -1;
+				for(int k=0;k<n;k++) {
+					double prob = ws.rowLogs[k]+getLogTransition(k, j, i-1);
+					if(prob > best) {
+						best = prob;
+						backtrace = k;
 					}
 				}
-			}	
+				ws.viterbiLogs[row+j] = best;
+				ws.viterbiBacktrace[row+j] = backtrace;
+			}
 		}
-		Double bestP = null;
+		double bestP = Double.NEGATIVE_INFINITY;
 		int bestState = -1;
-		for(int j=0;j<n;j++) {
-			Double p = viterbiLogs[m-1][j];
-			p = LogMath.logProduct(p,getEmission(j, observations.get(m-1), m-1));
-			if(p!=null && (bestP == null || bestP < p)) {
+		int lastRow = (m-1)*n;
+		for(int j=0;j<n && m>0;j++) {
+			double p = ws.viterbiLogs[lastRow+j]+ws.emissionLogs[lastRow+j];
+			if(p > bestP) {
 				bestState = j;
 				bestP = p;
 			}
 		}
-		if(bestP == null) {
-			return bestP;
+		if(bestState == -1) {
+			return null;
 		}
 		//Backtrace best path
 		for(int i=m-1;i>=0;i--) {
 			path[i] = bestState;
-			bestState = viterbiBacktrace[i][bestState];
+			bestState = ws.viterbiBacktrace[i*n+bestState];
 		}
 		return bestP;
 	}
 	
+	private static void copyToNullable(double [] logs, int n, Double [][] output) {
+		for(int i=0;i<output.length;i++) {
+			int row = i*n;
+			for(int j=0;j<n;j++) output[i][j] = LogMath.toNullable(logs[row+j]);
+		}
+	}
 
-	
 	public static void calculateUniformChangeTransitions(double changeProbability, Double [][]transitions) {
 		int n = transitions.length;
 		
@@ -288,29 +334,39 @@ public abstract class AbstractHMM implements HMM {
 			}
 		}
 	}
-	private void initArrays(int m, int k, boolean initPosteriors) {
-		if(forwardLogs.length!=m || forwardLogs[0].length!=k) {
-			getLog().info("Creating array for forward probabilities of dimensions "+m+" x "+k);
-			forwardLogs = new Double[m][k];
+	private Workspace initWorkspace(int m, int n, boolean viterbi) {
+		Workspace ws = workspaces.get();
+		int size = m*n;
+		ws.numStates = n;
+		if(ws.rowLogs.length<n) ws.rowLogs = new double [n];
+		if(ws.emissionLogs.length<size) {
+			getLog().info("Creating arrays for emission, forward and backward probabilities of dimensions "+m+" x "+n);
+			ws.emissionLogs = new double[size];
+			ws.forwardLogs = new double[size];
+			ws.backwardLogs = new double[size];
 		}
-		if(backwardLogs.length!=m || backwardLogs[0].length!=k) {
-			getLog().info("Creating array for backward probabilities of dimensions "+m+" x "+k);
-			backwardLogs = new Double[m][k];
-		}
-		if(initPosteriors && (posteriorLogs.length!=m || posteriorLogs[0].length!=k)) {
-			getLog().info("Creating array for posterior probabilities of dimensions "+m+" x "+k);
-			posteriorLogs = new Double[m][k];
+		if(viterbi && ws.viterbiLogs.length<size) {
+			getLog().info("Creating arrays for viterbi probabilities and backtrack of dimensions "+m+" x "+n);
+			ws.viterbiLogs = new double[size];
+			ws.viterbiBacktrace = new int[size];
 		}
+		return ws;
 	}
-	private void initArraysViterbi(int m, int k) {
-		if(viterbiLogs.length!=m || viterbiLogs[0].length!=k) {
-			getLog().info("Creating array for viterbi probabilities of dimensions "+m+" x "+k);
-			viterbiLogs = new Double[m][k];
-		}
-		if(viterbiBacktrace.length!=m || viterbiBacktrace[0].length!=k) {
-			getLog().info("Creating array for viterbi backtrack of dimensions "+m+" x "+k);
-			viterbiBacktrace = new int[m][k];
-		}
+	
+	/**
+	 * Arrays used by one thread to run the forward-backward and Viterbi algorithms
+	 */
+	private static class Workspace {
+		//Arrays indexed by step*numStates+state
+		private double [] emissionLogs = new double[0];
+		private double [] forwardLogs = new double[0];
+		private double [] backwardLogs = new double[0];
+		private double [] viterbiLogs = new double [0];
+		private int [] viterbiBacktrace = new int [0];
+		//Products of forward, backward or viterbi times emission for one step
+		private double [] rowLogs = new double [0];
+		//Number of states used to fill the arrays in the last run
+		private int numStates = 0;
 	}
 	
 }
@@ -19,12 +19,16 @@
  *******************************************************************************/
 package ngsep.hmm;
 
+import java.util.Arrays;
 import java.util.List;
 
+import ngsep.math.LogMath;
+
 public class ConstantTransitionHMM extends AbstractHMM {
 	private List<? extends HMMState> states;
 	private int n;
-	private Double [][] transitions;
+	//Zero probabilities are represented as Double.NEGATIVE_INFINITY
+	private double [][] transitions;
 	
 	/**
 	 * @param states
@@ -33,20 +37,26 @@ public class ConstantTransitionHMM extends AbstractHMM {
 		super();
 		this.states = states;
 		n = states.size();
-		transitions = new Double[n][n];
+		transitions = new double[n][n];
+		for(int i=0;i<n;i++) Arrays.fill(transitions[i], Double.NEGATIVE_INFINITY);
 	}
 
 	public void setTransitions(Double[][] transitions) {
 		if(transitions.length!=n) throw new IllegalArgumentException("Transitions matrix should have the same number of rows as states of the HMM. States: "+n+" rows: "+transitions.length);
 		for(int i=0;i<n;i++) {
 			if(transitions[i].length!=n) throw new IllegalArgumentException("Transitions matrix should have the same number of columns as states of the HMM. States: "+n+" columns: "+transitions[i].length);
-			for(int j=0;j<n;j++) this.transitions[i][j] = transitions[i][j];
+			for(int j=0;j<n;j++) this.transitions[i][j] = LogMath.toPrimitive(transitions[i][j]);
 		}
 	}
 
 
 	@Override
 	public Double getTransition(int source, int dest, int step) {
+		return LogMath.toNullable(transitions[source][dest]);
+	}
+	
+	@Override
+	protected double getLogTransition(int source, int dest, int step) {
 		return transitions[source][dest];
 	}
 	
@@ -60,7 +70,9 @@ public class ConstantTransitionHMM extends AbstractHMM {
 		return n;
 	}
 	public void calculateUniformChangeTransitions(double changeProbability) {
-		AbstractHMM.calculateUniformChangeTransitions(changeProbability, this.transitions);
+		Double [][] logTransitions = new Double[n][n];
+		AbstractHMM.calculateUniformChangeTransitions(changeProbability, logTransitions);
+		setTransitions(logTransitions);
 	}
 	
 
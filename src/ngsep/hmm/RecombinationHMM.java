@@ -51,7 +51,7 @@ public class RecombinationHMM extends VariableTransitionHMM {
 		getLog().info("Estimating initial transitions from physical distance. avgCMPerKbp: "+avgCMPerKbp);
 		int m = getSteps();
 		if(m!=positions.size()) throw new IllegalArgumentException("Length of positions vector "+positions.size()+" is not consistent with the number of markers "+m);
-		Random r = new Random();
+		Random r = getRandom();
 		double [] recombinationProbabilities = new double[m-1];
 		for(int i=0;i<m-1;i++) {
 			double distance = positions.get(i+1)-positions.get(i);
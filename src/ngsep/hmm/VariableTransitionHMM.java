@@ -32,12 +32,14 @@ public class VariableTransitionHMM extends AbstractHMM {
 	private List<? extends HMMState> states;
 	private int steps;
 	private int numStates;
-	private Double [][][] logTransitions;
+	//Zero probabilities are represented as Double.NEGATIVE_INFINITY
+	private double [][][] logTransitions;
 	private boolean skipTransitionsTraining = false;
 	//Local arrays to save reallocation over many runs
-	private Double [] logStarts = new Double [0];
-	private Double [][][] logTransitionsTrain = new Double [0][0][0];
+	private double [] logStarts = new double [0];
+	private double [][][] logTransitionsTrain = new double [0][0][0];
 	private List<List<? extends Object>> trainingData = null;
+	private Random random = new Random();
 	
 	/**
 	 * Creates a new VariableTransitionHMM with the given states and the given steps
@@ -49,7 +51,10 @@ public class VariableTransitionHMM extends AbstractHMM {
 		numStates = states.size();
 		this.steps = steps;
 		getLog().info("Creating array for transitions of dimensions "+(steps-1)+" x "+numStates+" x "+numStates);
-		logTransitions = new Double [steps-1][numStates][numStates];
+		logTransitions = new double [steps-1][numStates][numStates];
+		for(int i=0;i<steps-1;i++) {
+			for(int j=0;j<numStates;j++) Arrays.fill(logTransitions[i][j], Double.NEGATIVE_INFINITY);
+		}
 	}
 	
 	public int getIterationsBaumWelch() {
@@ -77,6 +82,19 @@ public class VariableTransitionHMM extends AbstractHMM {
 	public void setTrainingData(List<List<? extends Object>> trainingData) {
 		this.trainingData = trainingData;
 	}
+	
+	public Random getRandom() {
+		return random;
+	}
+	
+	/**
+	 * Changes the source of random numbers used to initialize the parameters for training.
+	 * A generator created with a fixed seed makes training reproducible
+	 * @param random New source of random numbers
+	 */
+	public void setRandom(Random random) {
+		this.random = random;
+	}
 
 	public void setTransitions(Double[][] logTransitions, int step) {
 		if(logTransitions.length!=numStates) throw new IllegalArgumentException("Transitions matrix should have the same number of rows as states of the HMM. States: "+numStates+" rows: "+logTransitions.length);
@@ -84,13 +102,29 @@ public class VariableTransitionHMM extends AbstractHMM {
 			if(logTransitions[i].length!=numStates) throw new IllegalArgumentException("Transitions matrix should have the same number of columns as states of the HMM. States: "+numStates+" columns: "+logTransitions[i].length);
 			//Normalize before update
 			LogMath.normalizeLogs(logTransitions[i]);
-			for(int j=0;j<numStates;j++)  this.logTransitions[step][i][j] = logTransitions[i][j];
+			for(int j=0;j<numStates;j++)  this.logTransitions[step][i][j] = LogMath.toPrimitive(logTransitions[i][j]);
+		}
+	}
+	
+	/**
+	 * Sets the transitions at the given step from a matrix of primitive logarithms
+	 * @param logTransitions Matrix of transitions. Zero probabilities are represented as Double.NEGATIVE_INFINITY.
+	 * Rows are normalized in place before the update
+	 * @param step Step to update
+	 */
+	public void setTransitions(double[][] logTransitions, int step) {
+		if(logTransitions.length!=numStates) throw new IllegalArgumentException("Transitions matrix should have the same number of rows as states of the HMM. States: "+numStates+" rows: "+logTransitions.length);
+		for(int i=0;i<numStates;i++) {
+			if(logTransitions[i].length!=numStates) throw new IllegalArgumentException("Transitions matrix should have the same number of columns as states of the HMM. States: "+numStates+" columns: "+logTransitions[i].length);
+			//Normalize before update
+			LogMath.normalizeLogs(logTransitions[i]);
+			System.arraycopy(logTransitions[i], 0, this.logTransitions[step][i], 0, numStates);
 		}
 	}
 	
 	public void setRandomTransitions() {
 		Double[][] logRandom = new Double[numStates][numStates];
-		Random r = new Random();
+		Random r = random;
 		//System.out.println("Random transitions for "+steps+" steps");
 		for(int i=0;i<steps-1;i++) {
 			for(int j=0;j<numStates;j++) {
@@ -120,6 +154,11 @@ public class VariableTransitionHMM extends AbstractHMM {
 
 	@Override
 	public Double getTransition(int source, int dest, int step) {
+		return LogMath.toNullable(logTransitions[step][source][dest]);
+	}
+	
+	@Override
+	protected double getLogTransition(int source, int dest, int step) {
 		return logTransitions[step][source][dest];
 	}
 	
@@ -164,43 +203,38 @@ public class VariableTransitionHMM extends AbstractHMM {
 	 */
 	protected void runBaumWelchStep() {
 		initArrays();
-		Arrays.fill(logStarts, null);
+		Arrays.fill(logStarts, Double.NEGATIVE_INFINITY);
 		for(int i=0;i<logTransitionsTrain.length;i++) {
 			for(int j=0;j<logTransitionsTrain[i].length;j++) {
-				Arrays.fill(logTransitionsTrain[i][j], null);
+				Arrays.fill(logTransitionsTrain[i][j], Double.NEGATIVE_INFINITY);
 			}
 		}
 		initEmissionsBaumWelch();
 		//int datumIdx = 0;
 		for (List<? extends Object> trainingDatum:trainingData) {
-			Double [][] forwardLogs=calculateForward(trainingDatum);
-			Double [][] backwardLogs=calculateBackward(trainingDatum);
-			Double logProb = getSequenceLogProb(trainingDatum, forwardLogs);
+			double logProb = runForwardBackward(trainingDatum);
 			//Calculate new starts
 			for(int j=0;j<logStarts.length;j++) {
-				Object o = trainingDatum.get(0);
-				Double seqProduct = LogMath.logProduct(forwardLogs[0][j], backwardLogs[0][j]);
-				Double emission = getEmission(j, o, 0);
-				seqProduct = LogMath.logProduct(seqProduct, emission);
-				seqProduct = LogMath.logProduct(seqProduct, -logProb);
-				//if(seqProduct>-0.5) System.out.println("Datum: "+datumIdx+". Next most likely start: "+j+" forward: "+forwardLogs[0][j]+" backward: "+backwardLogs[0][j]+" emission: "+emission+" logProb: "+logProb+"seq product: "+seqProduct);
-				logStarts[j] = LogMath.logSum(logStarts[j], seqProduct);
+				double seqProduct = getLastForwardLog(0, j) + getLastBackwardLog(0, j);
+				seqProduct += getLastEmissionLog(0, j);
+				seqProduct -= logProb;
+				logStarts[j] = LogMath.logSumPrimitive(logStarts[j], seqProduct);
 			}
 			//Calculate new transitions
 			if(!skipTransitionsTraining) {
 				for(int i=0;i<logTransitionsTrain.length;i++) {
 					for(int j=0;j<logTransitionsTrain[i].length;j++) {
-						
-						for(int k=0;k<logTransitionsTrain[i][j].length;k++) {
-							Object o1 = trainingDatum.get(i);
-							Object o2 = trainingDatum.get(i+1);
-							
-							Double seqProduct = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i+1][k]);
-							seqProduct = LogMath.logProduct(seqProduct, getEmission(j, o1, i));
-							seqProduct = LogMath.logProduct(seqProduct, getEmission(k, o2, i+1));
-							seqProduct = LogMath.logProduct(seqProduct, getTransition(j, k, i));
-							seqProduct = LogMath.logProduct(seqProduct, -logProb);
-							logTransitionsTrain[i][j][k] = LogMath.logSum(logTransitionsTrain[i][j][k], seqProduct);
+						double [] trainRow = logTransitionsTrain[i][j];
+						double [] transitionsRow = logTransitions[i][j];
+						double f = getLastForwardLog(i, j);
+						double e = getLastEmissionLog(i, j);
+						for(int k=0;k<trainRow.length;k++) {
+							double seqProduct = f + getLastBackwardLog(i+1, k);
+							seqProduct += e;
+							seqProduct += getLastEmissionLog(i+1, k);
+							seqProduct += transitionsRow[k];
+							seqProduct -= logProb;
+							trainRow[k] = LogMath.logSumPrimitive(trainRow[k], seqProduct);
 						}
 					}
 				}
@@ -210,18 +244,17 @@ public class VariableTransitionHMM extends AbstractHMM {
 			for(int i=0;i<steps;i++) {
 				Object o = trainingDatum.get(i);
 				for(int j=0;j<numStates;j++) {
-					Double seqProduct = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i][j]);
-					seqProduct = LogMath.logProduct(seqProduct, getEmission(j, o, i));
-					seqProduct = LogMath.logProduct(seqProduct, -logProb);
-					accumulateEmissionBaumWelch(i,j,o,seqProduct);
+					double seqProduct = getLastForwardLog(i, j) + getLastBackwardLog(i, j);
+					seqProduct += getLastEmissionLog(i, j);
+					seqProduct -= logProb;
+					accumulateEmissionBaumWelch(i,j,o,LogMath.toNullable(seqProduct));
 				}
 			}
 			//datumIdx++;
 		}
 		//Normalize and update starts
-		Double total = null;
-		for(int j=0;j<logStarts.length;j++) total = LogMath.logSum(total, logStarts[j]);
-		for(int j=0;j<logStarts.length;j++) getState(j).setLogStart(LogMath.logProduct(logStarts[j],-total));
+		LogMath.normalizeLogs(logStarts);
+		for(int j=0;j<logStarts.length;j++) getState(j).setLogStart(LogMath.toNullable(logStarts[j]));
 		//Normalize and update transitions
 		if(!skipTransitionsTraining) {
 			for(int i=0;i<logTransitionsTrain.length;i++) {
@@ -288,9 +321,9 @@ public class VariableTransitionHMM extends AbstractHMM {
 	private void initArrays() {
 		if(logTransitionsTrain.length!=steps-1 || logTransitionsTrain[0].length!=numStates) {
 			getLog().info("Creating array for transitions of dimensions "+(steps-1)+" x "+numStates+" x "+numStates);
-			logTransitionsTrain = new Double [steps-1][numStates][numStates];
+			logTransitionsTrain = new double [steps-1][numStates][numStates];
 		}
-		if(logStarts.length!=numStates) logStarts = new Double [numStates];
+		if(logStarts.length!=numStates) logStarts = new double [numStates];
 	}
 	
 }
@@ -19,60 +19,104 @@
  *******************************************************************************/
 package ngsep.main;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
- * 
+ * Executes tasks in a fixed number of threads. The number of tasks waiting to be executed is bounded.
+ * When the limit is reached, the thread queueing tasks waits until one of the queued tasks starts to run.
+ * This keeps memory bounded without stopping the pool
  * @author Jorge Gomez
  *
  */
 public class ThreadPoolManager {
 	private static final int TIMEOUT_SECONDS = 30;
 	
-	private int maxTaskCount;
+	private final int maxTaskCount;
 	private int secondsPerTask=1;
-	private final int numThreads;
-	private ThreadPoolExecutor pool;
-	private boolean cancelled = false;
+	private final ThreadPoolExecutor pool;
+	// Permits to queue tasks. Each task holds a permit from the moment it is queued until it finishes
+	private final Semaphore taskPermits;
+	private volatile boolean cancelled = false;
+	
+	private ProgressNotifier progressNotifier = null;
+	private long queuedTasks = 0;
 	
 	public ThreadPoolManager(int numberOfThreads, int maxTaskCount) {
 		this.pool = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
 		this.maxTaskCount = maxTaskCount;
-		this.numThreads = numberOfThreads;
+		this.taskPermits = new Semaphore(maxTaskCount+numberOfThreads);
 	}
 	
 	public boolean isCancelled() {
 		return cancelled;
 	}
+	/**
+	 * Changes the cancelled status of this pool. If the pool is cancelled, tasks waiting in the queue are discarded
+	 * and further calls to queueTask will throw an InterruptedException. Running tasks are not interrupted
+	 * @param cancelled New cancelled status
+	 */
 	public void setCancelled(boolean cancelled) {
 		this.cancelled = cancelled;
+		if(cancelled) discardQueuedTasks();
 	}
-
-
-
+	
 	public int getSecondsPerTask() {
 		return secondsPerTask;
 	}
-
+	/**
+	 * Sets the expected time to execute one task. It determines how often terminatePool checks for termination
+	 * @param secondsPerTask Expected number of seconds to run one task
+	 */
 	public void setSecondsPerTask(int secondsPerTask) {
 		this.secondsPerTask = secondsPerTask;
 	}
+	
+	public ProgressNotifier getProgressNotifier() {
+		return progressNotifier;
+	}
+	/**
+	 * Sets a progress notifier to cancel the pool. The notifier is called every time that maxTaskCount new tasks are queued.
+	 * The progress reported is the number of tasks queued divided by maxTaskCount
+	 * @param progressNotifier to check if the process should keep running
+	 */
+	public void setProgressNotifier(ProgressNotifier progressNotifier) {
+		this.progressNotifier = progressNotifier;
+	}
 
 	/**
-	 * Adds task to the threadPoolExecutor for this instance. If the task queue limit is exceeded,
-	 * the pool will be relaunched afterwards, after waiting for all queued tasks to finish.
+	 * Adds task to the threadPoolExecutor for this instance. If the task queue limit is reached,
+	 * this call waits until one of the queued tasks starts running.
 	 * @param task task to add to the pool
-	 * @throws InterruptedException if the relauch process is interrupted
+	 * @throws InterruptedException if the process is cancelled or if the wait is interrupted
 	 */
 	public void queueTask(Runnable task) throws InterruptedException {
 		if(cancelled) throw new InterruptedException("Process cancelled by user");
-		int taskCount = pool.getQueue().size();
-		if(taskCount == maxTaskCount) {
-			relaunchPool();
+		taskPermits.acquire();
+		if(cancelled) {
+			taskPermits.release();
+			throw new InterruptedException("Process cancelled by user");
+		}
+		try {
+			pool.execute(()-> {
+				try {
+					task.run();
+				} finally {
+					taskPermits.release();
+				}
+			});
+		} catch (RuntimeException e) {
+			taskPermits.release();
+			throw e;
+		}
+		queuedTasks++;
+		if(progressNotifier!=null && queuedTasks%maxTaskCount==0 && !progressNotifier.keepRunning((int)(queuedTasks/maxTaskCount))) {
+			setCancelled(true);
 		}
-		pool.execute(task);
 	}
 	
 	/**
@@ -81,20 +125,12 @@ public class ThreadPoolManager {
 	 */
 	public void terminatePool() throws InterruptedException  {
 		pool.shutdown();
-    	pool.awaitTermination(maxTaskCount*secondsPerTask, TimeUnit.SECONDS);
-    	if(!pool.isShutdown()) {
-			throw new InterruptedException("The ThreadPoolExecutor was not shutdown after an await Termination call");
-		}
+		while (!pool.awaitTermination(Math.max(TIMEOUT_SECONDS, (long)maxTaskCount*secondsPerTask), TimeUnit.SECONDS));
 	}
 	
-	
-	/**
-	 * Shuts down the pool, waiting for all queued tasks to finish. Then, it creates a new one.
-	 * @throws InterruptedException if the shutdown operation is interrupted or if the pool was not shutdown correctly.
-	 */
-	private void relaunchPool() throws InterruptedException {
-		this.terminatePool();
-    	//Create new pool
-		pool = new ThreadPoolExecutor(numThreads, numThreads, TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	private void discardQueuedTasks() {
+		List<Runnable> discarded = new ArrayList<>();
+		pool.getQueue().drainTo(discarded);
+		taskPermits.release(discarded.size());
 	}
 }
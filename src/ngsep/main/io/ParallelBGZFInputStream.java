@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.main.io;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+/**
+ * Input stream for BGZF files that decompresses blocks in parallel.
+ * Compressed blocks are read sequentially and inflated by the tasks of the given executor.
+ * Decompressed blocks are returned in the order of the file
+ * @author Jorge Duitama
+ */
+public class ParallelBGZFInputStream extends InputStream {
+	private static final int BLOCK_FIXED_HEADER_LENGTH = 12;
+	private final InputStream in;
+	private final ExecutorService executor;
+	private final int maxPendingBlocks;
+	private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+	private boolean endOfInput = false;
+	private byte [] currentBlock = new byte[0];
+	private int posCurrentBlock = 0;
+
+	/**
+	 * Creates a new stream
+	 * @param in Stream with BGZF compressed data
+	 * @param executor Executor to inflate the blocks. It is not shut down by this stream
+	 * @param maxPendingBlocks Maximum number of blocks read ahead of the current block
+	 */
+	public ParallelBGZFInputStream(InputStream in, ExecutorService executor, int maxPendingBlocks) {
+		this.in = in;
+		this.executor = executor;
+		this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+	}
+
+	/**
+	 * Checks if the given stream starts with a BGZF block. The stream must support mark
+	 * @param in Stream to check
+	 * @return boolean true if the stream has BGZF compressed data
+	 * @throws IOException If the stream can not be read
+	 */
+	public static boolean isBGZF(BufferedInputStream in) throws IOException {
+		return BlockCompressedInputStream.isValidFile(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(!ensureData()) return -1;
+		return currentBlock[posCurrentBlock++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len==0) return 0;
+		if(!ensureData()) return -1;
+		int n = Math.min(len, currentBlock.length-posCurrentBlock);
+		System.arraycopy(currentBlock, posCurrentBlock, b, off, n);
+		posCurrentBlock+=n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return currentBlock.length-posCurrentBlock;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for(Future<byte[]> f:pendingBlocks) f.cancel(true);
+		pendingBlocks.clear();
+		in.close();
+	}
+
+	private boolean ensureData() throws IOException {
+		while (posCurrentBlock==currentBlock.length) {
+			fillPendingBlocks();
+			if(pendingBlocks.isEmpty()) return false;
+			try {
+				currentBlock = pendingBlocks.removeFirst().get();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted decompressing BGZF block",e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof IOException) throw (IOException)cause;
+				throw new IOException("Error decompressing BGZF block",cause);
+			}
+			posCurrentBlock = 0;
+		}
+		return true;
+	}
+
+	private void fillPendingBlocks() throws IOException {
+		while(!endOfInput && pendingBlocks.size()<maxPendingBlocks) {
+			byte [] compressedBlock = readCompressedBlock();
+			if(compressedBlock==null) {
+				endOfInput = true;
+				break;
+			}
+			pendingBlocks.add(executor.submit(()->inflateBlock(compressedBlock)));
+		}
+	}
+
+	private byte [] readCompressedBlock() throws IOException {
+		byte [] header = new byte[BLOCK_FIXED_HEADER_LENGTH];
+		int n = readFully(header, 0, header.length);
+		if(n==0) return null;
+		if(n<header.length) throw new EOFException("Incomplete BGZF block header");
+		if((header[0]&0xFF)!=31 || (header[1]&0xFF)!=139 || (header[3]&4)==0) throw new IOException("Invalid BGZF block header");
+		int extraLength = readUnsignedShort(header, 10);
+		byte [] extra = new byte[extraLength];
+		if(readFully(extra, 0, extraLength)<extraLength) throw new EOFException("Incomplete BGZF block header");
+		int blockSize = -1;
+		for(int i=0;i+4<=extraLength;) {
+			int subfieldLength = readUnsignedShort(extra, i+2);
+			if(extra[i]=='B' && extra[i+1]=='C' && subfieldLength==2) {
+				blockSize = readUnsignedShort(extra, i+4)+1;
+				break;
+			}
+			i+=4+subfieldLength;
+		}
+		if(blockSize<0) throw new IOException("Gzip block without BGZF block size");
+		int headerLength = BLOCK_FIXED_HEADER_LENGTH+extraLength;
+		byte [] block = new byte[blockSize];
+		System.arraycopy(header, 0, block, 0, header.length);
+		System.arraycopy(extra, 0, block, header.length, extraLength);
+		if(readFully(block, headerLength, blockSize-headerLength)<blockSize-headerLength) throw new EOFException("Incomplete BGZF block");
+		return block;
+	}
+
+	private static byte [] inflateBlock(byte [] block) throws IOException {
+		int headerLength = BLOCK_FIXED_HEADER_LENGTH+readUnsignedShort(block, 10);
+		int n = block.length;
+		int uncompressedSize = readInt(block, n-4);
+		long expectedCRC = readInt(block, n-8) & 0xFFFFFFFFL;
+		byte [] answer = new byte[uncompressedSize];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(block, headerLength, n-8-headerLength);
+			int inflated = 0;
+			while(inflated<uncompressedSize) {
+				int k = inflater.inflate(answer, inflated, uncompressedSize-inflated);
+				if(k==0 && (inflater.finished() || inflater.needsInput())) break;
+				inflated+=k;
+			}
+			if(inflated!=uncompressedSize) throw new IOException("BGZF block inflated to "+inflated+" bytes. Expected: "+uncompressedSize);
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted BGZF block",e);
+		} finally {
+			inflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(answer, 0, uncompressedSize);
+		if(crc.getValue()!=expectedCRC) throw new IOException("CRC mismatch in BGZF block");
+		return answer;
+	}
+
+	private int readFully(byte [] buffer, int offset, int length) throws IOException {
+		int total = 0;
+		while(total<length) {
+			int n = in.read(buffer, offset+total, length-total);
+			if(n<0) break;
+			total+=n;
+		}
+		return total;
+	}
+
+	private static int readUnsignedShort(byte [] data, int offset) {
+		return (data[offset]&0xFF) | ((data[offset+1]&0xFF)<<8);
+	}
+
+	private static int readInt(byte [] data, int offset) {
+		return readUnsignedShort(data, offset) | (readUnsignedShort(data, offset+2)<<16);
+	}
+}
@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.main.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Output stream that writes BGZF compressed data compressing blocks in parallel.
+ * Blocks are written in order. The stream keeps the location of each written block to calculate
+ * the virtual file pointers needed to build tabix or BAI indexes
+ * @author Jorge Duitama
+ */
+public class ParallelBGZFOutputStream extends OutputStream {
+	private final OutputStream out;
+	private final ExecutorService executor;
+	private final int maxPendingBlocks;
+	private final int compressionLevel;
+	private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+	private byte [] buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+	private int posBuffer = 0;
+	// Uncompressed and compressed start of each block
+	private long [] blockUncompressedStarts = new long[1000];
+	private long [] blockCompressedStarts = new long[1000];
+	private int numBlocks = 0;
+	private int numWrittenBlocks = 0;
+	private long uncompressedLength = 0;
+	private long compressedLength = 0;
+	private boolean closed = false;
+
+	/**
+	 * Creates a new stream with the default compression level
+	 * @param out Stream to write the compressed data
+	 * @param executor Executor to compress the blocks. It is not shut down by this stream
+	 * @param maxPendingBlocks Maximum number of blocks waiting to be written
+	 */
+	public ParallelBGZFOutputStream(OutputStream out, ExecutorService executor, int maxPendingBlocks) {
+		this(out, executor, maxPendingBlocks, BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL);
+	}
+
+	/**
+	 * Creates a new stream
+	 * @param out Stream to write the compressed data
+	 * @param executor Executor to compress the blocks. It is not shut down by this stream
+	 * @param maxPendingBlocks Maximum number of blocks waiting to be written
+	 * @param compressionLevel Deflate compression level
+	 */
+	public ParallelBGZFOutputStream(OutputStream out, ExecutorService executor, int maxPendingBlocks, int compressionLevel) {
+		this.out = out;
+		this.executor = executor;
+		this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+		this.compressionLevel = compressionLevel;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(posBuffer==buffer.length) submitBlock();
+		buffer[posBuffer++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len>0) {
+			if(posBuffer==buffer.length) submitBlock();
+			int n = Math.min(len, buffer.length-posBuffer);
+			System.arraycopy(b, off, buffer, posBuffer, n);
+			posBuffer+=n;
+			off+=n;
+			len-=n;
+		}
+	}
+
+	/**
+	 * @return long Number of uncompressed bytes received by this stream
+	 */
+	public long getUncompressedPosition() {
+		return uncompressedLength+posBuffer;
+	}
+
+	/**
+	 * @return long Number of uncompressed bytes whose compressed blocks are already written
+	 */
+	public long getWrittenUncompressedLength() {
+		if(numWrittenBlocks==numBlocks) return uncompressedLength;
+		return blockUncompressedStarts[numWrittenBlocks];
+	}
+
+	/**
+	 * Calculates the BGZF virtual file pointer of an uncompressed position
+	 * @param uncompressedPosition Position in the uncompressed data. The block including this position
+	 * must be already written
+	 * @return long Virtual file pointer with the compressed offset of the block in the upper 48 bits
+	 * and the offset within the uncompressed block in the lower 16 bits
+	 */
+	public long getVirtualFilePointer(long uncompressedPosition) {
+		if(uncompressedPosition==getWrittenUncompressedLength()) {
+			long compressedStart = (numWrittenBlocks<numBlocks)?blockCompressedStarts[numWrittenBlocks]:compressedLength;
+			return compressedStart<<16;
+		}
+		int idx = Arrays.binarySearch(blockUncompressedStarts, 0, numWrittenBlocks, uncompressedPosition);
+		if(idx<0) idx = -idx-2;
+		if(idx<0 || idx>=numWrittenBlocks) throw new IllegalArgumentException("Position "+uncompressedPosition+" is not within the written blocks");
+		return (blockCompressedStarts[idx]<<16) | (uncompressedPosition-blockUncompressedStarts[idx]);
+	}
+
+	/**
+	 * Waits until all full blocks are compressed and written. Data of the current partial block is kept in memory
+	 * to avoid creating small blocks
+	 */
+	@Override
+	public void flush() throws IOException {
+		while(!pendingBlocks.isEmpty()) writeNextBlock();
+		out.flush();
+	}
+
+	/**
+	 * Compresses and writes the remaining data and the BGZF end of file marker. The underlying stream is closed
+	 * even if the remaining data can not be written
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		closed = true;
+		try {
+			if(posBuffer>0) submitBlock();
+			flush();
+			// The end of file marker is not counted to keep virtual pointers at the end of the data
+			out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		} catch (IOException|RuntimeException e) {
+			try {
+				out.close();
+			} catch (IOException e2) {
+				e.addSuppressed(e2);
+			}
+			throw e;
+		}
+		out.close();
+	}
+
+	private void submitBlock() throws IOException {
+		if(numBlocks==blockUncompressedStarts.length) {
+			blockUncompressedStarts = Arrays.copyOf(blockUncompressedStarts, 2*numBlocks);
+			blockCompressedStarts = Arrays.copyOf(blockCompressedStarts, 2*numBlocks);
+		}
+		blockUncompressedStarts[numBlocks] = uncompressedLength;
+		numBlocks++;
+		uncompressedLength+=posBuffer;
+		byte [] data = buffer;
+		int length = posBuffer;
+		pendingBlocks.add(executor.submit(()->compressBlock(data, length, compressionLevel)));
+		buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+		posBuffer = 0;
+		while(pendingBlocks.size()>maxPendingBlocks) writeNextBlock();
+	}
+
+	private void writeNextBlock() throws IOException {
+		byte [] block;
+		try {
+			block = pendingBlocks.removeFirst().get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted compressing BGZF block",e);
+		} catch (ExecutionException e) {
+			throw new IOException("Error compressing BGZF block",e.getCause());
+		}
+		blockCompressedStarts[numWrittenBlocks] = compressedLength;
+		numWrittenBlocks++;
+		out.write(block);
+		compressedLength+=block.length;
+	}
+
+	private static byte [] compressBlock(byte [] data, int length, int compressionLevel) {
+		int headerLength = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+		int footerLength = BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		byte [] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+		int maxDataLength = compressed.length-headerLength-footerLength;
+		int compressedLength = deflate(data, length, compressionLevel, compressed, headerLength, maxDataLength);
+		// Store without compression if the deflated data does not fit in the block
+		if(compressedLength<0) compressedLength = deflate(data, length, Deflater.NO_COMPRESSION, compressed, headerLength, maxDataLength);
+		if(compressedLength<0) throw new IllegalStateException("Uncompressed block of "+length+" bytes does not fit in a BGZF block");
+		int blockLength = headerLength+compressedLength+footerLength;
+		System.arraycopy(BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE, 0, compressed, 0, BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE.length);
+		writeShort(compressed, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, blockLength-1);
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		int pos = headerLength+compressedLength;
+		writeInt(compressed, pos, (int)crc.getValue());
+		writeInt(compressed, pos+4, length);
+		return Arrays.copyOf(compressed, blockLength);
+	}
+
+	private static int deflate(byte [] data, int length, int level, byte [] answer, int offset, int maxLength) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			int n = deflater.deflate(answer, offset, maxLength);
+			if(!deflater.finished()) return -1;
+			return n;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void writeShort(byte [] data, int offset, int value) {
+		data[offset] = (byte)(value&0xFF);
+		data[offset+1] = (byte)((value>>8)&0xFF);
+	}
+
+	private static void writeInt(byte [] data, int offset, int value) {
+		writeShort(data, offset, value&0xFFFF);
+		writeShort(data, offset+2, (value>>>16)&0xFFFF);
+	}
+}
@@ -37,19 +37,21 @@ public class ParseUtils {
 	 */
 	public static String[] parseString(String s,char delim) {
 		//return s.split(""+delim);
-		List<String> answer = new ArrayList<String>();
-		char [] a = s.toCharArray();
-		StringBuilder current = new StringBuilder(a.length);
-		for (int i=0;i<a.length;i++) {
-			if(a[i] == delim) {
-				answer.add(current.toString());
-				current = new StringBuilder(a.length);
-				continue;
+		int n = 1;
+		for (int i=0;i<s.length();i++) {
+			if(s.charAt(i) == delim) n++;
+		}
+		String [] answer = new String[n];
+		int start = 0;
+		int k = 0;
+		for (int i=0;i<s.length();i++) {
+			if(s.charAt(i) == delim) {
+				answer[k++] = s.substring(start, i);
+				start = i+1;
 			}
-			current.append(a[i]);
 		}
-		answer.add(current.toString());
-		return answer.toArray(new String[0]);
+		answer[k] = s.substring(start);
+		return answer;
 	}
 	/**
 	 * Parse the given string with possible text that should not be parsed, 
@@ -88,18 +90,16 @@ public class ParseUtils {
 	 */
 	public static String[] parseString(String s,char delim1, char delim2) {
 		//return s.split(""+delim);
-		char [] a = s.toCharArray();
 		List<String> answer = new ArrayList<String>();
-		StringBuilder current = new StringBuilder(a.length);
-		for (int i=0;i<a.length;i++) {
-			if(a[i] == delim1 || a[i] == delim2) {
-				answer.add(current.toString());
-				current = new StringBuilder(a.length);
-				continue;
+		int start = 0;
+		for (int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			if(c == delim1 || c == delim2) {
+				answer.add(s.substring(start, i));
+				start = i+1;
 			}
-			current.append(a[i]);
 		}
-		answer.add(current.toString());
+		answer.add(s.substring(start));
 		return answer.toArray(new String[0]);
 		
 	}
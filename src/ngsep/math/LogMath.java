@@ -22,7 +22,8 @@ package ngsep.math;
 /**
  * Class with static methods performing basic math operations that receive and
  * return logarithms of the values to operate. Minus infinitum is represented
- * as a null object 
+ * as a null object. Primitive versions of some methods represent minus infinitum
+ * as Double.NEGATIVE_INFINITY
  * @author Jorge Duitama
  *
  */
@@ -43,6 +44,22 @@ public class LogMath {
 		return log1 + Math.log10(1+Math.pow(10.0, log2-log1));
 	}
 	
+	/**
+	 * Sum of probabilities represented as primitive logarithms. This method avoids boxing in numerical loops.
+	 * Results are the same as the null aware version. The name is different to avoid ambiguous calls mixing Double and double
+	 * @param log1 10-based logarithm of the first probability to add. Double.NEGATIVE_INFINITY if the probability is zero
+	 * @param log2 10-based logarithm of the second probability to add. Double.NEGATIVE_INFINITY if the probability is zero
+	 * @return double logarithm of the sum of the probabilities. Double.NEGATIVE_INFINITY if both parameters are minus infinity
+	 */
+	public static double logSumPrimitive (double log1, double log2) {
+		if(log2==Double.NEGATIVE_INFINITY) return log1;
+		if(log1==Double.NEGATIVE_INFINITY) return log2;
+		double diff = log2-log1;
+		if(diff<-MAXLOGDIFF) return log1;
+		if(diff>MAXLOGDIFF) return log2;
+		return log1 + Math.log10(1+Math.pow(10.0, diff));
+	}
+	
 	/**
 	 * Null aware product of two probabilities
 	 * @param log1 Log of the first probability
@@ -62,6 +79,35 @@ public class LogMath {
 		if(exponent==null) return 0;
 		return Math.pow(10.0, exponent);
 	}
+	/**
+	 * 10 power of a primitive logarithm
+	 * @param exponent Logarithm. Double.NEGATIVE_INFINITY represents a zero probability
+	 * @return double power(10,exponent)
+	 */
+	public static double power10(double exponent) {
+		return Math.pow(10.0, exponent);
+	}
+	
+	/**
+	 * Converts a null aware logarithm to a primitive logarithm
+	 * @param log Logarithm to convert. Null represents minus infinity
+	 * @return double the given logarithm or Double.NEGATIVE_INFINITY if the logarithm is null
+	 */
+	public static double toPrimitive(Double log) {
+		if(log==null) return Double.NEGATIVE_INFINITY;
+		return log;
+	}
+	
+	/**
+	 * Converts a primitive logarithm to a null aware logarithm
+	 * @param log Logarithm to convert
+	 * @return Double the given logarithm or null if the logarithm is minus infinity
+	 */
+	public static Double toNullable(double log) {
+		if(log==Double.NEGATIVE_INFINITY) return null;
+		return log;
+	}
+	
 	/**
 	 * Takes the 10-base logarithm of the given value
 	 * @param value Value to take the logarithm
@@ -94,4 +140,15 @@ public class LogMath {
 		for(int j=0;j<n;j++)  logProbs[j] = LogMath.logProduct(logProbs[j],-total);
 		
 	}
+	/**
+	 * Normalizes an array of primitive logarithms so that the sum of the probabilities is one
+	 * @param logProbs Logarithms to normalize. Double.NEGATIVE_INFINITY represents a zero probability
+	 */
+	public static void normalizeLogs(double[] logProbs) {
+		double total = Double.NEGATIVE_INFINITY;
+		int n = logProbs.length;
+		if(n==0) throw new IllegalArgumentException("Array of logarithms must have at least one entry");
+		for(int j=0;j<n;j++)  total = LogMath.logSumPrimitive(total, logProbs[j]);
+		for(int j=0;j<n;j++)  logProbs[j] = logProbs[j]+(-total);
+	}
 }
@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import ngsep.main.ThreadPoolManager;
+import ngsep.math.Distribution;
+
+/**
+ * Counts DNA k-mers of large datasets using temporary files to bound the memory usage.
+ * In a first pass, sequences are split in super k-mers, which are runs of consecutive k-mers sharing the same minimizer.
+ * Each super k-mer is saved in the partition file selected by the hash of its minimizer. Because the minimizer of a k-mer
+ * only depends on the k-mer, and minimizers are calculated from canonical m-mers, all occurrences of a k-mer and its reverse complement
+ * are saved in the same partition. In a second pass, the k-mers of each partition are counted independently
+ */
+public class DiskPartitionedKmersCounter {
+
+	private static final int MAX_MINIMIZER_LENGTH = 9;
+	private static final int MAX_KMERS_SUPER_KMER = 1024;
+
+	private Logger log = Logger.getLogger(DiskPartitionedKmersCounter.class.getName());
+
+	private int kmerLength;
+	private int minimizerLength;
+	private boolean canonical;
+	private File [] partitionFiles;
+	private OutputStream [] partitionStreams;
+	//First error found writing or counting partitions. Tasks running in a thread pool can not throw it to the caller
+	private final AtomicReference<Throwable> firstError = new AtomicReference<Throwable>();
+
+	/**
+	 * Creates a new counter creating the temporary files of the partitions
+	 * @param tmpDirectory Directory to create the temporary files
+	 * @param kmerLength Length of the k-mers. It must be at most 31
+	 * @param canonical Tells if a k-mer and its reverse complement should be counted together (see PackedDNAKmersMapImpl)
+	 * @param numPartitions Number of partitions
+	 * @throws IOException If the temporary files can not be created
+	 */
+	public DiskPartitionedKmersCounter(File tmpDirectory, int kmerLength, boolean canonical, int numPartitions) throws IOException {
+		if(kmerLength<1 || kmerLength>31) throw new IllegalArgumentException("The kmer length must be between 1 and 31");
+		if(numPartitions<1) throw new IllegalArgumentException("The number of partitions must be positive");
+		this.kmerLength = kmerLength;
+		this.minimizerLength = Math.min(kmerLength, MAX_MINIMIZER_LENGTH);
+		this.canonical = canonical;
+		partitionFiles = new File[numPartitions];
+		partitionStreams = new OutputStream[numPartitions];
+		try {
+			for(int i=0;i<numPartitions;i++) {
+				partitionFiles[i] = File.createTempFile("ngsep_kmers_", ".part", tmpDirectory);
+				//Removes partitions left by cancelled or failed executions
+				partitionFiles[i].deleteOnExit();
+				partitionStreams[i] = new BufferedOutputStream(new FileOutputStream(partitionFiles[i]), 1<<16);
+			}
+		} catch (IOException e) {
+			deleteFiles();
+			throw e;
+		}
+	}
+
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	public int getNumPartitions() {
+		return partitionFiles.length;
+	}
+
+	private static long mixCode(long code) {
+		long hash = code*0x9E3779B97F4A7C15L;
+		return hash ^ (hash>>>32);
+	}
+
+	/**
+	 * Saves the super k-mers of the given sequence in the partition files. Non DNA characters split the sequence.
+	 * This method can be called from different threads. Errors writing the partition files are reported by countKmers
+	 * @param sequence to process
+	 */
+	public void addSequence(CharSequence sequence) {
+		if(firstError.get()!=null) return;
+		int n = sequence.length();
+		int i=0;
+		while(i<n) {
+			while(i<n && !DNASequence.isInAlphabeth(sequence.charAt(i))) i++;
+			int start = i;
+			while(i<n && DNASequence.isInAlphabeth(sequence.charAt(i))) i++;
+			if(i-start>=kmerLength) addDNARun(sequence, start, i);
+		}
+	}
+	private void addDNARun(CharSequence sequence, int start, int end) {
+		int length = end-start;
+		byte [] bases = new byte[length];
+		for(int j=0;j<length;j++) bases[j] = (byte)DNASequence.BASES_STRING.indexOf(sequence.charAt(start+j));
+		//Hashed values of the m-mers starting at each position
+		int numMmers = length-minimizerLength+1;
+		long [] mmerValues = new long[numMmers];
+		long mask = (1L<<(2*minimizerLength))-1;
+		long forward = 0;
+		long reverse = 0;
+		for(int j=0;j<length;j++) {
+			forward = ((forward<<2) | bases[j]) & mask;
+			reverse = (reverse>>>2) | ((long)(3-bases[j])<<(2*(minimizerLength-1)));
+			if(j>=minimizerLength-1) mmerValues[j-minimizerLength+1] = mixCode(canonical?Math.min(forward, reverse):forward);
+		}
+		//Minimum value of each window of m-mers calculated with a monotone queue of m-mer positions
+		int windowLength = kmerLength-minimizerLength+1;
+		int numKmers = length-kmerLength+1;
+		int [] queue = new int[numMmers];
+		int head = 0;
+		int tail = 0;
+		int nextMmer = 0;
+		int superKmerStart = 0;
+		long superKmerMinimizer = 0;
+		for(int i=0;i<numKmers;i++) {
+			for(;nextMmer<i+windowLength;nextMmer++) {
+				while(tail>head && mmerValues[queue[tail-1]]>mmerValues[nextMmer]) tail--;
+				queue[tail++] = nextMmer;
+			}
+			while(queue[head]<i) head++;
+			long minimizer = mmerValues[queue[head]];
+			if(i==0) {
+				superKmerMinimizer = minimizer;
+			} else if (minimizer!=superKmerMinimizer || i-superKmerStart==MAX_KMERS_SUPER_KMER) {
+				writeSuperKmer(bases, superKmerStart, i-1+kmerLength, superKmerMinimizer);
+				superKmerStart = i;
+				superKmerMinimizer = minimizer;
+			}
+		}
+		writeSuperKmer(bases, superKmerStart, numKmers-1+kmerLength, superKmerMinimizer);
+	}
+	private void writeSuperKmer(byte [] bases, int start, int end, long minimizer) {
+		int numBases = end-start;
+		byte [] record = new byte[2+(numBases+3)/4];
+		record[0] = (byte)(numBases>>>8);
+		record[1] = (byte)numBases;
+		for(int j=0;j<numBases;j++) record[2+j/4] |= bases[start+j]<<(2*(j%4));
+		int partition = (int)Long.remainderUnsigned(minimizer, partitionFiles.length);
+		OutputStream out = partitionStreams[partition];
+		synchronized (out) {
+			try {
+				out.write(record);
+			} catch (IOException e) {
+				firstError.compareAndSet(null, new IOException("Error writing k-mers to partition file "+partitionFiles[partition].getAbsolutePath(),e));
+			}
+		}
+	}
+
+	/**
+	 * Counts the k-mers of each partition. Partitions are processed in parallel and the temporary files are deleted after they are processed
+	 * @param numThreads Number of partitions that can be processed at the same time
+	 * @param minKmerCount Minimum count to save a k-mer
+	 * @param distribution Distribution to update with the abundances of all k-mers
+	 * @param out Stream to save the k-mers with count at least minKmerCount. It has the same format of KmersMap.save
+	 * @throws IOException If the partition files could not be written or read, or if the k-mers could not be saved
+	 */
+	public void countKmers(int numThreads, int minKmerCount, Distribution distribution, PrintStream out) throws IOException {
+		try {
+			for(OutputStream partitionStream:partitionStreams) partitionStream.close();
+			throwFirstError();
+			ThreadPoolManager pool = new ThreadPoolManager(numThreads, numThreads);
+			for(int i=0;i<partitionFiles.length;i++) {
+				final int partition = i;
+				pool.queueTask(()->runCountPartition(partition, minKmerCount, distribution, out));
+			}
+			pool.terminatePool();
+			throwFirstError();
+			if(out.checkError()) throw new IOException("Error saving counted k-mers");
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Concurrence error counting k-mers from partitions",e);
+		} finally {
+			deleteFiles();
+		}
+	}
+	private void runCountPartition(int partition, int minKmerCount, Distribution distribution, PrintStream out) {
+		//Remaining partitions are not processed after the first error
+		if(firstError.get()!=null) return;
+		try {
+			countPartition(partition, minKmerCount, distribution, out);
+		} catch (Throwable e) {
+			firstError.compareAndSet(null, e);
+		}
+	}
+	private void throwFirstError() throws IOException {
+		Throwable e = firstError.get();
+		if(e==null) return;
+		if(e instanceof IOException) throw (IOException)e;
+		if(e instanceof RuntimeException) throw (RuntimeException)e;
+		if(e instanceof Error) throw (Error)e;
+		throw new IOException(e);
+	}
+	private void countPartition(int partition, int minKmerCount, Distribution distribution, PrintStream out) throws IOException {
+		File file = partitionFiles[partition];
+		PackedDNAKmersMapImpl kmersMap = new PackedDNAKmersMapImpl((byte)kmerLength, canonical);
+		long mask = (1L<<(2*kmerLength))-1;
+		byte [] buffer = new byte[2+(MAX_KMERS_SUPER_KMER+kmerLength+3)/4];
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1<<16))) {
+			int first = in.read();
+			while(first>=0) {
+				int numBases = (first<<8) | in.readUnsignedByte();
+				in.readFully(buffer, 0, (numBases+3)/4);
+				long code = 0;
+				for(int j=0;j<numBases;j++) {
+					code = ((code<<2) | ((buffer[j/4]>>>(2*(j%4))) & 3)) & mask;
+					if(j>=kmerLength-1) kmersMap.addCodeOccurance(code);
+				}
+				first = in.read();
+			}
+			Files.deleteIfExists(file.toPath());
+		} catch (IOException e) {
+			throw new IOException("Error reading k-mers from partition file "+file.getAbsolutePath(),e);
+		}
+		synchronized (distribution) {
+			kmersMap.updateAbundancesDistribution(distribution);
+		}
+		kmersMap.filterKmers(minKmerCount);
+		synchronized (out) {
+			kmersMap.save(out);
+		}
+		log.info("Counted k-mers of partition "+(partition+1)+" of "+partitionFiles.length+". Saved k-mers: "+kmersMap.size());
+	}
+
+	/**
+	 * Closes and deletes the temporary files of the partitions
+	 */
+	public void deleteFiles() {
+		for(int i=0;i<partitionFiles.length;i++) {
+			try {
+				if(partitionStreams[i]!=null) partitionStreams[i].close();
+			} catch (IOException e) {
+				log.warning("Error closing partition file "+partitionFiles[i]+". "+e.getMessage());
+			}
+			if(partitionFiles[i]!=null) partitionFiles[i].delete();
+		}
+	}
+}
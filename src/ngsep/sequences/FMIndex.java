@@ -26,10 +26,20 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 
@@ -42,11 +52,25 @@ import ngsep.main.io.ConcatGZIPInputStream;
  */
 public class FMIndex
 {
+	/**
+	 * Magic bytes at the start of index files saved in the binary format
+	 */
+	public static final byte [] BINARY_FORMAT_MAGIC = "NGSEPFMI".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * Current version of the binary format
+	 */
+	public static final int BINARY_FORMAT_VERSION = 2;
+	/**
+	 * Maximum total length of the sequences grouped in one internal index
+	 */
+	public static final int MAX_LENGTH_INTERNAL_INDEX = 100000000;
+	
 	private QualifiedSequenceList sequencesWithNames;
 	private List<Integer> sequenceLengths = new ArrayList<>();
 	private List<FMIndexSingleSequence> internalIndexes = new ArrayList<>();
 	private List<CombinedMultisequenceFMIndexMetadata> internalMetadata = new ArrayList<>();
 	private int maxHitsQuery = 100000;
+	private int numThreads = 1;
 
 	public int getMaxHitsQuery() {
 		return maxHitsQuery;
@@ -55,54 +79,89 @@ public class FMIndex
 		this.maxHitsQuery = maxHitsQuery;
 		for(FMIndexSingleSequence internalIndex:internalIndexes) internalIndex.setMaxHitsQuery(maxHitsQuery);
 	}
+	public int getNumThreads() {
+		return numThreads;
+	}
+	/**
+	 * Sets the number of threads used to build internal indexes in parallel.
+	 * Each thread holds the suffix array of the internal index that it builds
+	 * @param numThreads Number of threads
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
 	/**
 	 * Loads the sequences in the given list to allow searches from these sequences
 	 * @param sequences to add to the index. Each QualifiedSequence object in the list should have a name and its characters
 	 */
 	public void loadQualifiedSequences (List<QualifiedSequence> sequences, Logger log) {
-		Runtime runtime = Runtime.getRuntime();
 		if(sequences instanceof QualifiedSequenceList) sequencesWithNames = (QualifiedSequenceList)sequences;
 		else {
 			sequencesWithNames = new QualifiedSequenceList();
 			sequencesWithNames.addAll(sequences);
 		}
-		StringBuffer internalSequence = new StringBuffer();
+		// Groups consecutive sequences in internal indexes
+		List<List<QualifiedSequence>> internalSequences = new ArrayList<>();
+		List<QualifiedSequence> nextInternal = new ArrayList<>();
+		long internalLength = 0;
 		CombinedMultisequenceFMIndexMetadata internalIdxMetadata = new CombinedMultisequenceFMIndexMetadata();
-		int nI=0;
 		int i=0;
 		for(QualifiedSequence seq:sequences) {
-			String next = seq.getCharacters().toString();
-			if(nI>0 && internalSequence.length() + next.length() > 100000000) {
-				if(log!=null) log.info("Building index for "+nI+" sequences. Internal sequence length: "+internalSequence.length());
-				long time = System.currentTimeMillis();
-				FMIndexSingleSequence index = new FMIndexSingleSequence(internalSequence);
-				index.setMaxHitsQuery(maxHitsQuery);
-				double usedMemory = runtime.totalMemory()-runtime.freeMemory();
-				usedMemory/=1000000000;
-				if(log!=null) log.info("Built index in "+((double)(System.currentTimeMillis()-time)/1000.0)+" seconds. RAM (Gb): "+usedMemory);
-				internalIndexes.add(index);
+			int length = seq.getLength();
+			if(nextInternal.size()>0 && internalLength + length > MAX_LENGTH_INTERNAL_INDEX) {
+				internalSequences.add(nextInternal);
 				internalMetadata.add(internalIdxMetadata);
-				internalSequence = new StringBuffer();
+				nextInternal = new ArrayList<>();
+				internalLength = 0;
 				internalIdxMetadata = new CombinedMultisequenceFMIndexMetadata();
-				nI=0;
 			}
-			internalSequence.append(next);
-			internalIdxMetadata.addInputSequence(i, seq.getLength());
-			sequenceLengths.add(seq.getLength());
-			nI++;
+			nextInternal.add(seq);
+			internalLength += length;
+			internalIdxMetadata.addInputSequence(i, length);
+			sequenceLengths.add(length);
 			i++;
 		}
-		if(nI>0) {
-			if(log!=null) log.info("Building index for "+nI+" sequences. Internal sequence length: "+internalSequence.length());
-			long time = System.currentTimeMillis();
-			FMIndexSingleSequence index = new FMIndexSingleSequence(internalSequence);
-			index.setMaxHitsQuery(maxHitsQuery);
-			double usedMemory = runtime.totalMemory()-runtime.freeMemory();
-			usedMemory/=1000000000;
-			if(log!=null) log.info("Built index in "+((double)(System.currentTimeMillis()-time)/1000.0)+" seconds. RAM (Gb): "+usedMemory);
-			internalIndexes.add(index);
+		if(nextInternal.size()>0) {
+			internalSequences.add(nextInternal);
 			internalMetadata.add(internalIdxMetadata);
 		}
+		if(numThreads<=1 || internalSequences.size()==1) {
+			for(List<QualifiedSequence> internalSeqs:internalSequences) internalIndexes.add(buildInternalIndex(internalSeqs, log));
+			return;
+		}
+		// Internal indexes are independent and can be built in parallel
+		if(log!=null) log.info("Building "+internalSequences.size()+" internal indexes using "+numThreads+" threads");
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<FMIndexSingleSequence>> futures = new ArrayList<>();
+		for(List<QualifiedSequence> internalSeqs:internalSequences) {
+			futures.add(pool.submit(()->buildInternalIndex(internalSeqs, log)));
+		}
+		pool.shutdown();
+		try {
+			for(Future<FMIndexSingleSequence> future:futures) internalIndexes.add(future.get());
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			throw new RuntimeException("Construction of internal indexes interrupted",e);
+		} catch (ExecutionException e) {
+			pool.shutdownNow();
+			throw new RuntimeException("Error building internal index",e.getCause());
+		}
+	}
+	
+	private FMIndexSingleSequence buildInternalIndex(List<QualifiedSequence> sequences, Logger log) {
+		Runtime runtime = Runtime.getRuntime();
+		int totalLength = 0;
+		for(QualifiedSequence seq:sequences) totalLength+=seq.getLength();
+		StringBuilder internalSequence = new StringBuilder(totalLength);
+		for(QualifiedSequence seq:sequences) internalSequence.append(seq.getCharacters());
+		if(log!=null) log.info("Building index for "+sequences.size()+" sequences. Internal sequence length: "+internalSequence.length());
+		long time = System.currentTimeMillis();
+		FMIndexSingleSequence index = new FMIndexSingleSequence(internalSequence);
+		index.setMaxHitsQuery(maxHitsQuery);
+		double usedMemory = runtime.totalMemory()-runtime.freeMemory();
+		usedMemory/=1000000000;
+		if(log!=null) log.info("Built index in "+((double)(System.currentTimeMillis()-time)/1000.0)+" seconds. RAM (Gb): "+usedMemory);
+		return index;
 	}
 	/**
 	 * Searches the given sequence against this FMindex.
@@ -129,25 +188,13 @@ public class FMIndex
 			CombinedMultisequenceFMIndexMetadata metadata = internalMetadata.get(i);
 			if(!metadata.overlapWithIndexes(firstIndex, lastIndex)) continue;
 			Set<Integer> matches = idxSeq.exactSearch(query);
+			int queryLength = query.length();
 			for (int internalPosMatch:matches) 
 			{
-				int [] realData = metadata.getSequenceIdxAndStart(internalPosMatch);
-				if(realData==null) continue;
-				int sequenceIdx = realData[0];
-				int sequenceStart = realData[1];
-				if(sequenceIdx>=sequenceLengths.size()) throw new RuntimeException("Problem with internal index answer: "+realData[0]+"-"+realData[1]+". Absolute: "+internalPosMatch+" total length: "+metadata.getTotalLength()+" first idx: "+metadata.getFirstInputSequenceIdx()+" last idx: "+metadata.getLastInputSequenceIdx());
-				//Match to other sequences sharing internal index with queried sequence
-				if(sequenceIdx<firstIndex) continue;
-				if(sequenceIdx>lastIndex) continue;
-				int start = internalPosMatch-sequenceStart;
-				int sequenceLength = sequenceLengths.get(sequenceIdx); 
-				int queryLength = query.length();
-				int last = start + queryLength - 1;
-				//Match with artificial concatenation between sequences
-				if(last>=sequenceLength) continue;
-				
+				long hitCode = getSubjectHit(metadata, internalPosMatch, queryLength, firstIndex, lastIndex);
+				if(hitCode<0) continue;
 				//ReadAlignment alignment = new ReadAlignment(seqName, first, last, searchLength, 0);
-				UngappedSearchHit hit = new UngappedSearchHit(sequenceIdx, start);
+				UngappedSearchHit hit = new UngappedSearchHit((int)(hitCode>>32), (int)hitCode);
 				hit.setHitLength((short)queryLength);
 				hits.add(hit);
 				if(hits.size()>=maxHitsQuery) break;
@@ -156,6 +203,79 @@ public class FMIndex
 		}
 		return hits;
 	}
+	/**
+	 * Searches a batch of queries against this FMindex, for example all k-mers of a read.
+	 * The backward searches of the queries are interleaved within each internal index.
+	 * This search is case sensitive.
+	 * The hits of each query are the same returned by exactSearch(String) and they appear in the same order 
+	 * @param queries Sequences to search
+	 * @param hits Buffer to store the hits. Previous hits in the buffer are removed.
+	 * After the search, hits are grouped by query index
+	 */
+	public void exactSearch (List<? extends CharSequence> queries, UngappedSearchHitsBuffer hits) {
+		exactSearch(queries, 0, sequenceLengths.size(), hits);
+	}
+	/**
+	 * Searches a batch of queries against the given subsequences of this FMindex.
+	 * This search is case sensitive.
+	 * @param queries Sequences to search
+	 * @param firstIndex of the subject sequence to look for
+	 * @param lastIndex of the subject sequence to look for
+	 * @param hits Buffer to store the hits. Previous hits in the buffer are removed.
+	 * After the search, hits are grouped by query index
+	 */
+	public void exactSearch (List<? extends CharSequence> queries, int firstIndex, int lastIndex, UngappedSearchHitsBuffer hits) {
+		int n = queries.size();
+		hits.clear(n);
+		int [] firstRows = hits.getFirstRowsWorkspace(n);
+		int [] lastRows = hits.getLastRowsWorkspace(n);
+		for (int i=0;i<internalIndexes.size();i++) 
+		{
+			FMIndexSingleSequence idxSeq = internalIndexes.get(i);
+			CombinedMultisequenceFMIndexMetadata metadata = internalMetadata.get(i);
+			if(!metadata.overlapWithIndexes(firstIndex, lastIndex)) continue;
+			int [] positions = hits.getPositionsWorkspace(idxSeq.getMaxHitsQuery());
+			idxSeq.getRanges(queries, firstRows, lastRows);
+			for(int q=0;q<n;q++) {
+				if(firstRows[q]<0) continue;
+				int numMatches = idxSeq.getSequenceIndexes(firstRows[q], lastRows[q], positions);
+				int queryLength = queries.get(q).length();
+				for(int j=0;j<numMatches;j++) {
+					long hitCode = getSubjectHit(metadata, positions[j], queryLength, firstIndex, lastIndex);
+					if(hitCode<0) continue;
+					hits.addHit(q, (int)(hitCode>>32), (int)hitCode);
+					if(hits.getQueryHitCount(q)>=maxHitsQuery) break;
+				}
+			}
+		}
+		hits.groupByQuery();
+	}
+	/**
+	 * Translates a match within an internal index to a hit within one of the indexed sequences
+	 * @param metadata of the internal index
+	 * @param internalPosMatch Position of the match in the internal index
+	 * @param queryLength Length of the query
+	 * @param firstIndex of the subject sequence to look for
+	 * @param lastIndex of the subject sequence to look for
+	 * @return long Sequence index in the upper 32 bits and zero based start in the lower 32 bits.
+	 * -1 if the match does not correspond to a valid hit
+	 */
+	private long getSubjectHit(CombinedMultisequenceFMIndexMetadata metadata, int internalPosMatch, int queryLength, int firstIndex, int lastIndex) {
+		int [] realData = metadata.getSequenceIdxAndStart(internalPosMatch);
+		if(realData==null) return -1;
+		int sequenceIdx = realData[0];
+		int sequenceStart = realData[1];
+		if(sequenceIdx>=sequenceLengths.size()) throw new RuntimeException("Problem with internal index answer: "+realData[0]+"-"+realData[1]+". Absolute: "+internalPosMatch+" total length: "+metadata.getTotalLength()+" first idx: "+metadata.getFirstInputSequenceIdx()+" last idx: "+metadata.getLastInputSequenceIdx());
+		//Match to other sequences sharing internal index with queried sequence
+		if(sequenceIdx<firstIndex) return -1;
+		if(sequenceIdx>lastIndex) return -1;
+		int start = internalPosMatch-sequenceStart;
+		int sequenceLength = sequenceLengths.get(sequenceIdx); 
+		int last = start + queryLength - 1;
+		//Match with artificial concatenation between sequences
+		if(last>=sequenceLength) return -1;
+		return (((long)sequenceIdx)<<32) | start;
+	}
 	/**
 	 * Return the sequence with the given name
 	 * @param sequenceName Name of the sequence to search
@@ -202,7 +322,54 @@ public class FMIndex
 			//i++;
 		}
 	}
+	/**
+	 * Saves this index in a versioned binary format that can be memory mapped by the load method.
+	 * The file starts with the magic bytes and the version followed by the metadata of the internal indexes.
+	 * Then, each internal index is written as flat regions (see FMIndexSingleSequence.saveBinary) 
+	 * @param filename Path of the file to write
+	 * @throws IOException If the file can not be written
+	 */
+	public void saveBinary (String filename) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			int metadataSize = 0;
+			for (CombinedMultisequenceFMIndexMetadata metadata:internalMetadata) metadataSize+=metadata.getBinarySize();
+			int headerSize = BINARY_FORMAT_MAGIC.length+16;
+			ByteBuffer header = ByteBuffer.allocate((int)FMIndexSingleSequence.padToWord(headerSize+metadataSize)).order(FMIndexSingleSequence.BINARY_BYTE_ORDER);
+			header.put(BINARY_FORMAT_MAGIC);
+			header.putInt(BINARY_FORMAT_VERSION);
+			header.putInt(maxHitsQuery);
+			header.putInt(internalIndexes.size());
+			header.putInt(metadataSize);
+			for (CombinedMultisequenceFMIndexMetadata metadata:internalMetadata) metadata.saveBinary(header);
+			header.rewind();
+			FMIndexSingleSequence.writeFully(channel, header);
+			for(FMIndexSingleSequence index:internalIndexes) {
+				index.saveBinary(channel);
+			}
+		}
+	}
+	/**
+	 * Checks if the given file starts with the magic bytes of the binary format
+	 * @param indexFile File to check
+	 * @return boolean true if the file is saved in binary format. False otherwise
+	 * @throws IOException If the file can not be read
+	 */
+	public static boolean isBinaryFormat(String indexFile) throws IOException {
+		try (FileInputStream fis = new FileInputStream(indexFile)) {
+			byte [] magic = fis.readNBytes(BINARY_FORMAT_MAGIC.length);
+			return Arrays.equals(magic, BINARY_FORMAT_MAGIC);
+		}
+	}
+	/**
+	 * Loads an FMIndex from the given file. Files in binary format are memory mapped.
+	 * Files in the legacy gzipped text format are fully loaded in memory
+	 * @param sequences Indexed sequences
+	 * @param indexFile File with the saved index
+	 * @return FMIndex loaded from the given file
+	 * @throws IOException If the file can not be read
+	 */
 	public static FMIndex load (QualifiedSequenceList sequences, String indexFile) throws IOException {
+		if(isBinaryFormat(indexFile)) return loadBinary(sequences, indexFile);
 		FMIndex index = new FMIndex();
 		index.sequencesWithNames = sequences;
 		for(QualifiedSequence seq:sequences) index.sequenceLengths.add(seq.getLength());
@@ -238,6 +405,34 @@ public class FMIndex
 		}
 		return index;
 	}
+	private static FMIndex loadBinary (QualifiedSequenceList sequences, String indexFile) throws IOException {
+		FMIndex index = new FMIndex();
+		index.sequencesWithNames = sequences;
+		for(QualifiedSequence seq:sequences) index.sequenceLengths.add(seq.getLength());
+		try (FileChannel channel = FileChannel.open(Paths.get(indexFile), StandardOpenOption.READ)) {
+			int headerSize = BINARY_FORMAT_MAGIC.length+16;
+			ByteBuffer header = FMIndexSingleSequence.readFully(channel, 0, headerSize);
+			header.position(BINARY_FORMAT_MAGIC.length);
+			int version = header.getInt();
+			if(version!=BINARY_FORMAT_VERSION) throw new IOException("Unsupported binary index version: "+version+". Expected version: "+BINARY_FORMAT_VERSION);
+			//Number of hits is not processed as in the text format
+			header.getInt();
+			int numIndexes = header.getInt();
+			int metadataSize = header.getInt();
+			ByteBuffer metadataBuffer = FMIndexSingleSequence.readFully(channel, headerSize, metadataSize);
+			for(int i=0;i<numIndexes;i++) {
+				index.internalMetadata.add(CombinedMultisequenceFMIndexMetadata.loadBinary(metadataBuffer));
+			}
+			long position = FMIndexSingleSequence.padToWord(headerSize+metadataSize);
+			for(int i=0;i<numIndexes;i++) {
+				FMIndexSingleSequence internalIndex = FMIndexSingleSequence.loadBinary(channel, position);
+				index.internalIndexes.add(internalIndex);
+				position+=internalIndex.getBinarySize();
+			}
+			if(position!=channel.size()) throw new IOException("Inconsistent binary index size. Expected: "+position+" actual: "+channel.size());
+		}
+		return index;
+	}
 }
 class CombinedMultisequenceFMIndexMetadata {
 
@@ -304,4 +499,26 @@ class CombinedMultisequenceFMIndexMetadata {
 		out.println();
 	}
 	
+	public int getBinarySize() {
+		return 4+8*idxs.size();
+	}
+	
+	public void saveBinary (ByteBuffer out) {
+		out.putInt(idxs.size());
+		for(int i=0;i<idxs.size();i++) {
+			out.putInt(idxs.get(i));
+			out.putInt(lengths.get(i));
+		}
+	}
+	
+	public static CombinedMultisequenceFMIndexMetadata loadBinary (ByteBuffer in) {
+		CombinedMultisequenceFMIndexMetadata metadata = new CombinedMultisequenceFMIndexMetadata();
+		int n = in.getInt();
+		for(int i=0;i<n;i++) {
+			int idx = in.getInt();
+			metadata.addInputSequence(idx, in.getInt());
+		}
+		return metadata;
+	}
+	
 }
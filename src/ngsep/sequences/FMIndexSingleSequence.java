@@ -22,10 +22,17 @@ package ngsep.sequences;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 /**
@@ -36,24 +43,27 @@ import java.util.TreeSet;
  * @author Jorge Duitama
  * @author Juan Camilo Bojaca
  */
-public class FMIndexSingleSequence implements Serializable {
-	/**
-	 * 
-	 */
-	private static final long serialVersionUID = 5981359942407474671L;
+public class FMIndexSingleSequence {
 
 	/** Character to BWT */
 	public static final char SPECIAL_CHARACTER = 0;
 	private static final int DEFAULT_TALLY_DISTANCE = 100;
 	private static final int DEFAULT_SUFFIX_FRACTION = 50;
 
-	// Start position in the original sequence of some rows of the BW matrix
+	// Byte order of the binary format. Matches the native order of the usual platforms
+	static final ByteOrder BINARY_BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	// Bit vector marking the rows of the BW matrix for which the start position in the original sequence is saved
+	private LongBuffer sampledRows;
+	// Number of sampled rows before each word of the sampledRows bit vector. Supports rank queries
+	private IntBuffer sampledRowsRanks;
+	// Start position in the original sequence of the sampled rows, sorted by row,
 	// representing a partial suffix array
-	private Map<Integer, Integer> partialSuffixArray = new HashMap<>();
+	private IntBuffer partialSuffixArray;
 
 	// Ranks in the bwt for each character in the alphabet for some of the rows in
-	// the BW matrix
-	private int[][] tallyIndexes;
+	// the BW matrix. Flat layout with one block of alphabet.length() counts per tally row
+	private IntBuffer tallyIndexes;
 
 	// 1 of each tallyDistance is saved
 	private int tallyDistance;
@@ -62,7 +72,7 @@ public class FMIndexSingleSequence implements Serializable {
 	private int suffixFraction;
 
 	// Burrows Wheeler transform
-	private byte [] bwt;
+	private ByteBuffer bwt;
 	private int rowBWTSpecialCharacter;
 
 	//For each character tells the number of times it appears
@@ -84,6 +94,12 @@ public class FMIndexSingleSequence implements Serializable {
 	private String alphabet;
 	
 	private Map<Character, Integer> alphabetIndexes;
+	
+	// Primitive versions of the alphabet indexes and the first rows used in the LF mapping.
+	// Indexes of characters are looked up by the byte stored in the bwt
+	private int [] alphabetIndexesByCode;
+	private int [] firstRowsByIndex;
+	private int [] lastRowsByIndex;
 
 	//Used for loading
 	private FMIndexSingleSequence () {
@@ -119,13 +135,14 @@ public class FMIndexSingleSequence implements Serializable {
 	 * @return Length of the sequence represented by this FMIndex
 	 */
 	public int getSequenceLength() {
-		return bwt.length-1;
+		return bwt.capacity()-1;
 	}
 
 	private void calculate(CharSequence sequence) {
 		countCharacters (sequence);
 		buildCharacterFirstAndLastRows();
-		SuffixArrayGenerator suffixArrayGenerator = new DC3SuffixArrayGenerator(sequence);
+		SuffixArrayGenerator suffixArrayGenerator = new InducedSortingSuffixArrayGenerator(sequence);
+		//SuffixArrayGenerator suffixArrayGenerator = new DC3SuffixArrayGenerator(sequence);
 		//SuffixArrayGenerator suffixArrayGenerator = new CollectionsSortSuffixArrayGenerator(sequence);
 		int [] sa = suffixArrayGenerator.getSuffixArray();
 		//System.out.println("First pos SA: "+sa[0]+" "+sa[1]+" "+sa[2] );
@@ -163,64 +180,136 @@ public class FMIndexSingleSequence implements Serializable {
 	    	totalChars += characterCounts.get(c);
 	    	lastRowsInMatrix.put(c, totalChars - 1);
 		}
+		buildPrimitiveAlphabetIndexes();
+	}
+	
+	private void buildPrimitiveAlphabetIndexes() {
+		alphabetIndexesByCode = new int[256];
+		Arrays.fill(alphabetIndexesByCode, -1);
+		firstRowsByIndex = new int[alphabet.length()];
+		lastRowsByIndex = new int[alphabet.length()];
+		for(int i=0;i<alphabet.length();i++) {
+			char c = alphabet.charAt(i);
+			alphabetIndexesByCode[((byte)c) & 0xFF] = i;
+			firstRowsByIndex[i] = firstRowsInMatrix.get(c);
+			lastRowsByIndex[i] = lastRowsInMatrix.get(c);
+		}
+	}
+	
+	private int getAlphabetIndex (char c) {
+		if(c>=alphabetIndexesByCode.length || (char)(byte)c!=c) return -1;
+		return alphabetIndexesByCode[((byte)c) & 0xFF];
 	}
 	
 	private void printIndexInfo() {
 		System.out.println("Alphabet: "+alphabet);
-		System.out.println("BWT: "+new String(bwt));
-		System.out.println("Partial array: "+partialSuffixArray);
+		StringBuilder bwtStr = new StringBuilder();
+		for(int i=0;i<bwt.capacity();i++) bwtStr.append((char)bwt.get(i));
+		System.out.println("BWT: "+bwtStr);
+		System.out.print("Partial array:");
+		for(int i=0;i<bwt.capacity();i++) {
+			int value = getPartialSuffixArrayValue(i);
+			if(value>=0) System.out.print(" "+i+"="+value);
+		}
+		System.out.println();
 		System.out.println("First rows: "+firstRowsInMatrix);
 		System.out.println("Last rows: "+lastRowsInMatrix);
 	}
 	
 	private void buildBWT(CharSequence sequence, int [] sa) {
-		bwt = new byte[sequence.length() + 1];
+		byte [] bwtArray = new byte[sequence.length() + 1];
 	
 		if(sa[0]!=sequence.length()) throw new RuntimeException("Suffix array should have "+sequence.length()+" as first entry");
 		//assert sa[0]==sequence.length();
 		int j = 0;
 		for (int i : sa) {
 			if (i > 0) {
-				bwt[j] = (byte)sequence.charAt(i - 1);
+				bwtArray[j] = (byte)sequence.charAt(i - 1);
 			} else {
-				bwt[j] = SPECIAL_CHARACTER;
+				bwtArray[j] = SPECIAL_CHARACTER;
 				rowBWTSpecialCharacter = j;
 			}
 			j++;
 		}
+		bwt = ByteBuffer.wrap(bwtArray);
+	}
+	
+	private int getTallyRows() {
+		int bwtLength = bwt.capacity();
+		int tallyRows = bwtLength / tallyDistance;
+		if (bwtLength % tallyDistance > 0) tallyRows++;
+		return tallyRows;
 	}
 
 	private void buildTally() {
-		int tallyRows = bwt.length / tallyDistance;
-		if (bwt.length % tallyDistance > 0) tallyRows++;
-		
-		final int[] arr = new int[alphabet.length()];
-		tallyIndexes = new int[tallyRows][alphabet.length()];
+		int bwtLength = bwt.capacity();
+		int alphabetLength = alphabet.length();
+		final int[] arr = new int[alphabetLength];
+		int [] tallyArray = new int[getTallyRows()*alphabetLength];
 		
-
 		int j = 0;
-		for (int i = 0; i < bwt.length; i++) {
-			char c = (char)bwt[i];
+		for (int i = 0; i < bwtLength; i++) {
+			char c = (char)bwt.get(i);
 			if (c != SPECIAL_CHARACTER) {
 				int indexC = alphabetIndexes.get(c);
 				arr[indexC]++;
 			}
 			if (i % tallyDistance == 0) {
-				System.arraycopy(arr, 0, tallyIndexes[j], 0, arr.length);
+				System.arraycopy(arr, 0, tallyArray, j*alphabetLength, alphabetLength);
 				j++;
 			}
 		}
+		tallyIndexes = IntBuffer.wrap(tallyArray);
 	}
 
 	private void createPartialSuffixArray(int [] sa) {
-		partialSuffixArray = new HashMap<>();
-		partialSuffixArray.put(0, sa[0]);
 		//Partial suffix array module should be calculated on the suffix values (real sequence positions)
-		for (int i = 1; i < sa.length-1; i ++) {
-			int value = sa[i];
-			if(value%suffixFraction==0) partialSuffixArray.put(i, sa[i]);
+		long [] sampledRowsArray = new long[getSampledRowsWords(sa.length)];
+		int n = 0;
+		for (int i = 0; i < sa.length; i ++) {
+			if(i==0 || i==sa.length-1 || sa[i]%suffixFraction==0) {
+				sampledRowsArray[i>>>6] |= 1L<<(i&63);
+				n++;
+			}
+		}
+		int [] values = new int [n];
+		int j = 0;
+		for (int i = 0; i < sa.length; i ++) {
+			if((sampledRowsArray[i>>>6] & (1L<<(i&63)))!=0) {
+				values[j] = sa[i];
+				j++;
+			}
+		}
+		sampledRows = LongBuffer.wrap(sampledRowsArray);
+		sampledRowsRanks = IntBuffer.wrap(buildRanks(sampledRowsArray));
+		partialSuffixArray = IntBuffer.wrap(values);
+	}
+	
+	private static int getSampledRowsWords(int rows) {
+		return (rows+63)>>>6;
+	}
+	
+	private static int [] buildRanks(long [] bitVector) {
+		int [] ranks = new int[bitVector.length];
+		int rank = 0;
+		for(int i=0;i<bitVector.length;i++) {
+			ranks[i] = rank;
+			rank+=Long.bitCount(bitVector[i]);
 		}
-		partialSuffixArray.put(sa.length-1, sa[sa.length-1]);
+		return ranks;
+	}
+	
+	/**
+	 * Retrieves the start position in the original sequence of the given row if it is saved in the partial suffix array
+	 * @param row of the BW matrix
+	 * @return int Start position of the suffix for the given row. -1 if the row is not sampled
+	 */
+	private int getPartialSuffixArrayValue(int row) {
+		int wordIdx = row>>>6;
+		long word = sampledRows.get(wordIdx);
+		long bit = 1L<<(row&63);
+		if((word & bit) == 0) return -1;
+		return partialSuffixArray.get(sampledRowsRanks.get(wordIdx)+Long.bitCount(word & (bit-1)));
 	}
 
 	/**
@@ -254,18 +343,21 @@ public class FMIndexSingleSequence implements Serializable {
 		if(query.length()==0) return null;
 		char actualChar = query.charAt(query.length() - 1);
 
-		Integer rowS = firstRowsInMatrix.get(actualChar);
-		Integer rowF = lastRowsInMatrix.get(actualChar);
-		//System.out.println("Char: "+actualChar+" Range: "+rowS+"-"+rowF);
-		if (rowS == null || rowF == null || rowS == -1 || rowF == -1) {
+		int charIdx = getAlphabetIndex(actualChar);
+		if (charIdx < 0) {
 			return null;
 		}
+		int rowS = firstRowsByIndex[charIdx];
+		int rowF = lastRowsByIndex[charIdx];
+		//System.out.println("Char: "+actualChar+" Range: "+rowS+"-"+rowF);
 		for (int j = query.length() - 2; j >= 0; j--) {
 			actualChar = query.charAt(j);
-			if (alphabet.indexOf(actualChar) < 0)
+			charIdx = getAlphabetIndex(actualChar);
+			if (charIdx < 0)
 				return null;
-			rowS = lfMapping(actualChar, rowS, true);
-			rowF = lfMapping(actualChar, rowF, false);
+			byte code = (byte) actualChar;
+			rowS = lfMapping(charIdx, code, rowS, true);
+			rowF = lfMapping(charIdx, code, rowF, false);
 			if (rowS > rowF) {
 				return null;
 			}
@@ -275,6 +367,56 @@ public class FMIndexSingleSequence implements Serializable {
 		return new int[] { rowS, rowF };
 	}
 
+	/**
+	 * Looks for the ranges of row indexes having matches to each query in the given batch.
+	 * The backward searches of the different queries are interleaved, advancing one character
+	 * of every query at each step. This keeps the tally lookups of similar queries close in time
+	 * and allows the memory accesses of independent queries to overlap
+	 * @param queries to search
+	 * @param firstRows Array to store the first row having exact matches to each query.
+	 * -1 if the query can not be found. It must have at least queries.size() entries
+	 * @param lastRows Array to store the last row having exact matches to each query.
+	 * It must have at least queries.size() entries
+	 */
+	public void getRanges(List<? extends CharSequence> queries, int [] firstRows, int [] lastRows) {
+		int n = queries.size();
+		int maxLength = 0;
+		for (int q = 0; q < n; q++) {
+			CharSequence query = queries.get(q);
+			int length = query.length();
+			firstRows[q] = lastRows[q] = -1;
+			if(length == 0) continue;
+			int charIdx = getAlphabetIndex(query.charAt(length - 1));
+			if(charIdx < 0) continue;
+			firstRows[q] = firstRowsByIndex[charIdx];
+			lastRows[q] = lastRowsByIndex[charIdx];
+			maxLength = Math.max(maxLength, length);
+		}
+		for (int step = 1; step < maxLength; step++) {
+			for (int q = 0; q < n; q++) {
+				if(firstRows[q] < 0) continue;
+				CharSequence query = queries.get(q);
+				int j = query.length() - 1 - step;
+				if(j < 0) continue;
+				char actualChar = query.charAt(j);
+				int charIdx = getAlphabetIndex(actualChar);
+				if(charIdx < 0) {
+					firstRows[q] = lastRows[q] = -1;
+					continue;
+				}
+				byte code = (byte) actualChar;
+				int rowS = lfMapping(charIdx, code, firstRows[q], true);
+				int rowF = lfMapping(charIdx, code, lastRows[q], false);
+				if (rowS > rowF) {
+					firstRows[q] = lastRows[q] = -1;
+				} else {
+					firstRows[q] = rowS;
+					lastRows[q] = rowF;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Provides the start indexes in the original sequence corresponding to the given start 
 	 * @param firstRow of this index
@@ -286,19 +428,39 @@ public class FMIndexSingleSequence implements Serializable {
 		// From this point is just transform the range into the real indexes in the
 		// sequence
 		for (int i = firstRow; i <= lastRow && startIndexes.size()<maxHitsQuery; i++) {
-			int row = i;
-			Integer begin = partialSuffixArray.get(row);
-			int steps;
-			for (steps = 0; begin == null; steps++) {
-				//System.out.println("Next row: "+row+" bwt: "+((char)bwt[row])+" steps: "+steps);
-				row = lfMapping(row);
-				begin = partialSuffixArray.get(row);
-			}
-			begin += steps;
-			startIndexes.add(begin);
+			startIndexes.add(locate(i));
 		}
 		return startIndexes;
 	}
+	
+	/**
+	 * Provides the start indexes in the original sequence corresponding to the given range of rows.
+	 * At most maxHitsQuery rows are processed
+	 * @param firstRow of this index
+	 * @param lastRow of this index
+	 * @param positions Array to store the start positions sorted in ascending order. It must have at least maxHitsQuery entries
+	 * @return int Number of start positions stored in the given array
+	 */
+	public int getSequenceIndexes(int firstRow, int lastRow, int [] positions) {
+		int n = 0;
+		for (int i = firstRow; i <= lastRow && n<maxHitsQuery; i++) {
+			positions[n] = locate(i);
+			n++;
+		}
+		Arrays.sort(positions, 0, n);
+		return n;
+	}
+	
+	private int locate(int row) {
+		int begin = getPartialSuffixArrayValue(row);
+		int steps;
+		for (steps = 0; begin == -1; steps++) {
+			//System.out.println("Next row: "+row+" bwt: "+((char)bwt.get(row))+" steps: "+steps);
+			row = lfMapping(row);
+			begin = getPartialSuffixArrayValue(row);
+		}
+		return begin + steps;
+	}
 
 	/**
 	 * Returns the tally count for the given character in the given row of this index 
@@ -310,26 +472,29 @@ public class FMIndexSingleSequence implements Serializable {
 		if(c==SPECIAL_CHARACTER) {
 			return (row>=rowBWTSpecialCharacter)?1:0;
 		}
+		return getTallyCount(getAlphabetIndex(c), (byte)c, row);
+	}
+	
+	private int getTallyCount(int charIdx, byte code, int row) {
 		int r = 0;
 
 		int a = row / tallyDistance;
 		int b = a + 1;
+		int alphabetLength = firstRowsByIndex.length;
 
-		if (row - a * tallyDistance < b * tallyDistance - row || tallyIndexes.length <= b) {
+		if (row - a * tallyDistance < b * tallyDistance - row || tallyIndexes.capacity() <= b*alphabetLength) {
 			// Recalculate from top record
-			r = tallyIndexes[a][alphabet.indexOf(c)];
+			r = tallyIndexes.get(a*alphabetLength+charIdx);
 
 			for (int j = a * tallyDistance + 1; j <= row; j++) {
-				char cA = (char)bwt[j];
-				if (cA == c)
+				if (bwt.get(j) == code)
 					r++;
 			}
 		} else {
 			// Recalculate from bottom record
-			r = tallyIndexes[b][alphabet.indexOf(c)];
+			r = tallyIndexes.get(b*alphabetLength+charIdx);
 			for (int j = b * tallyDistance; j > row; j--) {
-				char cA = (char)bwt[j];
-				if (cA == c)
+				if (bwt.get(j) == code)
 					r--;
 			}
 		}
@@ -340,29 +505,31 @@ public class FMIndexSingleSequence implements Serializable {
 	 * Finds the row corresponding to the given character in the given row of the
 	 * index, according to the tally indexes in that row
 	 * 
-	 * @param c Character to query
+	 * @param charIdx Index in the alphabet of the character to query
+	 * @param code Byte representing the character in the bwt
 	 * @param row of the index to query
 	 * @param firstIndexAfter If true, calculates the rank of the character at or after the row
 	 * @return int Row of the FM-index of the rank of the given character according
 	 *         to the tally indexes at the given row
 	 */
-	private int lfMapping(char c, int row, boolean firstIndexAfter) {
+	private int lfMapping(int charIdx, byte code, int row, boolean firstIndexAfter) {
 
-		int rank = getTallyCount(c, row);
+		int rank = getTallyCount(charIdx, code, row);
 		// add1 is true when actualChar is different of bwt[rowS] because in this case,
 		// the last appearance of actualChar before rowS is outside the range defined by
 		// rowS, rowF
-		boolean add1 = firstIndexAfter && (bwt[row] != c);
-		// System.out.println("char: "+c+" row: "+row+" rank: "+rank+" first c: "+firstRowsInMatrix.get(c));
-		int newRank = firstRowsInMatrix.get(c) + rank - 1;
+		boolean add1 = firstIndexAfter && (bwt.get(row) != code);
+		// System.out.println("char: "+c+" row: "+row+" rank: "+rank+" first c: "+firstRowsByIndex[charIdx]);
+		int newRank = firstRowsByIndex[charIdx] + rank - 1;
 		if (add1) newRank++;
 		return newRank;
 	}
 
 	private int lfMapping(int row) {
-		char c = (char)bwt[row];
-		// System.out.println(""+c);
-		return lfMapping(c, row, false);
+		byte code = bwt.get(row);
+		// The special character is the first row of the matrix
+		if(code == SPECIAL_CHARACTER) return 0;
+		return lfMapping(alphabetIndexesByCode[code & 0xFF], code, row, false);
 	}
 	
 	public static void main(String[] args) {
@@ -388,25 +555,26 @@ public class FMIndexSingleSequence implements Serializable {
 	}
 	
 	public void save (PrintStream out) {
-		out.println("#INDEX\t"+alphabet+"\t"+suffixFraction+"\t"+tallyDistance+"\t"+rowBWTSpecialCharacter+"\t"+maxHitsQuery+"\t"+bwt.length);
+		int bwtLength = bwt.capacity();
+		out.println("#INDEX\t"+alphabet+"\t"+suffixFraction+"\t"+tallyDistance+"\t"+rowBWTSpecialCharacter+"\t"+maxHitsQuery+"\t"+bwtLength);
 		for (int i=0;i<alphabet.length();i++) {
 			char c = alphabet.charAt(i);
 			out.println(""+c+"\t"+characterCounts.get(c)+"\t"+firstRowsInMatrix.get(c)+"\t"+lastRowsInMatrix.get(c)+"\t"+alphabetIndexes.get(c));
 		}
 		out.println("#PartialSuffixArray");
-		for(int key:partialSuffixArray.keySet()) {
-			int value = partialSuffixArray.get(key);
-			out.println(""+key+"\t"+value);
+		for(int j=0;j<bwtLength;j++) {
+			int value = getPartialSuffixArrayValue(j);
+			if(value>=0) out.println(""+j+"\t"+value);
 		}
 		out.println("#BWT");
 		StringBuffer buffer = new StringBuffer(10000);
 		int i=0;
-		while(i<bwt.length) {
-			buffer.append((char)bwt[i]);
+		while(i<bwtLength) {
+			buffer.append((char)bwt.get(i));
 			i++;
-			if(i%10000==0 || i==bwt.length) {
+			if(i%10000==0 || i==bwtLength) {
 				out.println(buffer.toString());
-				if(i<bwt.length) buffer = new StringBuffer(10000);
+				if(i<bwtLength) buffer = new StringBuffer(10000);
 			}
 		}
 		out.println("#END");
@@ -439,26 +607,209 @@ public class FMIndexSingleSequence implements Serializable {
 		if(line==null) throw new IOException("Unexpected end of file reading suffix array.");
 		if(!line.startsWith("#PartialSuffixArray")) throw new IOException("#PartialSuffixArray section not found. Line: "+line);
 		line = reader.readLine();
+		Map<Integer, Integer> partialSuffixArray = new TreeMap<>();
 		while (line!=null && !line.equals("#BWT")) {
 			items = line.split("\t");
-			index.partialSuffixArray.put(Integer.parseInt(items[0]), Integer.parseInt(items[1]));
+			partialSuffixArray.put(Integer.parseInt(items[0]), Integer.parseInt(items[1]));
 			line = reader.readLine();
 		}
 		if(line == null) throw new IOException("Unexpected end of file reading suffix array.");
-		index.bwt = new byte[bwtLength];
+		long [] sampledRowsArray = new long[getSampledRowsWords(bwtLength)];
+		int [] values = new int[partialSuffixArray.size()];
+		int k = 0;
+		for(Map.Entry<Integer, Integer> entry:partialSuffixArray.entrySet()) {
+			int row = entry.getKey();
+			if(row<0 || row>=bwtLength) throw new IOException("Invalid row in partial suffix array: "+row+" bwt length: "+bwtLength);
+			sampledRowsArray[row>>>6] |= 1L<<(row&63);
+			values[k] = entry.getValue();
+			k++;
+		}
+		index.sampledRows = LongBuffer.wrap(sampledRowsArray);
+		index.sampledRowsRanks = IntBuffer.wrap(buildRanks(sampledRowsArray));
+		index.partialSuffixArray = IntBuffer.wrap(values);
+		byte [] bwtArray = new byte[bwtLength];
 		line = reader.readLine();
 		int i=0;
 		while (line!=null && !line.equals("#END")) {
 			for(int j=0;j<line.length();j++) {
 				if(i>=bwtLength)  throw new IOException("Inconsistent bwt length: "+bwtLength);
-				index.bwt[i] = (byte) line.charAt(j);
+				bwtArray[i] = (byte) line.charAt(j);
 				i++;
 			}
 			line = reader.readLine();
 		}
 		if(line == null) throw new IOException("Unexpected end of file reading bwt.");
+		index.bwt = ByteBuffer.wrap(bwtArray);
+		index.buildPrimitiveAlphabetIndexes();
 		index.buildTally();
 		return index;
 		
 	}
+	
+	private int getBinaryHeaderSize() {
+		return padToWord(4*8 + 13*alphabet.length());
+	}
+	
+	/**
+	 * @return long Number of bytes used by this index in the binary format. See saveBinary
+	 */
+	public long getBinarySize() {
+		long size = getBinaryHeaderSize();
+		size += padToWord(bwt.capacity());
+		size += padToWord(4L*tallyIndexes.capacity());
+		size += 8L*sampledRows.capacity();
+		size += padToWord(4L*sampledRowsRanks.capacity());
+		size += padToWord(4L*partialSuffixArray.capacity());
+		return size;
+	}
+	
+	static long padToWord(long size) {
+		return (size+7) & ~7L;
+	}
+	
+	private static int padToWord(int size) {
+		return (size+7) & ~7;
+	}
+	
+	/**
+	 * Saves this index in a binary format in which the bwt, the tally indexes, the bit vector of sampled rows and the partial suffix array
+	 * are written as flat regions aligned to 8 bytes. These regions can be memory mapped by loadBinary
+	 * @param channel to write the index. It should be positioned at a multiple of 8 bytes
+	 * @throws IOException If the data can not be written
+	 */
+	public void saveBinary (FileChannel channel) throws IOException {
+		int alphabetLength = alphabet.length();
+		ByteBuffer header = ByteBuffer.allocate(getBinaryHeaderSize()).order(BINARY_BYTE_ORDER);
+		header.putInt(alphabetLength);
+		header.putInt(suffixFraction);
+		header.putInt(tallyDistance);
+		header.putInt(rowBWTSpecialCharacter);
+		header.putInt(maxHitsQuery);
+		header.putInt(bwt.capacity());
+		header.putInt(tallyIndexes.capacity());
+		header.putInt(partialSuffixArray.capacity());
+		for (int i=0;i<alphabetLength;i++) {
+			char c = alphabet.charAt(i);
+			header.put((byte)c);
+			header.putInt(characterCounts.get(c));
+			header.putInt(firstRowsInMatrix.get(c));
+			header.putInt(lastRowsInMatrix.get(c));
+		}
+		header.rewind();
+		writeFully(channel, header);
+		ByteBuffer bwtCopy = bwt.duplicate();
+		bwtCopy.rewind();
+		writeFully(channel, bwtCopy);
+		writePadding(channel, bwt.capacity());
+		writeInts(channel, tallyIndexes);
+		writeLongs(channel, sampledRows);
+		writeInts(channel, sampledRowsRanks);
+		writeInts(channel, partialSuffixArray);
+	}
+	
+	private static void writeLongs (FileChannel channel, LongBuffer values) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1<<16).order(BINARY_BYTE_ORDER);
+		LongBuffer longView = buffer.asLongBuffer();
+		int n = values.capacity();
+		int i=0;
+		while(i<n) {
+			longView.clear();
+			while(i<n && longView.hasRemaining()) {
+				longView.put(values.get(i));
+				i++;
+			}
+			buffer.position(0);
+			buffer.limit(8*longView.position());
+			writeFully(channel, buffer);
+		}
+	}
+	
+	private static void writeInts (FileChannel channel, IntBuffer values) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1<<16).order(BINARY_BYTE_ORDER);
+		IntBuffer intView = buffer.asIntBuffer();
+		int n = values.capacity();
+		int i=0;
+		while(i<n) {
+			intView.clear();
+			while(i<n && intView.hasRemaining()) {
+				intView.put(values.get(i));
+				i++;
+			}
+			buffer.position(0);
+			buffer.limit(4*intView.position());
+			writeFully(channel, buffer);
+		}
+		writePadding(channel, 4L*n);
+	}
+	
+	static void writePadding(FileChannel channel, long size) throws IOException {
+		int padding = (int)(padToWord(size)-size);
+		if(padding>0) writeFully(channel, ByteBuffer.allocate(padding));
+	}
+	
+	static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) channel.write(buffer);
+	}
+	
+	/**
+	 * Loads an index saved with saveBinary. The bwt, the tally indexes and the sampled suffix array
+	 * are memory mapped from the file instead of being copied to the heap
+	 * @param channel to read the index from
+	 * @param position Start position of the index within the channel
+	 * @return FMIndexSingleSequence Index mapped from the given channel
+	 * @throws IOException If the index can not be read or mapped
+	 */
+	public static FMIndexSingleSequence loadBinary(FileChannel channel, long position) throws IOException {
+		FMIndexSingleSequence index = new FMIndexSingleSequence();
+		ByteBuffer header = readFully(channel, position, 32);
+		int alphabetLength = header.getInt();
+		if(alphabetLength<0 || alphabetLength>Byte.MAX_VALUE-Byte.MIN_VALUE) throw new IOException("Invalid alphabet length: "+alphabetLength);
+		index.suffixFraction = header.getInt();
+		index.tallyDistance = header.getInt();
+		index.rowBWTSpecialCharacter = header.getInt();
+		index.maxHitsQuery = header.getInt();
+		int bwtLength = header.getInt();
+		int tallyLength = header.getInt();
+		int partialSuffixArrayLength = header.getInt();
+		
+		ByteBuffer alphabetData = readFully(channel, position+32, 13*alphabetLength);
+		StringBuilder alphB = new StringBuilder();
+		for (int i=0;i<alphabetLength;i++) {
+			char c = (char)(alphabetData.get() & 0xFF);
+			alphB.append(c);
+			index.characterCounts.put(c, alphabetData.getInt());
+			index.firstRowsInMatrix.put(c, alphabetData.getInt());
+			index.lastRowsInMatrix.put(c, alphabetData.getInt());
+			index.alphabetIndexes.put(c, i);
+		}
+		index.alphabet = alphB.toString();
+		long nextPosition = position + index.getBinaryHeaderSize();
+		index.bwt = channel.map(FileChannel.MapMode.READ_ONLY, nextPosition, bwtLength);
+		nextPosition += padToWord(bwtLength);
+		index.tallyIndexes = mapInts(channel, nextPosition, tallyLength);
+		nextPosition += padToWord(4L*tallyLength);
+		int sampledRowsWords = getSampledRowsWords(bwtLength);
+		index.sampledRows = channel.map(FileChannel.MapMode.READ_ONLY, nextPosition, 8L*sampledRowsWords).order(BINARY_BYTE_ORDER).asLongBuffer();
+		nextPosition += 8L*sampledRowsWords;
+		index.sampledRowsRanks = mapInts(channel, nextPosition, sampledRowsWords);
+		nextPosition += padToWord(4L*sampledRowsWords);
+		index.partialSuffixArray = mapInts(channel, nextPosition, partialSuffixArrayLength);
+		index.buildPrimitiveAlphabetIndexes();
+		if(index.tallyIndexes.capacity()!=index.getTallyRows()*alphabetLength) throw new IOException("Inconsistent tally length "+tallyLength+" for bwt length: "+bwtLength);
+		return index;
+	}
+	
+	private static IntBuffer mapInts(FileChannel channel, long position, int n) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*n).order(BINARY_BYTE_ORDER).asIntBuffer();
+	}
+	
+	static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(BINARY_BYTE_ORDER);
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position+buffer.position());
+			if(read<0) throw new IOException("Unexpected end of file reading binary index at position "+position);
+		}
+		buffer.flip();
+		return buffer;
+	}
 }
\ No newline at end of file
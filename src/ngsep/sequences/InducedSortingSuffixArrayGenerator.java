@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.util.Arrays;
+
+/**
+ * Suffix array construction by induced sorting (SA-IS) as described by Nong, Zhang and Chan (2009).
+ * Besides the suffix array, the algorithm only requires one byte per character to store the
+ * transformed sequence, one bit per character to store the suffix types and the bucket arrays.
+ * Reduced problems are stored within the suffix array itself
+ * @author Jorge Duitama
+ */
+public class InducedSortingSuffixArrayGenerator implements SuffixArrayGenerator {
+
+	private final int [] suffixArray;
+
+	/**
+	 * Calculates the suffix array of the given sequence
+	 * @param sequence to calculate the suffix array. It should have at most 254 different characters
+	 */
+	public InducedSortingSuffixArrayGenerator (CharSequence sequence) {
+		int n = sequence.length();
+		// Ranks of the characters in lexicographic order. Zero is reserved for the sentinel
+		int [] ranks = new int [Character.MAX_VALUE+1];
+		for(int i=0;i<n;i++) ranks[sequence.charAt(i)] = 1;
+		int alphabetSize = 1;
+		for(int c=0;c<ranks.length;c++) {
+			if(ranks[c]>0) {
+				ranks[c] = alphabetSize;
+				alphabetSize++;
+			}
+		}
+		if(alphabetSize>256) throw new IllegalArgumentException("Alphabet too large to build suffix array: "+(alphabetSize-1));
+		byte [] data = new byte [n+1];
+		for(int i=0;i<n;i++) data[i] = (byte)ranks[sequence.charAt(i)];
+		data[n] = 0;
+		ranks = null;
+		suffixArray = new int [n+1];
+		// The sentinel of an empty sequence is not an LMS suffix
+		if(n==0) return;
+		calculateSuffixArray(new ByteText(data), suffixArray, n+1, alphabetSize);
+	}
+
+	/**
+	 * @return the suffix array. The first position is sequence.length
+	 */
+	@Override
+	public int[] getSuffixArray() {
+		return suffixArray;
+	}
+
+	/**
+	 * Recursive SA-IS algorithm
+	 * @param s Text to process. The last character must be a unique sentinel smaller than any other character
+	 * @param sa Array to store the suffix array. Only the first n entries are used
+	 * @param n Length of the text including the sentinel
+	 * @param k Size of the alphabet. Characters of the text must be between 0 and k-1
+	 */
+	private static void calculateSuffixArray (Text s, int [] sa, int n, int k) {
+		long [] types = calculateTypes(s, n);
+		int [] buckets = new int [k];
+
+		// Stage 1: Sort LMS substrings
+		getBuckets(s, n, buckets, true);
+		Arrays.fill(sa, 0, n, -1);
+		for(int i=1;i<n;i++) {
+			if(isLMS(types, i)) sa[--buckets[s.get(i)]] = i;
+		}
+		induceL(s, sa, n, types, buckets);
+		induceS(s, sa, n, types, buckets);
+
+		// Compact sorted LMS substrings in the first n1 entries
+		int n1 = 0;
+		for(int i=0;i<n;i++) {
+			if(isLMS(types, sa[i])) sa[n1++] = sa[i];
+		}
+		// Name LMS substrings. Names are stored in the second half of sa indexed by position/2
+		Arrays.fill(sa, n1, n, -1);
+		int name = 0;
+		int prev = -1;
+		for(int i=0;i<n1;i++) {
+			int pos = sa[i];
+			boolean diff = false;
+			for(int d=0;d<n;d++) {
+				if(prev==-1 || s.get(pos+d)!=s.get(prev+d) || isS(types, pos+d)!=isS(types, prev+d)) {
+					diff = true;
+					break;
+				} else if (d>0 && (isLMS(types, pos+d) || isLMS(types, prev+d))) {
+					break;
+				}
+			}
+			if(diff) {
+				name++;
+				prev = pos;
+			}
+			sa[n1+pos/2] = name-1;
+		}
+		for(int i=n-1, j=n-1; i>=n1; i--) {
+			if(sa[i]>=0) sa[j--] = sa[i];
+		}
+
+		// Stage 2: Solve the reduced problem stored at the end of sa
+		IntText s1 = new IntText(sa, n-n1);
+		if(name<n1) {
+			calculateSuffixArray(s1, sa, n1, name);
+		} else {
+			for(int i=0;i<n1;i++) sa[s1.get(i)] = i;
+		}
+
+		// Stage 3: Induce the suffix array from the sorted LMS suffixes
+		getBuckets(s, n, buckets, true);
+		for(int i=1, j=0;i<n;i++) {
+			if(isLMS(types, i)) s1.set(j++, i);
+		}
+		for(int i=0;i<n1;i++) sa[i] = s1.get(sa[i]);
+		Arrays.fill(sa, n1, n, -1);
+		for(int i=n1-1;i>=0;i--) {
+			int j = sa[i];
+			sa[i] = -1;
+			sa[--buckets[s.get(j)]] = j;
+		}
+		induceL(s, sa, n, types, buckets);
+		induceS(s, sa, n, types, buckets);
+	}
+
+	/**
+	 * Calculates the type of each suffix. Bits are set for S-type suffixes
+	 */
+	private static long [] calculateTypes(Text s, int n) {
+		long [] types = new long [(n+63)>>>6];
+		// The sentinel is S-type
+		setS(types, n-1);
+		for(int i=n-2;i>=0;i--) {
+			int c = s.get(i);
+			int next = s.get(i+1);
+			if(c<next || (c==next && isS(types, i+1))) setS(types, i);
+		}
+		return types;
+	}
+
+	private static void setS(long [] types, int i) {
+		types[i>>>6] |= 1L<<(i&63);
+	}
+
+	private static boolean isS(long [] types, int i) {
+		return (types[i>>>6] & (1L<<(i&63))) != 0;
+	}
+
+	private static boolean isLMS(long [] types, int i) {
+		return i>0 && isS(types, i) && !isS(types, i-1);
+	}
+
+	/**
+	 * Calculates the start or the end of each bucket
+	 * @param s Text
+	 * @param n Length of the text
+	 * @param buckets Array to store the boundaries of the buckets
+	 * @param end If true, calculates the position after the end of each bucket. If false calculates the start
+	 */
+	private static void getBuckets(Text s, int n, int [] buckets, boolean end) {
+		Arrays.fill(buckets, 0);
+		for(int i=0;i<n;i++) buckets[s.get(i)]++;
+		int sum = 0;
+		for(int c=0;c<buckets.length;c++) {
+			sum+=buckets[c];
+			buckets[c] = end?sum:sum-buckets[c];
+		}
+	}
+
+	private static void induceL(Text s, int [] sa, int n, long [] types, int [] buckets) {
+		getBuckets(s, n, buckets, false);
+		for(int i=0;i<n;i++) {
+			int j = sa[i]-1;
+			if(j>=0 && !isS(types, j)) sa[buckets[s.get(j)]++] = j;
+		}
+	}
+
+	private static void induceS(Text s, int [] sa, int n, long [] types, int [] buckets) {
+		getBuckets(s, n, buckets, true);
+		for(int i=n-1;i>=0;i--) {
+			int j = sa[i]-1;
+			if(j>=0 && isS(types, j)) sa[--buckets[s.get(j)]] = j;
+		}
+	}
+
+	private static abstract class Text {
+		abstract int get(int i);
+	}
+
+	private static class ByteText extends Text {
+		private final byte [] data;
+		ByteText(byte [] data) {
+			this.data = data;
+		}
+		@Override
+		int get(int i) {
+			return data[i] & 0xFF;
+		}
+	}
+
+	private static class IntText extends Text {
+		private final int [] data;
+		private final int offset;
+		IntText(int [] data, int offset) {
+			this.data = data;
+			this.offset = offset;
+		}
+		@Override
+		int get(int i) {
+			return data[offset+i];
+		}
+		void set(int i, int value) {
+			data[offset+i] = value;
+		}
+	}
+}
@@ -20,6 +20,7 @@
 package ngsep.sequences;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -58,6 +59,7 @@ public class KmersExtractor {
 	public static final int DEF_NUM_THREADS = 1;
 	public static final byte INPUT_FORMAT_FASTQ=0;
 	public static final byte INPUT_FORMAT_FASTA=1;
+	public static final int DEF_NUM_PARTITIONS = 256;
 	
 	private static final int MAX_LENGTH_SINGLE_TASK = 100000;
 	
@@ -76,9 +78,12 @@ public class KmersExtractor {
 	private int numThreads = DEF_NUM_THREADS;
 	private int minReadLength = 0;
 	private boolean readNCharacters = true;
+	private String tmpDirectory = null;
+	private int numPartitions = DEF_NUM_PARTITIONS;
 	
 	// Model attributes
 	private KmersMap kmersMap = null;
+	private DiskPartitionedKmersCounter diskCounter = null;
 	private boolean loadSequences = false;
 	private List<QualifiedSequence> loadedSequences = null;
 	
@@ -176,6 +181,23 @@ public class KmersExtractor {
 	}
 	
 	
+	public String getTmpDirectory() {
+		return tmpDirectory;
+	}
+	public void setTmpDirectory(String tmpDirectory) {
+		this.tmpDirectory = tmpDirectory;
+	}
+	
+	public int getNumPartitions() {
+		return numPartitions;
+	}
+	public void setNumPartitions(int numPartitions) {
+		this.numPartitions = numPartitions;
+	}
+	public void setNumPartitions(String value) {
+		this.setNumPartitions((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public int getMinReadLength() {
 		return minReadLength;
 	}
@@ -183,7 +205,7 @@ public class KmersExtractor {
 		this.minReadLength = minReadLength;
 	}
 	/**
-	 * @return the hashKmers
+	 * @return the hashKmers. Null if k-mers are counted using temporary files (see setTmpDirectory)
 	 */
 	public KmersMap getKmersMap() {
 		return kmersMap;
@@ -232,6 +254,7 @@ public class KmersExtractor {
 	 */
 	public void processFiles(List<String> files) throws IOException, InterruptedException {
 		logParameters ();
+		if(tmpDirectory!=null) initializeDiskCounter();
 		if(files.size()==1 && "-".equals(files.get(0))) processFastqFile(System.in);
 		for(String filename:files) processFile(filename);
 	}
@@ -246,6 +269,7 @@ public class KmersExtractor {
 		if (inputFormat == INPUT_FORMAT_FASTQ)  out.println("Fastq format");
 		if (inputFormat == INPUT_FORMAT_FASTA)  out.println("Fasta format");
 		if (ignoreLowComplexity) out.println("Ignore low complexity k-mers");
+		if (tmpDirectory!=null) out.println("Count k-mers using "+numPartitions+" temporary files in directory: "+tmpDirectory);
 		log.info(os.toString());
 		
 	}
@@ -266,12 +290,30 @@ public class KmersExtractor {
 	}
 	
 	private void initialize() {
-		if(kmersMap==null) {
+		if(kmersMap==null && diskCounter==null) {
 			if(!isFreeText() && kmerLength<=15) kmersMap = new ShortArrayDNAKmersMapImpl((byte)kmerLength);
+			else if (!isFreeText() && kmerLength<=31) kmersMap = new PackedDNAKmersMapImpl((byte)kmerLength, !onlyForwardStrand);
 			else kmersMap = new DefaultKmersMapImpl();
 			if(loadSequences) loadedSequences=new ArrayList<QualifiedSequence>();
 		}
 	}
+	/**
+	 * Initializes the counter that saves the k-mers in partitioned temporary files to bound the memory usage.
+	 * Only DNA k-mers of length up to 31 can be counted in this mode
+	 * @throws IOException If the temporary files can not be created
+	 */
+	private void initializeDiskCounter() throws IOException {
+		if(diskCounter!=null) return;
+		if(freeText) throw new IOException("Free text k-mers can not be counted using temporary files");
+		if(ignoreLowComplexity) throw new IOException("Low complexity k-mers can not be ignored if k-mers are counted using temporary files");
+		if(kmerLength>31) throw new IOException("Only k-mers up to length 31 can be counted using temporary files. Given: "+kmerLength);
+		File dir = new File(tmpDirectory);
+		if(!dir.isDirectory()) throw new IOException("Directory for temporary files "+tmpDirectory+" does not exist");
+		diskCounter = new DiskPartitionedKmersCounter(dir, kmerLength, !onlyForwardStrand, numPartitions);
+		diskCounter.setLog(log);
+		kmersMap = null;
+		if(loadSequences) loadedSequences=new ArrayList<QualifiedSequence>();
+	}
 	/**
 	 * Processes the file with the given name as fastq and updates the kmers table
 	 * @param filename Name of the file with the sequences to process.
@@ -281,6 +323,7 @@ public class KmersExtractor {
     public void processFastqFile(String filename) throws IOException, InterruptedException {
     	initialize();
     	ThreadPoolManager poolKmers = new ThreadPoolManager(numThreads, 100);
+    	poolKmers.setProgressNotifier(progressNotifier);
     	long totalLength = 0;
 		try (FastqFileReader reader = new FastqFileReader(filename)) {
 			if(freeText) reader.setSequenceType(StringBuilder.class);
@@ -296,8 +339,10 @@ public class KmersExtractor {
 				totalLength+=read.getLength();
 				if((i+1)%1000==0) log.info("Processed "+(i+1)+" sequences");
 			}
+		} finally {
+			//Waits for running tasks also if the process is cancelled
+			poolKmers.terminatePool();
 		}
-		poolKmers.terminatePool();
 	 }
     
 	/**
@@ -309,6 +354,7 @@ public class KmersExtractor {
 	public void processFastqFile(InputStream fis) throws IOException, InterruptedException {
 		initialize();
 		ThreadPoolManager poolKmers = new ThreadPoolManager(numThreads, 1000);
+		poolKmers.setProgressNotifier(progressNotifier);
 		try (FastqFileReader reader = new FastqFileReader(fis)) {
 			if(freeText) reader.setSequenceType(StringBuilder.class);
 			else if(readNCharacters) reader.setSequenceType(DNAMaskedSequence.class);
@@ -321,8 +367,9 @@ public class KmersExtractor {
 				if(loadSequences) loadedSequences.add(read);
 				if((i+1)%1000==0) log.info("Processed "+(i+1)+" sequences");
 			}
+		} finally {
+			poolKmers.terminatePool();
 		}
-		poolKmers.terminatePool();
 	}
 	
 	/**
@@ -334,6 +381,7 @@ public class KmersExtractor {
     public void processFastaFile(String filename) throws IOException, InterruptedException {
     	initialize();
     	ThreadPoolManager poolKmers = new ThreadPoolManager(numThreads, 1000);
+    	poolKmers.setProgressNotifier(progressNotifier);
     	try (FastaFileReader reader = new FastaFileReader(filename)) {
     		if(freeText) reader.setSequenceType(StringBuilder.class);
 			else if(readNCharacters) reader.setSequenceType(DNAMaskedSequence.class);
@@ -345,15 +393,17 @@ public class KmersExtractor {
 				if(seq.getLength()>1000000) log.info("Processing sequence "+seq.getName());
 				countSequenceKmers (seq, poolKmers);
 				if(loadSequences) loadedSequences.add(seq);
-				if(seq.getLength()>1000000) log.info("Processed sequence "+seq.getName()+" total k-mers: "+kmersMap.size());
+				if(seq.getLength()>1000000 && kmersMap!=null) log.info("Processed sequence "+seq.getName()+" total k-mers: "+kmersMap.size());
 				if((i+1)%1000==0) log.info("Processed "+(i+1)+" sequences");
 			}
+    	} finally {
+    		poolKmers.terminatePool();
     	}
-    	poolKmers.terminatePool();
 	}
     public void processQualifiedSequences(List<QualifiedSequence> sequences) {
     	initialize();
     	ThreadPoolManager poolKmers = new ThreadPoolManager(numThreads, 1000);
+    	poolKmers.setProgressNotifier(progressNotifier);
     	int i = 0;
     	for(QualifiedSequence qseq:sequences) {
     		if(qseq.getLength()<minReadLength) continue;
@@ -361,10 +411,14 @@ public class KmersExtractor {
     		try {
 				countSequenceKmers (qseq, poolKmers);
 			} catch (InterruptedException e) {
+				if(poolKmers.isCancelled()) {
+					log.info("Process cancelled by user");
+					break;
+				}
 				e.printStackTrace();
 				//throw new RuntimeException("Concurrence error extracting k-mers",e);
 			}
-    		if(qseq.getLength()>1000000) log.info("Processed sequence "+qseq.getName()+" total k-mers: "+kmersMap.size());
+    		if(qseq.getLength()>1000000 && kmersMap!=null) log.info("Processed sequence "+qseq.getName()+" total k-mers: "+kmersMap.size());
     		i++;
     		if(i%100==0) log.info("Processed "+i+" sequences");
     	}
@@ -394,12 +448,16 @@ public class KmersExtractor {
 		//Forward		
 		CharSequence sequence = qseq.getCharacters();
 		countSequenceKmers(sequence.toString());
-		//Reverse complement
-		if(!onlyForwardStrand){
+		//Reverse complement. Canonical counters count both strands from the forward sequence
+		if(!onlyForwardStrand && !isCanonicalCounting()){
 			CharSequence reverseSequence = DNAMaskedSequence.getReverseComplement(sequence);
 			countSequenceKmers(reverseSequence.toString());
 		}
 	}
+	private boolean isCanonicalCounting() {
+		if(diskCounter!=null) return !onlyForwardStrand;
+		return kmersMap instanceof PackedDNAKmersMapImpl && ((PackedDNAKmersMapImpl)kmersMap).isCanonical();
+	}
 	/**
 	 * Updates the k-mers table using the information of the given sequence
 	 * @param seq CharSequence object to extract the k-mers
@@ -413,6 +471,17 @@ public class KmersExtractor {
 			log.warning("Sequence "+seq+" smaller than k-mer length");
 			return;
 		}
+		if(diskCounter!=null) {
+			diskCounter.addSequence(seq);
+			return;
+		}
+		if(!freeText && !ignoreLowComplexity && kmersMap instanceof PackedDNAKmersMapImpl) {
+			Map<Integer,Long> codes = extractDNAKmerCodes(seq, kmerLength, 0, seq.length());
+			PackedDNAKmersMapImpl pkmersMap = (PackedDNAKmersMapImpl) kmersMap;
+			//The map locks internally only the segment of each code
+			for(long code:codes.values()) pkmersMap.addCodeOccurance(code);
+			return;
+		}
 		if(!freeText && !ignoreLowComplexity && kmerLength<=15) {
 			//Faster alternative
 			Map<Integer,Long> codes = extractDNAKmerCodes(seq, kmerLength, 0, seq.length());
@@ -605,6 +674,10 @@ public class KmersExtractor {
 		return false;
 	}
 	public void saveResults () throws IOException {
+		if(diskCounter!=null) {
+			saveResultsDiskCounter();
+			return;
+		}
 		log.info("Calculating distribution of abundances from "+kmersMap.size()+" k-mers");
 		Distribution kmerSpectrum = kmersMap.calculateAbundancesDistribution();
 		try (PrintStream out=new PrintStream(outputPrefix+"_kmers_distribution.txt")) {
@@ -618,5 +691,26 @@ public class KmersExtractor {
 			kmersMap.save(out);
 		}
 		log.info("Process finished");
-	}	
+	}
+	private void saveResultsDiskCounter() throws IOException {
+		log.info("Counting k-mers from "+diskCounter.getNumPartitions()+" temporary files");
+		//Same range used by the k-mer maps to calculate the distribution
+		Distribution kmerSpectrum = new Distribution(1, kmerLength<=15?Short.MAX_VALUE:200, 1);
+		String outFile = outputPrefix+"_kmers.txt.gz";
+		try (OutputStream os = new GZIPOutputStream(new FileOutputStream(outFile));
+			 PrintStream out = new PrintStream(os)) {
+			diskCounter.countKmers(numThreads, minKmerCount, kmerSpectrum, out);
+		} catch (IOException|RuntimeException e) {
+			//Removes the incomplete output
+			new File(outFile).delete();
+			throw e;
+		} finally {
+			diskCounter = null;
+		}
+		try (PrintStream out=new PrintStream(outputPrefix+"_kmers_distribution.txt")) {
+			out.println("Kmer_frequency\tNumber_of_distinct_kmers");
+			kmerSpectrum.printDistributionInt(out);
+		}
+		log.info("Process finished");
+	}
 }
@@ -0,0 +1,286 @@
+package ngsep.sequences;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ngsep.math.Distribution;
+
+/**
+ * Map of DNA k-mers with length up to 31 encoded as long codes with two bits per base.
+ * Codes and counts are stored in primitive open addressing hash tables, distributed in segments according to the hash of each code.
+ * Counts saturate at Short.MAX_VALUE. Occurrences can be added from different threads because each modification locks only the segment of the code.
+ * Queries should not run while occurrences are added.
+ * In canonical mode, each k-mer and its reverse complement share one entry. This is equivalent to counting k-mers in both strands,
+ * but each occurrence needs to be added only once.
+ */
+public class PackedDNAKmersMapImpl implements KmersMap {
+
+	private static final int SEGMENT_BITS = 8;
+	private static final int NUM_SEGMENTS = 1<<SEGMENT_BITS;
+	private static final int MAX_SEGMENT_CAPACITY = 1<<30;
+	private static final long EMPTY = -1;
+
+	private byte kmerLength;
+	private boolean canonical;
+	private long kmerMask;
+	private Segment [] segments;
+
+	/**
+	 * Creates a map with canonical storage of k-mers
+	 * @param kmerLength Length of the k-mers. It must be at most 31
+	 */
+	public PackedDNAKmersMapImpl(byte kmerLength) {
+		this(kmerLength, true);
+	}
+	/**
+	 * Creates a new map
+	 * @param kmerLength Length of the k-mers. It must be at most 31
+	 * @param canonical Tells if each k-mer and its reverse complement should be stored in one entry
+	 */
+	public PackedDNAKmersMapImpl(byte kmerLength, boolean canonical) {
+		if(kmerLength<1 || kmerLength>31) throw new IllegalArgumentException("The kmer length must be between 1 and 31");
+		this.kmerLength = kmerLength;
+		this.canonical = canonical;
+		kmerMask = (1L<<(2*kmerLength))-1;
+		segments = new Segment[NUM_SEGMENTS];
+		for(int i=0;i<segments.length;i++) segments[i] = new Segment(16);
+	}
+
+	public byte getKmerLength() {
+		return kmerLength;
+	}
+	public boolean isCanonical() {
+		return canonical;
+	}
+
+	/**
+	 * Calculates the code of the reverse complement of the k-mer represented by the given code
+	 * @param code of a DNA k-mer
+	 * @param kmerLength Length of the k-mer
+	 * @return long Code of the reverse complement
+	 */
+	public static long getReverseComplementCode(long code, int kmerLength) {
+		//The complement of each base is obtained inverting its two bits
+		long answer = ~code;
+		//Reverse the two bit groups
+		answer = ((answer>>>2) & 0x3333333333333333L) | ((answer & 0x3333333333333333L)<<2);
+		answer = ((answer>>>4) & 0x0F0F0F0F0F0F0F0FL) | ((answer & 0x0F0F0F0F0F0F0F0FL)<<4);
+		answer = Long.reverseBytes(answer);
+		return answer>>>(64-2*kmerLength);
+	}
+
+	private static long mixCode(long code) {
+		long hash = code*0x9E3779B97F4A7C15L;
+		return hash ^ (hash>>>32);
+	}
+	private Segment getSegment(long code) {
+		return segments[(int)(mixCode(code)>>>(64-SEGMENT_BITS))];
+	}
+	private long getCode(CharSequence kmer) {
+		if(kmer.length()!=kmerLength) throw new IllegalArgumentException("Unexpected length for query: "+kmer+" expected: "+kmerLength);
+		return DNASequence.getDNAHash(kmer, 0, kmerLength);
+	}
+	private long getStoredCode(long code) {
+		if(!canonical) return code;
+		return Math.min(code, getReverseComplementCode(code, kmerLength));
+	}
+	private boolean isPalindrome(long code) {
+		return canonical && code == getReverseComplementCode(code, kmerLength);
+	}
+	private char [] getKmer(long code) {
+		return DNASequence.getDNASequence(code, kmerLength);
+	}
+
+	@Override
+	public int size() {
+		long answer = 0;
+		for(Segment segment:segments) answer+=segment.numKmers;
+		return (int)Math.min(Integer.MAX_VALUE, answer);
+	}
+
+	@Override
+	public int getCount(CharSequence kmer) {
+		if(!DNASequence.isDNA(kmer)) return 0;
+		return getCount(getCode(kmer));
+	}
+	/**
+	 * Gives the count of the k-mer represented by the given code
+	 * @param kmerCode Code of the k-mer calculated with DNASequence.getDNAHash
+	 * @return int number of times the k-mer appears
+	 */
+	public int getCount(long kmerCode) {
+		if(kmerCode<0 || kmerCode>kmerMask) return 0;
+		long code = getStoredCode(kmerCode);
+		return getSegment(code).getCount(code);
+	}
+
+	@Override
+	public void addOcurrance(CharSequence kmer) {
+		addCodeOccurance(getCode(kmer));
+	}
+	/**
+	 * Add 1 to the ocurrances of the k-mer represented by the given code. In canonical mode,
+	 * occurrences of palindromic k-mers are added twice because they appear in both strands
+	 * @param kmerCode Code of the k-mer calculated with DNASequence.getDNAHash
+	 */
+	public void addCodeOccurance(long kmerCode) {
+		long code = getStoredCode(kmerCode);
+		Segment segment = getSegment(code);
+		synchronized (segment) {
+			segment.add(code, isPalindrome(code)?2:1);
+		}
+	}
+
+	@Override
+	public void setCount(CharSequence kmer, int count) {
+		long code = getStoredCode(getCode(kmer));
+		if(count>Short.MAX_VALUE) count = Short.MAX_VALUE;
+		Segment segment = getSegment(code);
+		synchronized (segment) {
+			segment.set(code, (short)count);
+		}
+	}
+
+	@Override
+	public void filterKmers(int minAbundance) {
+		for(Segment segment:segments) {
+			synchronized (segment) {
+				segment.filter(minAbundance);
+			}
+		}
+	}
+
+	@Override
+	public Distribution calculateAbundancesDistribution() {
+		Distribution dist = new Distribution(1, 200, 1);
+		updateAbundancesDistribution(dist);
+		return dist;
+	}
+	/**
+	 * Adds the abundances of the k-mers in this map to the given distribution
+	 * @param dist Distribution to update
+	 */
+	public void updateAbundancesDistribution(Distribution dist) {
+		for(Segment segment:segments) {
+			for(int i=0;i<segment.codes.length;i++) {
+				long code = segment.codes[i];
+				if(code==EMPTY) continue;
+				dist.processDatapoint(segment.counts[i]);
+				//The reverse complement is reported as a different k-mer
+				if(canonical && !isPalindrome(code)) dist.processDatapoint(segment.counts[i]);
+			}
+		}
+	}
+
+	@Override
+	public void save(PrintStream out) {
+		for(Segment segment:segments) {
+			for(int i=0;i<segment.codes.length;i++) {
+				long code = segment.codes[i];
+				if(code==EMPTY) continue;
+				out.println(new String(getKmer(code))+"\t"+segment.counts[i]);
+				if(canonical && !isPalindrome(code)) out.println(new String(getKmer(getReverseComplementCode(code, kmerLength)))+"\t"+segment.counts[i]);
+			}
+		}
+	}
+
+	@Override
+	public List<CharSequence> getKmersWithCount(int count) {
+		List<CharSequence> answer = new ArrayList<CharSequence>();
+		for(Segment segment:segments) {
+			for(int i=0;i<segment.codes.length;i++) {
+				long code = segment.codes[i];
+				if(code==EMPTY || segment.counts[i]!=count) continue;
+				answer.add(new DNAShortKmer(new String(getKmer(code))));
+				if(canonical && !isPalindrome(code)) answer.add(new DNAShortKmer(new String(getKmer(getReverseComplementCode(code, kmerLength)))));
+			}
+		}
+		return answer;
+	}
+
+	/**
+	 * Open addressing hash table with linear probing for the codes of one segment.
+	 * Modifications must be synchronized on the segment
+	 */
+	private class Segment {
+		private long [] codes;
+		private short [] counts;
+		private int numCodes = 0;
+		//Number of k-mers represented by the codes. Reverse complements are counted as different k-mers
+		private long numKmers = 0;
+
+		public Segment(int capacity) {
+			codes = new long [capacity];
+			Arrays.fill(codes, EMPTY);
+			counts = new short [capacity];
+		}
+		private int findSlot(long [] table, long code) {
+			int mask = table.length-1;
+			int slot = (int)mixCode(code) & mask;
+			while(table[slot]!=EMPTY && table[slot]!=code) slot = (slot+1) & mask;
+			return slot;
+		}
+		public int getCount(long code) {
+			int slot = findSlot(codes, code);
+			if(codes[slot]==EMPTY) return 0;
+			return counts[slot];
+		}
+		public void add(long code, int delta) {
+			int slot = findSlot(codes, code);
+			if(codes[slot]==EMPTY) {
+				slot = insert(code);
+				if(slot<0) return;
+			}
+			counts[slot] = (short)Math.min(Short.MAX_VALUE, counts[slot]+delta);
+		}
+		public void set(long code, short count) {
+			int slot = findSlot(codes, code);
+			if(codes[slot]==EMPTY) {
+				if(count<=0) return;
+				slot = insert(code);
+				if(slot<0) return;
+			}
+			counts[slot] = count;
+		}
+		private int insert(long code) {
+			if(4L*(numCodes+1)>3L*codes.length) {
+				if(codes.length>=MAX_SEGMENT_CAPACITY) return -1;
+				resize(2*codes.length);
+			}
+			int slot = findSlot(codes, code);
+			codes[slot] = code;
+			numCodes++;
+			numKmers+=(canonical && !isPalindrome(code))?2:1;
+			return slot;
+		}
+		private void resize(int capacity) {
+			long [] oldCodes = codes;
+			short [] oldCounts = counts;
+			codes = new long [capacity];
+			Arrays.fill(codes, EMPTY);
+			counts = new short [capacity];
+			for(int i=0;i<oldCodes.length;i++) {
+				if(oldCodes[i]==EMPTY) continue;
+				int slot = findSlot(codes, oldCodes[i]);
+				codes[slot] = oldCodes[i];
+				counts[slot] = oldCounts[i];
+			}
+		}
+		public void filter(int minAbundance) {
+			for(int i=0;i<codes.length;i++) {
+				if(codes[i]==EMPTY || counts[i]>=minAbundance) continue;
+				numCodes--;
+				numKmers-=(canonical && !isPalindrome(codes[i]))?2:1;
+				codes[i] = EMPTY;
+				counts[i] = 0;
+			}
+			//Rebuild the table to keep probe sequences valid after removals
+			int capacity = 16;
+			while(4L*numCodes>3L*capacity) capacity*=2;
+			resize(Math.max(capacity, Math.min(codes.length, 2*capacity)));
+		}
+	}
+
+}
@@ -1,13 +1,28 @@
 package ngsep.sequences;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.math.Distribution;
@@ -15,7 +30,24 @@ import ngsep.math.PrimeNumbers;
 
 public class ShortKmerCodesTable {
 	
+	/**
+	 * Magic bytes at the start of tables saved in binary format
+	 */
+	public static final byte [] BINARY_FORMAT_MAGIC = "NGSEPKCT".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * Current version of the binary format
+	 */
+	public static final int BINARY_FORMAT_VERSION = 1;
+	private static final ByteOrder BINARY_BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+	private static final int BINARY_HEADER_SIZE = 56;
+	//Maximum number of bytes copied or mapped at once while saving or loading arrays
+	private static final int BINARY_CHUNK_SIZE = 1<<26;
+	
 	private static final long [] EMPTY_LONG_ARRAY = new long[0];
+	private static final int MAX_HASH_CAPACITY = 1<<30;
+	private static final int MAX_ENTRIES = Integer.MAX_VALUE-8;
+	private static final int PARTITION_BITS = 6;
+	private static final int NUM_PARTITIONS = 1<<PARTITION_BITS;
 	
 	private Logger log = Logger.getLogger(ShortKmerCodesTable.class.getName());
 	
@@ -31,18 +63,15 @@ public class ShortKmerCodesTable {
 	private int limitHitsPerSequence = 10;
 	
 	//Structures to implement the minimizers like codes hash table
-	//Map with code as key and row of the sequencesByCodeTable as value
-	private Map<Long,Integer> matrixRowMap;
-	//Table with encoded entries. Each row corresponds to a single code
-	private long [][] sequencesByCodeTable;
-	//Actual lengths of the lists within the table
-	private short [] sequencesByCodeTableColumnLengths;
-	//Count of different sequences reporting each code
-	private short [] codeCountDifferentSequences;
+	//Codes are distributed in partitions according to their hash. Each partition is an independent hash table,
+	//which allows to add codes from different threads locking only the partitions that are modified
+	private CodesTablePartition [] partitions;
+	private volatile boolean indexUpToDate = true;
 	
-	private Map<Integer,Integer> sequenceLengths = new HashMap<Integer, Integer>();
-	private long totalEntries = 0;
+	private Map<Integer,Integer> sequenceLengths = new ConcurrentHashMap<Integer, Integer>();
 	private PrimeNumbers primeNumbersHelper;
+	//Checksum of the sequences used to build this table. Saved with the table to validate that it corresponds to a reference genome
+	private long sourceChecksum = 0;
 	
 	
 	public ShortKmerCodesTable(int kmerLength, int windowLength) {
@@ -70,23 +99,23 @@ public class ShortKmerCodesTable {
 		initializeTable(capacity);
 	}
 	public void initializeTable(int capacity) {
-		matrixRowMap = new HashMap<Long, Integer>(capacity);
-		sequencesByCodeTable = new long [capacity][1];
-		for(int i=0;i<sequencesByCodeTable.length;i++) Arrays.fill(sequencesByCodeTable[i], 0);
-		sequencesByCodeTableColumnLengths = new short [capacity];
-		Arrays.fill(sequencesByCodeTableColumnLengths, (short)0);
-		codeCountDifferentSequences = new short [capacity];
-		Arrays.fill(codeCountDifferentSequences, (short)0);
+		partitions = new CodesTablePartition[NUM_PARTITIONS];
+		for(int i=0;i<partitions.length;i++) partitions[i] = new CodesTablePartition(capacity/NUM_PARTITIONS);
+		indexUpToDate = true;
 	}
 	
 	//Hash table management methods
-	private long[] lookupHits(long code) {
-		Integer row = matrixRowMap.get(code);
-		if(row==null) return EMPTY_LONG_ARRAY;
-		return Arrays.copyOf(sequencesByCodeTable[row], sequencesByCodeTableColumnLengths[row]);
+	private static long mixCode(long code) {
+		long hash = code*0x9E3779B97F4A7C15L;
+		return hash ^ (hash>>>32);
+	}
+	private CodesTablePartition getPartition(long code) {
+		return partitions[(int)(mixCode(code)>>>(64-PARTITION_BITS))];
 	}
 	public int size() {
-		return matrixRowMap.size();
+		int answer = 0;
+		for(CodesTablePartition partition:partitions) answer+=partition.numCodes;
+		return answer;
 	}
 	
 	/**
@@ -95,9 +124,10 @@ public class ShortKmerCodesTable {
 	 * @return int times that the given code has been observed
 	 */
 	public int getTotalHits(long code) {
-		Integer row = matrixRowMap.get(code);
-		if(row==null) return 0;
-		return sequencesByCodeTableColumnLengths[row];
+		CodesTablePartition partition = getPartition(code);
+		int row = partition.getRow(code);
+		if(row<0) return 0;
+		return partition.codeCountHits[row];
 	}
 	
 	/**
@@ -106,54 +136,30 @@ public class ShortKmerCodesTable {
 	 * @return int number of different sequences where the minimizer has been observed
 	 */
 	public int getCountDifferentSequences(long code) {
-		Integer row = matrixRowMap.get(code);
-		if(row==null) return 0;
-		return codeCountDifferentSequences[row];
+		CodesTablePartition partition = getPartition(code);
+		int row = partition.getRow(code);
+		if(row<0) return 0;
+		return partition.codeCountDifferentSequences[row];
 	}
 	
-	private void addCodeSequence (long code, List<KmerCodesTableEntry> entries) {
-		Integer row = matrixRowMap.get(code);
-		if(row==null) {
-			row = size();
-			if(row ==Integer.MAX_VALUE) {
-				log.warning("Reached maximum number of minimizers that can be saved "+row);
-				return;
+	/**
+	 * Moves the entries added since the last call to the consecutive arrays of entries used to answer queries.
+	 * Entries are counted while they are added. Then, this method calculates the start of the entries of each
+	 * code and copies the entries keeping the order in which they were added.
+	 * This method is called by the query methods but it can be called after adding sequences to free the memory
+	 * used by the added entries before running queries
+	 */
+	public void buildCodesIndex() {
+		if(indexUpToDate) return;
+		synchronized (partitions) {
+			if(indexUpToDate) return;
+			for(CodesTablePartition partition:partitions) {
+				synchronized (partition) {
+					partition.buildIndex();
+				}
 			}
-			matrixRowMap.put(code, row);
-			if(row==sequencesByCodeTable.length) resizeTable();
-		}
-		int currentCount = sequencesByCodeTableColumnLengths[row];
-		int newCount = currentCount+entries.size(); 
-		if (newCount<Short.MAX_VALUE && (maxHitsKmerCode==0 || newCount<maxHitsKmerCode)) {
-			for (KmerCodesTableEntry entry:entries) addToTable(row, entry.encode());
-			totalEntries+=entries.size();
-			codeCountDifferentSequences[row]++;
-		} 
-		//else System.out.println("Rejected codes for kmer: "+new String(DNASequence.getDNASequence(code, kmerLength))+" current count: "+currentCount+" new entries: "+entries.size());
-	}
-	private void resizeTable() {
-		log.info("Resizing codes table. Current number of codes: "+size()+" current capacity: "+sequencesByCodeTable.length);
-		int newCapacity =  2*sequencesByCodeTable.length;
-		if(newCapacity<0) newCapacity = Integer.MAX_VALUE;
-		sequencesByCodeTableColumnLengths = Arrays.copyOf(sequencesByCodeTableColumnLengths, newCapacity);
-		codeCountDifferentSequences = Arrays.copyOf(codeCountDifferentSequences, newCapacity);
-		long [][] newTable = new long [newCapacity][0];
-		for(int i=0;i<newCapacity;i++) {
-			if(i<sequencesByCodeTable.length) newTable[i] = sequencesByCodeTable[i];
-			else newTable[i] = new long[1];
-		}
-		sequencesByCodeTable = newTable;
-		log.info("Resized codes table. New capacity: "+sequencesByCodeTable.length);
-	}
-	private void addToTable(int row, long value) {
-		long [] codeEntries = sequencesByCodeTable[row];
-		int column = sequencesByCodeTableColumnLengths[row];
-		if(column == codeEntries.length ) {
-			//Resize entries
-			sequencesByCodeTable[row] = Arrays.copyOf(codeEntries, 2*codeEntries.length);
-		}
-		sequencesByCodeTable[row][column] = value;
-		sequencesByCodeTableColumnLengths[row]++;
+			indexUpToDate = true;
+		}
 	}
 	public Logger getLog() {
 		return log;
@@ -165,6 +171,15 @@ public class ShortKmerCodesTable {
 	public int getKmerLength() {
 		return kmerLength;
 	}
+	public int getWindowLength() {
+		return windowLength;
+	}
+	public long getSourceChecksum() {
+		return sourceChecksum;
+	}
+	public void setSourceChecksum(long sourceChecksum) {
+		this.sourceChecksum = sourceChecksum;
+	}
 	public KmersMap getKmersMap() {
 		return kmersMap;
 	}
@@ -188,11 +203,61 @@ public class ShortKmerCodesTable {
 		this.limitHitsPerSequence = limitHitsPerSequence;
 	}
 	/**
-	 * Adds selected codes of the given sequence to the table
+	 * Adds selected codes of the given sequence to the table. This method can be called at the same time from
+	 * different threads but it should not be called while queries are running. If maxHitsKmerCode is set,
+	 * the entries kept for each code depend on the order in which sequences are added. Use addSequences
+	 * to add sequences in parallel keeping the order
 	 * @param sequenceId Id of the sequence to add
 	 * @param sequence to add
 	 */
 	public void addSequence (int sequenceId, CharSequence sequence) {
+		addSequenceCodes(sequenceId, sequence.length(), selectCodesByPartition(sequenceId, sequence));
+	}
+	/**
+	 * Adds the given sequences to the table. The id of each sequence is its index in the list. Codes of different
+	 * sequences are selected in parallel but they are added to the table following the order of the ids.
+	 * Hence, the table is the same obtained adding the sequences one by one
+	 * @param sequences to add
+	 * @param numThreads Number of threads to select the codes of the sequences
+	 */
+	public void addSequences (List<? extends CharSequence> sequences, int numThreads) {
+		int n = sequences.size();
+		if(numThreads<=1) {
+			for(int i=0;i<n;i++) addSequence(i, sequences.get(i));
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		//Bounds the number of sequences with selected codes waiting to be added
+		int maxPending = 2*numThreads;
+		Deque<Future<List<List<Map.Entry<Long, List<KmerCodesTableEntry>>>>>> pending = new ArrayDeque<>();
+		int nextSubmit = 0;
+		try {
+			for(int i=0;i<n;i++) {
+				for(;nextSubmit<n && nextSubmit<i+maxPending;nextSubmit++) {
+					final int seqId = nextSubmit;
+					CharSequence sequence = sequences.get(seqId);
+					pending.add(pool.submit(()->selectCodesByPartition(seqId, sequence)));
+				}
+				addSequenceCodes(i, sequences.get(i).length(), pending.poll().get());
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Concurrence error creating kmer codes table",e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if(cause instanceof Error) throw (Error)cause;
+			throw new RuntimeException("Error selecting codes to create kmer codes table",cause);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	/**
+	 * Selects the codes of the given sequence and groups them by partition to lock each partition only once
+	 * @param sequenceId Id of the sequence
+	 * @param sequence to process
+	 * @return List<List<Map.Entry<Long, List<KmerCodesTableEntry>>>> Entries of each selected code grouped by partition
+	 */
+	private List<List<Map.Entry<Long, List<KmerCodesTableEntry>>>> selectCodesByPartition(int sequenceId, CharSequence sequence) {
 		int n = sequence.length();
 		String sequenceStr = sequence.toString();
 		int step = 500000;
@@ -206,14 +271,27 @@ public class ShortKmerCodesTable {
 			}
 		}
 		//log.info("Sequence "+sequenceId+" number of minimizers: "+codesSeq.size());
-		
-		synchronized (sequenceLengths) {
-			for(Map.Entry<Long, List<KmerCodesTableEntry>> codesEntry:codesSeq.entrySet()) {
-				if (codesEntry.getValue().size()== 0) continue;
-				addCodeSequence (codesEntry.getKey(), codesEntry.getValue());
+		List<List<Map.Entry<Long, List<KmerCodesTableEntry>>>> codesByPartition = new ArrayList<>(NUM_PARTITIONS);
+		for(int i=0;i<NUM_PARTITIONS;i++) codesByPartition.add(new ArrayList<>());
+		for(Map.Entry<Long, List<KmerCodesTableEntry>> codesEntry:codesSeq.entrySet()) {
+			if (codesEntry.getValue().size()== 0) continue;
+			codesByPartition.get((int)(mixCode(codesEntry.getKey())>>>(64-PARTITION_BITS))).add(codesEntry);
+		}
+		return codesByPartition;
+	}
+	private void addSequenceCodes(int sequenceId, int length, List<List<Map.Entry<Long, List<KmerCodesTableEntry>>>> codesByPartition) {
+		for(int i=0;i<NUM_PARTITIONS;i++) {
+			List<Map.Entry<Long, List<KmerCodesTableEntry>>> partitionCodes = codesByPartition.get(i);
+			if(partitionCodes.size()==0) continue;
+			CodesTablePartition partition = partitions[i];
+			synchronized (partition) {
+				for(Map.Entry<Long, List<KmerCodesTableEntry>> codesEntry:partitionCodes) {
+					partition.addCodeSequence (codesEntry.getKey(), codesEntry.getValue());
+				}
 			}
-			sequenceLengths.put(sequenceId, n);
-		}	
+		}
+		indexUpToDate = false;
+		sequenceLengths.put(sequenceId, length);
 	}
 
 	/**
@@ -319,6 +397,8 @@ public class ShortKmerCodesTable {
 			count = ((ShortArrayDNAKmersMapImpl)kmersMap).getCount(dnaHash & 0x3FFFFFFF);
 			//count = ((ShortArrayDNAKmersMapImpl)kmersMap).getCount(dnaHash);
 			//count = 20;
+		} else if (kmersMap instanceof PackedDNAKmersMapImpl && ((PackedDNAKmersMapImpl)kmersMap).getKmerLength()==kmerLength) {
+			count = ((PackedDNAKmersMapImpl)kmersMap).getCount(dnaHash);
 		} else {
 			String kmer = new String(AbstractLimitedSequence.getSequence(dnaHash, kmerLength, DNASequence.EMPTY_DNA_SEQUENCE));
 			count = kmersMap.getCount(kmer);
@@ -394,6 +474,7 @@ public class ShortKmerCodesTable {
 		}
 		if (queryIdx == idxDebug) System.out.println("Minimizers table. Counting hits for query. Codes: "+codes.size()+" unique: "+codesLocalCounts.size());
 		*/
+		buildCodesIndex();
 		int numUsedCodes = 0;
 		int notFoundCodes = 0;
 		int multihitCodes = 0;
@@ -402,7 +483,9 @@ public class ShortKmerCodesTable {
 			int startQuery = entry.getKey();
 			long kmerCode = entry.getValue();
 			//int count = codesLocalCounts.getOrDefault(kmerCode, 0);
-			int countSeqs = getCountDifferentSequences(kmerCode);
+			CodesTablePartition partition = getPartition(kmerCode);
+			int row = partition.getRow(kmerCode);
+			int countSeqs = row>=0?partition.codeCountDifferentSequences[row]:0;
 			//if (queryIdx == idxDebug && (countSeqs>10 || startQuery==0)) System.out.println("Minimizers table. For pos "+startQuery+" kmer: "+new String (DNASequence.getDNASequence(kmerCode, kmerLength))+" count sequences: "+countSeqs+" limit "+limitSequences);
 			if (queryIdx == idxDebug ) System.out.println("Minimizers table. For pos "+startQuery+" kmer: "+new String (DNASequence.getDNASequence(kmerCode, kmerLength))+" count sequences: "+countSeqs+" limit "+limitSequences);
 			if (countSeqs>limitSequences) {
@@ -410,15 +493,17 @@ public class ShortKmerCodesTable {
 				continue;
 			}
 			
-			long [] codesMatching = lookupHits(kmerCode);
-			if (queryIdx == idxDebug && startQuery==0) System.out.println("Minimizers table. For pos "+startQuery+" kmer: "+new String (DNASequence.getDNASequence(kmerCode, kmerLength))+" codes matching: "+codesMatching.length+" limit: "+(limitHitsPerSequence*countSeqs));
-			if(codesMatching.length>limitHitsPerSequence*countSeqs) {
+			int firstMatching = row>=0?partition.codeEntriesStarts[row]:0;
+			int numMatching = row>=0?partition.codeEntriesStarts[row+1]-firstMatching:0;
+			if (queryIdx == idxDebug && startQuery==0) System.out.println("Minimizers table. For pos "+startQuery+" kmer: "+new String (DNASequence.getDNASequence(kmerCode, kmerLength))+" codes matching: "+numMatching+" limit: "+(limitHitsPerSequence*countSeqs));
+			if(numMatching>limitHitsPerSequence*countSeqs) {
 				multihitCodes++;
 				continue;
 			}
-			else if(codesMatching.length>0) numUsedCodes++;
+			else if(numMatching>0) numUsedCodes++;
 			else notFoundCodes++;
-			for(long entryCode:codesMatching) {
+			for(int i=firstMatching;i<firstMatching+numMatching;i++) {
+				long entryCode = partition.codeEntries[i];
 				int [] dec = KmerCodesTableEntry.decode(entryCode);
 				int subjectIdx = dec[0];
 				if (queryIdx == idxDebug && startQuery==0) System.out.println("Minimizers table. For pos "+startQuery+" kmer: "+new String (DNASequence.getDNASequence(kmerCode, kmerLength))+" next match: "+subjectIdx+" start: "+dec[1]);
@@ -444,17 +529,23 @@ public class ShortKmerCodesTable {
 	private Set<Integer> preselectSubjectIds(int queryLength, int limitSequences, int limitHitsPerSequence, Map<Integer, Long> codes) {
 		int minHits = queryLength/100;
 		
+		buildCodesIndex();
 		Map<Integer,Integer> subjectHitCounts = new HashMap<>();
 		for(Map.Entry<Integer, Long> entry:codes.entrySet()) {
 			long kmerCode = entry.getValue();
 			//int count = codesLocalCounts.getOrDefault(kmerCode, 0);
-			int countSeqs = getCountDifferentSequences(kmerCode);
+			CodesTablePartition partition = getPartition(kmerCode);
+			int row = partition.getRow(kmerCode);
+			if(row<0) continue;
+			int countSeqs = partition.codeCountDifferentSequences[row];
 			if (countSeqs>limitSequences) continue;
 			
-			long [] codesMatching = lookupHits(kmerCode);
-			if(codesMatching.length>limitHitsPerSequence*countSeqs) continue;
+			int firstMatching = partition.codeEntriesStarts[row];
+			int lastMatching = partition.codeEntriesStarts[row+1];
+			if(lastMatching-firstMatching>limitHitsPerSequence*countSeqs) continue;
 			
-			for(long entryCode:codesMatching) {
+			for(int i=firstMatching;i<lastMatching;i++) {
+				long entryCode = partition.codeEntries[i];
 				int [] dec = KmerCodesTableEntry.decode(entryCode);
 				int subjectIdx = dec[0];
 				subjectHitCounts.compute(subjectIdx, (k,v)-> ((v!=null)?v+1:1));
@@ -491,16 +582,377 @@ public class ShortKmerCodesTable {
 	}
 	public Distribution calculateDistributionHits() {
 		Distribution dist = new Distribution(1, 300, 1);
-		int numCodes = size();
-		for(int i=0;i<numCodes;i++) {
-			dist.processDatapoint(sequencesByCodeTableColumnLengths[i]);	
+		for(CodesTablePartition partition:partitions) {
+			for(int i=0;i<partition.numCodes;i++) {
+				dist.processDatapoint(partition.codeCountHits[i]);	
+			}
 		}
 		return dist;
 	}
 
 	public long getTotalEntries() {
-		return totalEntries;
+		long answer = 0;
+		for(CodesTablePartition partition:partitions) answer+=partition.totalEntries;
+		return answer;
 	}
 	
+	/**
+	 * Saves this table in a versioned binary format that can be loaded with loadBinary.
+	 * The file starts with the magic bytes, the version and the parameters of the table, followed by the sequence lengths.
+	 * Then, the hash table, the counts and the consecutive entries of each partition are written as flat arrays aligned to 8 bytes.
+	 * Only tables built without a kmers map analyzer can be saved because the selection of codes otherwise depends on the analyzer
+	 * @param filename Path of the file to write
+	 * @throws IOException If the file can not be written
+	 */
+	public void saveBinary (String filename) throws IOException {
+		if(kmersAnalyzer!=null) throw new IOException("Tables built from a kmers map analyzer can not be saved");
+		buildCodesIndex();
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(BINARY_HEADER_SIZE).order(BINARY_BYTE_ORDER);
+			header.put(BINARY_FORMAT_MAGIC);
+			header.putInt(BINARY_FORMAT_VERSION);
+			header.putInt(kmerLength);
+			header.putInt(windowLength);
+			header.putInt(maxHitsKmerCode);
+			header.putInt(limitHitsPerSequence);
+			header.putInt(mode);
+			header.putInt(kmerDistModeLocalSD);
+			header.putInt(NUM_PARTITIONS);
+			header.putLong(sourceChecksum);
+			header.putInt(sequenceLengths.size());
+			header.putInt(0);
+			header.flip();
+			writeFully(channel, header);
+			int [] sequenceIds = new int [sequenceLengths.size()];
+			int [] lengths = new int [sequenceIds.length];
+			int i=0;
+			for(Map.Entry<Integer, Integer> entry:sequenceLengths.entrySet()) {
+				sequenceIds[i] = entry.getKey();
+				lengths[i] = entry.getValue();
+				i++;
+			}
+			writeInts(channel, sequenceIds, sequenceIds.length);
+			writeInts(channel, lengths, lengths.length);
+			for(CodesTablePartition partition:partitions) partition.saveBinary(channel);
+		}
+	}
 	
+	/**
+	 * Loads a table saved with saveBinary. The arrays of the table are read from memory mapped regions of the file
+	 * @param filename Path of the file to read
+	 * @return ShortKmerCodesTable Table saved in the given file
+	 * @throws IOException If the file can not be read or if it is not a valid table
+	 */
+	public static ShortKmerCodesTable loadBinary (String filename) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			if(channel.size()<BINARY_HEADER_SIZE) throw new IOException("File "+filename+" is not a valid kmer codes table");
+			ByteBuffer header = map(channel, 0, BINARY_HEADER_SIZE);
+			byte [] magic = new byte [BINARY_FORMAT_MAGIC.length];
+			header.get(magic);
+			if(!Arrays.equals(magic, BINARY_FORMAT_MAGIC)) throw new IOException("File "+filename+" is not a valid kmer codes table");
+			int version = header.getInt();
+			if(version!=BINARY_FORMAT_VERSION) throw new IOException("Unsupported binary kmer codes table version: "+version+". Expected version: "+BINARY_FORMAT_VERSION);
+			int kmerLength = header.getInt();
+			int windowLength = header.getInt();
+			ShortKmerCodesTable table = new ShortKmerCodesTable(kmerLength, windowLength, 0);
+			table.maxHitsKmerCode = header.getInt();
+			table.limitHitsPerSequence = header.getInt();
+			table.mode = header.getInt();
+			table.kmerDistModeLocalSD = header.getInt();
+			int numPartitions = header.getInt();
+			if(numPartitions!=NUM_PARTITIONS) throw new IOException("Inconsistent number of partitions: "+numPartitions+". Expected: "+NUM_PARTITIONS);
+			table.sourceChecksum = header.getLong();
+			int numSequences = header.getInt();
+			long position = BINARY_HEADER_SIZE;
+			int [] sequenceIds = new int [numSequences];
+			position = readInts(channel, position, sequenceIds);
+			int [] lengths = new int [numSequences];
+			position = readInts(channel, position, lengths);
+			for(int i=0;i<numSequences;i++) table.sequenceLengths.put(sequenceIds[i], lengths[i]);
+			for(CodesTablePartition partition:table.partitions) position = partition.loadBinary(channel, position);
+			if(position!=channel.size()) throw new IOException("Inconsistent binary kmer codes table size. Expected: "+position+" actual: "+channel.size());
+			return table;
+		}
+	}
+	
+	private static long padToWord(long size) {
+		return (size+7) & ~7L;
+	}
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) channel.write(buffer);
+	}
+	private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+		if(position+size>channel.size()) throw new IOException("Unexpected end of file reading kmer codes table at position "+position);
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(BINARY_BYTE_ORDER);
+	}
+	private static void writePadding(FileChannel channel, long size) throws IOException {
+		int padding = (int)(padToWord(size)-size);
+		if(padding>0) writeFully(channel, ByteBuffer.allocate(padding));
+	}
+	private static void writeLongs(FileChannel channel, long [] values, int n) throws IOException {
+		int chunkLength = BINARY_CHUNK_SIZE/8;
+		ByteBuffer buffer = ByteBuffer.allocate(8*Math.min(n, chunkLength)).order(BINARY_BYTE_ORDER);
+		for(int start=0;start<n;start+=chunkLength) {
+			int length = Math.min(chunkLength, n-start);
+			buffer.clear();
+			buffer.asLongBuffer().put(values, start, length);
+			buffer.limit(8*length);
+			writeFully(channel, buffer);
+		}
+	}
+	private static void writeInts(FileChannel channel, int [] values, int n) throws IOException {
+		int chunkLength = BINARY_CHUNK_SIZE/4;
+		ByteBuffer buffer = ByteBuffer.allocate(4*Math.min(n, chunkLength)).order(BINARY_BYTE_ORDER);
+		for(int start=0;start<n;start+=chunkLength) {
+			int length = Math.min(chunkLength, n-start);
+			buffer.clear();
+			buffer.asIntBuffer().put(values, start, length);
+			buffer.limit(4*length);
+			writeFully(channel, buffer);
+		}
+		writePadding(channel, 4L*n);
+	}
+	private static void writeShorts(FileChannel channel, short [] values, int n) throws IOException {
+		int chunkLength = BINARY_CHUNK_SIZE/2;
+		ByteBuffer buffer = ByteBuffer.allocate(2*Math.min(n, chunkLength)).order(BINARY_BYTE_ORDER);
+		for(int start=0;start<n;start+=chunkLength) {
+			int length = Math.min(chunkLength, n-start);
+			buffer.clear();
+			buffer.asShortBuffer().put(values, start, length);
+			buffer.limit(2*length);
+			writeFully(channel, buffer);
+		}
+		writePadding(channel, 2L*n);
+	}
+	private static long readLongs(FileChannel channel, long position, long [] values) throws IOException {
+		int chunkLength = BINARY_CHUNK_SIZE/8;
+		for(int start=0;start<values.length;start+=chunkLength) {
+			int length = Math.min(chunkLength, values.length-start);
+			LongBuffer buffer = map(channel, position+8L*start, 8L*length).asLongBuffer();
+			buffer.get(values, start, length);
+		}
+		return position+8L*values.length;
+	}
+	private static long readInts(FileChannel channel, long position, int [] values) throws IOException {
+		int chunkLength = BINARY_CHUNK_SIZE/4;
+		for(int start=0;start<values.length;start+=chunkLength) {
+			int length = Math.min(chunkLength, values.length-start);
+			map(channel, position+4L*start, 4L*length).asIntBuffer().get(values, start, length);
+		}
+		return padToWord(position+4L*values.length);
+	}
+	private static long readShorts(FileChannel channel, long position, short [] values, int n) throws IOException {
+		int chunkLength = BINARY_CHUNK_SIZE/2;
+		for(int start=0;start<n;start+=chunkLength) {
+			int length = Math.min(chunkLength, n-start);
+			map(channel, position+2L*start, 2L*length).asShortBuffer().get(values, start, length);
+		}
+		return padToWord(position+2L*n);
+	}
+	
+	/**
+	 * Hash table with the codes of one partition. Codes are mapped to rows with open addressing. Entries of all rows
+	 * are stored in one array. Modifications must be synchronized on the partition
+	 */
+	private class CodesTablePartition {
+		//Open addressing hash table with the codes as keys
+		private long [] hashCodes;
+		//Row assigned to each code of the hash table plus one. Zero for empty slots
+		private int [] hashRows;
+		private int numCodes = 0;
+		//Encoded entries of all codes stored consecutively. Entries of the code in row i are located from codeEntriesStarts[i] to codeEntriesStarts[i+1]-1
+		private long [] codeEntries = EMPTY_LONG_ARRAY;
+		private int [] codeEntriesStarts = new int [1];
+		//Entries added after the last build of the codes index and the rows of their codes
+		private long [] pendingEntries;
+		private int [] pendingEntriesRows;
+		private int numPendingEntries = 0;
+		//Total number of entries of each code
+		private short [] codeCountHits;
+		//Count of different sequences reporting each code
+		private short [] codeCountDifferentSequences;
+		private long totalEntries = 0;
+		
+		public CodesTablePartition(int capacity) {
+			capacity = Math.max(16, capacity);
+			int hashCapacity = 16;
+			while(hashCapacity<2*capacity && hashCapacity<MAX_HASH_CAPACITY) hashCapacity*=2;
+			hashCodes = new long [hashCapacity];
+			hashRows = new int [hashCapacity];
+			codeCountHits = new short [capacity];
+			codeCountDifferentSequences = new short [capacity];
+			pendingEntries = new long [capacity];
+			pendingEntriesRows = new int [capacity];
+		}
+		/**
+		 * Finds the row of the given code
+		 * @param code to search
+		 * @return int Row of the code or -1 if the code is not in the table
+		 */
+		public int getRow(long code) {
+			int mask = hashCodes.length-1;
+			int slot = (int)mixCode(code) & mask;
+			while(hashRows[slot]!=0) {
+				if(hashCodes[slot]==code) return hashRows[slot]-1;
+				slot = (slot+1) & mask;
+			}
+			return -1;
+		}
+		/**
+		 * Finds the row of the given code adding the code if it is not in the table
+		 * @param code to search
+		 * @return int Row of the code or -1 if the table is full
+		 */
+		private int getOrAddRow(long code) {
+			int row = getRow(code);
+			if(row>=0) return row;
+			if(2*(numCodes+1)>hashCodes.length && hashCodes.length<MAX_HASH_CAPACITY) resizeHash();
+			if(4L*(numCodes+1)>3L*hashCodes.length) {
+				log.warning("Reached maximum number of minimizers that can be saved "+numCodes);
+				return -1;
+			}
+			int mask = hashCodes.length-1;
+			int slot = (int)mixCode(code) & mask;
+			while(hashRows[slot]!=0) slot = (slot+1) & mask;
+			row = numCodes;
+			hashCodes[slot] = code;
+			hashRows[slot] = row+1;
+			numCodes++;
+			if(row==codeCountHits.length) {
+				int newCapacity = (int)Math.min(Integer.MAX_VALUE-8, 2L*row);
+				codeCountHits = Arrays.copyOf(codeCountHits, newCapacity);
+				codeCountDifferentSequences = Arrays.copyOf(codeCountDifferentSequences, newCapacity);
+			}
+			return row;
+		}
+		private void resizeHash() {
+			long [] oldCodes = hashCodes;
+			int [] oldRows = hashRows;
+			hashCodes = new long [2*oldCodes.length];
+			hashRows = new int [2*oldRows.length];
+			int mask = hashCodes.length-1;
+			for(int i=0;i<oldCodes.length;i++) {
+				if(oldRows[i]==0) continue;
+				int slot = (int)mixCode(oldCodes[i]) & mask;
+				while(hashRows[slot]!=0) slot = (slot+1) & mask;
+				hashCodes[slot] = oldCodes[i];
+				hashRows[slot] = oldRows[i];
+			}
+		}
+		public void addCodeSequence (long code, List<KmerCodesTableEntry> entries) {
+			int row = getOrAddRow(code);
+			if(row<0) return;
+			int currentCount = codeCountHits[row];
+			int newCount = currentCount+entries.size(); 
+			if (newCount<Short.MAX_VALUE && (maxHitsKmerCode==0 || newCount<maxHitsKmerCode)) {
+				if(totalEntries+entries.size()>MAX_ENTRIES) {
+					log.warning("Reached maximum number of entries that can be saved "+totalEntries);
+					return;
+				}
+				for (KmerCodesTableEntry entry:entries) addPendingEntry(row, entry.encode());
+				codeCountHits[row] = (short)newCount;
+				totalEntries+=entries.size();
+				codeCountDifferentSequences[row]++;
+			} 
+			//else System.out.println("Rejected codes for kmer: "+new String(DNASequence.getDNASequence(code, kmerLength))+" current count: "+currentCount+" new entries: "+entries.size());
+		}
+		private void addPendingEntry(int row, long value) {
+			if(numPendingEntries==pendingEntries.length) {
+				int newCapacity = (int)Math.min(MAX_ENTRIES, 2L*pendingEntries.length);
+				pendingEntries = Arrays.copyOf(pendingEntries, newCapacity);
+				pendingEntriesRows = Arrays.copyOf(pendingEntriesRows, newCapacity);
+			}
+			pendingEntries[numPendingEntries] = value;
+			pendingEntriesRows[numPendingEntries] = row;
+			numPendingEntries++;
+		}
+		/**
+		 * Saves this partition. The index must be up to date
+		 * @param channel to write the partition
+		 * @throws IOException If the data can not be written
+		 */
+		public void saveBinary(FileChannel channel) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(16).order(BINARY_BYTE_ORDER);
+			header.putInt(numCodes);
+			header.putInt(hashCodes.length);
+			header.putLong(codeEntries.length);
+			header.flip();
+			writeFully(channel, header);
+			writeLongs(channel, hashCodes, hashCodes.length);
+			writeInts(channel, hashRows, hashRows.length);
+			writeShorts(channel, codeCountHits, numCodes);
+			writeShorts(channel, codeCountDifferentSequences, numCodes);
+			writeInts(channel, codeEntriesStarts, numCodes+1);
+			writeLongs(channel, codeEntries, codeEntries.length);
+		}
+		/**
+		 * Loads the data of this partition from the given channel
+		 * @param channel to read the data
+		 * @param position of the partition within the channel
+		 * @return long Position of the channel after the data of this partition
+		 * @throws IOException If the data can not be read or if it is not consistent
+		 */
+		public long loadBinary(FileChannel channel, long position) throws IOException {
+			ByteBuffer header = map(channel, position, 16);
+			position+=16;
+			numCodes = header.getInt();
+			int hashCapacity = header.getInt();
+			long numEntries = header.getLong();
+			if(numCodes<0 || hashCapacity<=0 || Integer.bitCount(hashCapacity)!=1 || numCodes>hashCapacity || numEntries<0 || numEntries>MAX_ENTRIES) {
+				throw new IOException("Invalid partition of kmer codes table at position "+(position-16));
+			}
+			hashCodes = new long [hashCapacity];
+			position = readLongs(channel, position, hashCodes);
+			hashRows = new int [hashCapacity];
+			position = readInts(channel, position, hashRows);
+			int usedSlots = 0;
+			for(int i=0;i<hashCapacity;i++) {
+				if(hashRows[i]<0 || hashRows[i]>numCodes) throw new IOException("Invalid row "+hashRows[i]+" in hash table of partition with "+numCodes+" codes");
+				if(hashRows[i]>0) usedSlots++;
+			}
+			if(usedSlots!=numCodes) throw new IOException("Inconsistent hash table of partition. Used slots: "+usedSlots+" number of codes: "+numCodes);
+			//Leave room to add codes after loading
+			int capacity = Math.max(16, numCodes);
+			codeCountHits = new short [capacity];
+			position = readShorts(channel, position, codeCountHits, numCodes);
+			codeCountDifferentSequences = new short [capacity];
+			position = readShorts(channel, position, codeCountDifferentSequences, numCodes);
+			codeEntriesStarts = new int [numCodes+1];
+			position = readInts(channel, position, codeEntriesStarts);
+			//The index is rebuilt from the counts of hits if sequences are added after loading
+			if(codeEntriesStarts[0]!=0 || codeEntriesStarts[numCodes]!=numEntries) throw new IOException("Inconsistent starts of entries of partition with "+numEntries+" entries");
+			for(int i=0;i<numCodes;i++) {
+				if(codeEntriesStarts[i+1]<codeEntriesStarts[i]) throw new IOException("Decreasing starts of entries for rows "+i+" and "+(i+1));
+				if(codeEntriesStarts[i+1]-codeEntriesStarts[i]!=codeCountHits[i]) throw new IOException("Number of entries of row "+i+" does not match its count of hits");
+			}
+			codeEntries = new long [(int)numEntries];
+			position = readLongs(channel, position, codeEntries);
+			totalEntries = numEntries;
+			pendingEntries = new long [16];
+			pendingEntriesRows = new int [16];
+			numPendingEntries = 0;
+			return position;
+		}
+		public void buildIndex() {
+			if(numPendingEntries==0 && codeEntriesStarts.length==numCodes+1) return;
+			int [] newStarts = new int [numCodes+1];
+			for(int i=0;i<numCodes;i++) newStarts[i+1] = newStarts[i]+codeCountHits[i];
+			long [] newEntries = new long [newStarts[numCodes]];
+			int [] nextPositions = Arrays.copyOf(newStarts, numCodes);
+			int numIndexedCodes = codeEntriesStarts.length-1;
+			for(int i=0;i<numIndexedCodes;i++) {
+				int n = codeEntriesStarts[i+1]-codeEntriesStarts[i];
+				System.arraycopy(codeEntries, codeEntriesStarts[i], newEntries, nextPositions[i], n);
+				nextPositions[i]+=n;
+			}
+			for(int i=0;i<numPendingEntries;i++) {
+				newEntries[nextPositions[pendingEntriesRows[i]]++] = pendingEntries[i];
+			}
+			codeEntries = newEntries;
+			codeEntriesStarts = newStarts;
+			pendingEntries = new long [16];
+			pendingEntriesRows = new int [16];
+			numPendingEntries = 0;
+		}
+	}
 }
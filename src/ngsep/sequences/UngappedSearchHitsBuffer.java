@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.util.Arrays;
+
+/**
+ * Reusable buffer of primitive arrays to store the hits of a batch of queries.
+ * After a batch search, hits are grouped by query index in the order of the queries.
+ * Instances of this class are not thread safe and are meant to be reused by a single thread
+ * @author Jorge Duitama
+ */
+public class UngappedSearchHitsBuffer {
+	private int size = 0;
+	private int [] queryIdxs = new int [1000];
+	private int [] subjectIdxs = new int [1000];
+	private int [] subjectStarts = new int [1000];
+	// Spare arrays swapped with the hits arrays while grouping hits by query
+	private int [] spareSubjectIdxs = new int [1000];
+	private int [] spareSubjectStarts = new int [1000];
+
+	// Offsets of the hits of each query after grouping
+	private int numQueries = 0;
+	private int [] queryOffsets = new int [1];
+
+	// Workspace for batch searches
+	private int [] firstRows = new int [0];
+	private int [] lastRows = new int [0];
+	private int [] positions = new int [0];
+	private int [] queryHitCounts = new int [0];
+
+	/**
+	 * Removes the hits of this buffer and prepares it for the given number of queries
+	 * @param numQueries Number of queries of the next batch
+	 */
+	public void clear(int numQueries) {
+		this.size = 0;
+		this.numQueries = numQueries;
+		if(queryOffsets.length<numQueries+1) queryOffsets = new int [numQueries+1];
+		Arrays.fill(queryOffsets, 0, numQueries+1, 0);
+		if(queryHitCounts.length<numQueries) queryHitCounts = new int [numQueries];
+		Arrays.fill(queryHitCounts, 0, numQueries, 0);
+	}
+
+	/**
+	 * Adds a new hit to this buffer
+	 * @param queryIdx Index of the query within the batch
+	 * @param subjectIdx Index of the subject sequence
+	 * @param subjectStart Zero based start of the hit within the subject sequence
+	 */
+	public void addHit(int queryIdx, int subjectIdx, int subjectStart) {
+		if(size==queryIdxs.length) {
+			int newLength = 2*size;
+			queryIdxs = Arrays.copyOf(queryIdxs, newLength);
+			subjectIdxs = Arrays.copyOf(subjectIdxs, newLength);
+			subjectStarts = Arrays.copyOf(subjectStarts, newLength);
+		}
+		queryIdxs[size] = queryIdx;
+		subjectIdxs[size] = subjectIdx;
+		subjectStarts[size] = subjectStart;
+		queryHitCounts[queryIdx]++;
+		size++;
+	}
+
+	/**
+	 * Stable sort of the hits by query index. Hits of each query keep the order in which they were added
+	 */
+	void groupByQuery() {
+		for(int q=0;q<numQueries;q++) queryOffsets[q+1] = queryOffsets[q]+queryHitCounts[q];
+		int [] nextPos = Arrays.copyOf(queryOffsets, numQueries);
+		if(spareSubjectIdxs.length<queryIdxs.length) {
+			spareSubjectIdxs = new int [queryIdxs.length];
+			spareSubjectStarts = new int [queryIdxs.length];
+		}
+		int [] sortedSubjectIdxs = spareSubjectIdxs;
+		int [] sortedSubjectStarts = spareSubjectStarts;
+		for(int i=0;i<size;i++) {
+			int q = queryIdxs[i];
+			int j = nextPos[q]++;
+			sortedSubjectIdxs[j] = subjectIdxs[i];
+			sortedSubjectStarts[j] = subjectStarts[i];
+		}
+		for(int q=0;q<numQueries;q++) Arrays.fill(queryIdxs, queryOffsets[q], queryOffsets[q+1], q);
+		spareSubjectIdxs = subjectIdxs;
+		spareSubjectStarts = subjectStarts;
+		subjectIdxs = sortedSubjectIdxs;
+		subjectStarts = sortedSubjectStarts;
+	}
+
+	/**
+	 * @return int Total number of hits in this buffer
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return int Number of queries of the last batch
+	 */
+	public int getNumQueries() {
+		return numQueries;
+	}
+
+	/**
+	 * Returns the number of hits found for the given query
+	 * @param queryIdx Index of the query within the batch
+	 * @return int Number of hits of the query
+	 */
+	public int getQueryHitCount(int queryIdx) {
+		return queryHitCounts[queryIdx];
+	}
+
+	/**
+	 * @param queryIdx Index of the query within the batch
+	 * @return int Index in this buffer of the first hit of the given query
+	 */
+	public int getQueryFirstHit(int queryIdx) {
+		return queryOffsets[queryIdx];
+	}
+
+	/**
+	 * @param queryIdx Index of the query within the batch
+	 * @return int Index in this buffer after the last hit of the given query
+	 */
+	public int getQueryEndHit(int queryIdx) {
+		return queryOffsets[queryIdx+1];
+	}
+
+	public int getQueryIdx(int hitIdx) {
+		return queryIdxs[hitIdx];
+	}
+
+	public int getSubjectIdx(int hitIdx) {
+		return subjectIdxs[hitIdx];
+	}
+
+	public int getSubjectStart(int hitIdx) {
+		return subjectStarts[hitIdx];
+	}
+
+	int [] getFirstRowsWorkspace (int numQueries) {
+		if(firstRows.length<numQueries) firstRows = new int [numQueries];
+		return firstRows;
+	}
+
+	int [] getLastRowsWorkspace (int numQueries) {
+		if(lastRows.length<numQueries) lastRows = new int [numQueries];
+		return lastRows;
+	}
+
+	int [] getPositionsWorkspace (int numPositions) {
+		if(positions.length<numPositions) positions = new int [numPositions];
+		return positions;
+	}
+}
@@ -29,6 +29,7 @@ import java.util.logging.Logger;
 import ngsep.main.io.ConcatGZIPInputStream;
 import ngsep.sequences.DefaultKmersMapImpl;
 import ngsep.sequences.KmersMap;
+import ngsep.sequences.PackedDNAKmersMapImpl;
 import ngsep.sequences.ShortArrayDNAKmersMapImpl;
 
 /**
@@ -52,6 +53,8 @@ public class KmersMapLoader {
 		KmersMap kmersMap;
 		log.info("Loading k-mers map from : "+kmersMapFile);
 		if(kmerLength<=15) kmersMap = new ShortArrayDNAKmersMapImpl((byte) kmerLength);
+		//Files include k-mers of both strands if they were counted in both strands
+		else if(kmerLength<=31) kmersMap = new PackedDNAKmersMapImpl((byte) kmerLength, false);
 		else kmersMap = new DefaultKmersMapImpl();
 		try (FileInputStream fis = new FileInputStream(kmersMapFile)) {
 			InputStream is=fis;
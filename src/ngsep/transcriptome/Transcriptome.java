@@ -32,6 +32,7 @@ import java.util.logging.Logger;
 import ngsep.genome.GenomicRegion;
 import ngsep.genome.GenomicRegionPositionComparator;
 import ngsep.genome.GenomicRegionSortedCollection;
+import ngsep.genome.GenomicRegionSpanningCursor;
 import ngsep.genome.ReferenceGenome;
 import ngsep.sequences.DNAMaskedSequence;
 import ngsep.sequences.QualifiedSequence;
@@ -205,6 +206,13 @@ public class Transcriptome {
 	public List<Transcript> getAllTranscripts () {
 		return sortedTranscripts.asList();
 	}
+	/**
+	 * Creates a cursor to retrieve efficiently the transcripts spanning regions that are queried in sorted order
+	 * @return GenomicRegionSpanningCursor<Transcript> New cursor over the transcripts of this transcriptome
+	 */
+	public GenomicRegionSpanningCursor<Transcript> getTranscriptsCursor() {
+		return new GenomicRegionSpanningCursor<Transcript>(sortedTranscripts);
+	}
 	/**
 	 * Calculates the annotations for the given variant based on their alternative alleles
 	 * @param variant Genomic variant to annotate
@@ -212,11 +220,27 @@ public class Transcriptome {
 	 * @return List<GenomicVariantAnnotation> Functional annotations of the effect of the alternative alleles 
 	 */
 	public List<VariantFunctionalAnnotation> calculateAnnotations(GenomicVariant variant, VariantAnnotationParameters parameters) {
+		return calculateAnnotations(variant, parameters, null);
+	}
+	/**
+	 * Calculates the annotations for the given variant based on their alternative alleles
+	 * @param variant Genomic variant to annotate
+	 * @param parameters Object with the parameters to perform the annotation
+	 * @param transcriptsCursor Cursor to retrieve the transcripts close to the variant. It should be used when variants are annotated in sorted order.
+	 * If null, transcripts are retrieved directly from the transcriptome
+	 * @return List<GenomicVariantAnnotation> Functional annotations of the effect of the alternative alleles 
+	 */
+	public List<VariantFunctionalAnnotation> calculateAnnotations(GenomicVariant variant, VariantAnnotationParameters parameters, GenomicRegionSpanningCursor<Transcript> transcriptsCursor) {
 		List<VariantFunctionalAnnotation> annotations = new ArrayList<>();
 		int offsetUpstream = parameters.getOffsetUpstream();
 		int offsetDownstream = parameters.getOffsetDownstream();
 		int maxOffset = Math.max(offsetUpstream, offsetDownstream);
-		for(Transcript t:getTranscripts(variant.getSequenceName(), variant.getFirst()-maxOffset, variant.getLast()+maxOffset)) {
+		int first = variant.getFirst()-maxOffset;
+		int last = variant.getLast()+maxOffset;
+		Iterable<Transcript> transcripts;
+		if(transcriptsCursor!=null) transcripts = transcriptsCursor.findSpanningRegions(variant.getSequenceName(), first, last);
+		else transcripts = getTranscripts(variant.getSequenceName(), first, last);
+		for(Transcript t:transcripts) {
 			//if(variant.getFirst()==1096) System.err.println("Transcript: "+t.getId()+". Coding: "+t.isCoding()+". Reverse: "+t.isNegativeStrand()+" at "+t.getSequenceName()+": "+t.getFirst()+"-"+t.getLast());
 			TranscriptSegment segmentStart = t.getTranscriptSegmentByAbsolutePosition(variant.getFirst());
 			TranscriptSegment segmentEnd = t.getTranscriptSegmentByAbsolutePosition(variant.getLast());
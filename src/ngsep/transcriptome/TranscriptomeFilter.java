@@ -323,10 +323,10 @@ public class TranscriptomeFilter {
 		return true;
 	}
 	public boolean intersectWithRegions(Transcript transcript, GenomicRegionSortedCollection<GenomicRegion> regions) {
-		if(!intersectOnlyCoding) return regions.findSpanningRegions(transcript).size()>0;
+		if(!intersectOnlyCoding) return regions.hasSpanningRegions(transcript);
 		List<TranscriptSegment> segments = transcript.getTranscriptSegments();
 		for(TranscriptSegment segment:segments) {
-			if(segment.isCoding() && regions.findSpanningRegions(segment).size()>0) return true;
+			if(segment.isCoding() && regions.hasSpanningRegions(segment)) return true;
 		}
 		return false;
 	}
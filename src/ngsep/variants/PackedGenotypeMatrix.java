@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.variants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact matrix of genotype calls of biallelic variants. Each call is stored in two bits
+ * (homozygous reference, heterozygous, homozygous alternative or undecided) and each row is stored
+ * in consecutive 64-bit words of 32 calls each. Rows usually represent variants and columns represent samples.
+ * The transposed matrix has one row per sample, which allows to compare samples processing 32 variants per operation.
+ * Calls of variants that can not be represented with two bits, for example multiallelic variants,
+ * are kept as sparse extra information and their packed genotypes are undecided
+ * @author Jorge Duitama
+ */
+public class PackedGenotypeMatrix {
+	public static final byte GENOTYPE_HOMOREF = 0;
+	public static final byte GENOTYPE_HETERO = 1;
+	public static final byte GENOTYPE_HOMOALT = 2;
+	public static final byte GENOTYPE_UNDECIDED = 3;
+	public static final int GENOTYPES_PER_WORD = 32;
+	// Lowest bit of each two-bit genotype
+	private static final long LANES_MASK = 0x5555555555555555L;
+
+	private final int numColumns;
+	private final int wordsPerRow;
+	private long [] words;
+	private int numRows = 0;
+	private final List<GenomicVariant> variants = new ArrayList<>();
+	private final Map<Integer, List<CalledGenomicVariant>> extraCalls = new HashMap<>();
+
+	/**
+	 * Creates an empty matrix
+	 * @param numColumns Number of columns of the matrix, usually the number of samples
+	 */
+	public PackedGenotypeMatrix(int numColumns) {
+		this(numColumns, 16);
+	}
+
+	/**
+	 * Creates an empty matrix with memory for the given number of rows
+	 * @param numColumns Number of columns of the matrix, usually the number of samples
+	 * @param expectedRows Initial capacity in number of rows
+	 */
+	public PackedGenotypeMatrix(int numColumns, int expectedRows) {
+		this.numColumns = numColumns;
+		this.wordsPerRow = (numColumns+GENOTYPES_PER_WORD-1)/GENOTYPES_PER_WORD;
+		words = new long[Math.max(1, expectedRows)*wordsPerRow];
+	}
+
+	/**
+	 * @return int Number of rows of the matrix
+	 */
+	public int getNumRows() {
+		return numRows;
+	}
+
+	/**
+	 * @return int Number of columns of the matrix
+	 */
+	public int getNumColumns() {
+		return numColumns;
+	}
+
+	/**
+	 * @return int Number of 64-bit words used to store each row
+	 */
+	public int getWordsPerRow() {
+		return wordsPerRow;
+	}
+
+	/**
+	 * Adds a new row with all genotypes undecided
+	 * @return int Index of the new row
+	 */
+	public int addRow() {
+		if((numRows+1)*wordsPerRow>words.length) words = Arrays.copyOf(words, Math.max(2*words.length, (numRows+1)*wordsPerRow));
+		int start = numRows*wordsPerRow;
+		Arrays.fill(words, start, start+wordsPerRow, -1L);
+		return numRows++;
+	}
+
+	/**
+	 * Adds a row with the calls of the given variant. Calls are packed if the variant is biallelic.
+	 * Otherwise, the calls are kept as extra information and the packed genotypes of the row are undecided
+	 * @param variant Variant of the row
+	 * @param calls Calls for the variant. The size of the list must be equal to the number of columns
+	 * @return int Index of the new row
+	 */
+	public int addVariant(GenomicVariant variant, List<CalledGenomicVariant> calls) {
+		if(calls.size()!=numColumns) throw new IllegalArgumentException("Number of calls "+calls.size()+" for variant at "+variant.getSequenceName()+":"+variant.getFirst()+" does not match the number of columns "+numColumns);
+		int row = addRow();
+		variants.add(variant);
+		if(!variant.isBiallelic()) {
+			extraCalls.put(row, calls);
+			return row;
+		}
+		for(int j=0;j<numColumns;j++) {
+			setGenotype(row, j, encode(calls.get(j)));
+		}
+		return row;
+	}
+
+	/**
+	 * @param row Index of a row added with addVariant
+	 * @return GenomicVariant Variant of the given row
+	 */
+	public GenomicVariant getVariant(int row) {
+		return variants.get(row);
+	}
+
+	/**
+	 * @param row Index of the row
+	 * @return boolean true if the genotypes of the row are packed. False if the calls are stored as extra information
+	 */
+	public boolean isPacked(int row) {
+		return !extraCalls.containsKey(row);
+	}
+
+	/**
+	 * @param row Index of the row
+	 * @return List<CalledGenomicVariant> Calls of a row that could not be packed. Null if the row is packed
+	 */
+	public List<CalledGenomicVariant> getExtraCalls(int row) {
+		return extraCalls.get(row);
+	}
+
+	/**
+	 * @param row Index of the row
+	 * @param column Index of the column
+	 * @return byte Genotype code at the given position. One of the GENOTYPE constants of this class
+	 */
+	public byte getGenotype(int row, int column) {
+		long word = words[row*wordsPerRow+column/GENOTYPES_PER_WORD];
+		return (byte)((word>>>(2*(column%GENOTYPES_PER_WORD))) & 3);
+	}
+
+	/**
+	 * Changes the genotype at the given position
+	 * @param row Index of the row
+	 * @param column Index of the column
+	 * @param genotype Genotype code. One of the GENOTYPE constants of this class
+	 */
+	public void setGenotype(int row, int column, byte genotype) {
+		int idx = row*wordsPerRow+column/GENOTYPES_PER_WORD;
+		int shift = 2*(column%GENOTYPES_PER_WORD);
+		words[idx] = (words[idx] & ~(3L<<shift)) | ((long)(genotype & 3)<<shift);
+	}
+
+	/**
+	 * Returns a word with 32 packed genotypes. Positions after the last column are undecided
+	 * @param row Index of the row
+	 * @param wordIndex Index of the word within the row
+	 * @return long Packed genotypes of the columns from 32*wordIndex to 32*wordIndex+31
+	 */
+	public long getWord(int row, int wordIndex) {
+		return words[row*wordsPerRow+wordIndex];
+	}
+
+	/**
+	 * Builds the transposed matrix. Only packed genotypes are transposed. Variants and extra calls are not kept
+	 * @return PackedGenotypeMatrix Matrix in which rows are the columns of this matrix
+	 */
+	public PackedGenotypeMatrix transpose() {
+		PackedGenotypeMatrix answer = new PackedGenotypeMatrix(numRows, numColumns);
+		for(int j=0;j<numColumns;j++) answer.addRow();
+		for(int i=0;i<numRows;i++) {
+			for(int j=0;j<numColumns;j++) {
+				byte genotype = getGenotype(i, j);
+				if(genotype!=GENOTYPE_UNDECIDED) answer.setGenotype(j, i, genotype);
+			}
+		}
+		return answer;
+	}
+
+	/**
+	 * Calculates the packed code of the given call
+	 * @param call Genotype call of a biallelic variant
+	 * @return byte Genotype code. One of the GENOTYPE constants of this class
+	 */
+	public static byte encode(CalledGenomicVariant call) {
+		if(call.isUndecided()) return GENOTYPE_UNDECIDED;
+		if(call.isHomozygousReference()) return GENOTYPE_HOMOREF;
+		if(call.isHeterozygous()) return GENOTYPE_HETERO;
+		return GENOTYPE_HOMOALT;
+	}
+
+	/**
+	 * Bit-parallel selection of the called genotypes of a word
+	 * @param word Packed genotypes
+	 * @return long Word with the lowest bit of each two-bit genotype set if the genotype is not undecided
+	 */
+	public static long getCalledLanes(long word) {
+		return LANES_MASK & ~(word & (word>>>1));
+	}
+
+	/**
+	 * Bit-parallel selection of the homozygous reference genotypes of a word
+	 * @param word Packed genotypes
+	 * @return long Word with the lowest bit of each two-bit genotype set if the genotype is homozygous reference
+	 */
+	public static long getHomozygousReferenceLanes(long word) {
+		return LANES_MASK & ~(word | (word>>>1));
+	}
+
+	/**
+	 * Bit-parallel selection of the heterozygous genotypes of a word
+	 * @param word Packed genotypes
+	 * @return long Word with the lowest bit of each two-bit genotype set if the genotype is heterozygous
+	 */
+	public static long getHeterozygousLanes(long word) {
+		return LANES_MASK & word & ~(word>>>1);
+	}
+
+	/**
+	 * Bit-parallel selection of the homozygous alternative genotypes of a word
+	 * @param word Packed genotypes
+	 * @return long Word with the lowest bit of each two-bit genotype set if the genotype is homozygous alternative
+	 */
+	public static long getHomozygousAlternativeLanes(long word) {
+		return LANES_MASK & ~word & (word>>>1);
+	}
+}
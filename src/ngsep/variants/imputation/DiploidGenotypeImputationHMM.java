@@ -22,6 +22,11 @@ package ngsep.variants.imputation;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ngsep.hmm.RecombinationHMM;
 import ngsep.math.LogMath;
@@ -32,6 +37,7 @@ import ngsep.variants.CalledSNV;
 public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 	
 	private int startsBaumWelch = HaplotypeClustersHMM.DEF_STARTS_BAUM_WELCH;
+	private int numThreads = 1;
 	
 	private HaplotypeClustersHMM haploidBaseHMM;
 	public DiploidGenotypeImputationHMM(HaplotypeClustersHMM baseHMM, List<? extends HaplotypePairHMMState> states, int numMarkers, List<Integer> positions) {
@@ -93,6 +99,11 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 		haploidBaseHMM.setTrainingData(trainingData);
 	}
 	
+	public void setRandom(Random random) {
+		super.setRandom(random);
+		haploidBaseHMM.setRandom(random);
+	}
+	
 	public int getStartsBaumWelch() {
 		return startsBaumWelch;
 	}
@@ -100,6 +111,18 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 	public void setStartsBaumWelch(int startsBaumWelch) {
 		this.startsBaumWelch = startsBaumWelch;
 	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	/**
+	 * Sets the number of threads to calculate posteriors and Viterbi paths of the samples after each training
+	 * @param numThreads Number of threads. Results do not depend on this value
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
 
 	public void imputeGenotypes (Map<String, List<CalledSNV>> genotypes, int [][][] outClusters) {
 		List<String> sampleIds = new ArrayList<String>();
@@ -112,32 +135,50 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 		double [][][] sumGenotypeProbs = new double [n][m][3];
 		double [][][] nextGenotypeProbs = new double [n][m][3];
 		
-		double [][] nextPosteriorsSample = new double [m][k];
-		int [] nextViterbiPathSample = new int [m];
 		for(int i=0;i<n;i++) {
 			NumberArrays.initializeDoubleMatrix(sumGenotypeProbs[i]);
 		}
-		for(int h=0;h<startsBaumWelch;h++) {
-			getLog().info("Training and sampling iteration: "+h);
-			train();
-			getLog().info("Model trained");
-			for(int i=0;i<n;i++) {
-				String sampleId = sampleIds.get(i);
-				List<CalledSNV> genotypesSample = genotypes.get(sampleId);
-				calculateGenotypePosteriors(genotypesSample, nextGenotypeProbs[i]);
-				NumberArrays.accumulate(sumGenotypeProbs[i],nextGenotypeProbs[i]);
-				
-				//State posteriors for assignments
-				calculatePosteriors(genotypesSample, nextPosteriorsSample);
-				
-				//Best viterbi path
-				getViterbiPath(genotypesSample, nextViterbiPathSample);
-				
-				//Conciliate viterbi with posterior
-				assignClusters (sampleId, genotypesSample, nextPosteriorsSample,nextViterbiPathSample,outClusters[h][i]);
-				getLog().info("Calculated posteriors for sample: "+sampleId);
-				
+		//Starts are sequential because each start retrains this HMM drawing from one source of random numbers
+		//Samples only modify their own calls. Hence, they can be processed in parallel after each training
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			for(int h=0;h<startsBaumWelch;h++) {
+				getLog().info("Training and sampling iteration: "+h);
+				train();
+				getLog().info("Model trained");
+				int [][] outClustersStart = outClusters[h];
+				List<Future<?>> tasks = new ArrayList<>(numThreads);
+				for(int t=0;t<numThreads;t++) {
+					int firstSample = t;
+					tasks.add(pool.submit(()->{
+						double [][] nextPosteriorsSample = new double [m][k];
+						int [] nextViterbiPathSample = new int [m];
+						for(int i=firstSample;i<n;i+=numThreads) {
+							String sampleId = sampleIds.get(i);
+							List<CalledSNV> genotypesSample = genotypes.get(sampleId);
+							calculateGenotypePosteriors(genotypesSample, nextGenotypeProbs[i]);
+							NumberArrays.accumulate(sumGenotypeProbs[i],nextGenotypeProbs[i]);
+							
+							//State posteriors for assignments
+							calculatePosteriors(genotypesSample, nextPosteriorsSample);
+							
+							//Best viterbi path
+							getViterbiPath(genotypesSample, nextViterbiPathSample);
+							
+							//Conciliate viterbi with posterior
+							assignClusters (sampleId, genotypesSample, nextPosteriorsSample,nextViterbiPathSample,outClustersStart[i]);
+							getLog().info("Calculated posteriors for sample: "+sampleId);
+						}
+					}));
+				}
+				for(Future<?> task:tasks) task.get();
 			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Concurrence error calculating posteriors of samples",e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error calculating posteriors of samples",e.getCause());
+		} finally {
+			pool.shutdownNow();
 		}
 		//Map<String,List<Integer>> assignments = new TreeMap<String, List<Integer>>();
 		for(int i=0;i<n;i++) {
@@ -186,24 +227,23 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 	public void calculateGenotypePosteriors(List<CalledSNV> genotypes, double[][] genotypePosteriors) {
 		int m = genotypes.size();
 		int k = getNumStates();
-		Double [][] forwardLogs=calculateForward(genotypes);
-		Double [][] backwardLogs=calculateBackward(genotypes);
+		runForwardBackward(genotypes);
 		for(int i=0;i<m;i++) {
-			Double log0 = null;
-			Double log1 = null;
-			Double log2 = null;
+			double log0 = Double.NEGATIVE_INFINITY;
+			double log1 = Double.NEGATIVE_INFINITY;
+			double log2 = Double.NEGATIVE_INFINITY;
 			for(int j=0;j<k;j++) {
-				Double fTimesB = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i][j]);
-				log0 = LogMath.logSum(log0, LogMath.logProduct(fTimesB, getEmission(j, CalledSNV.GENOTYPE_HOMOREF, i)));
-				log1 = LogMath.logSum(log1, LogMath.logProduct(fTimesB, getEmission(j, CalledSNV.GENOTYPE_HETERO, i)));
-				log2 = LogMath.logSum(log2, LogMath.logProduct(fTimesB, getEmission(j, CalledSNV.GENOTYPE_HOMOALT, i)));
+				double fTimesB = getLastForwardLog(i, j) + getLastBackwardLog(i, j);
+				log0 = LogMath.logSumPrimitive(log0, fTimesB + getLogEmission(j, CalledSNV.GENOTYPE_HOMOREF, i));
+				log1 = LogMath.logSumPrimitive(log1, fTimesB + getLogEmission(j, CalledSNV.GENOTYPE_HETERO, i));
+				log2 = LogMath.logSumPrimitive(log2, fTimesB + getLogEmission(j, CalledSNV.GENOTYPE_HOMOALT, i));
 			}
 			//Normalize and raise to calculate final probabilities of genotypes
-			Double logSum = LogMath.logSum(log0, log1);
-			logSum = LogMath.logSum(logSum, log2);
-			double prob0 = LogMath.power10(LogMath.logProduct(log0, -logSum));
-			double prob1 = LogMath.power10(LogMath.logProduct(log1, -logSum));
-			double prob2 = LogMath.power10(LogMath.logProduct(log2, -logSum));
+			double logSum = LogMath.logSumPrimitive(log0, log1);
+			logSum = LogMath.logSumPrimitive(logSum, log2);
+			double prob0 = LogMath.power10(log0 - logSum);
+			double prob1 = LogMath.power10(log1 - logSum);
+			double prob2 = LogMath.power10(log2 - logSum);
 			double sum = prob0 + prob1 + prob2;
 			prob0/=sum;
 			prob1/=sum;
@@ -22,6 +22,10 @@ package ngsep.variants.imputation;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ngsep.math.NumberArrays;
 import ngsep.math.PhredScoreHelper;
@@ -31,6 +35,7 @@ import ngsep.variants.CalledSNV;
 public class GenotypeImputationHMM extends HaplotypeClustersHMM {
 	
 	private int startsBaumWelch = HaplotypeClustersHMM.DEF_STARTS_BAUM_WELCH;
+	private int numThreads = 1;
 	
 	public GenotypeImputationHMM(List<? extends HaplotypeClusterHMMState> states, int numMarkers) {
 		super(states, numMarkers);
@@ -60,6 +65,18 @@ public class GenotypeImputationHMM extends HaplotypeClustersHMM {
 	public void setStartsBaumWelch(int startsBaumWelch) {
 		this.startsBaumWelch = startsBaumWelch;
 	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	/**
+	 * Sets the number of threads to calculate posteriors and Viterbi paths of the samples after each training
+	 * @param numThreads Number of threads. Results do not depend on this value
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
 
 	/**
 	 * Impute the given set of genotypes assuming they are inbreds
@@ -75,33 +92,52 @@ public class GenotypeImputationHMM extends HaplotypeClustersHMM {
 		if(m!=getSteps()) throw new IllegalArgumentException("Number of variants: "+m+" in the set of genotypes does not coincide with steps of the HMM: "+getSteps());
 		double [][][] sumAlleleProbs = new double [n][m][2];
 		double [][][] nextAlleleProbs = new double [n][m][2];
-		double [][] nextPosteriorsSample = new double [m][k];
-		int [] nextViterbiPathSample = new int [m];
 		for(int i=0;i<n;i++) {
 			NumberArrays.initializeDoubleMatrix(sumAlleleProbs[i]);
 		}
-		for(int h=0;h<startsBaumWelch;h++) {
-			NumberArrays.initializeIntMatrix(outClusters[h]);
-			getLog().info("Training and sampling iteration: "+h);
-			train();
-			for(int i=0;i<n;i++) {
-				String sampleId = sampleIds.get(i);
-				List<CalledSNV> genotypesSample = genotypes.get(sampleId);
-				List<Byte> haplotype = makeHaplotypeWithHomozygous(genotypesSample);
-				
-				//Allele posteriors for genotyping
-				calculateAllelePosteriors(haplotype, nextAlleleProbs[i]);
-				NumberArrays.accumulate(sumAlleleProbs[i],nextAlleleProbs[i]);
-				
-				//State posteriors for assignments
-				calculatePosteriors(haplotype, nextPosteriorsSample);
-				
-				//Best viterbi path
-				getViterbiPath(haplotype, nextViterbiPathSample);
-				
-				//Conciliate viterbi with posterior
-				assignClusters (sampleId,genotypesSample, nextPosteriorsSample, nextViterbiPathSample, outClusters[h][i]);
+		//Starts are sequential because each start retrains this HMM drawing from one source of random numbers
+		//Samples are independent of each other. Hence, they can be processed in parallel after each training
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			for(int h=0;h<startsBaumWelch;h++) {
+				NumberArrays.initializeIntMatrix(outClusters[h]);
+				getLog().info("Training and sampling iteration: "+h);
+				train();
+				int [][] outClustersStart = outClusters[h];
+				List<Future<?>> tasks = new ArrayList<>(numThreads);
+				for(int t=0;t<numThreads;t++) {
+					int firstSample = t;
+					tasks.add(pool.submit(()->{
+						double [][] nextPosteriorsSample = new double [m][k];
+						int [] nextViterbiPathSample = new int [m];
+						for(int i=firstSample;i<n;i+=numThreads) {
+							String sampleId = sampleIds.get(i);
+							List<CalledSNV> genotypesSample = genotypes.get(sampleId);
+							List<Byte> haplotype = makeHaplotypeWithHomozygous(genotypesSample);
+							
+							//Allele posteriors for genotyping
+							calculateAllelePosteriors(haplotype, nextAlleleProbs[i]);
+							NumberArrays.accumulate(sumAlleleProbs[i],nextAlleleProbs[i]);
+							
+							//State posteriors for assignments
+							calculatePosteriors(haplotype, nextPosteriorsSample);
+							
+							//Best viterbi path
+							getViterbiPath(haplotype, nextViterbiPathSample);
+							
+							//Conciliate viterbi with posterior
+							assignClusters (sampleId,genotypesSample, nextPosteriorsSample, nextViterbiPathSample, outClustersStart[i]);
+						}
+					}));
+				}
+				for(Future<?> task:tasks) task.get();
 			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Concurrence error calculating posteriors of samples",e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error calculating posteriors of samples",e.getCause());
+		} finally {
+			pool.shutdownNow();
 		}
 		for(int i=0;i<n;i++) {
 			String sampleId = sampleIds.get(i);
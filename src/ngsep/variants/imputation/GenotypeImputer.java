@@ -27,6 +27,7 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.logging.Logger;
@@ -53,6 +54,7 @@ public class GenotypeImputer {
 	public static final int DEF_WINDOW_SIZE = 5000;
 	public static final int DEF_OVERLAP = 50;
 	public static final double DEF_AVG_CM_PER_KBP = 0.001;
+	public static final int DEF_NUM_THREADS = 1;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(GenotypeImputer.class.getName());
@@ -70,9 +72,12 @@ public class GenotypeImputer {
 	private boolean skipTransitionsTraining = false;
 	private boolean inbredParents = false;
 	private boolean inbredSamples = false;
+	private int numThreads = DEF_NUM_THREADS;
+	private Long seed = null;
 	
 	// Model attributes
 	private PrintStream outAssignments;
+	private Random random = null;
 	 
 	// Get and set methods
 	public Logger getLog() {
@@ -182,6 +187,32 @@ public class GenotypeImputer {
 		this.setInbredSamples(inbredSamples.booleanValue());
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public Long getSeed() {
+		return seed;
+	}
+	/**
+	 * Sets the seed for the random initialization of the HMMs. Runs with the same seed produce
+	 * the same output regardless of the number of threads
+	 * @param seed Seed for random numbers. If null, a different seed is used in each run
+	 */
+	public void setSeed(Long seed) {
+		this.seed = seed;
+	}
+	public void setSeed(String value) {
+		setSeed((Long)OptionValuesDecoder.decode(value, Long.class));
+	}
+
 	public PrintStream getOutAssignments() {
 		return outAssignments;
 	}
@@ -227,6 +258,8 @@ public class GenotypeImputer {
 		if(skipTransitionsTraining) out.println("Transitions will not be modified during the HMM training");
 		if(inbredParents) out.println("Parents of the population are assumed to be inbred");
 		if(inbredSamples) out.println("Samples of the population are assumed to be inbred. All imputed genotype calls will be homozygous");
+		out.println("Number of threads: "+numThreads);
+		if(seed!=null) out.println("Seed for random numbers: "+seed);
 		log.info(""+os.toString());
 	}
 	public void impute(String filename, PrintStream outGenotypes) throws IOException {
@@ -245,6 +278,8 @@ public class GenotypeImputer {
 		header.addMissingEntries();
 		writer.printHeader(header,outGenotypes);
 		List<Sample> samples = header.getSamples();
+		//All windows draw random numbers from one generator, which makes runs with the same seed reproducible
+		random = createRandom();
 		String lastSeqName = null;
 		Iterator<VCFRecord> it = reader.iterator();
 		while(it.hasNext()) {
@@ -328,6 +363,7 @@ public class GenotypeImputer {
 
 	public void imputeGenotypes(Map<String,List<CalledSNV>> genotypes) {
 		progress = 0;
+		if(random==null) random = createRandom();
 		if(inbredSamples) imputeGenotypesHMMInbreds(genotypes);
 		else  imputeGenotypesHMMDiploid(genotypes);
 	}
@@ -338,6 +374,8 @@ public class GenotypeImputer {
 		hmm.setAvgCMPerKbp(avgCMPerKbp);
 		hmm.setSkipTransitionsTraining(skipTransitionsTraining);
 		hmm.setTrainingData(makeTrainingDataWithHomozygous(genotypes));
+		hmm.setRandom(random);
+		hmm.setNumThreads(numThreads);
 		if(progressNotifier!=null) {
 			progress++;
 			if(!progressNotifier.keepRunning(progress)) return;
@@ -356,6 +394,8 @@ public class GenotypeImputer {
 		hmm.setSkipTransitionsTraining(skipTransitionsTraining);
 		hmm.setLog(log);
 		hmm.setTrainingData(makeTrainingDataWithHomozygous(genotypes));
+		hmm.setRandom(random);
+		hmm.setNumThreads(numThreads);
 		
 		if(progressNotifier!=null) {
 			progress++;
@@ -368,6 +408,11 @@ public class GenotypeImputer {
 		if(outAssignments!=null) printClusters(genotypes.keySet(),snvs,outClusters[0],hmm);
 	}
 	
+	private Random createRandom() {
+		if(seed!=null) return new Random(seed);
+		return new Random();
+	}
+	
 	private void printClusters(Set<String>sampleIds, List<CalledSNV> snvs, int [][] outClusters,RecombinationHMM hmm) {
 		int m = hmm.getSteps();
 		outAssignments.print("Chr\tPos");
@@ -117,7 +117,15 @@ public class HaplotypeClusterHMMState implements HMMState {
 		this.id = id;
 	}
 	public void setRandomEmissions(boolean updateKnownSites) {
-		Random r = new Random();
+		setRandomEmissions(updateKnownSites, new Random());
+	}
+	/**
+	 * Assigns random allele probabilities
+	 * @param updateKnownSites True if probabilities should be updated for sites in which the
+	 * haplotype was provided as an input
+	 * @param r Source of random numbers
+	 */
+	public void setRandomEmissions(boolean updateKnownSites, Random r) {
 		for(int i=0;i<haplotype.length;i++) {
 			if(updateKnownSites || haplotype[i]==-1) {
 				double d = r.nextDouble()*0.8 + 0.1;
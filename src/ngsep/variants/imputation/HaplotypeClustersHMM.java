@@ -36,7 +36,7 @@ public class HaplotypeClustersHMM extends RecombinationHMM {
 	@Override
 	protected void randomizeEmissions(int numState) {
 		HaplotypeClusterHMMState state = (HaplotypeClusterHMMState) getState(numState);
-		state.setRandomEmissions(updateEmissionKnownSites);
+		state.setRandomEmissions(updateEmissionKnownSites, getRandom());
 	}
 
 	@Override
@@ -74,22 +74,19 @@ public class HaplotypeClustersHMM extends RecombinationHMM {
 		Byte b1 = 1;
 		int m = haplotype.size();
 		int k = getNumStates();
-		Double [][] forwardLogs=calculateForward(haplotype);
-		Double [][] backwardLogs=calculateBackward(haplotype);
-		//calculateForward(haplotype, forwardLogs);
-		//calculateBackward(haplotype, backwardLogs);
+		runForwardBackward(haplotype);
 		for(int i=0;i<m;i++) {
-			Double log0 = null;
-			Double log1 = null;
+			double log0 = Double.NEGATIVE_INFINITY;
+			double log1 = Double.NEGATIVE_INFINITY;
 			for(int j=0;j<k;j++) {
-				Double fTimesB = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i][j]);
-				log0 = LogMath.logSum(log0, LogMath.logProduct(fTimesB, getEmission(j, b0, i)));
-				log1 = LogMath.logSum(log1, LogMath.logProduct(fTimesB, getEmission(j, b1, i)));
+				double fTimesB = getLastForwardLog(i, j) + getLastBackwardLog(i, j);
+				log0 = LogMath.logSumPrimitive(log0, fTimesB + getLogEmission(j, b0, i));
+				log1 = LogMath.logSumPrimitive(log1, fTimesB + getLogEmission(j, b1, i));
 			}
 			//Normalize and raise to calculate final probabilities of genotypes
-			Double logSum = LogMath.logSum(log0, log1);
-			double prob0 = LogMath.power10(LogMath.logProduct(log0, -logSum));
-			double prob1 = LogMath.power10(LogMath.logProduct(log1, -logSum));
+			double logSum = LogMath.logSumPrimitive(log0, log1);
+			double prob0 = LogMath.power10(log0 - logSum);
+			double prob1 = LogMath.power10(log1 - logSum);
 			double sum = prob0 + prob1;
 			prob0/=sum;
 			prob1/=sum;
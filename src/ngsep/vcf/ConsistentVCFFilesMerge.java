@@ -30,6 +30,7 @@ import java.util.logging.Logger;
 
 import ngsep.genome.GenomicRegionComparator;
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
 import ngsep.sequences.QualifiedSequenceList;
 import ngsep.sequences.io.SimpleSequenceListLoader;
@@ -45,6 +46,7 @@ import ngsep.variants.Sample;
  */
 public class ConsistentVCFFilesMerge {
 	// Constants for default values
+	public static final int DEF_NUM_THREADS = 1;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(IndividualSampleVariantsMerge.class.getName());
@@ -54,6 +56,7 @@ public class ConsistentVCFFilesMerge {
 	private String sequenceNamesFile = null;
 	private String outputFile = null;
 	private List<String> vcfFiles = new ArrayList<String>();
+	private int numThreads = DEF_NUM_THREADS;
 	
 	// Get and set methods
 	public Logger getLog() {
@@ -85,6 +88,16 @@ public class ConsistentVCFFilesMerge {
 		this.outputFile = outputFile;
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public static void main(String[] args) throws Exception {
 		ConsistentVCFFilesMerge instance = new ConsistentVCFFilesMerge();
 		int i = CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -105,58 +118,80 @@ public class ConsistentVCFFilesMerge {
 		log.info("Process finished");
 	}
 	public void mergeFiles(QualifiedSequenceList sequenceNames, List<String> vcfFiles, String outputFile) throws IOException {
-		try (PrintStream out = new PrintStream(outputFile)) {
-			mergeFiles(sequenceNames, vcfFiles, out);
+		try (ParallelVCFFileWriter writer = new ParallelVCFFileWriter(outputFile, numThreads)) {
+			mergeFiles(sequenceNames, vcfFiles, writer);
 		}
 	}
 
 	public void mergeFiles(QualifiedSequenceList sequenceNames, List<String> vcfFiles, PrintStream out) throws IOException {
-		VCFFileWriter writer = new VCFFileWriter();
+		try (ParallelVCFFileWriter writer = new ParallelVCFFileWriter(out, numThreads)) {
+			mergeFiles(sequenceNames, vcfFiles, writer);
+		}
+	}
+	/**
+	 * Merges the given files writing the merged records with the given writer
+	 * @param sequenceNames Names of the sequences in the order of the files
+	 * @param vcfFiles Files to merge
+	 * @param writer Writer of the merged records
+	 * @throws IOException If the files can not be read or written
+	 */
+	public void mergeFiles(QualifiedSequenceList sequenceNames, List<String> vcfFiles, ParallelVCFFileWriter writer) throws IOException {
 		List<VCFFileReader> readers = new ArrayList<VCFFileReader>();
 		List<Iterator<VCFRecord>> iterators = new ArrayList<Iterator<VCFRecord>>();
 		VCFFileHeader outHeader = VCFFileHeader.makeDefaultEmptyHeader();
 		VCFRecord [] calls = new VCFRecord [vcfFiles.size()];
 		int [] samplesPerFile = new int[vcfFiles.size()];
-		for(int i=0;i<vcfFiles.size();i++) {
-			VCFFileReader reader = new VCFFileReader(vcfFiles.get(i));
-			reader.setLog(log);
-			readers.add(reader);
-			addFilesamples(reader,outHeader);
-			samplesPerFile[i] = reader.getHeader().getSamples().size();
-			Iterator<VCFRecord> it = reader.iterator();
-			if(it.hasNext()) calls[i] = it.next();
-			else calls[i] = null;
-			iterators.add(it);
-		}
-		GenomicVariantStrictComparator comparator = new GenomicVariantStrictComparator(new GenomicRegionComparator(sequenceNames));
-		comparator.setLog(log);
-		writer.printHeader(outHeader, out);
-		int n=0;
-		while (true){
-			VCFRecord record = createNextRecord(iterators,calls,samplesPerFile,comparator,outHeader);
-			if(record == null) break;
-			boolean save = false;
-			for(CalledGenomicVariant cv:record.getCalls()) {
-				if(!cv.isUndecided()) {
-					save = true;
-					break;
-				}
+		//Threads are distributed among the readers to avoid creating a large pool for each file
+		int readerThreads = Math.max(1, numThreads/Math.max(1, vcfFiles.size()));
+		//Readers are closed on failures to stop their thread pools
+		try {
+			for(int i=0;i<vcfFiles.size();i++) {
+				VCFFileReader reader = new VCFFileReader(vcfFiles.get(i), readerThreads);
+				reader.setLog(log);
+				readers.add(reader);
+				addFilesamples(reader,outHeader);
+				samplesPerFile[i] = reader.getHeader().getSamples().size();
+				Iterator<VCFRecord> it = reader.iterator();
+				if(it.hasNext()) calls[i] = it.next();
+				else calls[i] = null;
+				iterators.add(it);
 			}
-			if(save) {
-				writer.printVCFRecord(record, out);
+			GenomicVariantStrictComparator comparator = new GenomicVariantStrictComparator(new GenomicRegionComparator(sequenceNames));
+			comparator.setLog(log);
+			writer.printHeader(outHeader);
+			int n=0;
+			while (true){
+				VCFRecord record = createNextRecord(iterators,calls,samplesPerFile,comparator,outHeader);
+				if(record == null) break;
+				boolean save = false;
+				for(CalledGenomicVariant cv:record.getCalls()) {
+					if(!cv.isUndecided()) {
+						save = true;
+						break;
+					}
+				}
+				if(save) {
+					writer.printVCFRecord(record);
+				}
+				n++;
+				if (progressNotifier!=null && n%1000==0) {
+					int progress = n/1000;
+					if (!progressNotifier.keepRunning(progress)) {
+						writer.flush();
+						return;
+					}
+				}
 			}
-			n++;
-			if (progressNotifier!=null && n%1000==0) {
-				int progress = n/1000;
-				if (!progressNotifier.keepRunning(progress)) {
-					for(VCFFileReader reader:readers) reader.close();
-					out.flush();
-					return;
+			writer.flush();
+		} finally {
+			for(VCFFileReader reader:readers) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					log.warning("Error closing VCF file reader. "+e.getMessage());
 				}
 			}
 		}
-		for(VCFFileReader reader:readers) reader.close();
-		
 	}
 	private void addFilesamples(VCFFileReader reader, VCFFileHeader outHeader) {
 		VCFFileHeader inHeader = reader.getHeader();
@@ -19,23 +19,29 @@
  *******************************************************************************/
 package ngsep.vcf;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
-import ngsep.genome.GenomicRegionComparator;
 import ngsep.genome.GenomicRegionPositionComparator;
 import ngsep.genome.GenomicRegionSortedCollection;
 import ngsep.genome.GenomicRegionSpanComparator;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.ProgressNotifier;
-import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 import ngsep.sequences.io.SimpleSequenceListLoader;
 import ngsep.variants.GenomicVariant;
@@ -101,116 +107,128 @@ public class IndividualSampleVariantsMerge {
 		SimpleSequenceListLoader seqNameHandler = new SimpleSequenceListLoader();
 		QualifiedSequenceList sequenceNames = seqNameHandler.loadSequences(sequenceNamesFile);
 		log.info("Loaded "+sequenceNames.size()+" sequence names from file "+sequenceNamesFile);
-		GenomicRegionSortedCollection<GenomicVariant> variants = mergeVariants(vcfFiles,sequenceNames);
-		log.info("Merged variants. Total "+variants.size());
-		printVariants(outputFile, variants);
+		VCFFileWriter writer = new VCFFileWriter();
+		int n;
+		try (PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(outputFile)))){
+			VCFFileHeader header = VCFFileHeader.makeDefaultEmptyHeader();
+			writer.printHeader(header,out);
+			n = mergeVariants(vcfFiles, sequenceNames, (variant)->writer.printVCFRecord(new VCFRecord(variant, VCFRecord.DEF_FORMAT_ARRAY_NONE, new ArrayList<>(), header), out));
+		}
+		log.info("Merged variants. Total "+n);
 	}
-
+	
+	/**
+	 * Merges the variants of the given files in memory
+	 * @param vcfFiles VCF files to merge. Files must be sorted following the order of the given sequence names
+	 * @param sequenceNames Names of the reference sequences
+	 * @return GenomicRegionSortedCollection<GenomicVariant> Merged variants
+	 * @throws IOException If the files can not be read or if they are not sorted
+	 */
 	public GenomicRegionSortedCollection<GenomicVariant> mergeVariants(List<String> vcfFiles, QualifiedSequenceList sequenceNames) throws IOException {
-		log.info("Loading and merging variants");
-		GenomicRegionComparator comparator = new GenomicRegionComparator(sequenceNames);
 		GenomicRegionSortedCollection<GenomicVariant> variants = new GenomicRegionSortedCollection<GenomicVariant>(sequenceNames);
-		List<GenomicRegionSortedCollection<GenomicVariant>> consolidatedPerSample = new ArrayList<GenomicRegionSortedCollection<GenomicVariant>>();
-		int n=0;
-		for(String f:vcfFiles) {
-			log.info("Merging variants from file: "+f); 
-			//TODO: Add SVs
-			List <GenomicVariant> sampleVariants = VCFFileReader.loadVariants(f,true,true);
-			log.info("Loaded "+sampleVariants.size()+" variants");
-			consolidatedPerSample.add(mergeVariants (variants,sampleVariants,comparator));
-			log.info("Merged variants from file: "+f+". Total variants: "+variants.size());
-			n++;
-			if (progressNotifier!=null) {
-				if (!progressNotifier.keepRunning(n)) return new GenomicRegionSortedCollection<GenomicVariant>();
-			}
-		}
-		log.info("Merging variants in the same location");
-		variants = mergeOverlappingVariants(variants,consolidatedPerSample);
-		log.info("Variants after last merging: "+variants.size());
+		mergeVariants(vcfFiles, sequenceNames, variants::add);
 		return variants;
 	}
-	
-	private GenomicRegionSortedCollection<GenomicVariant> mergeVariants(GenomicRegionSortedCollection<GenomicVariant> variants,List <GenomicVariant> sampleVariants, GenomicRegionComparator comparator ) throws IOException {
-		List<GenomicVariant> answerList = new ArrayList<GenomicVariant>();
-		List<GenomicVariant> variantsList = variants.asList();
-		int i=0;
-		int j=0;
-		while(j<sampleVariants.size()) {
-			GenomicVariant c2 = sampleVariants.get(j);
-			if(i<variantsList.size()) {
-				GenomicVariant c1 = variantsList.get(i);
-				int cmp = comparator.compare(c1, c2);
-				if(cmp<0) {
-					i++;
-				} else if (cmp==0) {
-					boolean add = true;
-					for(int k=i;k<variantsList.size();k++) {
-						GenomicVariant c3 = variantsList.get(k);
-						int cmp2 = comparator.compare(c3, c2);
-						if(cmp2==0 && c3.isCompatible(c2)) {
-							add = false;
-							if(c3.getVariantQS()<c2.getVariantQS()) c3.setVariantQS(c2.getVariantQS());
-							answerList.add(c3);
-							break;
-						} else if (cmp2!=0) {
-							break;
-						}
-					}
-					if(add) {
-						variants.add(c2);
-						answerList.add(c2);
-					}
-					i++;
-					j++;
-				} else {
-					variants.add(c2);
-					answerList.add(c2);
-					j++;
-				}
-			} else {
-				variants.add(c2);
-				answerList.add(c2);
-				j++;
-			}
-		}
-		GenomicRegionSortedCollection<GenomicVariant> answer = new GenomicRegionSortedCollection<GenomicVariant>(variants.getSequenceNames());
-		answer.addAll(answerList);
-		return answer;
-	}
 
-	private GenomicRegionSortedCollection<GenomicVariant> mergeOverlappingVariants(GenomicRegionSortedCollection<GenomicVariant> variants,List<GenomicRegionSortedCollection<GenomicVariant>> consolidatedPerSample) {
-		QualifiedSequenceList names = variants.getSequenceNames();
-		GenomicRegionSortedCollection<GenomicVariant> answer = new GenomicRegionSortedCollection<GenomicVariant>(names);
-		for(QualifiedSequence seq:names) {
-			GenomicRegionSortedCollection<GenomicVariant> seqVariants = variants.getSequenceRegions(seq.getName());
+	/**
+	 * Merges the variants of the given files reading the files simultaneously. The next variant of each file
+	 * is kept in a priority queue and merged variants are sent to the given consumer in sorted order
+	 * as soon as each cluster of overlapping variants is complete. Memory is proportional to the number of files
+	 * times the number of variants in a cluster, and not to the total number of variants
+	 * @param vcfFiles VCF files to merge. Files must be sorted following the order of the given sequence names
+	 * @param sequenceNames Names of the reference sequences. Names not included in this list are added
+	 * in order of appearance
+	 * @param output Receives the merged variants in sorted order
+	 * @return int Number of merged variants
+	 * @throws IOException If the files can not be read or if they are not sorted
+	 */
+	public int mergeVariants(List<String> vcfFiles, QualifiedSequenceList sequenceNames, Consumer<GenomicVariant> output) throws IOException {
+		log.info("Loading and merging variants from "+vcfFiles.size()+" files");
+		List<VCFFileReader> readers = new ArrayList<VCFFileReader>();
+		PriorityQueue<SampleVariantsCursor> queue = new PriorityQueue<SampleVariantsCursor>();
+		int merged = 0;
+		try {
+			for(int i=0;i<vcfFiles.size();i++) {
+				String f = vcfFiles.get(i);
+				VCFFileReader in = new VCFFileReader(f);
+				readers.add(in);
+				in.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
+				SampleVariantsCursor cursor = new SampleVariantsCursor(f, i, in.iterator(), sequenceNames);
+				if(cursor.advance()) queue.add(cursor);
+			}
+			//Current cluster of overlapping variants and variants of each sample within the cluster
 			List<GenomicVariant> overlappingVariants = new ArrayList<GenomicVariant>();
+			Map<Integer,List<GenomicVariant>> overlappingVariantsPerSample = new TreeMap<Integer, List<GenomicVariant>>();
+			int sequenceIndex = -1;
 			int first = -1;
 			int last = -1;
-			for(GenomicVariant variant:seqVariants) {
-				//System.out.println("Next Variant "+variant.getSequenceName()+":"+variant.getFirst()+" "+variant.getReference()+" "+variant.getAlleles()[1]);
-				if(overlappingVariants.size() > 0 && !GenomicRegionSpanComparator.getInstance().span(variant, first, last)) {
-					answer.addAll(mergeOverlappingVariants(overlappingVariants,first,last,consolidatedPerSample));
+			long n = 0;
+			while(!queue.isEmpty()) {
+				SampleVariantsCursor cursor = queue.poll();
+				GenomicVariant variant = cursor.getVariant();
+				if(overlappingVariants.size() > 0 && (cursor.getSequenceIndex()!=sequenceIndex || !GenomicRegionSpanComparator.getInstance().span(variant, first, last))) {
+					merged+=mergeOverlappingVariants(overlappingVariants, first, last, overlappingVariantsPerSample.values(), output);
 					overlappingVariants.clear();
+					overlappingVariantsPerSample.clear();
 				}
-				overlappingVariants.add(variant);
-				if(overlappingVariants.size()==1) {
-					first = variant.getFirst();
-					last = variant.getLast();
-				} else if(last<variant.getLast()) last =variant.getLast();
+				GenomicVariant consolidated = findCompatibleVariant(overlappingVariants, variant);
+				if(consolidated==null) {
+					consolidated = variant;
+					overlappingVariants.add(variant);
+					if(overlappingVariants.size()==1) {
+						sequenceIndex = cursor.getSequenceIndex();
+						first = variant.getFirst();
+						last = variant.getLast();
+					} else if(last<variant.getLast()) last = variant.getLast();
+				} else if (consolidated.getVariantQS()<variant.getVariantQS()) consolidated.setVariantQS(variant.getVariantQS());
+				overlappingVariantsPerSample.computeIfAbsent(cursor.getSampleIndex(), (k)->new ArrayList<GenomicVariant>()).add(consolidated);
+				if(cursor.advance()) queue.add(cursor);
+				n++;
+				if (progressNotifier!=null && n%10000==0 && !progressNotifier.keepRunning((int)(n/10000))) return merged;
 			}
 			if(overlappingVariants.size() > 0) {
-				answer.addAll(mergeOverlappingVariants(overlappingVariants,first,last,consolidatedPerSample));
+				merged+=mergeOverlappingVariants(overlappingVariants, first, last, overlappingVariantsPerSample.values(), output);
 			}
+			log.info("Processed "+n+" variants from "+vcfFiles.size()+" files");
+		} finally {
+			for(VCFFileReader in:readers) in.close();
 		}
-		return answer;
+		return merged;
+	}
+	
+	/**
+	 * Finds a variant compatible with the given variant among the variants of the cluster located at the same coordinates.
+	 * Variants at the same coordinates are always at the end of the cluster
+	 * @param overlappingVariants Current cluster of overlapping variants sorted by position
+	 * @param variant New variant
+	 * @return GenomicVariant First compatible variant with the same coordinates. null if none is found
+	 */
+	private GenomicVariant findCompatibleVariant(List<GenomicVariant> overlappingVariants, GenomicVariant variant) {
+		int i = overlappingVariants.size();
+		while(i>0) {
+			GenomicVariant v = overlappingVariants.get(i-1);
+			if(v.getFirst()!=variant.getFirst() || v.getLast()!=variant.getLast()) break;
+			i--;
+		}
+		for(;i<overlappingVariants.size();i++) {
+			GenomicVariant v = overlappingVariants.get(i);
+			if(v.isCompatible(variant)) return v;
+		}
+		return null;
+	}
+	
+	private int mergeOverlappingVariants(List<GenomicVariant> overlappingVariants, int first, int last, Collection<List<GenomicVariant>> overlappingVariantsPerSample, Consumer<GenomicVariant> output) {
+		List<GenomicVariant> mergedVariants = mergeOverlappingVariants(overlappingVariants, first, last, overlappingVariantsPerSample);
+		for(GenomicVariant variant:mergedVariants) output.accept(variant);
+		return mergedVariants.size();
 	}
 	//PRE: list is not empty and only have overlapping variants in the same sequence; first is the start of the first variant
-	private List<GenomicVariant> mergeOverlappingVariants(List<GenomicVariant> overlappingVariants, int first, int last, List<GenomicRegionSortedCollection<GenomicVariant>> consolidatedPerSample ) {
+	private List<GenomicVariant> mergeOverlappingVariants(List<GenomicVariant> overlappingVariants, int first, int last, Collection<List<GenomicVariant>> overlappingVariantsPerSample) {
 		if(overlappingVariants.size()<=1) return overlappingVariants;
 		log.info("Merging "+overlappingVariants.size()+" overlapping variants at "+overlappingVariants.get(0).getSequenceName()+": "+first+"-"+last);
 		List<GenomicVariant> answer = new ArrayList<GenomicVariant>();
 		answer.addAll(extractSNVs(overlappingVariants));
-		if(first < last || containsIndels(overlappingVariants)) answer.add(buildMultiallelicIndel(overlappingVariants,first, last, consolidatedPerSample));
+		if(first < last || containsIndels(overlappingVariants)) answer.add(buildMultiallelicIndel(overlappingVariants,first, last, overlappingVariantsPerSample));
 		Collections.sort(answer,GenomicRegionPositionComparator.getInstance());
 		return answer;
 	}
@@ -279,7 +297,7 @@ public class IndividualSampleVariantsMerge {
 	}
 	
 	//PRE: list is not empty and only have overlapping variants in the same sequence; first is the start of the first variant
-	private GenomicVariant buildMultiallelicIndel(List<GenomicVariant> overlappingVariants, int first, int last, List<GenomicRegionSortedCollection<GenomicVariant>> consolidatedPerSample) {
+	private GenomicVariant buildMultiallelicIndel(List<GenomicVariant> overlappingVariants, int first, int last, Collection<List<GenomicVariant>> overlappingVariantsPerSample) {
 		log.info("Creating multiallelic indel");
 		String reference = buildReferenceFromVariants (overlappingVariants,first);
 		String seqName = overlappingVariants.get(0).getSequenceName();
@@ -291,15 +309,15 @@ public class IndividualSampleVariantsMerge {
 			type = GenomicVariantImpl.mergeType(type, var.getType());
 		}
 		//Create one mutated allele per sample assuming that all alternative alleles appear at the same haplotype
-		for(GenomicRegionSortedCollection<GenomicVariant> varsSample:consolidatedPerSample) {
-			GenomicRegionSortedCollection<GenomicVariant> sampleVarsRegion = varsSample.findSpanningRegions(seqName, first, last);
+		//All variants of each sample spanning the region are part of the cluster
+		for(List<GenomicVariant> sampleVarsRegion:overlappingVariantsPerSample) {
 			int nVarsReg = sampleVarsRegion.size(); 
 			//log.info("Creating allele from "+sampleVarsRegion.size()+" sample variants");
 			if(nVarsReg>1 ) {
 				String allele = makeAlternativeAllele(reference, first, sampleVarsRegion);
 				if(allele!=null) sortedAlleles.add(allele);
 			} else if (nVarsReg==1) {
-				GenomicVariant varSample = sampleVarsRegion.asList().get(0);
+				GenomicVariant varSample = sampleVarsRegion.get(0);
 				String [] varAlleles = varSample.getAlleles();
 				for(int i=1;i<varAlleles.length;i++) {
 					String allele = makeAlternativeAllele(reference, first, varAlleles[i], varSample.getFirst(),varSample.getLast());
@@ -335,7 +353,7 @@ public class IndividualSampleVariantsMerge {
 		return answer.toString();
 	}
 
-	private String makeAlternativeAllele(String reference, int first, GenomicRegionSortedCollection<GenomicVariant> variants) {
+	private String makeAlternativeAllele(String reference, int first, List<GenomicVariant> variants) {
 		if(variants==null || variants.size()==0) return null;
 		StringBuilder answer = new StringBuilder();
 		int next = first;
@@ -376,6 +394,64 @@ public class IndividualSampleVariantsMerge {
 		return refAllele.toString();
 	}
 	
+	/**
+	 * Keeps the next variant of one of the files to merge
+	 */
+	private static class SampleVariantsCursor implements Comparable<SampleVariantsCursor> {
+		private final String filename;
+		private final int sampleIndex;
+		private final Iterator<VCFRecord> iterator;
+		private final QualifiedSequenceList sequenceNames;
+		private GenomicVariant variant = null;
+		private int sequenceIndex = -1;
+		
+		public SampleVariantsCursor(String filename, int sampleIndex, Iterator<VCFRecord> iterator, QualifiedSequenceList sequenceNames) {
+			this.filename = filename;
+			this.sampleIndex = sampleIndex;
+			this.iterator = iterator;
+			this.sequenceNames = sequenceNames;
+		}
+		public int getSampleIndex() {
+			return sampleIndex;
+		}
+		public GenomicVariant getVariant() {
+			return variant;
+		}
+		public int getSequenceIndex() {
+			return sequenceIndex;
+		}
+		/**
+		 * Moves to the next variant of the file skipping reference sites and structural variants
+		 * @return boolean true if a new variant was loaded, false if the file ended
+		 * @throws IOException If the file is not sorted
+		 */
+		public boolean advance() throws IOException {
+			while(iterator.hasNext()) {
+				GenomicVariant next = iterator.next().getVariant();
+				if(next.getAlleles().length<2) continue;
+				//TODO: Add SVs
+				if(next.isStructural()) continue;
+				int nextSeqIdx = sequenceNames.indexOf(next.getSequenceName());
+				if(nextSeqIdx<0) nextSeqIdx = sequenceNames.indexOf(sequenceNames.addOrLookupName(next.getSequenceName()).getName());
+				if(variant!=null && (nextSeqIdx<sequenceIndex || (nextSeqIdx==sequenceIndex && GenomicRegionPositionComparator.getInstance().compare(next, variant)<0))) {
+					throw new IOException("File "+filename+" is not sorted. Variant at "+next.getSequenceName()+":"+next.getFirst()+" found after variant at "+variant.getSequenceName()+":"+variant.getFirst());
+				}
+				variant = next;
+				sequenceIndex = nextSeqIdx;
+				return true;
+			}
+			variant = null;
+			return false;
+		}
+		@Override
+		public int compareTo(SampleVariantsCursor o) {
+			if(sequenceIndex!=o.sequenceIndex) return sequenceIndex-o.sequenceIndex;
+			int cmp = GenomicRegionPositionComparator.getInstance().compare(variant, o.variant);
+			if(cmp!=0) return cmp;
+			return sampleIndex-o.sampleIndex;
+		}
+	}
+	
 	public void printVariants(String outFile, GenomicRegionSortedCollection<GenomicVariant> variants) throws IOException {
 		VCFFileWriter writer = new VCFFileWriter();
 		
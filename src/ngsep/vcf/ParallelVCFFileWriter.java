@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import ngsep.main.io.ParallelBGZFOutputStream;
+
+/**
+ * Writer of VCF records that formats batches of records in parallel and writes them in the order in which they are submitted.
+ * If the output file name ends with .gz, the output is BGZF compressed in parallel and a tabix index is written
+ * next to the file when the writer is closed. Records should not be modified after they are submitted to this writer
+ * @author Jorge Duitama
+ */
+public class ParallelVCFFileWriter implements Closeable {
+	public static final String INDEX_SUFFIX = ".tbi";
+	private static final int RECORDS_PER_BATCH = 200;
+
+	private Logger log = Logger.getLogger(ParallelVCFFileWriter.class.getName());
+	private final OutputStream out;
+	private final boolean closeOutput;
+	private final ExecutorService executor;
+	// Single thread executor used for compression if records are formatted in the calling thread
+	private ExecutorService compressExecutor = null;
+	private final int maxPendingBatches;
+	private final Deque<Future<FormattedBatch>> pendingBatches = new ArrayDeque<>();
+	private List<VCFRecord> currentBatch = new ArrayList<>(RECORDS_PER_BATCH);
+	private final VCFFileWriter formatter = new VCFFileWriter();
+
+	//Attributes to build the tabix index of compressed files
+	private ParallelBGZFOutputStream bgzfOut = null;
+	private String indexFile = null;
+	private TabixIndexCreator indexCreator = null;
+	private final Deque<IndexedRecord> recordsToIndex = new ArrayDeque<>();
+	private boolean closed = false;
+
+	/**
+	 * Creates a writer over the given stream. The stream is flushed but not closed when this writer is closed
+	 * @param out Stream to write the records
+	 * @param numThreads Number of threads to format records
+	 */
+	public ParallelVCFFileWriter(OutputStream out, int numThreads) {
+		this.out = out;
+		this.closeOutput = false;
+		this.executor = createExecutor(numThreads);
+		this.maxPendingBatches = 2*numThreads;
+	}
+
+	/**
+	 * Creates a writer for the given file. If the file name ends with .gz, the output is BGZF compressed
+	 * and a tabix index with the name of the file plus the suffix .tbi is created
+	 * @param filename Name of the output file
+	 * @param numThreads Number of threads to format and compress records
+	 * @throws IOException If the file can not be created
+	 */
+	public ParallelVCFFileWriter(String filename, int numThreads) throws IOException {
+		this.closeOutput = true;
+		this.executor = createExecutor(numThreads);
+		this.maxPendingBatches = 2*numThreads;
+		OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(filename));
+		if(filename.endsWith(".gz")) {
+			if(executor==null) compressExecutor = Executors.newSingleThreadExecutor();
+			bgzfOut = new ParallelBGZFOutputStream(fileOut, executor!=null?executor:compressExecutor, 4*numThreads);
+			indexFile = filename+INDEX_SUFFIX;
+			indexCreator = new TabixIndexCreator(TabixFormat.VCF);
+			this.out = bgzfOut;
+		} else {
+			this.out = fileOut;
+		}
+	}
+
+	/**
+	 * Creates the tabix index of an existing BGZF compressed VCF file. The index is saved
+	 * with the name of the file plus the suffix .tbi
+	 * @param filename Name of the compressed VCF file. Records must be sorted by sequence and position
+	 * @throws IOException If the file can not be read, it is not BGZF compressed or records are not sorted
+	 */
+	public static void createIndex(String filename) throws IOException {
+		File file = new File(filename);
+		try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			if(!BlockCompressedInputStream.isValidFile(in)) throw new IOException("File "+filename+" is not BGZF compressed");
+		}
+		TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.VCF);
+		try (BlockCompressedInputStream in = new BlockCompressedInputStream(file)) {
+			long pointer = in.getFilePointer();
+			String line = in.readLine();
+			while(line!=null) {
+				if(line.length()>0 && line.charAt(0)!='#') {
+					String [] items = line.split("\t", 9);
+					if(items.length<8) throw new IOException("Can not index line: "+line+". VCF records must have at least 8 columns");
+					int first = Integer.parseInt(items[1]);
+					int last = first+items[3].length()-1;
+					//Structural variants span until the position in the END info field
+					String info = items[7];
+					int endIdx = info.startsWith("END=")?0:info.indexOf(";END=");
+					if(endIdx>=0) {
+						int start = info.indexOf('=',endIdx)+1;
+						int end = info.indexOf(';',start);
+						if(end<0) end = info.length();
+						last = Math.max(last, Integer.parseInt(info.substring(start, end)));
+					}
+					try {
+						indexCreator.addFeature(new SimpleFeature(items[0], first, last), pointer);
+					} catch (IllegalArgumentException e) {
+						throw new IOException("Can not index file "+filename+". "+e.getMessage(),e);
+					}
+				}
+				pointer = in.getFilePointer();
+				line = in.readLine();
+			}
+			indexCreator.finalizeIndex(pointer).write(new File(filename+INDEX_SUFFIX));
+		} catch (NumberFormatException e) {
+			throw new IOException("Can not index file "+filename+". Invalid position "+e.getMessage(),e);
+		}
+	}
+
+	private static ExecutorService createExecutor(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Invalid number of threads: "+numThreads);
+		if(numThreads==1) return null;
+		return Executors.newFixedThreadPool(numThreads);
+	}
+
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	/**
+	 * Writes the header. It should be called before submitting records
+	 * @param header to write
+	 * @throws IOException If the header can not be written
+	 */
+	public void printHeader(VCFFileHeader header) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream printer = new PrintStream(bytes);
+		formatter.printHeader(header, printer);
+		printer.flush();
+		out.write(bytes.toByteArray());
+	}
+
+	/**
+	 * Submits a record to be written
+	 * @param record to write
+	 * @throws IOException If there are errors writing previous records
+	 */
+	public void printVCFRecord(VCFRecord record) throws IOException {
+		currentBatch.add(record);
+		if(currentBatch.size()==RECORDS_PER_BATCH) submitBatch();
+	}
+
+	/**
+	 * Submits a list of records to be written
+	 * @param records to write
+	 * @throws IOException If there are errors writing previous records
+	 */
+	public void printVCFRecords(List<VCFRecord> records) throws IOException {
+		for(VCFRecord record:records) printVCFRecord(record);
+	}
+
+	/**
+	 * Writes all submitted records. If the output is compressed, remaining data is only written when the writer is closed
+	 * @throws IOException If the records can not be written
+	 */
+	public void flush() throws IOException {
+		if(currentBatch.size()>0) submitBatch();
+		while(!pendingBatches.isEmpty()) writeNextBatch();
+		out.flush();
+	}
+
+	/**
+	 * Writes all submitted records and the index if the output is compressed
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		closed = true;
+		try {
+			try {
+				flush();
+				if(bgzfOut!=null) bgzfOut.close();
+				else if (closeOutput) out.close();
+			} catch (IOException|RuntimeException e) {
+				closeOutputAfterError(e);
+				throw e;
+			}
+			if(bgzfOut!=null) {
+				addRecordsToIndex();
+				if(indexCreator!=null) {
+					Index index = indexCreator.finalizeIndex(bgzfOut.getVirtualFilePointer(bgzfOut.getUncompressedPosition()));
+					index.write(new File(indexFile));
+				}
+			}
+		} finally {
+			if(executor!=null) executor.shutdownNow();
+			if(compressExecutor!=null) compressExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Closes the output if the remaining records could not be written. Errors closing the output are added to the given error
+	 * @param error Error writing the remaining records or closing the output
+	 */
+	private void closeOutputAfterError(Exception error) {
+		try {
+			if(bgzfOut!=null) bgzfOut.close();
+			else if (closeOutput) out.close();
+		} catch (IOException|RuntimeException e) {
+			error.addSuppressed(e);
+		}
+		if(indexCreator!=null) {
+			log.warning("Index for file "+indexFile+" will not be created because the file is incomplete. "+error.getMessage());
+			dropIndex();
+		}
+	}
+
+	private void submitBatch() throws IOException {
+		List<VCFRecord> batch = currentBatch;
+		currentBatch = new ArrayList<>(RECORDS_PER_BATCH);
+		if(executor == null) {
+			writeBatch(formatBatch(batch, formatter));
+			return;
+		}
+		pendingBatches.add(executor.submit(()->formatBatch(batch, new VCFFileWriter())));
+		while(pendingBatches.size()>maxPendingBatches) writeNextBatch();
+	}
+
+	private void writeNextBatch() throws IOException {
+		FormattedBatch batch;
+		try {
+			batch = pendingBatches.removeFirst().get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted formatting VCF records",e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new IOException("Error formatting VCF records",cause);
+		}
+		writeBatch(batch);
+	}
+
+	private FormattedBatch formatBatch(List<VCFRecord> batch, VCFFileWriter formatter) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream printer = new PrintStream(bytes);
+		FormattedBatch answer = new FormattedBatch(batch.size());
+		for(int i=0;i<batch.size();i++) {
+			VCFRecord record = batch.get(i);
+			formatter.printVCFRecord(record, printer);
+			printer.flush();
+			answer.recordEnds[i] = bytes.size();
+			if(indexCreator!=null) answer.records[i] = new IndexedRecord(record.getSequenceName(), record.getFirst(), record.getLast());
+		}
+		answer.data = bytes.toByteArray();
+		return answer;
+	}
+
+	private void writeBatch(FormattedBatch batch) throws IOException {
+		if(bgzfOut!=null && indexCreator!=null) {
+			long start = bgzfOut.getUncompressedPosition();
+			for(int i=0;i<batch.records.length;i++) {
+				IndexedRecord record = batch.records[i];
+				record.uncompressedStart = start+(i>0?batch.recordEnds[i-1]:0);
+				recordsToIndex.add(record);
+			}
+		}
+		out.write(batch.data);
+		if(bgzfOut!=null) addRecordsToIndex();
+	}
+
+	/**
+	 * Adds to the index the records whose compressed location is already known
+	 */
+	private void addRecordsToIndex() {
+		long written = bgzfOut.getWrittenUncompressedLength();
+		while(!recordsToIndex.isEmpty() && recordsToIndex.peekFirst().uncompressedStart<written) {
+			IndexedRecord record = recordsToIndex.removeFirst();
+			if(indexCreator==null) continue;
+			try {
+				indexCreator.addFeature(new SimpleFeature(record.sequenceName, record.first, record.last), bgzfOut.getVirtualFilePointer(record.uncompressedStart));
+			} catch (RuntimeException e) {
+				log.warning("Index for file "+indexFile+" will not be created. "+e.getMessage());
+				dropIndex();
+			}
+		}
+	}
+	private void dropIndex() {
+		indexCreator = null;
+		//An index left by a previous run would not match the new file
+		File oldIndex = new File(indexFile);
+		if(oldIndex.exists() && !oldIndex.delete()) log.warning("Could not delete old index file "+indexFile);
+	}
+
+	private static class FormattedBatch {
+		private byte [] data;
+		private final int [] recordEnds;
+		private final IndexedRecord [] records;
+		public FormattedBatch(int size) {
+			recordEnds = new int [size];
+			records = new IndexedRecord[size];
+		}
+	}
+
+	private static class IndexedRecord {
+		private final String sequenceName;
+		private final int first;
+		private final int last;
+		private long uncompressedStart;
+		public IndexedRecord(String sequenceName, int first, int last) {
+			this.sequenceName = sequenceName;
+			this.first = first;
+			this.last = last;
+		}
+	}
+}
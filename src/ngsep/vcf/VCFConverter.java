@@ -19,20 +19,30 @@
  *******************************************************************************/
 package ngsep.vcf;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
 import ngsep.sequences.DNAMaskedSequence;
 import ngsep.sequences.QualifiedSequence;
@@ -46,6 +56,8 @@ import ngsep.variants.io.SimpleSamplesFileHandler;
 public class VCFConverter {
 	
 	// Constants for default values
+	public static final int DEF_NUM_THREADS = 1;
+	private static final int RECORDS_PER_BATCH = 200;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(VCFConverter.class.getName());
@@ -77,6 +89,7 @@ public class VCFConverter {
 	private String idParent1 = null;
 	private String idParent2 = null;
 	private String populationFile=null;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	
 	// Get and set methods
@@ -108,6 +121,16 @@ public class VCFConverter {
 		this.outputPrefix = outputPrefix;
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public boolean isPrintStructure() {
 		return printStructure;
 	}
@@ -383,22 +406,30 @@ public class VCFConverter {
 		if (populationFile!=null) out.println("File with population assignments: "+populationFile);
 		if (idParent1!=null) out.println("First parent: "+idParent1);
 		if (idParent2!=null) out.println("Second parent: "+idParent2);
+		out.println("Number of threads: "+numThreads);
 	   
 	    log.info(""+os.toString());
 	}
  
 	public void process(String vcfFile, String prefix) throws IOException {
-		try (VCFFileReader reader = new VCFFileReader(vcfFile)) {
+		try (VCFFileReader reader = new VCFFileReader(vcfFile, numThreads)) {
 			process(reader,prefix);
 		}
 	}
 	public void process(InputStream is, String prefix) throws IOException {
-		try (VCFFileReader reader = new VCFFileReader(is)) {
+		try (VCFFileReader reader = new VCFFileReader(is, numThreads)) {
 			process(reader,prefix);
 		}
 	}
 	public void process(VCFFileReader reader, String prefix) throws IOException {
-		
+		ExecutorService executor = (numThreads>1)?Executors.newFixedThreadPool(numThreads):null;
+		try {
+			process(reader, prefix, executor);
+		} finally {
+			if(executor!=null) executor.shutdownNow();
+		}
+	}
+	private void process(VCFFileReader reader, String prefix, ExecutorService executor) throws IOException {
 		PrintStream outMatrix = null;
 		PrintStream outHapmap = null;
 		PrintStream outGWASPoly = null;
@@ -407,8 +438,11 @@ public class VCFConverter {
 		//Load the matrix if at least one format need the matrix to be transposed
 		boolean loadMatrix = printFasta || printStructure || printrrBLUP || printSpagedi || printEmma || printPlink || printHaploview || printPowerMarker || printFlapjack || printEigensoft || printDarwin || printFineStructure || printGenePop;
 		boolean loadMatrixSeqName = printPhase;
+		boolean streamingFormats = printMatrix || printHapmap || printGWASPoly || printTreeMix || printJoinMap;
 		List<List<CalledGenomicVariant>> callsPerVariant = new ArrayList<List<CalledGenomicVariant>>();
 		List<String> sampleIds = null;
+		Deque<Future<byte[][]>> pendingBatches = new ArrayDeque<Future<byte[][]>>();
+		boolean cancelled = false;
 		try {
 			if(log!=null)reader.setLog(log);
 			if(!printGWASPoly) reader.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
@@ -417,20 +451,20 @@ public class VCFConverter {
 			Iterator<VCFRecord> it = reader.iterator();
 			//Print header for formats that do not need transposition
 			if(printMatrix) {
-				outMatrix = new PrintStream(prefix+"_genotypes.txt");
+				outMatrix = new PrintStream(new BufferedOutputStream(new FileOutputStream(prefix+"_genotypes.txt")));
 				printMatrixHeader (sampleIds,outMatrix);
 			}
 			if(printHapmap) {
-				outHapmap = new PrintStream(prefix+"_hmp.txt");
+				outHapmap = new PrintStream(new BufferedOutputStream(new FileOutputStream(prefix+"_hmp.txt")));
 				printHapmapHeader (sampleIds,outHapmap);
 			}
 			if(printGWASPoly) {
-				outGWASPoly = new PrintStream(prefix+"_GWASPoly.txt");
+				outGWASPoly = new PrintStream(new BufferedOutputStream(new FileOutputStream(prefix+"_GWASPoly.txt")));
 				printGWASPolyHeader (sampleIds,outGWASPoly);
 			}
 			Map<String, List<Integer>> groupsWithSampleIdxs = null;
 			if(printTreeMix) {
-				outTreemix = new PrintStream(prefix+"_treemix.txt");
+				outTreemix = new PrintStream(new BufferedOutputStream(new FileOutputStream(prefix+"_treemix.txt")));
 				SimpleSamplesFileHandler samplesFH = new SimpleSamplesFileHandler();
 				Map<String,Sample> samplesMap = samplesFH.loadSamplesAsMap(populationFile);
 				if(samplesMap.size()==0)throw new IOException("The populations file does not contain any sample");
@@ -450,11 +484,17 @@ public class VCFConverter {
 				ip2=header.getIndexSampleId(idParent2);
 				if(ip2==-1) throw new IOException("Id parent "+idParent2+" not found in vcf file");
 				if(ip1 == ip2) throw new IOException("The two parents must be different");
-				outJoinMap=new PrintStream(prefix+"_joinmap.txt");
+				outJoinMap=new PrintStream(new BufferedOutputStream(new FileOutputStream(prefix+"_joinmap.txt")));
 				printJoinMapHeader(sampleIds, outJoinMap, ip1, ip2);		
 			}
 					
+			//Records are formatted in batches for the formats that do not need transposition, possibly in parallel
+			PrintStream [] outs = {outMatrix, outHapmap, outGWASPoly, outTreemix, outJoinMap};
+			Map<String, List<Integer>> groups = groupsWithSampleIdxs;
+			int iPJ1 = ip1;
+			int iPJ2 = ip2;
 			int n=0;
+			List<VCFRecord> batch = new ArrayList<VCFRecord>(RECORDS_PER_BATCH);
 			while(it.hasNext()) {
 				VCFRecord record = it.next();
 				List<CalledGenomicVariant> calls = record.getCalls();
@@ -462,20 +502,31 @@ public class VCFConverter {
 				if(loadMatrix) callsPerVariant.add(calls);
 				//PHASE converter. Loads the variants only for the sequence name requested by the user
 				else if (loadMatrixSeqName && record.getVariant().getSequenceName().equals(sequenceName)) callsPerVariant.add(calls); 
-				//Print genotypes for the current variant for formats that do not need transposition
-				if(outMatrix!=null)printGenotypesMatrix(record,outMatrix);
-				if(outHapmap!=null)printHapmap(record,outHapmap);
-				if(outGWASPoly!=null)printGWASPoly(record,outGWASPoly,(n+1));
-				if(outTreemix!=null && record.getVariant().isBiallelic()) printTreeMix(groupsWithSampleIdxs,record.getCalls(),outTreemix);
-				if(outJoinMap!=null)printJoinMap(record, outJoinMap, ip1, ip2);
+				if(streamingFormats) {
+					batch.add(record);
+					if(batch.size()==RECORDS_PER_BATCH) {
+						List<VCFRecord> records = batch;
+						int firstIndex = n-records.size()+2;
+						batch = new ArrayList<VCFRecord>(RECORDS_PER_BATCH);
+						if(executor==null) writeFormattedBatch(formatBatch(records, firstIndex, groups, iPJ1, iPJ2), outs);
+						else {
+							pendingBatches.add(executor.submit(()->formatBatch(records, firstIndex, groups, iPJ1, iPJ2)));
+							while(pendingBatches.size()>2*numThreads) writeFormattedBatch(getNextBatch(pendingBatches), outs);
+						}
+					}
+				}
 				n++;
 				if (progressNotifier!=null && n%1000==0) {
 					int progress = n/1000;
 					if (!progressNotifier.keepRunning(progress)) {
-						return;
+						//Records already read are written before stopping
+						cancelled = true;
+						break;
 					}
 				}
 			}
+			while(!pendingBatches.isEmpty()) writeFormattedBatch(getNextBatch(pendingBatches), outs);
+			if(batch.size()>0) writeFormattedBatch(formatBatch(batch, n-batch.size()+1, groups, iPJ1, iPJ2), outs);
 		} finally {
 			if(outMatrix!=null) {
 				outMatrix.flush();
@@ -501,24 +552,96 @@ public class VCFConverter {
 		
 		
 		
-		if(!loadMatrix && !loadMatrixSeqName) return;
+		if(cancelled || (!loadMatrix && !loadMatrixSeqName)) return;
 		System.out.println("Loaded "+callsPerVariant.size()+" calls");
-		//Print formats that require transposition
-		if(printFasta) printFasta(sampleIds,callsPerVariant,prefix+"_aln.fa");
-		if(printDarwin)printDarwin(sampleIds, callsPerVariant, prefix);
-		if(printStructure) printStructure(sampleIds,callsPerVariant,prefix+"_structure.in");
-		if(printrrBLUP) printrrBLUP(sampleIds,callsPerVariant,prefix);
-		if(printSpagedi) printSpagedi(sampleIds, callsPerVariant, prefix+"_spagedi.in");
-		if(printEmma) printEmma(callsPerVariant, prefix+"_emma.in");
-		if(printPlink) printPlink(sampleIds,callsPerVariant,prefix+"_plink",true);
-		if(printHaploview) printPlink(sampleIds,callsPerVariant,prefix+"_haploview",false);
-		if(printPowerMarker) printPowerMarker(sampleIds,callsPerVariant,prefix);
-		if(printFlapjack) printFlapjack(sampleIds,callsPerVariant,prefix);
-		if(printEigensoft) printEigensoft(sampleIds,callsPerVariant,prefix);
-		if(printGenePop) printGenePop(sampleIds,callsPerVariant,prefix+"_genePop.in");
-		if(printPhase) printPhase(sampleIds,callsPerVariant,prefix+"_"+sequenceName+"_phase.inp");
-		if(printFineStructure) printFineStructure(sampleIds.size(),callsPerVariant,prefix+"_fs_"+sequenceName+".phase");
-		
+		//Print formats that require transposition. Each format is written by an independent task
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		List<String> ids = sampleIds;
+		if(printFasta) tasks.add(()->{printFasta(ids,callsPerVariant,prefix+"_aln.fa"); return null;});
+		if(printDarwin) tasks.add(()->{printDarwin(ids, callsPerVariant, prefix); return null;});
+		if(printStructure) tasks.add(()->{printStructure(ids,callsPerVariant,prefix+"_structure.in"); return null;});
+		if(printrrBLUP) tasks.add(()->{printrrBLUP(ids,callsPerVariant,prefix); return null;});
+		if(printSpagedi) tasks.add(()->{printSpagedi(ids, callsPerVariant, prefix+"_spagedi.in"); return null;});
+		if(printEmma) tasks.add(()->{printEmma(callsPerVariant, prefix+"_emma.in"); return null;});
+		if(printPlink) tasks.add(()->{printPlink(ids,callsPerVariant,prefix+"_plink",true); return null;});
+		if(printHaploview) tasks.add(()->{printPlink(ids,callsPerVariant,prefix+"_haploview",false); return null;});
+		if(printPowerMarker) tasks.add(()->{printPowerMarker(ids,callsPerVariant,prefix); return null;});
+		if(printFlapjack) tasks.add(()->{printFlapjack(ids,callsPerVariant,prefix); return null;});
+		if(printEigensoft) tasks.add(()->{printEigensoft(ids,callsPerVariant,prefix); return null;});
+		if(printGenePop) tasks.add(()->{printGenePop(ids,callsPerVariant,prefix+"_genePop.in"); return null;});
+		if(printPhase) tasks.add(()->{printPhase(ids,callsPerVariant,prefix+"_"+sequenceName+"_phase.inp"); return null;});
+		if(printFineStructure) tasks.add(()->{printFineStructure(ids.size(),callsPerVariant,prefix+"_fs_"+sequenceName+".phase"); return null;});
+		if(executor==null) {
+			try {
+				for(Callable<Void> task:tasks) task.call();
+			} catch (IOException|RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+			return;
+		}
+		try {
+			for(Future<Void> f:executor.invokeAll(tasks)) f.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted writing output formats",e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new IOException("Error writing output formats",cause);
+		}
+	}
+	
+	/**
+	 * Formats a batch of records for the formats that do not need transposition
+	 * @param records Records to format
+	 * @param firstIndex Index in the file of the first record of the batch starting from one
+	 * @param groups Indexes of the samples of each group for TreeMix
+	 * @param iPJ1 Index of the first parent for JoinMap
+	 * @param iPJ2 Index of the second parent for JoinMap
+	 * @return byte[][] Formatted text for each format in the order matrix, hapmap, GWASPoly, TreeMix and JoinMap.
+	 * Entries of formats not requested are null
+	 * @throws IOException If the records can not be formatted
+	 */
+	private byte [][] formatBatch(List<VCFRecord> records, int firstIndex, Map<String, List<Integer>> groups, int iPJ1, int iPJ2) throws IOException {
+		boolean [] formats = {printMatrix, printHapmap, printGWASPoly, printTreeMix, printJoinMap};
+		byte [][] answer = new byte[formats.length][];
+		for(int f=0;f<formats.length;f++) {
+			if(!formats[f]) continue;
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			PrintStream out = new PrintStream(os);
+			for(int i=0;i<records.size();i++) {
+				VCFRecord record = records.get(i);
+				if(f==0) printGenotypesMatrix(record,out);
+				else if(f==1) printHapmap(record,out);
+				else if(f==2) printGWASPoly(record,out,firstIndex+i);
+				else if(f==3 && record.getVariant().isBiallelic()) printTreeMix(groups,record.getCalls(),out);
+				else if(f==4) printJoinMap(record, out, iPJ1, iPJ2);
+			}
+			out.flush();
+			answer[f] = os.toByteArray();
+		}
+		return answer;
+	}
+	
+	private byte [][] getNextBatch(Deque<Future<byte[][]>> pendingBatches) throws IOException {
+		try {
+			return pendingBatches.removeFirst().get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted formatting records",e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new IOException("Error formatting records",cause);
+		}
+	}
+	
+	private void writeFormattedBatch(byte [][] formatted, PrintStream [] outs) {
+		for(int f=0;f<outs.length;f++) {
+			if(outs[f]!=null && formatted[f]!=null) outs[f].write(formatted[f], 0, formatted[f].length);
+		}
 	}
 	
 	private void printFlapjack(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outPrefix) throws IOException {
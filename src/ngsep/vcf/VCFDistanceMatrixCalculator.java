@@ -15,6 +15,7 @@ import ngsep.main.ProgressNotifier;
 import ngsep.variants.CalledGenomicVariant;
 import ngsep.variants.CalledSNV;
 import ngsep.variants.GenomicVariant;
+import ngsep.variants.PackedGenotypeMatrix;
 import ngsep.variants.VariantCallReport;
 import ngsep.vcf.VCFFileReader;
 import ngsep.vcf.VCFRecord;
@@ -31,6 +32,7 @@ public class VCFDistanceMatrixCalculator {
 	public static final int DISTANCE_SOURCE_COPY_NUMBER=2;
 	public static final int DISTANCE_SOURCE_ALLELE_DEPTH=3;
 	public static final byte DEF_PLOIDY = CalledGenomicVariant.DEFAULT_PLOIDY;
+	private static final int VARIANTS_PER_BLOCK = 4096;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(VCFDistanceMatrixCalculator.class.getName());
@@ -182,6 +184,9 @@ public class VCFDistanceMatrixCalculator {
 			ploidyLevels[y] = (1.0f/n) * y;
 		}
 		
+		//Genotypes of biallelic variants are packed in blocks to compare samples with bit-parallel operations
+		boolean packGenotypes = distanceSource == DISTANCE_SOURCE_GENOTYPES_SIMPLE;
+		PackedGenotypeMatrix block = packGenotypes?new PackedGenotypeMatrix(numSamples, VARIANTS_PER_BLOCK):null;
 		//Iterate over every variant in VCF file
 		while(iteratorRecords.hasNext()){
 			VCFRecord vcfRecord = iteratorRecords.next();
@@ -189,6 +194,14 @@ public class VCFDistanceMatrixCalculator {
 			String [] alleles = var.getAlleles();
 				
 			List<CalledGenomicVariant> genotypeCalls = vcfRecord.getCalls();
+			if(packGenotypes && var.isBiallelic() && var.getType()!=GenomicVariant.TYPE_CNV) {
+				block.addVariant(var, genotypeCalls);
+				if(block.getNumRows()==VARIANTS_PER_BLOCK) {
+					addPackedDistances(block, distanceMatrix, genotypePerSamplesComparison);
+					block = new PackedGenotypeMatrix(numSamples, VARIANTS_PER_BLOCK);
+				}
+				continue;
+			}
 			float numericGenotypes[] = new float[genotypeCalls.size()];
 			Arrays.fill(numericGenotypes, CalledSNV.GENOTYPE_UNDECIDED);
 	    	//Calculate dosage for each sample
@@ -234,6 +247,7 @@ public class VCFDistanceMatrixCalculator {
 		    	}
 	    	}		    	
 		}
+		if(block!=null && block.getNumRows()>0) addPackedDistances(block, distanceMatrix, genotypePerSamplesComparison);
 		//Normalize genetic distance value depending number of samples x samples per Variant found genotyped (Omit missing values)
 		for(int j=0;j<numSamples;j++){
     		for(int k=0;k<numSamples;k++){
@@ -254,6 +268,45 @@ public class VCFDistanceMatrixCalculator {
 	}
 	 
 
+	/**
+	 * Adds the distances between samples for a block of biallelic variants. In this case the numeric genotype is one for
+	 * homozygous alternative calls and zero for other calls. Hence, the distance between two samples is the number of
+	 * variants genotyped in both samples in which only one of them is homozygous alternative
+	 * @param genotypes Packed genotypes with one row per variant
+	 * @param distances Matrix with the accumulated distances between pairs of samples
+	 * @param counts Matrix with the accumulated number of variants genotyped in each pair of samples
+	 */
+	private void addPackedDistances(PackedGenotypeMatrix genotypes, double [][] distances, int [][] counts) {
+		PackedGenotypeMatrix samplesGenotypes = genotypes.transpose();
+		int numSamples = samplesGenotypes.getNumRows();
+		int numWords = samplesGenotypes.getWordsPerRow();
+		long [][] called = new long[numSamples][numWords];
+		long [][] homoAlt = new long[numSamples][numWords];
+		for(int j=0;j<numSamples;j++) {
+			for(int w=0;w<numWords;w++) {
+				long word = samplesGenotypes.getWord(j, w);
+				called[j][w] = PackedGenotypeMatrix.getCalledLanes(word);
+				homoAlt[j][w] = PackedGenotypeMatrix.getHomozygousAlternativeLanes(word);
+			}
+		}
+		for(int j=0;j<numSamples;j++) {
+			for(int k=j;k<numSamples;k++) {
+				int distance = 0;
+				int count = 0;
+				for(int w=0;w<numWords;w++) {
+					long both = called[j][w] & called[k][w];
+					count+=Long.bitCount(both);
+					distance+=Long.bitCount(both & (homoAlt[j][w] ^ homoAlt[k][w]));
+				}
+				distances[j][k]+=distance;
+				counts[j][k]+=count;
+				if(k==j) continue;
+				distances[k][j]+=distance;
+				counts[k][j]+=count;
+			}
+		}
+	}
+
 	/**
 	  * Assign real dosage value depending of ploidy.
 	  * @param value Dosage ratio calculate from raw base pair count.
@@ -19,6 +19,7 @@
  *******************************************************************************/
 package ngsep.vcf;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
@@ -26,16 +27,28 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.tribble.index.Block;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import ngsep.genome.GenomicRegion;
 import ngsep.main.io.ConcatGZIPInputStream;
+import ngsep.main.io.ParallelBGZFInputStream;
 import ngsep.main.io.ParseUtils;
 import ngsep.sequences.DNASequence;
 import ngsep.sequences.QualifiedSequence;
@@ -47,6 +60,7 @@ import ngsep.variants.CalledSNV;
 import ngsep.variants.GenomicVariant;
 import ngsep.variants.GenomicVariantAnnotation;
 import ngsep.variants.GenomicVariantImpl;
+import ngsep.variants.PackedGenotypeMatrix;
 import ngsep.variants.SNV;
 import ngsep.variants.Sample;
 import ngsep.variants.VariantCallReport;
@@ -60,6 +74,8 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 	public static final int LOAD_MODE_COPY_NUMBER = 2;
 	public static final int LOAD_MODE_MINIMAL = 3;
 	
+	private static final int LINES_PER_BATCH = 500;
+	
 	
 	
 	private BufferedReader in;
@@ -70,6 +86,19 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 	
 	private int loadMode = LOAD_MODE_CALLINFO;
 	
+	private boolean lazyGenotypes = false;
+	
+	private int numThreads = 1;
+	
+	//Executor to decompress and parse records. Null if the file is processed by a single thread
+	private ExecutorService executor = null;
+	
+	//Attributes for region queries on indexed files
+	private File file = null;
+	private TabixIndex index = null;
+	private BlockCompressedInputStream queryStream = null;
+	private VCFFileQueryIterator currentQuery = null;
+	
 	public VCFFileReader (String filename) throws IOException {
 		init(null,new File(filename));
 	}
@@ -79,6 +108,46 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 	public VCFFileReader (InputStream stream) throws IOException {
 		init(stream,null);
 	}
+	/**
+	 * Creates a reader that uses the given number of threads to decompress and parse the file.
+	 * BGZF compressed files are decompressed in parallel. Records are parsed in batches by the
+	 * worker threads and returned in the order of the file
+	 * @param filename Name of the VCF file
+	 * @param numThreads Number of threads to process the file
+	 * @throws IOException If the file can not be read
+	 */
+	public VCFFileReader (String filename, int numThreads) throws IOException {
+		this(new File(filename), numThreads);
+	}
+	/**
+	 * Creates a reader that uses the given number of threads to decompress and parse the file.
+	 * @param file VCF file
+	 * @param numThreads Number of threads to process the file
+	 * @throws IOException If the file can not be read
+	 */
+	public VCFFileReader (File file, int numThreads) throws IOException {
+		setNumThreads(numThreads);
+		init(null,file);
+	}
+	/**
+	 * Creates a reader that uses the given number of threads to parse the records of the given stream
+	 * @param stream Stream with the VCF data
+	 * @param numThreads Number of threads to parse the records
+	 * @throws IOException If the stream can not be read
+	 */
+	public VCFFileReader (InputStream stream, int numThreads) throws IOException {
+		setNumThreads(numThreads);
+		init(stream,null);
+	}
+	
+	private void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Invalid number of threads: "+numThreads);
+		this.numThreads = numThreads;
+		if(numThreads>1) executor = Executors.newFixedThreadPool(numThreads);
+	}
+	public int getNumThreads() {
+		return numThreads;
+	}
 	
 	public Logger getLog() {
 		return log;
@@ -96,6 +165,20 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		this.loadMode = loadMode;
 	}
 	
+	public boolean isLazyGenotypes() {
+		return lazyGenotypes;
+	}
+	/**
+	 * Sets the genotype decoding mode. If true, records keep the text of each sample and genotype calls are decoded
+	 * only when they are accessed through the list returned by VCFRecord.getCalls. Processes that only need site information
+	 * or that discard most of the records before looking at the genotypes save the parsing of the genotype fields.
+	 * The calls of a record should be accessed by a single thread
+	 * @param lazyGenotypes true if genotypes should be decoded on demand
+	 */
+	public void setLazyGenotypes(boolean lazyGenotypes) {
+		this.lazyGenotypes = lazyGenotypes;
+	}
+	
 	public QualifiedSequenceList getSequences() {
 		return sequences;
 	}
@@ -107,8 +190,22 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 	}
 	
 
+	/**
+	 * @return boolean true if the file is BGZF compressed and has a tabix index that allows to query regions
+	 */
+	public boolean hasIndex() {
+		return file!=null && getIndexFile().exists();
+	}
+	private File getIndexFile() {
+		return new File(file.getPath()+ParallelVCFFileWriter.INDEX_SUFFIX);
+	}
+
 	@Override
 	public void close() throws IOException {
+		if(executor!=null) executor.shutdownNow();
+		if(queryStream!=null) queryStream.close();
+		queryStream = null;
+		currentQuery = null;
 		in.close();		
 	}
 	
@@ -126,12 +223,52 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		return currentIterator;
 	}
 	
+	/**
+	 * Iterates over the records overlapping the given region using the tabix index of the file.
+	 * Queries are independent of the sequential iteration started with iterator().
+	 * Starting a new query invalidates the iterator of the previous query
+	 * PRE: The file has an index
+	 * @param sequenceName Name of the sequence to query
+	 * @param first First position of the region (1-based)
+	 * @param last Last position of the region (1-based). Zero or negative to query until the end of the sequence
+	 * @return Iterator<VCFRecord> Records overlapping the region sorted by position
+	 * @throws IOException If the index or the file can not be read
+	 */
+	public Iterator<VCFRecord> query(String sequenceName, int first, int last) throws IOException {
+		if (in == null) throw new IllegalStateException("File reader is closed");
+		if (!hasIndex()) throw new IllegalStateException("File "+file+" does not have a tabix index");
+		if (index == null) index = new TabixIndex(getIndexFile());
+		if (queryStream == null) queryStream = new BlockCompressedInputStream(file);
+		if (last<=0) last = Integer.MAX_VALUE;
+		first = Math.max(first, 1);
+		List<Block> blocks;
+		if(index.containsChromosome(sequenceName)) blocks = index.getBlocks(sequenceName, first, last);
+		else blocks = new ArrayList<>();
+		if(currentQuery!=null) currentQuery.invalidate();
+		currentQuery = new VCFFileQueryIterator(sequenceName, first, last, blocks);
+		return currentQuery;
+	}
+	
+	/**
+	 * Iterates over the records overlapping the given region using the tabix index of the file
+	 * @param region to query
+	 * @return Iterator<VCFRecord> Records overlapping the region sorted by position
+	 * @throws IOException If the index or the file can not be read
+	 * @see #query(String, int, int)
+	 */
+	public Iterator<VCFRecord> query(GenomicRegion region) throws IOException {
+		return query(region.getSequenceName(), region.getFirst(), region.getLast());
+	}
+	
 	private void init (InputStream stream, File file) throws IOException {
 		if (stream != null && file != null) throw new IllegalArgumentException("Stream and file are mutually exclusive");
 		if(file!=null) {
+			this.file = file;
 			stream = new FileInputStream(file);
 			if(file.getName().endsWith(".gz")) {
-				stream = new ConcatGZIPInputStream(stream);
+				BufferedInputStream bufferedStream = new BufferedInputStream(stream);
+				if(executor!=null && ParallelBGZFInputStream.isBGZF(bufferedStream)) stream = new ParallelBGZFInputStream(bufferedStream, executor, 4*numThreads);
+				else stream = new ConcatGZIPInputStream(bufferedStream);
 			}
 		}
 		in = new BufferedReader(new InputStreamReader(stream));
@@ -150,6 +287,7 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 	
 	
 	private VCFRecord loadVCFRecord (String line) {
+		if(lazyGenotypes) return loadVCFRecordLazyGenotypes(line);
 		String [] items = ParseUtils.parseString(line,'\t');
 		if(items.length<8) {
 			log.severe("Could not load line: "+line+". VCF records must have at least 8 columns");
@@ -189,10 +327,47 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		return new VCFRecord(variant, filters, infoFields, formatLoad, calls, header);
 	}
 	
+	private VCFRecord loadVCFRecordLazyGenotypes (String line) {
+		//Start of each field. The last entry is one position after the end of the line
+		int numFields = 1;
+		for(int i=0;i<line.length();i++) {
+			if(line.charAt(i)=='\t') numFields++;
+		}
+		int [] fieldStarts = new int [numFields+1];
+		for(int i=0, j=1;i<line.length();i++) {
+			if(line.charAt(i)=='\t') fieldStarts[j++] = i+1;
+		}
+		fieldStarts[numFields] = line.length()+1;
+		if(numFields<8) {
+			log.severe("Could not load line: "+line+". VCF records must have at least 8 columns");
+			return null;
+		}
+		String [] items = new String [Math.min(numFields, 9)];
+		for(int i=0;i<items.length;i++) items[i] = line.substring(fieldStarts[i], fieldStarts[i+1]-1);
+		GenomicVariant variant = loadGenomicVariant(items);
+		if(variant == null) return null;
+		List<String> filters = loadFilters(items[6]);
+		List<GenomicVariantAnnotation> infoFields = loadInfoField(variant, items[7]);
+		List<Sample> samples = header.getSamples();
+		if(numFields-9!=samples.size() && (numFields>8 || samples.size()>0)) {
+			log.severe("Can not load genomic variant at "+items[0]+":"+items[1]+". Number of genotyped samples does not coincide with number of samples in the header");
+			return null;
+		}
+		if(numFields==8) return new VCFRecord(variant, filters, infoFields, new int [0], new ArrayList<CalledGenomicVariant>(), header);
+		int[] formatInput = loadInputFormat(items[8]);
+		int [] formatLoad = makeLoadFormat (formatInput,false);
+		VCFRecord record = new VCFRecord(variant, filters, infoFields, formatLoad, new LazyCallsList(line, fieldStarts, variant, formatInput), header);
+		if(loadMode!=LOAD_MODE_MINIMAL && variant.getType()<=GenomicVariant.TYPE_STR) record.setCheckCopyNumberFormat(true);
+		return record;
+	}
+	
 	private GenomicVariant loadGenomicVariant(String[] items) {
 		QualifiedSequence seq;
 		try {
-			seq = sequences.addOrLookupName(items[0]);
+			//Records can be parsed by different threads
+			synchronized (sequences) {
+				seq = sequences.addOrLookupName(items[0]);
+			}
 		} catch (RuntimeException e) {
 			log.severe("Can not load genomic variant at "+items[0]+":"+items[1]+". Unrecognized sequence name. "+e.getMessage());
 			return null;
@@ -599,6 +774,37 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		return answer;
 	}
 
+	/**
+	 * Loads the basic information of the variants overlapping the given region.
+	 * If the file has a tabix index, only the records within the region are read
+	 * @param filename Name for the VCF file
+	 * @param sequenceName Name of the sequence of the region
+	 * @param first First position of the region
+	 * @param last Last position of the region
+	 * @param filterReferenceSitesGVCF Tells if sites without alternative alleles should be filtered
+	 * @param filterSVs Tells if structural variants should be filtered
+	 * @return List<GenomicVariant> List of variants within the given region
+	 * @throws IOException If the file can not be read
+	 */
+	public static List<GenomicVariant> loadVariants(String filename, String sequenceName, int first, int last, boolean filterReferenceSitesGVCF, boolean filterSVs) throws IOException {
+		List<GenomicVariant> answer = new ArrayList<GenomicVariant>();
+		try (VCFFileReader in = new VCFFileReader(filename)) {
+			in.setLoadMode(LOAD_MODE_MINIMAL);
+			Iterator<VCFRecord> it;
+			if(in.hasIndex()) it = in.query(sequenceName, first, last);
+			else it = in.iterator();
+			while(it.hasNext()) {
+				VCFRecord record = it.next();
+				GenomicVariant var = record.getVariant();
+				if(!sequenceName.equals(var.getSequenceName()) || var.getFirst()>last || var.getLast()<first) continue;
+				if(filterReferenceSitesGVCF && var.getAlleles().length<2) continue;
+				if(filterSVs && var.isStructural()) continue;
+				answer.add(var);
+			}
+		}
+		return answer;
+	}
+
 	/**
 	 * Loads all calls for the VCF of one individual
 	 * @param filename Name for the VCF file
@@ -618,6 +824,26 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		}
 		return answer;
 	}
+	
+	/**
+	 * Loads the genotype calls of all variants of a VCF file in a packed genotype matrix.
+	 * Only genotypes are loaded. Calls of variants that are not biallelic are kept as extra information of the matrix
+	 * @param filename Name of the VCF file
+	 * @return PackedGenotypeMatrix Matrix with one row per variant and one column per sample
+	 * @throws IOException If the file can not be read
+	 */
+	public static PackedGenotypeMatrix loadGenotypeMatrix(String filename) throws IOException {
+		try (VCFFileReader in = new VCFFileReader(filename)) {
+			in.setLoadMode(LOAD_MODE_MINIMAL);
+			PackedGenotypeMatrix answer = new PackedGenotypeMatrix(in.getSampleIds().size(), 1000);
+			Iterator<VCFRecord> it = in.iterator();
+			while(it.hasNext()) {
+				VCFRecord record = it.next();
+				answer.addVariant(record.getVariant(), record.getCalls());
+			}
+			return answer;
+		}
+	}
 
 	
 	
@@ -625,8 +851,132 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		return header;
 	}
 
+	private List<VCFRecord> loadVCFRecords(List<String> lines) {
+		List<VCFRecord> answer = new ArrayList<VCFRecord>(lines.size());
+		for(String line:lines) {
+			VCFRecord record = loadVCFRecord(line);
+			if(record!=null) answer.add(record);
+		}
+		return answer;
+	}
+	
+	/**
+	 * List of calls that keeps the text of each sample and decodes each call the first time it is requested
+	 */
+	private class LazyCallsList extends AbstractList<CalledGenomicVariant> {
+		private String line;
+		private int [] fieldStarts;
+		private final GenomicVariant variant;
+		private final int [] formatInput;
+		private final CalledGenomicVariant [] calls;
+		private int numDecoded = 0;
+		
+		public LazyCallsList(String line, int[] fieldStarts, GenomicVariant variant, int[] formatInput) {
+			this.line = line;
+			this.fieldStarts = fieldStarts;
+			this.variant = variant;
+			this.formatInput = formatInput;
+			calls = new CalledGenomicVariant[fieldStarts.length-10];
+		}
+		@Override
+		public CalledGenomicVariant get(int index) {
+			CalledGenomicVariant call = calls[index];
+			if(call == null) {
+				String sampleStr = line.substring(fieldStarts[9+index], fieldStarts[10+index]-1);
+				String [] itemsSample = ParseUtils.parseString(sampleStr, ':');
+				call = loadCalledVariant(variant, formatInput, itemsSample, header.getSamples().get(index));
+				calls[index] = call;
+				numDecoded++;
+				if(numDecoded==calls.length) {
+					//Release the text of the record
+					line = null;
+					fieldStarts = null;
+				}
+			}
+			return call;
+		}
+		@Override
+		public CalledGenomicVariant set(int index, CalledGenomicVariant element) {
+			CalledGenomicVariant answer = get(index);
+			calls[index] = element;
+			return answer;
+		}
+		@Override
+		public int size() {
+			return calls.length;
+		}
+	}
+
+	/**
+	 * Iterator over the records of the chunks of the file that the index reports for a region
+	 */
+	private class VCFFileQueryIterator implements Iterator<VCFRecord> {
+		private final String sequenceName;
+		private final int first;
+		private final int last;
+		private final List<Block> blocks;
+		private int nextBlock = 0;
+		private long blockEnd = 0;
+		private boolean valid = true;
+		private VCFRecord nextRecord;
+		public VCFFileQueryIterator(String sequenceName, int first, int last, List<Block> blocks) {
+			this.sequenceName = sequenceName;
+			this.first = first;
+			this.last = last;
+			this.blocks = blocks;
+			nextRecord = loadRecord();
+		}
+		private void invalidate() {
+			valid = false;
+			nextRecord = null;
+		}
+		@Override
+		public boolean hasNext() {
+			return nextRecord!=null;
+		}
+
+		@Override
+		public VCFRecord next() {
+			if(nextRecord==null) throw new NoSuchElementException();
+			VCFRecord answer = nextRecord;
+			nextRecord = loadRecord();
+			return answer;
+		}
+		
+		private VCFRecord loadRecord() {
+			if(!valid) return null;
+			try {
+				while(true) {
+					if(queryStream.getFilePointer()>=blockEnd) {
+						if(nextBlock==blocks.size()) return null;
+						Block block = blocks.get(nextBlock++);
+						//Chunks are sorted and do not overlap. Seek is avoided for contiguous chunks
+						if(queryStream.getFilePointer()!=block.getStartPosition()) queryStream.seek(block.getStartPosition());
+						blockEnd = block.getEndPosition();
+						continue;
+					}
+					String line = queryStream.readLine();
+					if(line==null) return null;
+					if(line.length()==0 || line.charAt(0)=='#') continue;
+					VCFRecord record = loadVCFRecord(line);
+					if(record==null) continue;
+					if(!sequenceName.equals(record.getSequenceName())) continue;
+					if(record.getFirst()>last) return null;
+					if(record.getLast()>=first) return record;
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
 	private class VCFFileIterator implements Iterator<VCFRecord> {
 		private VCFRecord nextRecord;
+		//Batches of records parsed by the executor
+		private Deque<Future<List<VCFRecord>>> pendingBatches = new ArrayDeque<>();
+		private Iterator<VCFRecord> currentBatch = null;
+		private boolean endOfFile = false;
+		private String lastSequenceName = null;
 		public VCFFileIterator() {
 			nextRecord = loadRecord();
 		}
@@ -644,6 +994,7 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		}
 
 		private VCFRecord loadRecord() {
+			if(executor!=null) return loadRecordParallel();
 			String line;
 			while(true) {
 				try {
@@ -656,6 +1007,56 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 				if(answer !=null) return answer;
 			} 
 		}
+		private VCFRecord loadRecordParallel() {
+			while(currentBatch==null || !currentBatch.hasNext()) {
+				submitBatches();
+				if(pendingBatches.isEmpty()) return null;
+				try {
+					currentBatch = pendingBatches.removeFirst().get().iterator();
+				} catch (InterruptedException e) {
+					throw new RuntimeException("Interrupted parsing VCF records",e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException("Error parsing VCF records",e.getCause());
+				}
+			}
+			return currentBatch.next();
+		}
+		private void submitBatches() {
+			while(!endOfFile && pendingBatches.size()<2*numThreads) {
+				List<String> lines = new ArrayList<String>(LINES_PER_BATCH);
+				try {
+					for(int i=0;i<LINES_PER_BATCH;i++) {
+						String line = in.readLine();
+						if(line==null) {
+							endOfFile = true;
+							break;
+						}
+						registerSequenceName(line);
+						lines.add(line);
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				if(lines.size()>0) pendingBatches.add(executor.submit(()->loadVCFRecords(lines)));
+			}
+		}
+		/**
+		 * Adds new sequence names in the order of the file before the records are parsed by different threads
+		 * @param line Text of the next record
+		 */
+		private void registerSequenceName(String line) {
+			int end = line.indexOf('\t');
+			if(end<=0) return;
+			if(lastSequenceName!=null && line.startsWith(lastSequenceName) && end == lastSequenceName.length()) return;
+			lastSequenceName = line.substring(0, end);
+			synchronized (sequences) {
+				try {
+					sequences.addOrLookupName(lastSequenceName);
+				} catch (RuntimeException e) {
+					//The error is reported when the record is parsed
+				}
+			}
+		}
 		@Override
 		public void remove() {
 			throw new UnsupportedOperationException("Remove not supported by VCFFileIterator");
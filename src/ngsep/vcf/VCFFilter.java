@@ -21,16 +21,23 @@ package ngsep.vcf;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.genome.GenomicRegion;
@@ -60,6 +67,7 @@ public class VCFFilter {
 	public static final double DEF_MAX_OH = 1;
 	public static final double DEF_MIN_GC_CONTENT = 40;
 	public static final double DEF_MAX_GC_CONTENT = 65;
+	public static final int DEF_NUM_THREADS = 1;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(VCFFilter.class.getName());
@@ -90,6 +98,7 @@ public class VCFFilter {
     private GenomicRegionSortedCollection<GenomicRegion> regionsToFilter = null;
     private GenomicRegionSortedCollection<GenomicRegion> regionsToSelect = null;
     private ReferenceGenome genome = null;
+    private int numThreads = DEF_NUM_THREADS;
     
     
 
@@ -115,6 +124,18 @@ public class VCFFilter {
 		this.log = log;
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public String getInputFile() {
 		return inputFile;
 	}
@@ -426,18 +447,11 @@ public class VCFFilter {
 		// Load files with optional information
 		logParameters();
 		// Run filter
-		if(inputFile==null) {
-			if(outputFile == null) processVariantsFile(System.in, System.out);
+		try (VCFFileReader reader = (inputFile==null)?new VCFFileReader(System.in, numThreads):new VCFFileReader(inputFile, numThreads)) {
+			if(outputFile == null) processVariantsFile(reader,System.out);
 			else {
-				try (PrintStream out = new PrintStream(outputFile)) {
-					processVariantsFile(System.in, out);
-				}
-			}
-		} else {
-			if(outputFile == null) processVariantsFile(inputFile,System.out);
-			else {
-				try (PrintStream out = new PrintStream(outputFile)) {
-					processVariantsFile(inputFile, out);
+				try (ParallelVCFFileWriter writer = new ParallelVCFFileWriter(outputFile, numThreads)) {
+					processVariantsFile(reader, writer);
 				}
 			}
 		}
@@ -450,6 +464,7 @@ public class VCFFilter {
 		else out.println("System standard input");
 		if(outputFile != null) out.println("Output file: "+outputFile);
 		else out.println("Write to standard output");
+		out.println("Number of threads: "+numThreads);
 		out.println("Genotype filters");
 		out.println("Minimum genotype quality: "+minGenotypeQuality);
 		out.println("Minimum read depth: "+minReadDepth);
@@ -488,68 +503,161 @@ public class VCFFilter {
 	}
 
 	public void processVariantsFile(String vcfFile, PrintStream out) throws IOException {
-		try (VCFFileReader reader = new VCFFileReader(vcfFile)){
+		try (VCFFileReader reader = new VCFFileReader(vcfFile, numThreads)){
 			processVariantsFile(reader, out);
 		}
 	}
 	public void processVariantsFile(InputStream in, PrintStream out) throws IOException {
 		
-		try (VCFFileReader reader = new VCFFileReader(in)){
+		try (VCFFileReader reader = new VCFFileReader(in, numThreads)){
 			processVariantsFile(reader, out);
 		}
 	}
 	public void processVariantsFile(VCFFileReader reader, PrintStream out) throws IOException {
-		VCFFileWriter writer = new VCFFileWriter();
-		
+		try (ParallelVCFFileWriter writer = new ParallelVCFFileWriter(out, numThreads)) {
+			processVariantsFile(reader, writer);
+		}
+	}
+	/**
+	 * Filters the records of the given reader
+	 * @param reader Source of the records to filter
+	 * @param writer Writer of the records passing the filters
+	 * @throws IOException If the records can not be read or written
+	 */
+	public void processVariantsFile(VCFFileReader reader, ParallelVCFFileWriter writer) throws IOException {
 		if(log!=null) reader.setLog(log);
+		//Genotypes of records discarded by site filters are never decoded
+		reader.setLazyGenotypes(true);
 		VCFFileHeader header = reader.getHeader();
 		VCFFileHeader outHeader = header.cloneEmpty();
 		List<Sample> inSamples = header.getSamples();
 		Set<String> inSampleIdsWithHeader = header.getSamplesWithHeaderLine().keySet();
 		boolean [] selectedSamples = calculateSelectedSamples (inSamples); 
+		boolean filterGenotypes = minGenotypeQuality>0 || minReadDepth>0;
 		for(int i=0;i<selectedSamples.length;i++) {
 			Sample s = inSamples.get(i);
 			if(selectedSamples[i]) outHeader.addSample(s,inSampleIdsWithHeader.contains(s.getId()));
+			else filterGenotypes = true;
 		}
-		writer.printHeader(outHeader, out);
-		Iterator<VCFRecord> it = reader.iterator();
-		int lastPos = -minDistance;
-		String lastSeqName = null;
-		VCFRecord lastRecord = null;
-		int n=0;
-		while (it.hasNext()) {
-			VCFRecord record = it.next();
-			VCFRecord vr = filterSamplesAndGenotypes(record, selectedSamples, outHeader);
-			GenomicVariant gv = vr.getVariant();
-			if (!gv.getSequenceName().equals(lastSeqName)) {
-				if (passFilters(lastRecord)) writer.printVCFRecord(lastRecord, out);
-				lastRecord = vr;
+		writer.printHeader(outHeader);
+		//Records passing the distance filter are processed in batches by the pipeline, possibly in parallel
+		try (RecordsFilterPipeline pipeline = new RecordsFilterPipeline(writer, selectedSamples, filterGenotypes, outHeader)) {
+			Iterator<VCFRecord> it = reader.iterator();
+			int lastPos = -minDistance;
+			String lastSeqName = null;
+			VCFRecord lastRecord = null;
+			int n=0;
+			while (it.hasNext()) {
+				VCFRecord record = it.next();
+				GenomicVariant gv = record.getVariant();
+				if (!gv.getSequenceName().equals(lastSeqName)) {
+					pipeline.add(lastRecord);
+					lastRecord = record;
+					lastSeqName = gv.getSequenceName();
+					lastPos = gv.getLast();
+					continue;
+				}
+				// Distance filter
+				int first = gv.getFirst();
+				if (minDistance <= 0 || first - lastPos > minDistance) {
+					pipeline.add(lastRecord);
+					lastRecord = record;
+				} else {
+					lastRecord = null;
+				}
 				lastSeqName = gv.getSequenceName();
 				lastPos = gv.getLast();
-				continue;
+				n++;
+				if (progressNotifier!=null && n%1000==0) {
+					int progress = n/1000;
+					if (!progressNotifier.keepRunning(progress)) {
+						pipeline.flush();
+						writer.flush();
+						return;
+					}
+				}
 			}
-			// Distance filter
-			int first = gv.getFirst();
-			if (minDistance <= 0 || first - lastPos > minDistance) {
-				if (passFilters(lastRecord)) writer.printVCFRecord(lastRecord, out);
-				lastRecord = vr;
+			pipeline.add(lastRecord);
+			pipeline.flush();
+		}
+		writer.flush();
+    }
+
+	/**
+	 * Applies the genotype and site filters to batches of records and sends the records passing the filters to the writer.
+	 * If more than one thread is available, batches are filtered in parallel and written in the original order
+	 */
+	private class RecordsFilterPipeline implements Closeable {
+		private static final int RECORDS_PER_BATCH = 500;
+		private final ParallelVCFFileWriter writer;
+		private final boolean [] selectedSamples;
+		private final boolean filterGenotypes;
+		private final VCFFileHeader outHeader;
+		private final ExecutorService executor;
+		private final Deque<Future<List<VCFRecord>>> pendingBatches = new ArrayDeque<>();
+		private List<VCFRecord> currentBatch = new ArrayList<>(RECORDS_PER_BATCH);
+		
+		public RecordsFilterPipeline(ParallelVCFFileWriter writer, boolean[] selectedSamples, boolean filterGenotypes, VCFFileHeader outHeader) {
+			this.writer = writer;
+			this.selectedSamples = selectedSamples;
+			this.filterGenotypes = filterGenotypes;
+			this.outHeader = outHeader;
+			if(numThreads>1) {
+				//Builds the interval indexes before concurrent queries
+				if(regionsToFilter!=null) regionsToFilter.forceSort();
+				if(regionsToSelect!=null) regionsToSelect.forceSort();
+				executor = Executors.newFixedThreadPool(numThreads);
 			} else {
-				lastRecord = null;
+				executor = null;
 			}
-			lastSeqName = gv.getSequenceName();
-			lastPos = gv.getLast();
-			n++;
-			if (progressNotifier!=null && n%1000==0) {
-				int progress = n/1000;
-				if (!progressNotifier.keepRunning(progress)) {
-					out.flush();
-					return;
-				}
+		}
+		public void add(VCFRecord record) throws IOException {
+			if(record==null) return;
+			currentBatch.add(record);
+			if(currentBatch.size()==RECORDS_PER_BATCH) submitBatch();
+		}
+		public void flush() throws IOException {
+			if(currentBatch.size()>0) submitBatch();
+			while(!pendingBatches.isEmpty()) writeNextBatch();
+		}
+		@Override
+		public void close() {
+			if(executor!=null) executor.shutdownNow();
+		}
+		private void submitBatch() throws IOException {
+			List<VCFRecord> batch = currentBatch;
+			currentBatch = new ArrayList<>(RECORDS_PER_BATCH);
+			if(executor==null) {
+				writer.printVCFRecords(filterBatch(batch));
+				return;
 			}
+			pendingBatches.add(executor.submit(()->filterBatch(batch)));
+			while(pendingBatches.size()>2*numThreads) writeNextBatch();
 		}
-		if (passFilters(lastRecord)) writer.printVCFRecord(lastRecord, out);
-		out.flush();
-    }
+		private void writeNextBatch() throws IOException {
+			try {
+				writer.printVCFRecords(pendingBatches.removeFirst().get());
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted filtering records",e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+				throw new IOException("Error filtering records",cause);
+			}
+		}
+		private List<VCFRecord> filterBatch(List<VCFRecord> batch) {
+			List<VCFRecord> answer = new ArrayList<>(batch.size());
+			for(VCFRecord record:batch) {
+				//Genotypes are decoded only for records passing the site filters
+				if(!passSiteFilters(record)) continue;
+				VCFRecord vr = record;
+				if(filterGenotypes) vr = filterSamplesAndGenotypes(record, selectedSamples, outHeader);
+				else vr.setHeader(outHeader);
+				if(passGenotypeFilters(vr)) answer.add(vr);
+			}
+			return answer;
+		}
+	}
 
 	private boolean[] calculateSelectedSamples(List<Sample> inSamples) {
 		boolean[]  answer = new boolean[inSamples.size()];
@@ -564,17 +672,38 @@ public class VCFFilter {
 		return answer;
 	}
 
-	private boolean passFilters(VCFRecord record) {
+	/**
+	 * Applies the filters that do not depend on the genotype calls
+	 * @param record to filter
+	 * @return boolean true if the record passes the site filters
+	 */
+	private boolean passSiteFilters(VCFRecord record) {
     	if (record == null) return false;
     	GenomicVariant var = record.getVariant();
     	if(keepBiallelicSNVs && !(var instanceof SNV)) return false;
     	//System.out.println("Passing filters for record: "+record.getVariant().getSequenceName()+": "+record.getVariant().getFirst());
-		if(maxSamplesCNVs>=0 && calculateNumCNVs(record)>maxSamplesCNVs) return false;
-		//System.out.println("Passed CNVs");
     	if(geneId!=null && !isInGene(record)) return false;
     	//System.out.println("Passed Gene");
     	if(annotations!=null && !hasAnnotation(record)) return false;
     	//System.out.println("Passed Annotation");
+    	if (regionsToFilter!=null && regionsToFilter.hasSpanningRegions(var)) return false;
+    	//System.out.println("Passed regions to filter");
+    	if (regionsToSelect!=null && !regionsToSelect.hasSpanningRegions(var)) return false;
+    	//System.out.println("Passed regions to select");
+    	if (filterGCContent(var)) return false;
+    	//System.out.println("Passed GCContent");
+    	return true;
+	}
+	
+	/**
+	 * Applies the filters that depend on the genotype calls. The number of samples with CNVs is included
+	 * because it is updated when samples are removed
+	 * @param record to filter. It should already have passed the site filters
+	 * @return boolean true if the record passes the filters
+	 */
+	private boolean passGenotypeFilters(VCFRecord record) {
+		if(maxSamplesCNVs>=0 && calculateNumCNVs(record)>maxSamplesCNVs) return false;
+		//System.out.println("Passed CNVs");
     	int numCalledAlleles = 0;
     	int [] counts = null;
     	double maf = 0;
@@ -605,12 +734,6 @@ public class VCFFilter {
     	//System.out.println("Passed MAF");
     	if (oh < minOH || oh> maxOH) return false;
     	//System.out.println("Passed OH");
-    	if (regionsToFilter!=null && regionsToFilter.findSpanningRegions(var).size()>0) return false;
-    	//System.out.println("Passed regions to filter");
-    	if (regionsToSelect!=null && regionsToSelect.findSpanningRegions(var).size()==0) return false;
-    	//System.out.println("Passed regions to select");
-    	if (filterGCContent(var)) return false;
-    	//System.out.println("Passed GCContent");
     	//Update annotations if passes filters
     	record.updateDiversityStatistics();
     	return true;
@@ -679,11 +802,12 @@ public class VCFFilter {
     	List<CalledGenomicVariant> newList = new ArrayList<CalledGenomicVariant>();
     	boolean recalCNVs = false;
     	for (int i=0;i<genotyped.size();i++) {
-    		CalledGenomicVariant cv = genotyped.get(i);
+    		//Calls of removed samples are not decoded
     		if(!selectedSamples[i]) {
     			recalCNVs = true;
     			continue; 
     		}
+    		CalledGenomicVariant cv = genotyped.get(i);
     		short q = cv.getGenotypeQuality();
     		int depth = cv.getTotalReadDepth();
     		if (q < minGenotypeQuality || depth < minReadDepth) {
@@ -28,10 +28,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Logger;
 
+import ngsep.genome.GenomicRegionSpanningCursor;
 import ngsep.genome.ReferenceGenome;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
+import ngsep.transcriptome.Transcript;
 import ngsep.transcriptome.Transcriptome;
 import ngsep.transcriptome.VariantAnnotationParameters;
 import ngsep.transcriptome.VariantFunctionalAnnotation;
@@ -54,6 +56,7 @@ public class VCFFunctionalAnnotator {
 	public static final int DEF_SPLICE_ACCEPTOR=VariantAnnotationParameters.DEF_SPLICE_ACCEPTOR;
 	public static final int DEF_SPLICE_REGION_INTRON=VariantAnnotationParameters.DEF_SPLICE_REGION_INTRON;
 	public static final int DEF_SPLICE_REGION_EXON=VariantAnnotationParameters.DEF_SPLICE_REGION_EXON;
+	public static final int DEF_NUM_THREADS = 1;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(VCFFunctionalAnnotator.class.getName());
@@ -66,6 +69,7 @@ public class VCFFunctionalAnnotator {
 	private Transcriptome transcriptome;
 	private String outputFile = null;
 	private VariantAnnotationParameters parameters = new VariantAnnotationParameters();
+	private int numThreads = DEF_NUM_THREADS;
 	
 	// Get and set methods
 	public Logger getLog() {
@@ -204,6 +208,16 @@ public class VCFFunctionalAnnotator {
 		this.setSpliceRegionExonOffset((int) OptionValuesDecoder.decode(value, Integer.class));
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public static void main(String[] args) throws Exception {
 		VCFFunctionalAnnotator instance = new VCFFunctionalAnnotator();
 		CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -243,6 +257,7 @@ public class VCFFunctionalAnnotator {
 		out.println("Splice acceptor offset: "+getSpliceAcceptorOffset());
 		out.println("Splice region intron offset: "+getSpliceRegionIntronOffset());
 		out.println("Splice region exon offset: "+getSpliceRegionExonOffset());
+		out.println("Number of threads: "+numThreads);
 		
 		log.info(""+os.toString());
 	}
@@ -259,54 +274,70 @@ public class VCFFunctionalAnnotator {
 		transcriptome.fillSequenceTranscripts(genome, log);
 	}
 	public void annotate(String variantsFile,String outputFile) throws IOException {
-		try (VCFFileReader in = new VCFFileReader(variantsFile);
-			 PrintStream out = new PrintStream(outputFile)){
-			annotate(in,out);
+		try (VCFFileReader in = new VCFFileReader(variantsFile, numThreads);
+			 ParallelVCFFileWriter writer = new ParallelVCFFileWriter(outputFile, numThreads)){
+			annotate(in,writer);
 		}
 	}
 	public void annotate(InputStream input,String outputFile) throws IOException {
-		try (VCFFileReader in = new VCFFileReader(input);
-			 PrintStream out = new PrintStream(outputFile)){
-			annotate(in,out);
+		try (VCFFileReader in = new VCFFileReader(input, numThreads);
+			 ParallelVCFFileWriter writer = new ParallelVCFFileWriter(outputFile, numThreads)){
+			annotate(in,writer);
 		}
 	}
 	public void annotate(InputStream input, PrintStream out) throws IOException {
-		try (VCFFileReader in = new VCFFileReader(input)) {
+		try (VCFFileReader in = new VCFFileReader(input, numThreads)) {
 			annotate(in,out);
 		}
 	}
 	public void annotate(String variantsFile,PrintStream out) throws IOException {
-		try (VCFFileReader in = new VCFFileReader(variantsFile)){
+		try (VCFFileReader in = new VCFFileReader(variantsFile, numThreads)){
 			annotate(in,out);
 		}
 	}
 	public void annotate(VCFFileReader in,PrintStream out) throws IOException {
-		VCFFileWriter writer = new VCFFileWriter(); 
+		try (ParallelVCFFileWriter writer = new ParallelVCFFileWriter(out, numThreads)) {
+			annotate(in, writer);
+		}
+	}
+	/**
+	 * Annotates the records of the given reader
+	 * @param in Reader of the records to annotate
+	 * @param writer Writer of the annotated records
+	 * @throws IOException If the records can not be read or written
+	 */
+	public void annotate(VCFFileReader in,ParallelVCFFileWriter writer) throws IOException {
 		in.setLog(log);
+		//Genotypes are only decoded by the writer
+		in.setLazyGenotypes(true);
 		VCFFileHeader header = in.getHeader();
 		header.addMissingEntries();
-		writer.printHeader(header,out);
+		writer.printHeader(header);
 		Iterator<VCFRecord> it = in.iterator();
+		GenomicRegionSpanningCursor<Transcript> transcriptsCursor = transcriptome.getTranscriptsCursor();
 		int n=0;
 		while (it.hasNext()) {
 			VCFRecord record = it.next();
-			if(record.getVariant().getAlleles().length>=2) annotate(record);
-			writer.printVCFRecord(record, out);
+			if(record.getVariant().getAlleles().length>=2) annotate(record, transcriptsCursor);
+			writer.printVCFRecord(record);
 			n++;
 			if (progressNotifier!=null && n%1000==0) {
 				int progress = n/1000;
 				if (!progressNotifier.keepRunning(progress)) {
-					out.flush();
+					writer.flush();
 					return;
 				}
 			}
 		}
-		out.flush();
+		writer.flush();
 	}
 
 	public void annotate(VCFRecord record) {
+		annotate(record, null);
+	}
+	private void annotate(VCFRecord record, GenomicRegionSpanningCursor<Transcript> transcriptsCursor) {
 		GenomicVariant v = record.getVariant();
-		List<VariantFunctionalAnnotation> annotations = transcriptome.calculateAnnotations(v, parameters);
+		List<VariantFunctionalAnnotation> annotations = transcriptome.calculateAnnotations(v, parameters, transcriptsCursor);
 		if(annotations.size()>0) {
 			Collections.sort(annotations,VariantFunctionalAnnotationType.getPriorityComparator());
 			VariantFunctionalAnnotation ann = annotations.get(0);
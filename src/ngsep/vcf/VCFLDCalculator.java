@@ -24,7 +24,6 @@ import java.io.InputStream;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -32,6 +31,8 @@ import ngsep.main.CommandsDescriptor;
 import ngsep.main.ProgressNotifier;
 import ngsep.main.io.ParseUtils;
 import ngsep.variants.CalledGenomicVariant;
+import ngsep.variants.GenomicVariant;
+import ngsep.variants.PackedGenotypeMatrix;
 
 /**
  * Program to calculate LD statistics
@@ -106,8 +107,10 @@ public class VCFLDCalculator {
 	public void run(VCFFileReader in, PrintStream out) {
 		if(log!=null)in.setLog(log);
 		
-		List<VCFRecord> recordsInMemory = new LinkedList<>();
 		in.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
+		int numSamples = in.getSampleIds().size();
+		//Genotypes of the current sequence are kept packed in memory
+		PackedGenotypeMatrix genotypes = new PackedGenotypeMatrix(numSamples);
 		//TODO: Implement modes
 		Iterator<VCFRecord> it = in.iterator();
 		String lastSeqName = null;
@@ -116,13 +119,13 @@ public class VCFLDCalculator {
 			VCFRecord record = it.next();
 			if(!record.getVariant().isBiallelic()) continue;
 			if(!record.getSequenceName().equals(lastSeqName)) {
-				if(recordsInMemory.size()>0) {
-					calculateLDStatistics(recordsInMemory,out);
-					recordsInMemory.clear();
+				if(genotypes.getNumRows()>0) {
+					calculateLDStatistics(genotypes,out);
+					genotypes = new PackedGenotypeMatrix(numSamples);
 				}
 				lastSeqName = record.getSequenceName();
 			}
-			recordsInMemory.add(record);
+			genotypes.addVariant(record.getVariant(), record.getCalls());
 			
 			n++;
 			if (progressNotifier!=null && n%1000==0) {
@@ -133,8 +136,8 @@ public class VCFLDCalculator {
 				}
 			}
 		}
-		//System.out.println("Loaded: "+recordsInMemory.size()+" variants");
-		if(recordsInMemory.size()>0) calculateLDStatistics(recordsInMemory,out);
+		//System.out.println("Loaded: "+genotypes.getNumRows()+" variants");
+		if(genotypes.getNumRows()>0) calculateLDStatistics(genotypes,out);
 	}
 	/**
 	 * Calculates LD statistics for all pairs of records within the given list
@@ -142,21 +145,59 @@ public class VCFLDCalculator {
 	 * @param out stream to write results
 	 */
 	public void calculateLDStatistics(List<VCFRecord> records, PrintStream out) {
+		if(records.size()==0) return;
+		PackedGenotypeMatrix genotypes = new PackedGenotypeMatrix(records.get(0).getCalls().size(), records.size());
+		for(VCFRecord record:records) genotypes.addVariant(record.getVariant(), record.getCalls());
+		calculateLDStatistics(genotypes, out);
+	}
+	/**
+	 * Calculates LD statistics for all pairs of biallelic variants within the given matrix
+	 * @param genotypes Packed genotypes with one row per variant
+	 * @param out stream to write results
+	 */
+	public void calculateLDStatistics(PackedGenotypeMatrix genotypes, PrintStream out) {
 		DecimalFormat fmt = ParseUtils.ENGLISHFMT_PROBABILITIES;
-		int n = records.size();
-		//Array to ensure constant lookup time
-		VCFRecord [] recordsArray = records.toArray(new VCFRecord[0]);
+		int n = genotypes.getNumRows();
 		for(int i=0;i<n;i++) {
+			GenomicVariant v1 = genotypes.getVariant(i);
 			for(int j=i+1;j<n;j++) {
-				VCFRecord r1 = recordsArray[i];
-				VCFRecord r2 = recordsArray[j];
-				LDStatistics stats = calculateLDStatistics (r1, r2);
-				System.out.print(r1.getSequenceName()+"\t"+r1.getFirst()+"\t"+r1.getLast()+"\t"+r2.getSequenceName()+"\t"+r2.getFirst()+"\t"+r2.getLast());
-				System.out.println("\t"+(r2.getFirst()-r1.getFirst())+"\t"+stats.getSharedVariants()+"\t"+fmt.format(stats.getD())+"\t"+fmt.format(stats.getDPrime())+"\t"+fmt.format(stats.getR2()));
+				GenomicVariant v2 = genotypes.getVariant(j);
+				LDStatistics stats = calculateLDStatistics (genotypes, i, j);
+				out.print(v1.getSequenceName()+"\t"+v1.getFirst()+"\t"+v1.getLast()+"\t"+v2.getSequenceName()+"\t"+v2.getFirst()+"\t"+v2.getLast());
+				out.println("\t"+(v2.getFirst()-v1.getFirst())+"\t"+stats.getSharedVariants()+"\t"+fmt.format(stats.getD())+"\t"+fmt.format(stats.getDPrime())+"\t"+fmt.format(stats.getR2()));
 			}
 		}
 		
 	}
+	/**
+	 * Calculates LD statistics between two rows of a packed genotype matrix processing 32 samples per operation
+	 * @param genotypes Packed genotypes with one row per variant
+	 * @param row1 Index of the first variant
+	 * @param row2 Index of the second variant
+	 * @return LDStatistics statistics for the two variants
+	 */
+	public LDStatistics calculateLDStatistics(PackedGenotypeMatrix genotypes, int row1, int row2) {
+		int n00=0;
+		int n0v1=0;
+		int n0v2=0;
+		int shared = 0;
+		int numWords = genotypes.getWordsPerRow();
+		for(int w=0;w<numWords;w++) {
+			long word1 = genotypes.getWord(row1, w);
+			long word2 = genotypes.getWord(row2, w);
+			long homoRef1 = PackedGenotypeMatrix.getHomozygousReferenceLanes(word1);
+			long hetero1 = PackedGenotypeMatrix.getHeterozygousLanes(word1);
+			long homoRef2 = PackedGenotypeMatrix.getHomozygousReferenceLanes(word2);
+			long hetero2 = PackedGenotypeMatrix.getHeterozygousLanes(word2);
+			//Samples genotyped in both variants and not heterozygous in both
+			long valid = PackedGenotypeMatrix.getCalledLanes(word1) & PackedGenotypeMatrix.getCalledLanes(word2) & ~(hetero1 & hetero2);
+			shared+=2*Long.bitCount(valid);
+			n0v1+=2*Long.bitCount(homoRef1 & valid)+Long.bitCount(hetero1 & valid);
+			n0v2+=2*Long.bitCount(homoRef2 & valid)+Long.bitCount(hetero2 & valid);
+			n00+=2*Long.bitCount(homoRef1 & homoRef2 & valid)+Long.bitCount(((homoRef1 & hetero2) | (hetero1 & homoRef2)) & valid);
+		}
+		return buildLDStatistics(n00, n0v1, n0v2, shared);
+	}
 	public LDStatistics calculateLDStatistics(VCFRecord record1, VCFRecord record2) {
 		List<CalledGenomicVariant> calls1= record1.getCalls();
 		List<CalledGenomicVariant> calls2= record2.getCalls();
@@ -186,6 +227,9 @@ public class VCFLDCalculator {
 			if(call2.isHomozygousReference()) n0v2+=2;
 			else if (call2.isHeterozygous()) n0v2++;
 		}
+		return buildLDStatistics(n00, n0v1, n0v2, shared);
+	}
+	private LDStatistics buildLDStatistics(double n00, double n0v1, double n0v2, int shared) {
 		if(shared == 0) return new LDStatistics(0, 0, 0, shared);
 		double p00 = n00/shared;
 		double p0v1 = n0v1/shared;
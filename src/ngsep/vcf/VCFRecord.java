@@ -173,6 +173,8 @@ public class VCFRecord implements GenomicRegion {
 	private Map<String,GenomicVariantAnnotation> infoFields = new LinkedHashMap<String, GenomicVariantAnnotation>();
 	private List<CalledGenomicVariant> calls;
 	private int [] fieldsFormat;
+	//True if the copy number field must be added to the format when some call has a non default copy number
+	private boolean checkCopyNumberFormat = false;
 	private VCFFileHeader header;
 	public VCFRecord(GenomicVariant variant, List<String> filters,List<GenomicVariantAnnotation> infoFields, int [] format, List<CalledGenomicVariant> calls, VCFFileHeader header) {
 		this.variant = variant;
@@ -254,10 +256,35 @@ public class VCFRecord implements GenomicRegion {
 		infoFields.remove(key);
 	}
 	public int[] getFieldsFormat() {
+		if(checkCopyNumberFormat) {
+			checkCopyNumberFormat = false;
+			updateCopyNumberFormat();
+		}
 		return fieldsFormat;
 	}
 	public void setFieldsFormat(int[] fieldsFormat) {
 		this.fieldsFormat = fieldsFormat;
+		checkCopyNumberFormat = false;
+	}
+	/**
+	 * Delays the decision of including the copy number field in the format until the format is requested.
+	 * Used when calls are decoded lazily
+	 * @param checkCopyNumberFormat true if the copy number field should be added to the format if some call has a non default copy number
+	 */
+	void setCheckCopyNumberFormat(boolean checkCopyNumberFormat) {
+		this.checkCopyNumberFormat = checkCopyNumberFormat;
+	}
+	private void updateCopyNumberFormat() {
+		for(int idx:fieldsFormat) {
+			if(idx == FORMAT_IDX_ACN) return;
+		}
+		for(CalledGenomicVariant call:calls) {
+			if(call.getCopyNumber()!=CalledGenomicVariant.DEFAULT_PLOIDY) {
+				fieldsFormat = Arrays.copyOf(fieldsFormat, fieldsFormat.length+1);
+				fieldsFormat[fieldsFormat.length-1] = FORMAT_IDX_ACN;
+				return;
+			}
+		}
 	}
 	public VCFFileHeader getHeader() {
 		return header;
@@ -146,6 +146,8 @@ public class VCFVariantDensityCalculator {
 	public void run(VCFFileReader in, PrintStream out) throws IOException {
 		if(log!=null)in.setLog(log);
 		in.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
+		//Genotypes are not needed
+		in.setLazyGenotypes(true);
 		QualifiedSequenceList sequences = genome.getSequencesMetadata();
 		in.setSequences(sequences);
 		Iterator<VCFRecord> it = in.iterator();
@@ -1,10 +1,20 @@
 package ngsep.sequences.test;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import junit.framework.TestCase;
 import ngsep.sequences.ShortKmerCodesTable;
+import ngsep.sequences.UngappedSearchHit;
 import ngsep.sequences.KmerCodesTableEntry;
 
 public class ShortKmerCodesTableTest extends TestCase {
@@ -33,4 +43,111 @@ public class ShortKmerCodesTableTest extends TestCase {
 			}
 		}
 	}
+	public void testBuildTwice () {
+		List<CharSequence> sequences = createSequences(20, 11);
+		ShortKmerCodesTable table1 = buildTable(sequences, 1);
+		ShortKmerCodesTable table2 = buildTable(sequences, 4);
+		ShortKmerCodesTable table3 = buildTable(sequences, 4);
+		assertSameTable(sequences, table1, table2);
+		assertSameTable(sequences, table2, table3);
+	}
+	public void testSaveLoadRoundTrip () throws IOException {
+		List<CharSequence> sequences = createSequences(21, 13);
+		ShortKmerCodesTable table = buildTable(sequences.subList(0, 20), 1);
+		File file = File.createTempFile("kmerCodesTable", ".bin");
+		try {
+			table.saveBinary(file.getAbsolutePath());
+			ShortKmerCodesTable loaded = ShortKmerCodesTable.loadBinary(file.getAbsolutePath());
+			assertEquals(table.getMaxHitsKmerCode(), loaded.getMaxHitsKmerCode());
+			assertSameTable(sequences, table, loaded);
+			//Sequences can be added after loading
+			table.addSequence(20, sequences.get(20));
+			loaded.addSequence(20, sequences.get(20));
+			assertSameTable(sequences, table, loaded);
+		} finally {
+			file.delete();
+		}
+	}
+	public void testLoadCorruptTable () throws IOException {
+		List<CharSequence> sequences = createSequences(5, 17);
+		ShortKmerCodesTable table = buildTable(sequences, 1);
+		File file = File.createTempFile("kmerCodesTable", ".bin");
+		try {
+			table.saveBinary(file.getAbsolutePath());
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				//Header of the first partition is located after the header and the lengths of the sequences
+				long position = 56+2*8*((4*sequences.size()+7)/8);
+				ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+				channel.read(buffer, position);
+				buffer.flip();
+				int numCodes = buffer.getInt();
+				int hashCapacity = buffer.getInt();
+				//Replaces the first row of the hash table with a row larger than the number of codes
+				ByteBuffer row = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+				row.putInt(numCodes+5);
+				row.flip();
+				channel.write(row, position+16+8L*hashCapacity);
+			}
+			try {
+				ShortKmerCodesTable.loadBinary(file.getAbsolutePath());
+				fail("Corrupt table was loaded");
+			} catch (IOException e) {
+				//Expected
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	private List<CharSequence> createSequences(int n, long seed) {
+		Random random = new Random(seed);
+		String repeat = createRandomSequence(random, 500);
+		List<CharSequence> sequences = new ArrayList<CharSequence>();
+		for(int i=0;i<n;i++) {
+			StringBuilder sequence = new StringBuilder();
+			//Shared repeat to reach the maximum number of hits of its codes
+			for(int j=0;j<5;j++) {
+				sequence.append(createRandomSequence(random, 1000+random.nextInt(1000)));
+				sequence.append(repeat);
+			}
+			sequences.add(sequence.toString());
+		}
+		return sequences;
+	}
+	private String createRandomSequence(Random random, int length) {
+		StringBuilder answer = new StringBuilder();
+		for(int i=0;i<length;i++) answer.append("ACGT".charAt(random.nextInt(4)));
+		return answer.toString();
+	}
+	private ShortKmerCodesTable buildTable(List<CharSequence> sequences, int numThreads) {
+		ShortKmerCodesTable table = new ShortKmerCodesTable(15, 20);
+		table.setMaxHitsKmerCode(30);
+		table.addSequences(sequences, numThreads);
+		table.buildCodesIndex();
+		return table;
+	}
+	private void assertSameTable(List<CharSequence> sequences, ShortKmerCodesTable expected, ShortKmerCodesTable actual) {
+		assertEquals(expected.size(), actual.size());
+		assertEquals(expected.getTotalEntries(), actual.getTotalEntries());
+		for(int i=0;i<sequences.size();i++) {
+			String sequence = sequences.get(i).toString();
+			for(KmerCodesTableEntry entry:expected.computeSequenceCodes(i, sequence, 0, sequence.length())) {
+				long code = entry.getKmerCode();
+				assertEquals(expected.getTotalHits(code), actual.getTotalHits(code));
+				assertEquals(expected.getCountDifferentSequences(code), actual.getCountDifferentSequences(code));
+			}
+			Map<Integer,List<UngappedSearchHit>> expectedHits = expected.match(i, sequence);
+			Map<Integer,List<UngappedSearchHit>> actualHits = actual.match(i, sequence);
+			assertEquals(expectedHits.keySet(), actualHits.keySet());
+			for(Map.Entry<Integer,List<UngappedSearchHit>> hitsEntry:expectedHits.entrySet()) {
+				List<UngappedSearchHit> expectedList = hitsEntry.getValue();
+				List<UngappedSearchHit> actualList = actualHits.get(hitsEntry.getKey());
+				assertEquals(expectedList.size(), actualList.size());
+				for(int j=0;j<expectedList.size();j++) {
+					assertEquals(expectedList.get(j).getSubjectIdx(), actualList.get(j).getSubjectIdx());
+					assertEquals(expectedList.get(j).getSubjectStart(), actualList.get(j).getSubjectStart());
+					assertEquals(expectedList.get(j).getQueryStart(), actualList.get(j).getQueryStart());
+				}
+			}
+		}
+	}
 }